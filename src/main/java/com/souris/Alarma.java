@@ -1,28 +1,88 @@
 package com.souris;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.UUID;
 
 /**
  * MODELO DE DATOS
- * Representa una alarma individual con su hora y días de repetición.
+ * Representa una alarma individual con su hora y días de repetición
+ * (o una {@link ReglaRecurrencia} para repeticiones más complejas),
+ * y opcionalmente un grupo (p. ej. el turno) y etiquetas (p. ej. el equipo).
  * Implementa Serializable para poder guardarse en un archivo.
+ * Es inmutable: los cambios de estado producen una copia con el mismo id,
+ * así las instantáneas del {@link RegistroAlarmas} nunca cambian por debajo.
  */
 public class Alarma implements Serializable {
     
     private static final long serialVersionUID = 1L;
+
+    // Hasta dónde se busca la próxima ocurrencia de una regla
+    private static final int HORIZONTE_ANIOS = 5;
     
+    private String id;                   // Identificador estable (sobrevive a copias y al guardado)
     private final LocalTime hora;
     private final boolean[] diasActivos; // Array de 7 booleanos (Domingo a Sábado)
-    private boolean activa;
+    private final ReglaRecurrencia regla; // Regla avanzada (null = usar diasActivos)
+    private final boolean activa;
+    private final String grupo;          // null = sin grupo
+    private final String[] etiquetas;    // Ordenadas y sin repetir; null = sin etiquetas
+
+    /**
+     * Lo que define a una alarma salvo el id y el estado: dos alarmas con la misma
+     * clave son duplicadas. Se compara por hash (equals/hashCode del record).
+     */
+    public record Clave(LocalTime hora, String dias, ReglaRecurrencia regla, String grupo, List<String> etiquetas) {}
+
+    // Los días semanales compilados como regla, para consultarlos igual que las avanzadas
+    private transient ReglaRecurrencia reglaSemanal;
 
     public Alarma(LocalTime hora, boolean[] diasActivos) {
+        this(UUID.randomUUID().toString(), hora, diasActivos, null, true, null, null);
+    }
+
+    /**
+     * Alarma con una regla de recurrencia. Una regla semanal sin exclusiones
+     * se guarda como días normales, igual que las creadas desde la interfaz.
+     */
+    public Alarma(LocalTime hora, ReglaRecurrencia regla) {
+        this(UUID.randomUUID().toString(), hora, diasDeRegla(regla), esSemanalSimple(regla) ? null : regla, true, null, null);
+    }
+
+    private Alarma(String id, LocalTime hora, boolean[] diasActivos, ReglaRecurrencia regla, boolean activa,
+                   String grupo, String[] etiquetas) {
+        this.id = id;
         this.hora = hora;
         this.diasActivos = Arrays.copyOf(diasActivos, 7);
-        this.activa = true;
+        this.regla = regla;
+        this.activa = activa;
+        this.grupo = grupo;
+        this.etiquetas = etiquetas;
+    }
+
+    private static boolean esSemanalSimple(ReglaRecurrencia regla) {
+        return regla.getTipo() == ReglaRecurrencia.Tipo.SEMANAL && regla.getExclusiones().isEmpty()
+                && regla.getFechas().isEmpty() && regla.getInicio() == null;
+    }
+
+    private static boolean[] diasDeRegla(ReglaRecurrencia regla) {
+        boolean[] dias = new boolean[7];
+        if (esSemanalSimple(regla)) for (int i = 0; i < 7; i++) dias[i] = regla.isDiaSemana(i);
+        return dias;
     }
 
+    public String getId() { return id; }
     public LocalTime getHora() { return hora; }
     
     /**
@@ -37,22 +97,163 @@ public class Alarma implements Serializable {
     }
     
     public boolean isDiaActivo(int indice) {
-        if (indice >= 0 && indice < 7) return diasActivos[indice];
-        return false;
+        if (indice < 0 || indice >= 7) return false;
+        if (regla != null) return regla.isDiaSemana(indice);
+        return diasActivos[indice];
+    }
+
+    /**
+     * Regla avanzada de la alarma, o null si usa solo días de la semana.
+     */
+    public ReglaRecurrencia getRegla() { return regla; }
+
+    /**
+     * La regla que decide los días, sea avanzada o semanal. Null si es de una sola vez.
+     */
+    public ReglaRecurrencia getReglaEfectiva() {
+        if (regla != null) return regla;
+        if (esUnaSolaVez()) return null;
+        if (reglaSemanal == null) reglaSemanal = ReglaRecurrencia.semanal(diasActivos);
+        return reglaSemanal;
+    }
+
+    /**
+     * Verifica si la alarma debe sonar en la fecha indicada (test de bit sobre la regla compilada).
+     */
+    public boolean debeSonarEl(LocalDate fecha) {
+        ReglaRecurrencia r = getReglaEfectiva();
+        return r == null || r.coincide(fecha);
     }
     
     /**
-     * Si no hay ningún día marcado, se asume que es una alarma de "una sola vez".
+     * Si no hay ningún día marcado (ni regla), se asume que es una alarma de "una sola vez".
      */
     public boolean esUnaSolaVez() {
+        if (regla != null) return false;
         for (boolean dia : diasActivos) {
             if (dia) return false;
         }
         return true;
     }
 
+    /**
+     * Días como texto de 7 caracteres, de Domingo a Sábado: "0111110" = Lunes a Viernes.
+     */
+    public String getMascaraDias() {
+        StringBuilder sb = new StringBuilder(7);
+        for (boolean dia : diasActivos) sb.append(dia ? '1' : '0');
+        return sb.toString();
+    }
+
+    /**
+     * Lee una máscara como la de {@link #getMascaraDias()}. "-" significa "una sola vez".
+     */
+    public static boolean[] parsearMascaraDias(String mascara) {
+        boolean[] dias = new boolean[7];
+        if (mascara == null || mascara.isEmpty() || mascara.equals("-")) return dias;
+        if (mascara.length() != 7) throw new IllegalArgumentException("La máscara de días debe tener 7 caracteres: " + mascara);
+        for (int i = 0; i < 7; i++) {
+            char c = mascara.charAt(i);
+            if (c != '0' && c != '1') throw new IllegalArgumentException("Máscara de días inválida: " + mascara);
+            dias[i] = c == '1';
+        }
+        return dias;
+    }
+
+    /**
+     * Próximo momento (estrictamente posterior a "desde") en que sonaría la alarma,
+     * o null si está apagada.
+     */
+    public LocalDateTime proximaOcurrencia(LocalDateTime desde) {
+        if (!activa) return null;
+        LocalDateTime candidata = desde.toLocalDate().atTime(hora);
+        if (!candidata.isAfter(desde)) candidata = candidata.plusDays(1);
+        ReglaRecurrencia r = getReglaEfectiva();
+        if (r == null) return candidata;
+        LocalDate fecha = r.siguiente(candidata.toLocalDate(), candidata.toLocalDate().plusYears(HORIZONTE_ANIOS));
+        return fecha == null ? null : fecha.atTime(hora);
+    }
+
     public boolean isActiva() { return activa; }
-    public void setActiva(boolean activa) { this.activa = activa; }
+
+    public Clave getClave() {
+        return new Clave(hora, getMascaraDias(), regla, grupo == null ? null : normalizarGrupo(grupo), getEtiquetas());
+    }
+
+    /**
+     * ¿Es la misma alarma con exactamente los mismos datos? (para saber si otro proceso la cambió)
+     */
+    public boolean mismoContenido(Alarma otra) {
+        return id.equals(otra.id) && activa == otra.activa && hora.equals(otra.hora)
+                && Arrays.equals(diasActivos, otra.diasActivos) && Objects.equals(regla, otra.regla)
+                && Objects.equals(grupo, otra.grupo) && Arrays.equals(etiquetas, otra.etiquetas);
+    }
+
+    /**
+     * Devuelve una copia con el estado indicado (o esta misma si no cambia).
+     */
+    public Alarma conActiva(boolean nuevoEstado) {
+        if (nuevoEstado == activa) return this;
+        return new Alarma(id, hora, diasActivos, regla, nuevoEstado, grupo, etiquetas);
+    }
+
+    // =========================================================================
+    //                        GRUPO Y ETIQUETAS
+    // =========================================================================
+
+    /**
+     * Grupo de la alarma (p. ej. "Turno mañana"), o null si no tiene.
+     */
+    public String getGrupo() { return grupo; }
+
+    /**
+     * Etiquetas en minúsculas y en orden alfabético.
+     */
+    public List<String> getEtiquetas() {
+        return etiquetas == null ? Collections.emptyList() : Collections.unmodifiableList(Arrays.asList(etiquetas));
+    }
+
+    public boolean tieneEtiqueta(String etiqueta) {
+        return etiquetas != null && Arrays.binarySearch(etiquetas, normalizarEtiqueta(etiqueta)) >= 0;
+    }
+
+    /**
+     * Devuelve una copia (mismo id) con otro grupo y otras etiquetas.
+     * Los textos vacíos se ignoran.
+     */
+    public Alarma conGrupoYEtiquetas(String nuevoGrupo, Collection<String> nuevasEtiquetas) {
+        TreeSet<String> limpias = new TreeSet<>();
+        if (nuevasEtiquetas != null) {
+            for (String e : nuevasEtiquetas) {
+                String limpia = normalizarEtiqueta(e);
+                if (!limpia.isEmpty()) limpias.add(limpia);
+            }
+        }
+        String limpio = nuevoGrupo == null || nuevoGrupo.isBlank() ? null : nuevoGrupo.trim();
+        return new Alarma(id, hora, diasActivos, regla, activa, limpio,
+                limpias.isEmpty() ? null : limpias.toArray(new String[0]));
+    }
+
+    /**
+     * Las etiquetas no distinguen mayúsculas: "Noche" y "noche" son la misma.
+     */
+    public static String normalizarEtiqueta(String etiqueta) {
+        return etiqueta == null ? "" : etiqueta.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Los grupos tampoco: la alarma guarda el nombre como se escribió, pero para
+     * compararlos (duplicadas, índice, filtros) se usa siempre esta clave.
+     */
+    public static String normalizarGrupo(String grupo) {
+        return normalizarEtiqueta(grupo);
+    }
+
+    // Los archivos guardados antes de existir el id no lo traen: se asigna uno al leer.
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (id == null) id = UUID.randomUUID().toString();
+    }
 
     @Override
     public String toString() { return hora.toString(); }
@@ -14,6 +14,7 @@ import javafx.stage.StageStyle;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.List;
 import java.awt.Toolkit;
 
 /**
@@ -62,6 +63,15 @@ public class App extends Application {
         configurarSystemTray();
 
         stage.show();
+
+        // Lo que llegue de otro arranque (o de la línea de comandos de este) trae la ventana al frente
+        controller.setMostrarVentana(this::mostrarVentana);
+        try {
+            List<String> ordenes = Launcher.ordenesDesdeArgumentos(getParameters().getRaw().toArray(new String[0]));
+            if (ordenes.size() > 1) controller.ejecutarOrdenes(ordenes);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        }
     }
 
     /**
@@ -151,6 +161,8 @@ public class App extends Application {
         RadioMenuItem ro = new RadioMenuItem("Oscuro"); ro.setToggleGroup(tg);
         
         if (c.isModoOscuro()) ro.setSelected(true); else rc.setSelected(true);
+        // Las preferencias se cargan en segundo plano: al abrir el menú se marca lo que hay ahora
+        t.setOnShowing(e->{ if (c.isModoOscuro()) ro.setSelected(true); else rc.setSelected(true); });
         rc.setOnAction(e->c.cambiarTema("Claro")); 
         ro.setOnAction(e->c.cambiarTema("Oscuro"));
         t.getItems().addAll(rc,ro);
@@ -171,18 +183,80 @@ public class App extends Application {
         crearItemFuente(c, fts, tgf, "Elegante (Georgia)", "Georgia");
         crearItemFuente(c, fts, tgf, "Futurista (Consolas)", "Consolas");
         crearItemFuente(c, fts, tgf, "Limpia (Arial)", "Arial");
+        fts.setOnShowing(e->fts.getItems().forEach(i->((RadioMenuItem) i).setSelected(c.getFuenteActual().equals(i.getUserData()))));
         
         m1.getItems().addAll(t, f, new SeparatorMenuItem(), fts);
 
         // --- MENÚ HERRAMIENTAS ---
         Menu m2 = new Menu("Herramientas");
         MenuItem h = new MenuItem("Historial"); h.setOnAction(e->c.mostrarHistorial());
+        MenuItem lt = new MenuItem("Línea de tiempo"); lt.setOnAction(e->c.mostrarLineaTiempo());
+        Menu pf = new Menu("Perfiles");
+        pf.setOnShowing(e->llenarMenuPerfiles(c, pf)); // Otro proceso puede haber creado perfiles
+        llenarMenuPerfiles(c, pf);
         MenuItem a = new MenuItem("Seleccionar Audio..."); 
         a.setOnAction(e->{ 
             File file = fileChooser(s, "Audio", "*.mp3", "*.wav"); 
             if(file!=null) c.setArchivoSonido(file); 
         });
-        m2.getItems().addAll(h,new SeparatorMenuItem(),a);
+        MenuItem im = new MenuItem("Importar alarmas...");
+        im.setOnAction(e->{
+            File file = fileChooser(s, "Alarmas (CSV, iCalendar)", "*.csv", "*.ics");
+            if(file!=null) c.importarAlarmas(file);
+        });
+        MenuItem ex = new MenuItem("Exportar alarmas...");
+        ex.setOnAction(e->{
+            File file = fileChooserGuardar(s, "alarmas.csv", "Alarmas (CSV, iCalendar)", "*.csv", "*.ics");
+            if(file!=null) c.exportarAlarmas(file);
+        });
+        Menu dst = new Menu("Cambio de hora");
+        ToggleGroup tgh = new ToggleGroup();
+        RadioMenuItem hd = new RadioMenuItem("Hora inexistente: sonar tras el salto"); hd.setToggleGroup(tgh);
+        RadioMenuItem ho = new RadioMenuItem("Hora inexistente: no sonar ese día"); ho.setToggleGroup(tgh);
+        ToggleGroup tgs = new ToggleGroup();
+        RadioMenuItem sp = new RadioMenuItem("Hora repetida: sonar la primera vez"); sp.setToggleGroup(tgs);
+        RadioMenuItem ss = new RadioMenuItem("Hora repetida: sonar la segunda vez"); ss.setToggleGroup(tgs);
+        Runnable marcarDst = () -> {
+            if (c.getPoliticaHueco() == IndiceProximasAlarmas.Hueco.OMITIR) ho.setSelected(true); else hd.setSelected(true);
+            if (c.getPoliticaSolapamiento() == IndiceProximasAlarmas.Solapamiento.SEGUNDA) ss.setSelected(true); else sp.setSelected(true);
+        };
+        marcarDst.run();
+        dst.setOnShowing(e->marcarDst.run());
+        Runnable aplicarDst = () -> c.cambiarPoliticasDst(
+                ho.isSelected() ? IndiceProximasAlarmas.Hueco.OMITIR : IndiceProximasAlarmas.Hueco.DESPLAZAR,
+                ss.isSelected() ? IndiceProximasAlarmas.Solapamiento.SEGUNDA : IndiceProximasAlarmas.Solapamiento.PRIMERA);
+        for (RadioMenuItem r : new RadioMenuItem[]{hd, ho, sp, ss}) r.setOnAction(e->aplicarDst.run());
+        dst.getItems().addAll(hd, ho, new SeparatorMenuItem(), sp, ss);
+
+        Menu pos = new Menu("Posponer");
+        ToggleGroup tgm = new ToggleGroup();
+        ToggleGroup tgx = new ToggleGroup();
+        for (int min : new int[]{5, 9, 10, 15}) {
+            RadioMenuItem r = new RadioMenuItem(min + " minutos"); r.setToggleGroup(tgm); r.setUserData(min);
+            if (c.getMinutosPosponer() == min) r.setSelected(true);
+            pos.getItems().add(r);
+        }
+        pos.getItems().add(new SeparatorMenuItem());
+        for (int max : new int[]{1, 3, 5, 10}) {
+            RadioMenuItem r = new RadioMenuItem("Máximo " + max + (max == 1 ? " vez" : " veces")); r.setToggleGroup(tgx); r.setUserData(max);
+            if (c.getMaximoPosposiciones() == max) r.setSelected(true);
+            pos.getItems().add(r);
+        }
+        Runnable aplicarPos = () -> c.cambiarPosponer(
+                tgm.getSelectedToggle() != null ? (int) tgm.getSelectedToggle().getUserData() : c.getMinutosPosponer(),
+                tgx.getSelectedToggle() != null ? (int) tgx.getSelectedToggle().getUserData() : c.getMaximoPosposiciones());
+        for (MenuItem r : pos.getItems()) r.setOnAction(e->aplicarPos.run());
+        pos.setOnShowing(e->{
+            for (MenuItem i : pos.getItems()) {
+                if (!(i instanceof RadioMenuItem r)) continue;
+                int valor = (int) r.getUserData();
+                r.setSelected(r.getToggleGroup() == tgm ? c.getMinutosPosponer() == valor : c.getMaximoPosposiciones() == valor);
+            }
+        });
+        MenuItem cp = new MenuItem("Cancelar alarmas pospuestas"); cp.setOnAction(e->c.cancelarPosposiciones());
+        pos.getItems().addAll(new SeparatorMenuItem(), cp);
+
+        m2.getItems().addAll(h,lt,new SeparatorMenuItem(),pf,new SeparatorMenuItem(),a,pos,dst,new SeparatorMenuItem(),im,ex);
         
         // --- MENÚ CRÉDITOS ---
         Menu m3 = new Menu("Créditos");
@@ -199,16 +273,40 @@ public class App extends Application {
     private void crearItemFuente(PrimaryController c, Menu m, ToggleGroup g, String label, String font) {
         RadioMenuItem item = new RadioMenuItem(label);
         item.setToggleGroup(g);
+        item.setUserData(font);
         item.setOnAction(e -> c.cambiarTipografia(font));
         if (c.getFuenteActual().equals(font)) item.setSelected(true);
         m.getItems().add(item);
     }
     
+    // Helper para el menú de perfiles: uno por perfil (marcado el activo) y "Nuevo perfil..."
+    private void llenarMenuPerfiles(PrimaryController c, Menu m) {
+        m.getItems().clear();
+        ToggleGroup g = new ToggleGroup();
+        for (GestorPerfiles.Resumen p : c.getPerfiles()) {
+            RadioMenuItem item = new RadioMenuItem(p.nombre() + " (" + p.alarmas() + ")");
+            item.setToggleGroup(g);
+            item.setOnAction(e -> c.cambiarPerfil(p.nombre()));
+            if (p.nombre().equals(c.getPerfilActivo())) item.setSelected(true);
+            m.getItems().add(item);
+        }
+        MenuItem nuevo = new MenuItem("Nuevo perfil...");
+        nuevo.setOnAction(e -> c.crearPerfil());
+        m.getItems().addAll(new SeparatorMenuItem(), nuevo);
+    }
+
     private File fileChooser(Stage s, String desc, String... ex) {
         FileChooser fc = new FileChooser();
         fc.getExtensionFilters().add(new FileChooser.ExtensionFilter(desc, ex));
         return fc.showOpenDialog(s);
     }
 
-    public static void main(String[] args) { launch(); }
+    private File fileChooserGuardar(Stage s, String nombre, String desc, String... ex) {
+        FileChooser fc = new FileChooser();
+        fc.setInitialFileName(nombre);
+        fc.getExtensionFilters().add(new FileChooser.ExtensionFilter(desc, ex));
+        return fc.showSaveDialog(s);
+    }
+
+    public static void main(String[] args) { launch(args); }
 }
\ No newline at end of file
@@ -7,12 +7,20 @@ import java.util.List;
 public class AppState implements Serializable {
     private static final long serialVersionUID = 1L;
 
+    public static final int MINUTOS_POSPONER = 9;
+    public static final int MAXIMO_POSPOSICIONES = 3;
+
     public List<Alarma> alarmasGuardadas;
     public boolean modoOscuroActivado;
     public double nivelVolumen;
     public String rutaImagenFondo;
     public String nombreFuente;
     public String rutaSonido;
+    public String politicaHueco;        // IndiceProximasAlarmas.Hueco (null = por defecto)
+    public String politicaSolapamiento; // IndiceProximasAlarmas.Solapamiento (null = por defecto)
+    public int minutosPosponer;         // 0 = por defecto
+    public int maximoPosposiciones;     // 0 = por defecto
+    public long revision;               // Sube con cada escritura (ver ArchivoCompartido)
 
     public AppState() {
         this.alarmasGuardadas = new ArrayList<>();
@@ -21,5 +29,9 @@ public class AppState implements Serializable {
         this.rutaImagenFondo = null;
         this.nombreFuente = "Segoe UI";
         this.rutaSonido = null;
+        this.politicaHueco = IndiceProximasAlarmas.Hueco.DESPLAZAR.name();
+        this.politicaSolapamiento = IndiceProximasAlarmas.Solapamiento.PRIMERA.name();
+        this.minutosPosponer = MINUTOS_POSPONER;
+        this.maximoPosposiciones = MAXIMO_POSPOSICIONES;
     }
 }
\ No newline at end of file
@@ -0,0 +1,669 @@
+package com.souris;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * ARCHIVO COMPARTIDO
+ * Lee y guarda el {@link AppState} en un archivo que pueden usar varios procesos
+ * a la vez (p. ej. varios puestos apuntando al mismo volumen).
+ *
+ * - Guardar toma el bloqueo exclusivo de un archivo hermano ".lock", relee lo que
+ *   hay, lo fusiona alarma por alarma con lo nuestro y escribe el resultado en un
+ *   temporal que luego reemplaza al archivo de una vez ({@code ATOMIC_MOVE}): un
+ *   corte a mitad de escritura deja el archivo anterior intacto, nunca uno a medias.
+ *   Por eso el archivo se escribe siempre entero, pero solo se serializan las alarmas
+ *   que cambiaron: las demás se copian tal cual de los bytes de su registro leído.
+ * - Leer toma el bloqueo compartido del mismo ".lock".
+ * - Un archivo dañado (CRC que no cuadra, datos truncados) es un error, no un
+ *   archivo vacío: guardar encima borraría las alarmas de los demás.
+ * - La fusión es a tres bandas contra la última versión sincronizada ("base"):
+ *   lo que cambiamos aquí gana, y lo que cambió otro proceso se adopta.
+ * - Un {@link WatchService} avisa cuando el archivo cambia. Al recargar se mira
+ *   primero la revisión de la cabecera (sin leer el resto): si es la nuestra no hay
+ *   nada que hacer. Si no, solo se deserializan las alarmas cuyo CRC cambió, y solo
+ *   esas se aplican al {@link RegistroAlarmas}.
+ *
+ * Leer el registro, fusionar y aplicar lo remoto ocurre dentro del mismo monitor:
+ * así la lista local nunca es más vieja que la base con la que se compara.
+ *
+ * En un mismo proceso cada ruta tiene una sola instancia abierta ({@link #abrir}):
+ * dos instancias serían dos bases distintas para el mismo archivo. Los bloqueos del
+ * sistema son de todo el proceso (dos {@code FileLock} solapados en la misma JVM
+ * lanzan {@code OverlappingFileLockException}), así que antes de tomarlos los hilos
+ * se turnan con un cerrojo por ruta; los métodos estáticos también pasan por él.
+ * Las preferencias (tema, volumen...) son un único registro y no se fusionan campo a
+ * campo: se guardan enteras y gana la última escritura, así que todos los procesos
+ * comparten las mismas. Solo las cambia el usuario desde el menú, de una en una;
+ * fusionarlas a tres bandas pediría guardar también su base, y guardar solo las alarmas
+ * ({@link #guardarAlarmas()}) conserva las del disco.
+ * Los perfiles que no son el principal ({@link GestorPerfiles}) usan la misma clase
+ * sin preferencias: ver {@link #guardarAlarmas()}.
+ */
+public class ArchivoCompartido {
+
+    // Si el sistema de archivos no avisa (algunos volúmenes de red), se revisa igual cada tanto
+    private static final long REVISION_SIN_AVISOS_MS = 5_000;
+    // Una escritura produce varios avisos seguidos: se atienden juntos
+    private static final long ESPERA_AGRUPAR_MS = 150;
+
+    // Formato del archivo: cabecera fija (la revisión se lee sin leer el resto), las
+    // preferencias y después cada alarma como un registro independiente con su CRC
+    private static final int MAGIA = 0x534F5552; // "SOUR"
+    private static final int FORMATO = 2;
+    private static final int CABECERA = 4 + 4 + 8 + 4 + 8; // Magia, formato, revisión, nº de alarmas, CRC del resto
+    private static final long REVISION_DESCONOCIDA = Long.MIN_VALUE;
+
+    // Las instancias abiertas, una por ruta, y el cerrojo de cada archivo ".lock"
+    private static final Map<Path, ArchivoCompartido> ABIERTOS = new ConcurrentHashMap<>();
+    private static final Map<Path, ReentrantLock> CERROJOS = new ConcurrentHashMap<>();
+
+    private final Path ruta;
+    private final Path rutaBloqueo;
+    private final RegistroAlarmas registro;
+    private volatile boolean cerrado;
+
+    // Última versión sincronizada con el disco (leída o escrita por nosotros), con el CRC de cada alarma
+    private Map<String, Alarma> base = new HashMap<>();
+    private Map<String, Integer> crcBase = new HashMap<>();
+    private long revisionBase = -1;
+
+    private Thread vigilante;
+
+    private ArchivoCompartido(Path ruta, RegistroAlarmas registro) {
+        this.ruta = ruta;
+        this.rutaBloqueo = bloqueoDe(ruta);
+        this.registro = registro;
+    }
+
+    /**
+     * Abre el archivo para el registro indicado (no lee nada: ver {@link #cargar()}).
+     * @throws IllegalStateException si ya hay una instancia abierta para esa ruta
+     */
+    public static ArchivoCompartido abrir(Path ruta, RegistroAlarmas registro) {
+        ArchivoCompartido archivo = new ArchivoCompartido(normalizar(ruta), registro);
+        if (ABIERTOS.putIfAbsent(archivo.ruta, archivo) != null) {
+            throw new IllegalStateException("El archivo ya está abierto: " + archivo.ruta);
+        }
+        return archivo;
+    }
+
+    /**
+     * Deja de vigilar y libera la ruta para otra instancia. Lo que no se guardó se pierde.
+     */
+    public synchronized void cerrar() {
+        if (cerrado) return;
+        cerrado = true;
+        if (vigilante != null) vigilante.interrupt();
+        vigilante = null;
+        ABIERTOS.remove(ruta, this);
+    }
+
+    public Path getRuta() { return ruta; }
+
+    // =========================================================================
+    //                        LEER Y GUARDAR
+    // =========================================================================
+
+    /**
+     * Lee el archivo completo (al iniciar) y pone sus alarmas en el registro.
+     * @return las preferencias guardadas, o null si no hay archivo
+     * @throws IOException también si el archivo está dañado
+     */
+    public synchronized AppState cargar() throws IOException {
+        comprobarAbierto();
+        Bloqueo bloqueo = new Bloqueo(rutaBloqueo, true);
+        try {
+            Contenido disco = leer(ruta, Map.of(), Map.of());
+            if (disco == null) return null;
+            registro.reemplazarTodas(disco.estado.alarmasGuardadas);
+            recordar(disco.estado, disco.crcs);
+            return disco.estado;
+        } finally {
+            bloqueo.soltar();
+        }
+    }
+
+    /**
+     * Guarda las alarmas del registro y las preferencias indicadas, fusionadas con
+     * lo que otros procesos hayan escrito. Lo que ellos cambiaron pasa al registro.
+     * @return cuántas alarmas llegaron de otros procesos
+     * @throws IOException también si el archivo está dañado (no se escribe nada)
+     */
+    public synchronized int guardar(AppState preferencias) throws IOException {
+        comprobarAbierto();
+        Bloqueo bloqueo = new Bloqueo(rutaBloqueo, false);
+        try {
+            Contenido disco = leer(ruta, base, crcBase);
+            // Sin preferencias nuevas se conservan las que hay en el disco
+            AppState estado = preferencias != null ? preferencias : disco != null ? disco.estado : new AppState();
+            List<RegistroAlarmas.CambioExterno> remotos = new ArrayList<>();
+            List<Alarma> locales = registro.instantanea().getAlarmas();
+            estado.alarmasGuardadas = disco == null ? new ArrayList<>(locales) : fusionar(locales, disco.estado.alarmasGuardadas, remotos);
+            estado.revision = Math.max(revisionBase, disco == null ? 0 : disco.estado.revision) + 1;
+            Map<String, Integer> crcs = escribir(ruta, estado, disco);
+            recordar(estado, crcs);
+            registro.aplicarCambios(remotos);
+            return remotos.size();
+        } finally {
+            bloqueo.soltar();
+        }
+    }
+
+    /**
+     * Guarda solo las alarmas (las preferencias del archivo no se tocan).
+     * @return cuántas alarmas llegaron de otros procesos
+     */
+    public int guardarAlarmas() throws IOException {
+        return guardar(null);
+    }
+
+    /**
+     * Tras un aviso de cambio, aplica al registro solo lo que cambiaron otros procesos.
+     * Si la revisión del disco es la última que vimos (p. ej. la escribimos nosotros)
+     * solo se leen los bytes de la cabecera; si no, solo se deserializan las alarmas
+     * que cambiaron.
+     * @return cuántas alarmas cambiaron
+     */
+    public synchronized int recargar() throws IOException {
+        comprobarAbierto();
+        if (leerRevision(ruta) == revisionBase) return 0;
+        Bloqueo bloqueo = new Bloqueo(rutaBloqueo, true);
+        try {
+            Contenido disco = leer(ruta, base, crcBase);
+            if (disco == null || disco.estado.revision == revisionBase) return 0;
+            // Lo que cambiamos aquí y aún no está en el disco se escribirá al guardar
+            List<RegistroAlarmas.CambioExterno> remotos = new ArrayList<>();
+            fusionar(registro.instantanea().getAlarmas(), disco.estado.alarmasGuardadas, remotos);
+            recordar(disco.estado, disco.crcs);
+            registro.aplicarCambios(remotos);
+            return remotos.size();
+        } finally {
+            bloqueo.soltar();
+        }
+    }
+
+    /**
+     * Lee las preferencias de un archivo sin deserializar sus alarmas.
+     * @return el estado guardado (sin alarmas), o null si no hay archivo
+     */
+    public static AppState leerPreferencias(Path ruta) throws IOException {
+        ruta = normalizar(ruta);
+        Bloqueo bloqueo = new Bloqueo(bloqueoDe(ruta), true);
+        try {
+            byte[] datos = leerBytes(ruta);
+            if (datos == null) return null;
+            if (esFormatoAntiguo(datos)) return leerAntiguo(datos, ruta);
+            ByteBuffer b = comprobar(datos, ruta);
+            try {
+                return leerPreferencias(b, datos);
+            } catch (RuntimeException | ClassNotFoundException e) {
+                throw danado(ruta, e);
+            }
+        } finally {
+            bloqueo.soltar();
+        }
+    }
+
+    /**
+     * Escribe las preferencias indicadas conservando las alarmas del archivo tal cual
+     * (se copian sus bytes, sin deserializarlas). La revisión no cambia: para quien
+     * vigila las alarmas no hay nada que recargar.
+     */
+    public static void guardarPreferencias(Path ruta, AppState preferencias) throws IOException {
+        ruta = normalizar(ruta);
+        Bloqueo bloqueo = new Bloqueo(bloqueoDe(ruta), false);
+        try {
+            byte[] datos = leerBytes(ruta);
+            if (datos == null || esFormatoAntiguo(datos)) {
+                // Nada que copiar tal cual: se reescribe entero
+                AppState disco = datos == null ? null : leerAntiguo(datos, ruta);
+                preferencias.alarmasGuardadas = disco == null ? new ArrayList<>() : disco.alarmasGuardadas;
+                preferencias.revision = disco == null ? 0 : disco.revision;
+                escribir(ruta, preferencias);
+                return;
+            }
+            ByteBuffer b = comprobar(datos, ruta);
+            long revision = b.getLong(8);
+            int numero = b.getInt(16);
+            int inicioAlarmas = CABECERA + 4 + b.getInt(CABECERA);
+            byte[] alarmas = Arrays.copyOfRange(datos, inicioAlarmas, datos.length);
+            escribirArchivo(ruta, revision, numero, serializarPreferencias(preferencias), alarmas);
+        } finally {
+            bloqueo.soltar();
+        }
+    }
+
+    /**
+     * Lee las alarmas de un archivo sin abrirlo, p. ej. para resumir un perfil que no
+     * está cargado: la lista no queda asociada a ningún registro.
+     * @return las alarmas, o una lista vacía si no hay archivo
+     */
+    public static List<Alarma> leerAlarmas(Path ruta) throws IOException {
+        ruta = normalizar(ruta);
+        Bloqueo bloqueo = new Bloqueo(bloqueoDe(ruta), true);
+        try {
+            Contenido disco = leer(ruta, Map.of(), Map.of());
+            return disco == null ? List.of() : disco.estado.alarmasGuardadas;
+        } finally {
+            bloqueo.soltar();
+        }
+    }
+
+    /**
+     * Crea el archivo con las alarmas indicadas y sin preferencias.
+     * @throws IOException también si ya existe
+     */
+    public static void crear(Path ruta, List<Alarma> alarmas) throws IOException {
+        ruta = normalizar(ruta);
+        Bloqueo bloqueo = new Bloqueo(bloqueoDe(ruta), false);
+        try {
+            if (Files.exists(ruta)) throw new FileAlreadyExistsException(ruta.toString());
+            AppState estado = new AppState();
+            estado.alarmasGuardadas = new ArrayList<>(alarmas);
+            escribir(ruta, estado);
+        } finally {
+            bloqueo.soltar();
+        }
+    }
+
+    private void comprobarAbierto() {
+        if (cerrado) throw new IllegalStateException("El archivo está cerrado: " + ruta);
+    }
+
+    private void recordar(AppState estado, Map<String, Integer> crcs) {
+        Map<String, Alarma> nueva = new HashMap<>(estado.alarmasGuardadas.size() * 2);
+        for (Alarma a : estado.alarmasGuardadas) nueva.put(a.getId(), a);
+        base = nueva;
+        crcBase = crcs;
+        revisionBase = estado.revision;
+    }
+
+    // =========================================================================
+    //                        FUSIÓN A TRES BANDAS
+    // =========================================================================
+
+    /**
+     * Une nuestras alarmas con las del disco, registro por registro, usando la base
+     * para saber quién cambió qué. Si los dos cambiaron la misma alarma, gana la nuestra.
+     */
+    private List<Alarma> fusionar(List<Alarma> locales, List<Alarma> enDisco, List<RegistroAlarmas.CambioExterno> remotos) {
+        Map<String, Alarma> nuestras = new LinkedHashMap<>(locales.size() * 2);
+        for (Alarma a : locales) nuestras.put(a.getId(), a);
+        Set<String> idsDisco = new HashSet<>(enDisco.size() * 2);
+
+        List<Alarma> resultado = new ArrayList<>(Math.max(locales.size(), enDisco.size()));
+        for (Alarma remota : enDisco) {
+            String id = remota.getId();
+            idsDisco.add(id);
+            Alarma nuestra = nuestras.get(id);
+            if (!mismoContenido(nuestra, base.get(id))) {
+                // Cambiada (o borrada) aquí: gana lo nuestro
+                if (nuestra != null) resultado.add(nuestra);
+            } else {
+                resultado.add(remota);
+                if (!mismoContenido(remota, nuestra)) remotos.add(new RegistroAlarmas.CambioExterno(id, nuestra, remota));
+            }
+        }
+        for (Alarma nuestra : nuestras.values()) {
+            if (idsDisco.contains(nuestra.getId())) continue;
+            Alarma enBase = base.get(nuestra.getId());
+            if (enBase == null || !mismoContenido(nuestra, enBase)) {
+                resultado.add(nuestra); // Nueva aquí, o editada aquí mientras otro la borraba
+            } else {
+                remotos.add(new RegistroAlarmas.CambioExterno(nuestra.getId(), nuestra, null)); // Otro la borró y aquí no se tocó
+            }
+        }
+        return resultado;
+    }
+
+    private static boolean mismoContenido(Alarma a, Alarma b) {
+        if (a == b) return true;
+        return a != null && b != null && a.mismoContenido(b);
+    }
+
+    // =========================================================================
+    //                        E/S DEL ARCHIVO
+    // =========================================================================
+
+    // Lo leído del disco: el estado con sus alarmas, el CRC de cada una y dónde está
+    // su registro en los bytes leídos (vacío en el formato antiguo)
+    private record Contenido(AppState estado, Map<String, Integer> crcs, byte[] datos, Map<String, Registro> registros) {}
+
+    // Un registro del archivo: la alarma leída y sus bytes (id, CRC, largo y la alarma serializada)
+    private record Registro(Alarma alarma, int desde, int largo) {}
+
+    private static Path normalizar(Path ruta) {
+        return ruta.toAbsolutePath().normalize();
+    }
+
+    private static Path bloqueoDe(Path ruta) {
+        return ruta.resolveSibling(ruta.getFileName() + ".lock");
+    }
+
+    /**
+     * Bloqueo de un archivo: primero el cerrojo de la ruta (los hilos de este proceso
+     * se turnan) y después el bloqueo del sistema sobre el ".lock", que va aparte
+     * porque el de datos se reemplaza en cada escritura. Si el hilo ya lo tenía (una
+     * llamada dentro de otra) se reutiliza el bloqueo del sistema que ya tiene.
+     */
+    private static final class Bloqueo {
+        private final ReentrantLock cerrojo;
+        private final FileChannel canal;
+
+        Bloqueo(Path rutaBloqueo, boolean compartido) throws IOException {
+            cerrojo = CERROJOS.computeIfAbsent(rutaBloqueo, r -> new ReentrantLock());
+            cerrojo.lock();
+            try {
+                canal = cerrojo.getHoldCount() == 1 ? bloquear(rutaBloqueo, compartido) : null;
+            } catch (IOException | RuntimeException e) {
+                cerrojo.unlock();
+                throw e;
+            }
+        }
+
+        // Cerrar el canal suelta el bloqueo del sistema
+        void soltar() throws IOException {
+            try {
+                if (canal != null) canal.close();
+            } finally {
+                cerrojo.unlock();
+            }
+        }
+
+        private static FileChannel bloquear(Path rutaBloqueo, boolean compartido) throws IOException {
+            FileChannel canal = FileChannel.open(rutaBloqueo, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            try {
+                canal.lock(0, Long.MAX_VALUE, compartido);
+                return canal;
+            } catch (IOException | RuntimeException e) {
+                canal.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Revisión del archivo leyendo solo la cabecera. REVISION_DESCONOCIDA si no hay
+     * archivo, es del formato antiguo o no se puede leer (entonces se lee entero).
+     */
+    private static long leerRevision(Path ruta) {
+        try (FileChannel canal = FileChannel.open(ruta, StandardOpenOption.READ)) {
+            ByteBuffer cabecera = ByteBuffer.allocate(16);
+            int leidos;
+            do {
+                leidos = canal.read(cabecera);
+            } while (leidos >= 0 && cabecera.hasRemaining());
+            if (cabecera.hasRemaining() || cabecera.getInt(0) != MAGIA) return REVISION_DESCONOCIDA;
+            return cabecera.getLong(8);
+        } catch (IOException e) {
+            return REVISION_DESCONOCIDA;
+        }
+    }
+
+    private static byte[] leerBytes(Path ruta) throws IOException {
+        try {
+            byte[] datos = Files.readAllBytes(ruta);
+            return datos.length == 0 ? null : datos;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Lee el archivo. Las alarmas cuyo CRC coincide con el de "conocidas" no se
+     * deserializan: se reutiliza la instancia que ya teníamos.
+     * @return null si no hay archivo
+     */
+    private static Contenido leer(Path ruta, Map<String, Alarma> conocidas, Map<String, Integer> crcConocidas) throws IOException {
+        byte[] datos = leerBytes(ruta);
+        if (datos == null) return null;
+        if (esFormatoAntiguo(datos)) return new Contenido(leerAntiguo(datos, ruta), new HashMap<>(), datos, Map.of());
+
+        ByteBuffer b = comprobar(datos, ruta);
+        try {
+            AppState estado = leerPreferencias(b, datos);
+            estado.revision = b.getLong(8);
+            int numero = b.getInt(16);
+            List<Alarma> alarmas = new ArrayList<>(numero);
+            Map<String, Integer> crcs = new HashMap<>(numero * 2);
+            Map<String, Registro> registros = new HashMap<>(numero * 2);
+            for (int i = 0; i < numero; i++) {
+                int desde = b.position();
+                byte[] id = new byte[b.getInt()];
+                b.get(id);
+                String textoId = new String(id, StandardCharsets.UTF_8);
+                int crc = b.getInt();
+                int largo = b.getInt();
+                Alarma alarma = conocidas.get(textoId);
+                if (alarma == null || !Integer.valueOf(crc).equals(crcConocidas.get(textoId))) {
+                    alarma = (Alarma) deserializar(datos, b.position(), largo);
+                }
+                b.position(b.position() + largo);
+                alarmas.add(alarma);
+                crcs.put(textoId, crc);
+                registros.put(textoId, new Registro(alarma, desde, b.position() - desde));
+            }
+            estado.alarmasGuardadas = alarmas;
+            return new Contenido(estado, crcs, datos, registros);
+        } catch (RuntimeException | ClassNotFoundException e) {
+            throw danado(ruta, e);
+        }
+    }
+
+    // Preferencias (el estado sin alarmas), justo después de la cabecera
+    private static AppState leerPreferencias(ByteBuffer b, byte[] datos) throws IOException, ClassNotFoundException {
+        b.position(CABECERA);
+        int largo = b.getInt();
+        AppState estado = (AppState) deserializar(datos, b.position(), largo);
+        b.position(b.position() + largo);
+        return estado;
+    }
+
+    // Cabecera válida y CRC del resto correcto; devuelve el buffer listo para leer
+    private static ByteBuffer comprobar(byte[] datos, Path ruta) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(datos);
+        if (datos.length < CABECERA || b.getInt(0) != MAGIA) throw new IOException("No es un archivo de alarmas: " + ruta);
+        if (b.getInt(4) != FORMATO) throw new IOException("Formato de archivo no soportado (" + b.getInt(4) + "): " + ruta);
+        CRC32 crc = new CRC32();
+        crc.update(datos, CABECERA, datos.length - CABECERA);
+        if (crc.getValue() != b.getLong(20)) throw new IOException("Archivo de alarmas dañado (CRC incorrecto): " + ruta);
+        return b;
+    }
+
+    // Antes de los registros con CRC el archivo era un AppState serializado sin más
+    private static boolean esFormatoAntiguo(byte[] datos) {
+        return datos.length >= 2 && (datos[0] & 0xFF) == 0xAC && (datos[1] & 0xFF) == 0xED;
+    }
+
+    private static AppState leerAntiguo(byte[] datos, Path ruta) throws IOException {
+        try {
+            AppState estado = (AppState) deserializar(datos, 0, datos.length);
+            if (estado.alarmasGuardadas == null) estado.alarmasGuardadas = new ArrayList<>();
+            return estado;
+        } catch (IOException | RuntimeException | ClassNotFoundException e) {
+            throw danado(ruta, e);
+        }
+    }
+
+    private static IOException danado(Path ruta, Exception causa) {
+        return new IOException("Archivo de alarmas dañado: " + ruta + " (" + causa + ")", causa);
+    }
+
+    private static Object deserializar(byte[] datos, int desde, int largo) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(datos, desde, largo))) {
+            return in.readObject();
+        }
+    }
+
+    private static byte[] serializar(Object objeto) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(objeto);
+        }
+        return bytes.toByteArray();
+    }
+
+    // El estado sin su lista de alarmas (que va aparte, registro por registro)
+    private static byte[] serializarPreferencias(AppState estado) throws IOException {
+        List<Alarma> alarmas = estado.alarmasGuardadas;
+        estado.alarmasGuardadas = null;
+        try {
+            return serializar(estado);
+        } finally {
+            estado.alarmasGuardadas = alarmas;
+        }
+    }
+
+    private static Map<String, Integer> escribir(Path ruta, AppState estado) throws IOException {
+        return escribir(ruta, estado, null);
+    }
+
+    /**
+     * Escribe el estado completo. Las alarmas que siguen siendo la misma instancia que
+     * se leyó del disco ("disco", puede ser null) no se vuelven a serializar: se copian
+     * los bytes de su registro tal cual. Solo se serializan las que cambiaron.
+     * @return el CRC de cada alarma escrita
+     */
+    private static Map<String, Integer> escribir(Path ruta, AppState estado, Contenido disco) throws IOException {
+        Map<String, Integer> crcs = new HashMap<>(estado.alarmasGuardadas.size() * 2);
+        ByteArrayOutputStream registros = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(registros);
+        CRC32 crc = new CRC32();
+        for (Alarma a : estado.alarmasGuardadas) {
+            Registro leido = disco == null ? null : disco.registros.get(a.getId());
+            if (leido != null && leido.alarma == a) {
+                out.write(disco.datos, leido.desde, leido.largo);
+                crcs.put(a.getId(), disco.crcs.get(a.getId()));
+                continue;
+            }
+            byte[] id = a.getId().getBytes(StandardCharsets.UTF_8);
+            byte[] bytes = serializar(a);
+            crc.reset();
+            crc.update(bytes);
+            out.writeInt(id.length);
+            out.write(id);
+            out.writeInt((int) crc.getValue());
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            crcs.put(a.getId(), (int) crc.getValue());
+        }
+        escribirArchivo(ruta, estado.revision, estado.alarmasGuardadas.size(), serializarPreferencias(estado), registros.toByteArray());
+        return crcs;
+    }
+
+    // Todo se escribe en un temporal de la misma carpeta, que reemplaza al archivo de una vez
+    private static void escribirArchivo(Path ruta, long revision, int numero, byte[] preferencias, byte[] alarmas) throws IOException {
+        ByteBuffer cuerpo = ByteBuffer.allocate(4 + preferencias.length + alarmas.length);
+        cuerpo.putInt(preferencias.length).put(preferencias).put(alarmas).flip();
+        CRC32 crc = new CRC32();
+        crc.update(cuerpo.duplicate());
+        ByteBuffer cabecera = ByteBuffer.allocate(CABECERA);
+        cabecera.putInt(MAGIA).putInt(FORMATO).putLong(revision).putInt(numero).putLong(crc.getValue()).flip();
+
+        Path temporal = ruta.resolveSibling(ruta.getFileName() + ".tmp");
+        try (FileChannel canal = FileChannel.open(temporal, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer[] partes = {cabecera, cuerpo};
+            while (cuerpo.hasRemaining()) canal.write(partes);
+            canal.force(true);
+        }
+        Files.move(temporal, ruta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // =========================================================================
+    //                        VIGILANCIA (WATCHSERVICE)
+    // =========================================================================
+
+    /**
+     * Llama a "alCambiar" (desde un hilo propio) cada vez que el archivo cambia en disco.
+     */
+    public synchronized void vigilar(Runnable alCambiar) {
+        comprobarAbierto();
+        if (vigilante != null) return;
+        vigilante = new Thread(() -> bucleVigilancia(alCambiar), "vigilante-archivo");
+        vigilante.setDaemon(true);
+        vigilante.start();
+    }
+
+    private void bucleVigilancia(Runnable alCambiar) {
+        Path carpeta = ruta.getParent();
+        try (WatchService avisos = carpeta.getFileSystem().newWatchService()) {
+            carpeta.register(avisos, ENTRY_CREATE, ENTRY_MODIFY);
+            FileTime ultimaModificacion = modificacion();
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey clave = avisos.poll(REVISION_SIN_AVISOS_MS, TimeUnit.MILLISECONDS);
+                boolean tocado = false;
+                if (clave != null) {
+                    tocado = afectaAlArchivo(clave);
+                    Thread.sleep(ESPERA_AGRUPAR_MS);
+                    while ((clave = avisos.poll()) != null) tocado |= afectaAlArchivo(clave);
+                }
+                FileTime actual = modificacion();
+                if (tocado || !Objects.equals(actual, ultimaModificacion)) {
+                    ultimaModificacion = actual;
+                    try {
+                        alCambiar.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Se pidió detener
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean afectaAlArchivo(WatchKey clave) {
+        boolean afecta = false;
+        for (WatchEvent<?> evento : clave.pollEvents()) {
+            if (evento.kind() == OVERFLOW || ruta.getFileName().equals(evento.context())) afecta = true;
+        }
+        clave.reset();
+        return afecta;
+    }
+
+    private FileTime modificacion() {
+        try {
+            return Files.exists(ruta) ? Files.getLastModifiedTime(ruta) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -4,18 +4,53 @@ import javafx.scene.media.AudioClip;
 import javax.sound.sampled.*;
 import java.io.File;
 import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * SERVICIO DE AUDIO
+ * Hace sonar la alarma: el archivo elegido, el sonido por defecto o, si no hay
+ * ninguno, un pitido generado.
+ *
+ * La app vive semanas en la bandeja, así que nada se crea por cada disparo:
+ * un solo hilo para el sonido, el mismo AudioClip mientras no cambie el archivo,
+ * y la línea del pitido se abre una vez por alarma y siempre se cierra.
+ */
 public class AudioService {
 
-    private AudioClip audioClip;
+    private static final float MUESTRAS_POR_SEGUNDO = 8000f;
+
+    // Un pitido de 150 ms a 1000 Hz, calculado una sola vez
+    private static final byte[] TONO = generarTono(1000, 150);
+
+    private final ExecutorService hiloSonido = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "audio-alarma");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicInteger lineasAbiertas = new AtomicInteger();
+
+    // play() y stop() del clip van bajo este bloqueo, junto con la consulta de "sonando":
+    // así un detener() no puede colarse entre la comprobación y el play() y dejarlo en bucle
+    private final Object bloqueoClip = new Object();
+    private volatile AudioClip audioClip;
+    private String uriClip; // De qué archivo es el clip cargado (solo desde el hilo del sonido)
     private volatile boolean sonando = false;
     private File archivoPersonalizado;
-    private String sonidoDefaultURI;
-    private double volumen = 1.0; // 100% por defecto
+    private final String sonidoDefaultURI;
+    private volatile double volumen = 1.0; // 100% por defecto
 
     public AudioService() {
-        URL recurso = getClass().getResource("alarma.mp3");
-        if (recurso != null) this.sonidoDefaultURI = recurso.toExternalForm();
+        URL recurso = AudioService.class.getResource("alarma.mp3");
+        this.sonidoDefaultURI = recurso != null ? recurso.toExternalForm() : null;
+    }
+
+    /**
+     * @param sonidoPorDefecto URI del sonido si no se eligió archivo (null = pitido generado)
+     */
+    AudioService(String sonidoPorDefecto) {
+        this.sonidoDefaultURI = sonidoPorDefecto;
     }
 
     public void setArchivoPersonalizado(File archivo) {
@@ -24,14 +59,16 @@ public class AudioService {
 
     public void setVolumen(double v) {
         this.volumen = v;
-        if (audioClip != null) audioClip.setVolume(volumen);
+        AudioClip clip = audioClip;
+        if (clip != null) clip.setVolume(volumen);
     }
 
     public void reproducir() {
         if (sonando) return;
         sonando = true;
 
-        Thread hilo = new Thread(() -> {
+        hiloSonido.execute(() -> {
+            if (!sonando) return; // Se detuvo antes de empezar
             try {
                 if (archivoPersonalizado != null && archivoPersonalizado.exists()) {
                     playClip(archivoPersonalizado.toURI().toString());
@@ -44,49 +81,69 @@ public class AudioService {
                 playBeepLoop();
             }
         });
-        hilo.setDaemon(true);
-        hilo.start();
     }
 
     public void detener() {
-        sonando = false;
-        if (audioClip != null && audioClip.isPlaying()) audioClip.stop();
+        synchronized (bloqueoClip) {
+            sonando = false;
+            AudioClip clip = audioClip;
+            if (clip != null) clip.stop();
+        }
     }
 
+    public boolean isSonando() { return sonando; }
+
+    /**
+     * Líneas de audio abiertas ahora mismo (0 o 1). Para diagnóstico.
+     */
+    public int getLineasAbiertas() { return lineasAbiertas.get(); }
+
     private void playClip(String uri) {
-        if (audioClip != null) audioClip.stop();
-        audioClip = new AudioClip(uri);
+        if (audioClip == null || !uri.equals(uriClip)) {
+            AudioClip nuevo = new AudioClip(uri);
+            nuevo.setCycleCount(AudioClip.INDEFINITE);
+            synchronized (bloqueoClip) {
+                if (audioClip != null) audioClip.stop();
+                audioClip = nuevo;
+            }
+            uriClip = uri;
+        }
         audioClip.setVolume(volumen);
-        audioClip.setCycleCount(AudioClip.INDEFINITE);
-        audioClip.play();
+        synchronized (bloqueoClip) {
+            if (sonando) audioClip.play();
+        }
     }
 
     private void playBeepLoop() {
-        try {
-            while (sonando) {
-                for (int i = 0; i < 3 && sonando; i++) {
-                    generarTono(1000, 150);
-                    Thread.sleep(100);
+        AudioFormat af = new AudioFormat(MUESTRAS_POR_SEGUNDO, 8, 1, true, false);
+        try (SourceDataLine sdl = AudioSystem.getSourceDataLine(af)) {
+            sdl.open(af);
+            lineasAbiertas.incrementAndGet();
+            try {
+                sdl.start();
+                while (sonando) {
+                    for (int i = 0; i < 3 && sonando; i++) {
+                        sdl.write(TONO, 0, TONO.length);
+                        sdl.drain();
+                        Thread.sleep(100);
+                    }
+                    if (sonando) Thread.sleep(800);
                 }
-                if (sonando) Thread.sleep(800);
+                sdl.stop();
+            } finally {
+                lineasAbiertas.decrementAndGet();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) { e.printStackTrace(); }
     }
 
-    private void generarTono(int hz, int msecs) throws Exception {
-        float sampleRate = 8000f;
-        byte[] buf = new byte[1];
-        AudioFormat af = new AudioFormat(sampleRate, 8, 1, true, false);
-        SourceDataLine sdl = AudioSystem.getSourceDataLine(af);
-        sdl.open(af);
-        sdl.start();
-        for (int i = 0; i < msecs * 8; i++) {
-            double angle = i / (sampleRate / hz) * 2.0 * Math.PI;
-            buf[0] = (byte) (Math.sin(angle) * 127.0 * 1.0);
-            sdl.write(buf, 0, 1);
+    private static byte[] generarTono(int hz, int msecs) {
+        byte[] buf = new byte[(int) (msecs * MUESTRAS_POR_SEGUNDO / 1000)];
+        for (int i = 0; i < buf.length; i++) {
+            double angle = i / (MUESTRAS_POR_SEGUNDO / hz) * 2.0 * Math.PI;
+            buf[i] = (byte) (Math.sin(angle) * 127.0);
         }
-        sdl.drain();
-        sdl.stop();
-        sdl.close();
+        return buf;
     }
-}
\ No newline at end of file
+}
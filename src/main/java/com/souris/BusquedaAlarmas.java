@@ -0,0 +1,166 @@
+package com.souris;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * BÚSQUEDA DE ALARMAS
+ * Interpreta lo que se escribe en la barra de búsqueda y lo resuelve con los
+ * índices de la instantánea ({@link IndiceBusqueda} e {@link IndiceEtiquetas}):
+ * cada término es un bitset y el resultado es su intersección, sin recorrer la lista.
+ *
+ * Términos (se pueden combinar, deben cumplirse todos):
+ *   7  07:3  07:30  7pm       hora (incompleta = todo lo que empieza así)
+ *   07:00-09:00  22:00-02:00  rango de horas (puede cruzar la medianoche)
+ *   lun  martes  sáb          suena ese día
+ *   on  off                   encendidas o apagadas
+ *   una-vez                   sin repetición
+ *   #noche  noche             etiqueta o grupo que empieza por el texto
+ *
+ * Mientras se escribe, un término a medias nunca es un error: lo que no se
+ * reconoce se busca como etiqueta o grupo.
+ */
+public class BusquedaAlarmas {
+
+    private static final String[] DIAS = {"domingo", "lunes", "martes", "miercoles", "jueves", "viernes", "sabado"};
+
+    // 7, 07:3, 07:30, 7pm, 7:30am
+    private static final Pattern HORA = Pattern.compile("(\\d{1,2})(?::(\\d{0,2}))?(am|pm)?");
+
+    private final List<int[]> rangos = new ArrayList<>(); // {desde, hasta} en minutos del día
+    private final List<Integer> dias = new ArrayList<>();
+    private final List<String> prefijos = new ArrayList<>();
+    private Boolean activa;  // null = da igual
+    private boolean unaVez;
+
+    private BusquedaAlarmas() { }
+
+    public static BusquedaAlarmas parsear(String texto) {
+        BusquedaAlarmas b = new BusquedaAlarmas();
+        if (texto == null) return b;
+        for (String termino : texto.trim().toLowerCase(Locale.ROOT).split("\\s+")) {
+            if (!termino.isEmpty()) b.agregarTermino(termino);
+        }
+        return b;
+    }
+
+    public boolean esVacia() {
+        return rangos.isEmpty() && dias.isEmpty() && prefijos.isEmpty() && activa == null && !unaVez;
+    }
+
+    private void agregarTermino(String termino) {
+        switch (termino) {
+            case "on": case "encendida": case "encendidas":
+                activa = true;
+                return;
+            case "off": case "apagada": case "apagadas":
+                activa = false;
+                return;
+            case "una-vez": case "unavez":
+                unaVez = true;
+                return;
+            default:
+                break;
+        }
+        if (termino.startsWith("#")) {
+            if (termino.length() > 1) prefijos.add(termino.substring(1));
+            return;
+        }
+        int[] rango = parsearRango(termino);
+        if (rango != null) {
+            rangos.add(rango);
+            return;
+        }
+        int dia = parsearDia(termino);
+        if (dia >= 0) {
+            dias.add(dia);
+            return;
+        }
+        prefijos.add(termino);
+    }
+
+    // "07:00-09:00", "7-9", "22:00-" o una sola hora; null si no es una hora
+    private static int[] parsearRango(String termino) {
+        int guion = termino.indexOf('-');
+        if (guion < 0) return parsearHora(termino);
+        int[] desde = parsearHora(termino.substring(0, guion));
+        if (desde == null) return null;
+        String resto = termino.substring(guion + 1);
+        if (resto.isEmpty()) return new int[]{desde[0], IndiceBusqueda.MINUTOS_DIA - 1};
+        int[] hasta = parsearHora(resto);
+        return hasta == null ? null : new int[]{desde[0], hasta[1]};
+    }
+
+    // Una hora, completa o a medias, como rango {primer minuto, último minuto}
+    private static int[] parsearHora(String texto) {
+        Matcher m = HORA.matcher(texto);
+        if (!m.matches()) return null;
+        int hora = Integer.parseInt(m.group(1));
+        if (m.group(3) != null) {
+            if (hora < 1 || hora > 12) return null;
+            hora = hora % 12 + (m.group(3).equals("pm") ? 12 : 0);
+        }
+        if (hora > 23) return null;
+
+        String minutos = m.group(2);
+        if (minutos == null || minutos.isEmpty()) return new int[]{hora * 60, hora * 60 + 59};
+        int valor = Integer.parseInt(minutos);
+        if (minutos.length() == 1) {
+            if (valor > 5) return null;
+            return new int[]{hora * 60 + valor * 10, hora * 60 + valor * 10 + 9};
+        }
+        if (valor > 59) return null;
+        return new int[]{hora * 60 + valor, hora * 60 + valor};
+    }
+
+    // Al menos 3 letras del nombre del día, con o sin tilde
+    private static int parsearDia(String termino) {
+        if (termino.length() < 3) return -1;
+        String sinTildes = Normalizer.normalize(termino, Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+        for (int d = 0; d < DIAS.length; d++) {
+            if (DIAS[d].startsWith(sinTildes)) return d;
+        }
+        return -1;
+    }
+
+    // =========================================================================
+    //                        EJECUCIÓN
+    // =========================================================================
+
+    /**
+     * Alarmas que cumplen todos los términos, en el orden de la lista.
+     */
+    public List<Alarma> buscar(RegistroAlarmas.Instantanea inst) {
+        List<Alarma> alarmas = inst.getAlarmas();
+        if (esVacia()) return alarmas;
+        BitSet seleccion = posiciones(inst);
+        List<Alarma> resultado = new ArrayList<>(seleccion.cardinality());
+        for (int i = seleccion.nextSetBit(0); i >= 0; i = seleccion.nextSetBit(i + 1)) resultado.add(alarmas.get(i));
+        return resultado;
+    }
+
+    /**
+     * Posiciones (bit i = alarma i) que cumplen todos los términos.
+     */
+    public BitSet posiciones(RegistroAlarmas.Instantanea inst) {
+        IndiceBusqueda busqueda = inst.getBusqueda();
+        IndiceEtiquetas etiquetas = inst.getEtiquetas();
+
+        BitSet seleccion = new BitSet(inst.tamano());
+        seleccion.set(0, inst.tamano());
+        for (int[] r : rangos) seleccion.and(busqueda.entreMinutos(r[0], r[1]));
+        for (int d : dias) seleccion.and(busqueda.delDia(d));
+        if (unaVez) seleccion.and(busqueda.deUnaVez());
+        if (activa != null) {
+            if (activa) seleccion.and(etiquetas.getActivas());
+            else seleccion.andNot(etiquetas.getActivas());
+        }
+        for (String p : prefijos) seleccion.and(etiquetas.conPrefijo(p));
+        return seleccion;
+    }
+}
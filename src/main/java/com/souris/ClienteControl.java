@@ -0,0 +1,86 @@
+package com.souris;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * CLIENTE DE CONTROL
+ * Envía un lote de órdenes al {@link ServidorControl} de la instancia en marcha.
+ * Sirve tanto para scripts como para probar la API a mano:
+ *
+ *   java -cp sourisalarm.jar com.souris.ClienteControl "AGREGAR 07:30 0111110" "PROXIMAS 5"
+ *   java -cp sourisalarm.jar com.souris.ClienteControl < lote.txt
+ */
+public class ClienteControl {
+
+    public static void main(String[] args) throws IOException {
+        List<String> lineas;
+        if (args.length > 0) {
+            lineas = Arrays.asList(args);
+        } else {
+            lineas = new ArrayList<>();
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            String linea;
+            while ((linea = in.readLine()) != null) lineas.add(linea);
+        }
+
+        List<String> respuesta = enviar(ServidorControl.rutaSocketPorDefecto(), lineas);
+        respuesta.forEach(System.out::println);
+
+        // Código de salida distinto de 0 si alguna orden fue rechazada
+        boolean hayErrores = respuesta.stream().anyMatch(r -> r.startsWith("ERR"));
+        System.exit(hayErrores ? 1 : 0);
+    }
+
+    /**
+     * Envía el lote completo y espera la respuesta del servidor.
+     */
+    public static List<String> enviar(Path rutaSocket, List<String> lineas) throws IOException {
+        try (SocketChannel canal = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            canal.connect(UnixDomainSocketAddress.of(rutaSocket));
+
+            StringBuilder sb = new StringBuilder();
+            for (String linea : lineas) {
+                if (linea.isBlank()) continue; // Una línea vacía cerraría el lote antes de tiempo
+                sb.append(linea).append('\n');
+            }
+            ByteBuffer salida = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (salida.hasRemaining()) canal.write(salida);
+            canal.shutdownOutput(); // Fin del lote
+
+            return leerRespuesta(canal);
+        }
+    }
+
+    /**
+     * Comprueba si hay un servidor escuchando (y no solo un archivo de socket huérfano).
+     * Solo conecta y cierra: el servidor no ejecuta nada por una conexión sin datos.
+     */
+    public static boolean hayServidor(Path rutaSocket) {
+        try (SocketChannel canal = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            canal.connect(UnixDomainSocketAddress.of(rutaSocket));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static List<String> leerRespuesta(SocketChannel canal) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(canal), StandardCharsets.UTF_8));
+        List<String> respuesta = new ArrayList<>();
+        String linea;
+        while ((linea = in.readLine()) != null) respuesta.add(linea);
+        return respuesta;
+    }
+}
@@ -0,0 +1,309 @@
+package com.souris;
+
+import java.io.File;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * COMANDOS DE CONTROL
+ * Interpreta un lote de órdenes de texto (una por línea) llegado por la API local.
+ * Todas las modificaciones del lote se aplican en UNA sola actualización del
+ * registro y provocan UN solo guardado, sin importar cuántas alarmas toquen.
+ *
+ * Órdenes:
+ *   AGREGAR HH:mm [mascara]     mascara de 7 dígitos Domingo..Sábado ("0111110"), o "-" = una vez
+ *   AGREGAR HH:mm regla         regla avanzada, ej. "FREQ=MONTHLY;BYDAY=-1FR" (ver ReglaRecurrencia)
+ *       ... grupo=G etiquetas=a,b  opcional al final de AGREGAR ("_" en lugar de espacios)
+ *   ACTIVAR filtro              enciende las alarmas que cumplan el filtro
+ *   DESACTIVAR filtro           apaga las alarmas que cumplan el filtro
+ *   ELIMINAR filtro             borra las alarmas que cumplan el filtro
+ *   LISTAR [filtro]             id, hora, máscara y estado de cada alarma (y grupo/etiquetas si tiene)
+ *   PROXIMAS N                  los N próximos disparos (N >= 1), como los hará sonar el planificador
+ *   ENTRE desde hasta [N]       disparos en [desde, hasta), fechas ISO (2026-10-19T08:00), máximo N
+ *   IMPORTAR ruta               importa un archivo CSV o iCalendar (como el menú; responde "IMPORTANDO ruta")
+ *   MOSTRAR                     trae la ventana al frente
+ *
+ * IMPORTAR y MOSTRAR solo existen si hay ventana ({@link Interfaz}); se ejecutan
+ * después de las demás modificaciones del lote. Así el {@link Launcher} de un
+ * segundo arranque le pasa su trabajo a la instancia en marcha.
+ * El filtro se describe en {@link FiltroAlarmas}. Las consultas (LISTAR, PROXIMAS, ENTRE)
+ * ven el resultado de las modificaciones del mismo lote.
+ *
+ * AGREGAR rechaza ("alarma duplicada") una alarma igual a otra existente o del mismo lote.
+ * Se comprueba al aplicar el lote, contra la versión del registro sobre la que se aplica:
+ * un cambio de otro hilo entre validar y aplicar no deja pasar duplicadas.
+ *
+ * Respuesta: una línea "ERR n: mensaje" por cada orden inválida (n = nº de línea),
+ * las líneas de las consultas, y al final "OK cambios".
+ */
+public class ComandosControl {
+
+    // Tope de resultados de ENTRE si no se indica otro
+    private static final int LIMITE_ENTRE = 10_000;
+
+    /**
+     * Órdenes que necesitan la ventana. Se llaman desde el hilo del servidor.
+     */
+    public interface Interfaz {
+        void mostrar();
+        void importar(File archivo);
+    }
+
+    private final RegistroAlarmas registro;
+    private final Runnable alCambiar; // Se llama una vez por lote con cambios (p. ej. para guardar)
+    private final Interfaz interfaz;  // null = sin ventana
+    private final PlanificadorAlarmas planificador; // Zona y políticas de cambio de hora para PROXIMAS
+
+    public ComandosControl(RegistroAlarmas registro, Runnable alCambiar) {
+        this(registro, alCambiar, null, null);
+    }
+
+    public ComandosControl(RegistroAlarmas registro, Runnable alCambiar, Interfaz interfaz) {
+        this(registro, alCambiar, interfaz, null);
+    }
+
+    /**
+     * @param planificador null = PROXIMAS calcula con la zona del sistema y las políticas por defecto
+     */
+    public ComandosControl(RegistroAlarmas registro, Runnable alCambiar, Interfaz interfaz, PlanificadorAlarmas planificador) {
+        this.registro = registro;
+        this.alCambiar = alCambiar;
+        this.interfaz = interfaz;
+        this.planificador = planificador;
+    }
+
+    /**
+     * La copia de la lista sobre la que se aplica el lote. Se crea de nuevo en cada
+     * intento de {@link RegistroAlarmas#aplicar}, así que sus errores también.
+     */
+    private static final class Lote {
+        final List<Alarma> alarmas;
+        final List<String> errores = new ArrayList<>();
+        private Set<Alarma.Clave> claves; // Solo si el lote agrega algo
+
+        Lote(List<Alarma> alarmas) { this.alarmas = alarmas; }
+
+        Set<Alarma.Clave> claves() {
+            if (claves == null) {
+                claves = new HashSet<>(alarmas.size() * 2);
+                for (Alarma a : alarmas) claves.add(a.getClave());
+            }
+            return claves;
+        }
+
+        // Tras borrar alarmas las claves ya no valen
+        void olvidarClaves() { claves = null; }
+    }
+
+    // Orden ya validada, lista para aplicarse sobre el lote
+    private interface Orden {
+        int aplicar(Lote lote); // Devuelve cuántas alarmas cambió
+    }
+
+    public List<String> ejecutar(List<String> lineas) {
+        List<String> respuesta = new ArrayList<>();
+        List<Orden> modificaciones = new ArrayList<>();
+        List<String> consultas = new ArrayList<>();
+        List<Runnable> ordenesInterfaz = new ArrayList<>();
+
+        // 1. Validar todo el lote antes de tocar el registro
+        for (int i = 0; i < lineas.size(); i++) {
+            String linea = lineas.get(i).trim();
+            if (linea.isEmpty() || linea.startsWith("#")) continue;
+            try {
+                String[] partes = linea.split("\\s+", 2);
+                String orden = partes[0].toUpperCase(Locale.ROOT);
+                String argumento = partes.length > 1 ? partes[1] : "";
+                switch (orden) {
+                    case "AGREGAR":
+                        modificaciones.add(ordenAgregar(argumento, i + 1));
+                        break;
+                    case "ACTIVAR":
+                        modificaciones.add(ordenCambiarEstado(FiltroAlarmas.parsear(argumento), true));
+                        break;
+                    case "DESACTIVAR":
+                        modificaciones.add(ordenCambiarEstado(FiltroAlarmas.parsear(argumento), false));
+                        break;
+                    case "ELIMINAR": {
+                        FiltroAlarmas filtro = FiltroAlarmas.parsear(argumento);
+                        modificaciones.add(lote -> {
+                            int antes = lote.alarmas.size();
+                            lote.alarmas.removeIf(filtro);
+                            int borradas = antes - lote.alarmas.size();
+                            if (borradas > 0) lote.olvidarClaves();
+                            return borradas;
+                        });
+                        break;
+                    }
+                    case "LISTAR":
+                        if (!argumento.isBlank()) FiltroAlarmas.parsear(argumento);
+                        consultas.add(linea);
+                        break;
+                    case "PROXIMAS":
+                        if (Integer.parseInt(argumento.trim()) < 1) throw new IllegalArgumentException("N debe ser al menos 1");
+                        consultas.add(linea);
+                        break;
+                    case "ENTRE":
+                        parsearEntre(argumento);
+                        consultas.add(linea);
+                        break;
+                    case "IMPORTAR": {
+                        File archivo = parsearArchivo(argumento);
+                        requerirInterfaz(orden);
+                        ordenesInterfaz.add(() -> {
+                            interfaz.importar(archivo);
+                            respuesta.add("IMPORTANDO " + archivo.getPath());
+                        });
+                        break;
+                    }
+                    case "MOSTRAR":
+                        requerirInterfaz(orden);
+                        ordenesInterfaz.add(interfaz::mostrar);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Orden desconocida: " + partes[0]);
+                }
+            } catch (RuntimeException e) {
+                respuesta.add("ERR " + (i + 1) + ": " + e.getMessage());
+            }
+        }
+
+        // 2. Aplicar todas las modificaciones en una sola actualización
+        int[] cambios = {0};
+        List<String> erroresAlAplicar = new ArrayList<>();
+        RegistroAlarmas.Instantanea resultado = registro.instantanea();
+        if (!modificaciones.isEmpty()) {
+            resultado = registro.aplicar(alarmas -> {
+                // La modificación puede repetirse si otro hilo publica antes: se empieza de cero
+                Lote lote = new Lote(alarmas);
+                cambios[0] = 0;
+                for (Orden o : modificaciones) cambios[0] += o.aplicar(lote);
+                erroresAlAplicar.clear();
+                erroresAlAplicar.addAll(lote.errores);
+            });
+            respuesta.addAll(erroresAlAplicar);
+            if (cambios[0] > 0) alCambiar.run();
+        }
+        for (Runnable o : ordenesInterfaz) o.run();
+
+        // 3. Responder las consultas sobre el resultado
+        for (String consulta : consultas) {
+            String[] partes = consulta.split("\\s+", 2);
+            String argumento = partes.length > 1 ? partes[1] : "";
+            if (partes[0].equalsIgnoreCase("LISTAR")) {
+                listar(resultado, argumento.isBlank() ? null : FiltroAlarmas.parsear(argumento), respuesta);
+            } else if (partes[0].equalsIgnoreCase("ENTRE")) {
+                entre(resultado, parsearEntre(argumento), respuesta);
+            } else {
+                proximas(resultado, Integer.parseInt(argumento.trim()), respuesta);
+            }
+        }
+
+        respuesta.add("OK " + cambios[0]);
+        return respuesta;
+    }
+
+    // =========================================================================
+    //                        ÓRDENES
+    // =========================================================================
+    private Orden ordenAgregar(String argumento, int numeroLinea) {
+        String[] partes = argumento.trim().split("\\s+");
+        if (partes[0].isEmpty()) throw new IllegalArgumentException("Falta la hora (HH:mm)");
+        LocalTime hora = LocalTime.parse(partes[0]);
+        String dias = "-";
+        String grupo = null;
+        List<String> etiquetas = new ArrayList<>();
+        for (int i = 1; i < partes.length; i++) {
+            String p = partes[i];
+            if (p.regionMatches(true, 0, "grupo=", 0, 6)) grupo = p.substring(6).replace('_', ' ');
+            else if (p.regionMatches(true, 0, "etiquetas=", 0, 10)) etiquetas.addAll(List.of(p.substring(10).replace('_', ' ').split(",")));
+            else dias = p;
+        }
+        Alarma nueva = (dias.contains("=")
+                ? new Alarma(hora, ReglaRecurrencia.parsear(dias, LocalDate.now()))
+                : new Alarma(hora, Alarma.parsearMascaraDias(dias)))
+                .conGrupoYEtiquetas(grupo, etiquetas);
+        // Igual a una existente o a otra del mismo lote (las ya agregadas están en las claves)
+        return lote -> {
+            if (!lote.claves().add(nueva.getClave())) {
+                lote.errores.add("ERR " + numeroLinea + ": alarma duplicada");
+                return 0;
+            }
+            lote.alarmas.add(nueva);
+            return 1;
+        };
+    }
+
+    private void requerirInterfaz(String orden) {
+        if (interfaz == null) throw new IllegalArgumentException(orden + " no está disponible sin ventana");
+    }
+
+    private static File parsearArchivo(String argumento) {
+        if (argumento.isBlank()) throw new IllegalArgumentException("Falta la ruta del archivo");
+        File archivo = new File(argumento.trim());
+        if (!archivo.isFile() || !archivo.canRead()) throw new IllegalArgumentException("No se puede leer " + archivo);
+        return archivo;
+    }
+
+    private Orden ordenCambiarEstado(FiltroAlarmas filtro, boolean activa) {
+        return lote -> {
+            List<Alarma> alarmas = lote.alarmas;
+            int cambiadas = 0;
+            for (int i = 0; i < alarmas.size(); i++) {
+                Alarma a = alarmas.get(i);
+                if (a.isActiva() != activa && filtro.test(a)) {
+                    alarmas.set(i, a.conActiva(activa));
+                    cambiadas++;
+                }
+            }
+            return cambiadas;
+        };
+    }
+
+    // =========================================================================
+    //                        CONSULTAS
+    // =========================================================================
+    private void listar(RegistroAlarmas.Instantanea inst, FiltroAlarmas filtro, List<String> salida) {
+        for (Alarma a : inst.getAlarmas()) {
+            if (filtro != null && !filtro.test(a)) continue;
+            String dias = a.getRegla() != null ? a.getRegla().texto() : a.getMascaraDias();
+            StringBuilder linea = new StringBuilder(a.getId() + " " + a.getHora() + " " + dias + " " + (a.isActiva() ? "ON" : "OFF"));
+            if (a.getGrupo() != null) linea.append(" grupo=").append(a.getGrupo().replace(' ', '_'));
+            if (!a.getEtiquetas().isEmpty()) linea.append(" etiquetas=").append(String.join(",", a.getEtiquetas()).replace(' ', '_'));
+            salida.add(linea.toString());
+        }
+    }
+
+    // Argumentos de ENTRE ya validados
+    private record Rango(LocalDateTime desde, LocalDateTime hasta, int limite) {}
+
+    private static Rango parsearEntre(String argumento) {
+        String[] partes = argumento.trim().split("\\s+");
+        if (partes.length < 2) throw new IllegalArgumentException("Uso: ENTRE desde hasta [N]");
+        int limite = partes.length > 2 ? Integer.parseInt(partes[2]) : LIMITE_ENTRE;
+        return new Rango(LocalDateTime.parse(partes[0]), LocalDateTime.parse(partes[1]), limite);
+    }
+
+    private void entre(RegistroAlarmas.Instantanea inst, Rango rango, List<String> salida) {
+        for (ConsultaOcurrencias.Ocurrencia o : ConsultaOcurrencias.entre(inst.getAlarmas(), rango.desde(), rango.hasta(), rango.limite())) {
+            salida.add(o.cuando() + " " + o.alarma().getId());
+        }
+    }
+
+    // Con el mismo cálculo que el planificador: huecos y horas repetidas del cambio de hora incluidos
+    private void proximas(RegistroAlarmas.Instantanea inst, int n, List<String> salida) {
+        List<ConsultaOcurrencias.Ocurrencia> disparos = planificador != null
+                ? planificador.proximosDisparos(inst.getAlarmas(), n)
+                : PlanificadorAlarmas.proximosDisparos(inst.getAlarmas(), n, new IndiceProximasAlarmas(ZoneId.systemDefault(),
+                        IndiceProximasAlarmas.Hueco.DESPLAZAR, IndiceProximasAlarmas.Solapamiento.PRIMERA), Instant.now());
+        for (ConsultaOcurrencias.Ocurrencia d : disparos) salida.add(d.cuando() + " " + d.alarma().getId());
+    }
+}
@@ -0,0 +1,121 @@
+package com.souris;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * CONSULTA DE OCURRENCIAS
+ * Responde "¿qué suena entre A y B?" para todas las alarmas a la vez.
+ *
+ * Las alarmas se agrupan por regla (muchas comparten, p. ej., "Lunes a Viernes"),
+ * así el bitset de cada regla distinta se recorre una sola vez para todo su grupo.
+ * Cada grupo avanza día a día en orden de hora y una cola de prioridad mezcla los
+ * grupos, de modo que las ocurrencias salen ya ordenadas y sin generar las sobrantes.
+ */
+public class ConsultaOcurrencias {
+
+    /**
+     * Un disparo concreto: cuándo y qué alarma.
+     */
+    public record Ocurrencia(LocalDateTime cuando, Alarma alarma) {}
+
+    private ConsultaOcurrencias() { }
+
+    /**
+     * Ocurrencias de las alarmas encendidas en [desde, hasta), ordenadas por fecha.
+     * Se recorren en orden y se para al llegar al límite: el coste depende de cuántas
+     * se piden y no del tamaño del rango.
+     * @param limite máximo de resultados (los más tempranos)
+     */
+    public static List<Ocurrencia> entre(List<Alarma> alarmas, LocalDateTime desde, LocalDateTime hasta, int limite) {
+        List<Ocurrencia> resultado = new ArrayList<>();
+        if (!desde.isBefore(hasta) || limite <= 0) return resultado;
+
+        LocalDate primerDia = desde.toLocalDate();
+        LocalDate ultimoDia = hasta.toLocalDate();
+
+        // Agrupar por regla: los bitsets se recorren una vez por regla distinta
+        Map<ReglaRecurrencia, List<Alarma>> porRegla = new HashMap<>();
+        PriorityQueue<Cursor> cola = new PriorityQueue<>();
+        for (Alarma a : alarmas) {
+            if (!a.isActiva()) continue;
+            ReglaRecurrencia r = a.getReglaEfectiva();
+            if (r == null) {
+                // Una sola vez: suena en la próxima aparición de su hora a partir de "desde"
+                LocalDateTime cuando = a.proximaOcurrencia(desde.minusNanos(1));
+                if (cuando != null && cuando.isBefore(hasta)) cola.add(new Cursor(null, List.of(a), cuando.toLocalDate(), ultimoDia));
+                continue;
+            }
+            porRegla.computeIfAbsent(r, k -> new ArrayList<>()).add(a);
+        }
+
+        // Un cursor por regla: sus alarmas en orden de hora, día a día
+        for (Map.Entry<ReglaRecurrencia, List<Alarma>> grupo : porRegla.entrySet()) {
+            List<Alarma> delGrupo = grupo.getValue();
+            delGrupo.sort(POR_HORA);
+            LocalDate dia = grupo.getKey().siguiente(primerDia, ultimoDia);
+            if (dia != null) cola.add(new Cursor(grupo.getKey(), delGrupo, dia, ultimoDia));
+        }
+
+        // Siempre sale la más temprana de todas: al llegar a "hasta" o al límite, no hay más que mirar
+        while (!cola.isEmpty() && resultado.size() < limite) {
+            Cursor c = cola.poll();
+            LocalDateTime cuando = c.cuando();
+            if (!cuando.isBefore(hasta)) break;
+            if (!cuando.isBefore(desde)) resultado.add(new Ocurrencia(cuando, c.actual()));
+            if (c.avanzar()) cola.add(c);
+        }
+        return resultado;
+    }
+
+    private static final Comparator<Alarma> POR_HORA =
+            Comparator.comparing(Alarma::getHora).thenComparing(Alarma::getId);
+
+    // Recorre las alarmas de una regla (o una sola alarma de una vez) en orden de fecha
+    private static final class Cursor implements Comparable<Cursor> {
+        private final ReglaRecurrencia regla; // null: una sola vez, sin más días
+        private final List<Alarma> alarmas;
+        private final LocalDate ultimoDia;
+        private LocalDate dia;
+        private int posicion;
+
+        Cursor(ReglaRecurrencia regla, List<Alarma> alarmas, LocalDate dia, LocalDate ultimoDia) {
+            this.regla = regla;
+            this.alarmas = alarmas;
+            this.dia = dia;
+            this.ultimoDia = ultimoDia;
+        }
+
+        Alarma actual() { return alarmas.get(posicion); }
+        LocalDateTime cuando() { return dia.atTime(actual().getHora()); }
+
+        // Pasa a la siguiente alarma del día o al siguiente día de la regla; false si se acabó
+        boolean avanzar() {
+            if (++posicion < alarmas.size()) return true;
+            if (regla == null) return false;
+            posicion = 0;
+            dia = regla.siguiente(dia.plusDays(1), ultimoDia);
+            return dia != null;
+        }
+
+        @Override
+        public int compareTo(Cursor otro) {
+            int c = cuando().compareTo(otro.cuando());
+            return c != 0 ? c : actual().getId().compareTo(otro.actual().getId());
+        }
+    }
+
+    /**
+     * Atajo para un día completo.
+     */
+    public static List<Ocurrencia> delDia(List<Alarma> alarmas, LocalDate dia, int limite) {
+        return entre(alarmas, dia.atTime(LocalTime.MIN), dia.plusDays(1).atTime(LocalTime.MIN), limite);
+    }
+}
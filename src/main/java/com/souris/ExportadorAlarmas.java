@@ -0,0 +1,158 @@
+package com.souris;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * EXPORTADOR DE ALARMAS
+ * Escribe una instantánea del registro en CSV o iCalendar directamente al disco,
+ * alarma por alarma, sin construir el archivo completo en memoria.
+ */
+public class ExportadorAlarmas {
+
+    private static final DateTimeFormatter FORMATO_ICAL = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+    private static final int OCTETOS_POR_LINEA = 75; // Sin contar el CRLF (RFC 5545 §3.1)
+
+    public void exportar(List<Alarma> alarmas, File archivo) throws IOException {
+        exportar(alarmas, archivo, FormatoAlarmas.deArchivo(archivo));
+    }
+
+    public void exportar(List<Alarma> alarmas, File archivo, FormatoAlarmas formato) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(archivo.toPath(), StandardCharsets.UTF_8)) {
+            if (formato == FormatoAlarmas.ICALENDAR) escribirICalendar(alarmas, out);
+            else escribirCsv(alarmas, out);
+        }
+    }
+
+    private void escribirCsv(List<Alarma> alarmas, BufferedWriter out) throws IOException {
+        out.write("hora,dias,activa,regla,grupo,etiquetas");
+        out.newLine();
+        for (Alarma a : alarmas) {
+            boolean soloDias = a.getRegla() == null && !a.esUnaSolaVez();
+            out.write(a.getHora() + "," + (soloDias ? a.getMascaraDias() : "-") + "," + a.isActiva());
+            boolean conEtiquetas = a.getGrupo() != null || !a.getEtiquetas().isEmpty();
+            if (a.getRegla() != null || conEtiquetas) {
+                out.write("," + (a.getRegla() != null ? campoCsv(a.getRegla().texto()) : ""));
+            }
+            if (conEtiquetas) {
+                out.write("," + (a.getGrupo() != null ? campoCsv(a.getGrupo()) : ""));
+                out.write("," + campoCsv(String.join(",", a.getEtiquetas())));
+            }
+            out.newLine();
+        }
+    }
+
+    // Entre comillas si hace falta ("" dentro de un campo es una comilla)
+    private static String campoCsv(String valor) {
+        if (valor.indexOf(',') < 0 && valor.indexOf('"') < 0 && valor.indexOf(';') < 0) return valor;
+        return "\"" + valor.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Cada alarma es un VEVENT con su VALARM. Las líneas terminan en CRLF y se pliegan
+     * a 75 octetos (RFC 5545), así que una lista larga de RDATE o EXDATE no se sale.
+     */
+    private void escribirICalendar(List<Alarma> alarmas, BufferedWriter out) throws IOException {
+        LocalDateTime ahora = LocalDateTime.now();
+        String marca = LocalDateTime.now(ZoneOffset.UTC).format(FORMATO_ICAL) + "Z";
+
+        linea(out, "BEGIN:VCALENDAR");
+        linea(out, "VERSION:2.0");
+        linea(out, "PRODID:-//SourisAlarm//ES");
+        for (Alarma a : alarmas) {
+            ReglaRecurrencia regla = a.getReglaEfectiva();
+
+            linea(out, "BEGIN:VEVENT");
+            linea(out, "UID:" + a.getId() + "@sourisalarm");
+            linea(out, "DTSTAMP:" + marca);
+            linea(out, "DTSTART:" + fechaInicio(a, ahora).format(FORMATO_ICAL));
+            if (regla != null) {
+                if (regla.rrule() != null) linea(out, "RRULE:" + regla.rrule());
+                if (!regla.getFechas().isEmpty()) linea(out, "RDATE;VALUE=DATE:" + listaFechas(regla.getFechas()));
+                if (!regla.getExclusiones().isEmpty()) linea(out, "EXDATE;VALUE=DATE:" + listaFechas(regla.getExclusiones()));
+            }
+            linea(out, "SUMMARY:Alarma " + a.getHora());
+            linea(out, "X-SOURIS-ACTIVA:" + (a.isActiva() ? "TRUE" : "FALSE"));
+            if (a.getGrupo() != null) linea(out, "X-SOURIS-GRUPO:" + textoICal(a.getGrupo()));
+            if (!a.getEtiquetas().isEmpty()) {
+                StringBuilder categorias = new StringBuilder();
+                for (String e : a.getEtiquetas()) {
+                    if (categorias.length() > 0) categorias.append(',');
+                    categorias.append(textoICal(e));
+                }
+                linea(out, "CATEGORIES:" + categorias);
+            }
+            linea(out, "BEGIN:VALARM");
+            linea(out, "ACTION:AUDIO");
+            linea(out, "TRIGGER:PT0S");
+            linea(out, "END:VALARM");
+            linea(out, "END:VEVENT");
+        }
+        linea(out, "END:VCALENDAR");
+    }
+
+    /**
+     * DTSTART: el inicio de la regla si lo tiene (en "cada N días", su ancla); en las
+     * demás reglas, su primera fecha desde hoy; en las de una sola vez, la próxima vez
+     * que sonaría (aunque esté apagada). Si ya no hay más fechas, hoy. Al importarlo la
+     * regla vuelve igual (ver {@link ReglaRecurrencia#parsear}).
+     */
+    private static LocalDateTime fechaInicio(Alarma a, LocalDateTime ahora) {
+        ReglaRecurrencia regla = a.getReglaEfectiva();
+        if (regla == null) {
+            LocalDateTime proxima = a.conActiva(true).proximaOcurrencia(ahora);
+            return proxima != null ? proxima : ahora.toLocalDate().atTime(a.getHora());
+        }
+        if (regla.getInicio() != null) return regla.getInicio().atTime(a.getHora());
+        LocalDate hoy = ahora.toLocalDate();
+        LocalDate primera = regla.siguiente(hoy, hoy.plusYears(5));
+        return (primera != null ? primera : hoy).atTime(a.getHora());
+    }
+
+    private static String listaFechas(Collection<LocalDate> fechas) {
+        StringBuilder sb = new StringBuilder();
+        for (LocalDate f : fechas) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(f.format(DateTimeFormatter.BASIC_ISO_DATE));
+        }
+        return sb.toString();
+    }
+
+    // Escapa un valor de texto (RFC 5545)
+    private static String textoICal(String valor) {
+        return valor.replace("\\", "\\\\").replace(";", "\\;").replace(",", "\\,");
+    }
+
+    /**
+     * Escribe una línea de contenido plegándola cada 75 octetos en UTF-8: CRLF y un
+     * espacio, que cuenta dentro de la línea siguiente. Nunca corta un carácter por
+     * la mitad; el importador la despliega al leer.
+     */
+    private static void linea(BufferedWriter out, String texto) throws IOException {
+        int desde = 0;
+        int octetos = 0;
+        for (int i = 0; i < texto.length(); ) {
+            int c = texto.codePointAt(i);
+            int n = c < 0x80 ? 1 : c < 0x800 ? 2 : c < 0x10000 ? 3 : 4;
+            if (octetos + n > OCTETOS_POR_LINEA) {
+                out.write(texto, desde, i - desde);
+                out.write("\r\n ");
+                desde = i;
+                octetos = 1;
+            }
+            octetos += n;
+            i += Character.charCount(c);
+        }
+        out.write(texto, desde, texto.length() - desde);
+        out.write("\r\n");
+    }
+}
@@ -0,0 +1,99 @@
+package com.souris;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+/**
+ * FILTRO DE ALARMAS
+ * Traduce un texto como "hora=07:00-09:00 dia=1 estado=on" a una condición.
+ * Todos los términos deben cumplirse a la vez.
+ *
+ * Términos soportados:
+ *   todas                     cualquier alarma
+ *   id=ID                     una alarma concreta
+ *   hora=HH:mm                hora exacta
+ *   hora=HH:mm-HH:mm          rango de horas (ambos extremos incluidos)
+ *   dia=N                     puede sonar el día N (0=Domingo ... 6=Sábado), según su regla;
+ *                             las de una sola vez no tienen día (ver una-vez), como en la búsqueda
+ *   estado=on | estado=off    encendida o apagada
+ *   grupo=NOMBRE              del grupo indicado ("_" en lugar de espacios)
+ *   etiqueta=NOMBRE           con la etiqueta indicada
+ *   una-vez                   alarmas sin días de repetición
+ */
+public class FiltroAlarmas implements Predicate<Alarma> {
+
+    private final List<Predicate<Alarma>> condiciones;
+
+    private FiltroAlarmas(List<Predicate<Alarma>> condiciones) {
+        this.condiciones = condiciones;
+    }
+
+    /**
+     * @throws IllegalArgumentException si algún término no se entiende
+     */
+    public static FiltroAlarmas parsear(String texto) {
+        List<Predicate<Alarma>> condiciones = new ArrayList<>();
+        if (texto == null || texto.isBlank()) {
+            throw new IllegalArgumentException("Falta el filtro (usa \"todas\" para todas las alarmas)");
+        }
+        for (String termino : texto.trim().split("\\s+")) {
+            condiciones.add(parsearTermino(termino));
+        }
+        return new FiltroAlarmas(condiciones);
+    }
+
+    private static Predicate<Alarma> parsearTermino(String termino) {
+        if (termino.equalsIgnoreCase("todas")) return a -> true;
+        if (termino.equalsIgnoreCase("una-vez")) return Alarma::esUnaSolaVez;
+
+        int igual = termino.indexOf('=');
+        if (igual < 0) throw new IllegalArgumentException("Término de filtro desconocido: " + termino);
+        String clave = termino.substring(0, igual).toLowerCase(Locale.ROOT);
+        String valor = termino.substring(igual + 1);
+
+        switch (clave) {
+            case "id":
+                return a -> a.getId().equals(valor);
+            case "hora": {
+                int guion = valor.indexOf('-');
+                LocalTime desde = LocalTime.parse(guion < 0 ? valor : valor.substring(0, guion));
+                LocalTime hasta = guion < 0 ? desde : LocalTime.parse(valor.substring(guion + 1));
+                return a -> !a.getHora().isBefore(desde) && !a.getHora().isAfter(hasta);
+            }
+            case "dia": {
+                int dia = Integer.parseInt(valor);
+                if (dia < 0 || dia > 6) throw new IllegalArgumentException("Día fuera de rango (0-6): " + valor);
+                return a -> suenaElDia(a, dia);
+            }
+            case "estado":
+                if (valor.equalsIgnoreCase("on")) return Alarma::isActiva;
+                if (valor.equalsIgnoreCase("off")) return a -> !a.isActiva();
+                throw new IllegalArgumentException("Estado inválido (on/off): " + valor);
+            case "grupo": {
+                String grupo = Alarma.normalizarGrupo(valor.replace('_', ' '));
+                return a -> a.getGrupo() != null && Alarma.normalizarGrupo(a.getGrupo()).equals(grupo);
+            }
+            case "etiqueta":
+                return a -> a.tieneEtiqueta(valor);
+            default:
+                throw new IllegalArgumentException("Término de filtro desconocido: " + termino);
+        }
+    }
+
+    // Los mismos días que IndiceBusqueda: un filtro y una búsqueda iguales dan lo mismo
+    private static boolean suenaElDia(Alarma a, int dia) {
+        int mascara = IndiceBusqueda.mascaraDias(a);
+        return mascara >= 0 && (mascara & (1 << dia)) != 0;
+    }
+
+    @Override
+    public boolean test(Alarma alarma) {
+        for (Predicate<Alarma> c : condiciones) {
+            if (!c.test(alarma)) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,20 @@
+package com.souris;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Formatos de archivo soportados para importar y exportar alarmas.
+ */
+public enum FormatoAlarmas {
+    CSV,        // hora,dias,activa   ej: 07:30,0111110,true
+    ICALENDAR;  // VEVENT con RRULE semanal y un VALARM
+
+    /**
+     * Deduce el formato por la extensión (.ics = iCalendar, cualquier otra = CSV).
+     */
+    public static FormatoAlarmas deArchivo(File archivo) {
+        String nombre = archivo.getName().toLowerCase(Locale.ROOT);
+        return (nombre.endsWith(".ics") || nombre.endsWith(".ical")) ? ICALENDAR : CSV;
+    }
+}
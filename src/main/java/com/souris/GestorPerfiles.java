@@ -0,0 +1,585 @@
+package com.souris;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * GESTOR DE PERFILES
+ * Varios juegos de alarmas con nombre (p. ej. uno por sede o por temporada), cada uno
+ * en su propio archivo.
+ *
+ * - "Principal" es el archivo de siempre, que además guarda las preferencias.
+ *   Los demás viven en la carpeta de perfiles como "nombre.dat".
+ * - El perfil activo es el que se ve y se edita: sus alarmas están en el registro de la ventana.
+ * - De cada perfil se guarda un resumen (cuántas alarmas tiene y cuándo suena la próxima)
+ *   en "indice.dat": para saber qué suena pronto no hace falta abrir los archivos. Si
+ *   otro proceso cambió uno, se lee en una lista que se tira después de resumirla.
+ * - Solo un perfil inactivo que suena dentro de la ventana de planificación se carga en
+ *   un registro propio, y el {@link PlanificadorAlarmas} lo programa junto con el activo.
+ *   Los que dejan de sonar pronto se descargan en la siguiente revisión.
+ * - Después de sonar sigue cargado un rato, por si se pospone, pero solo mientras quepa
+ *   en el presupuesto (lo que ocupan sus archivos, medido al cargar y al guardar): si no, se descarga empezando por el que se usó hace más tiempo.
+ *   Uno con alarmas pospuestas cuenta como "suena pronto": descargarlo las cancelaría.
+ *
+ * Una revisión por minuto (en su propio hilo) mantiene todo esto al día; el índice solo
+ * se vuelve a escribir si algún resumen cambió. Cada archivo lo
+ * tiene abierto una sola instancia de {@link ArchivoCompartido}: la ventana el del activo
+ * y este gestor los de los perfiles cargados.
+ */
+public class GestorPerfiles {
+
+    public static final String PRINCIPAL = "Principal";
+    public static final long PRESUPUESTO_POR_DEFECTO = 8L * 1024 * 1024;
+
+    private static final String EXTENSION = ".dat";
+    private static final String ARCHIVO_INDICE = "indice" + EXTENSION;
+    private static final Pattern NOMBRE_VALIDO = Pattern.compile("[\\p{L}\\p{N} _-]{1,40}");
+
+    // Lo que suena antes de esto se carga; lo que acaba de sonar se mantiene cargado lo mismo
+    private static final Duration VENTANA = Duration.ofHours(1);
+    private static final long REVISION_MS = 60_000;
+    // Los cambios de un perfil inactivo (una alarma de una sola vez que se apaga) se guardan juntos
+    private static final long ESPERA_GUARDAR_MS = 1_000;
+
+    /**
+     * Lo que se sabe de un perfil sin cargarlo.
+     * @param proximo próximo disparo, o null si no tiene ninguno programado
+     * @param modificado fecha del archivo cuando se calculó (para notar cambios de otros procesos)
+     */
+    public record Resumen(String nombre, int alarmas, Instant proximo, long modificado) implements Serializable {
+        private static final long serialVersionUID = 1L;
+    }
+
+    // Por fecha del próximo disparo; los que no tienen, al final
+    private static final Comparator<Resumen> POR_PROXIMO = Comparator
+            .comparing(Resumen::proximo, Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparing(Resumen::nombre);
+
+    // Contenido de indice.dat
+    private static final class Indice implements Serializable {
+        private static final long serialVersionUID = 1L;
+        String activo = PRINCIPAL;
+        List<Resumen> resumenes = new ArrayList<>();
+    }
+
+    /**
+     * Un perfil inactivo en memoria: su registro es una fuente más del planificador.
+     */
+    private final class PerfilCargado {
+        final String nombre;
+        final RegistroAlarmas registro = new RegistroAlarmas();
+        ArchivoCompartido archivo; // Null mientras la ventana no suelte el archivo (ver activar)
+        final AtomicBoolean guardadoPendiente = new AtomicBoolean(false);
+        final Consumer<RegistroAlarmas.Instantanea> oyente = inst -> programarGuardado(this);
+        long versionGuardada;  // La que coincide con el disco: no hay que escribirla
+        long bytes;            // Tamaño del archivo al cargarlo o guardarlo por última vez
+        long versionResumida = -1;
+        long ultimoUso;
+        Instant retenerHasta = Instant.MIN;
+
+        PerfilCargado(String nombre) {
+            this.nombre = nombre;
+        }
+
+        // Abre el archivo y pone lo que hay en el registro
+        void abrir() throws IOException {
+            archivo = ArchivoCompartido.abrir(rutaDe(nombre), registro);
+            try {
+                archivo.cargar();
+            } catch (IOException | RuntimeException e) {
+                archivo.cerrar();
+                archivo = null;
+                throw e;
+            }
+            versionGuardada = registro.instantanea().getVersion();
+            bytes = tamano(rutaDe(nombre));
+        }
+    }
+
+    private final Path archivoPrincipal;
+    private final Path carpeta;
+    private final RegistroAlarmas registroActivo;
+    private final PlanificadorAlarmas planificador;
+    private final long presupuestoBytes;
+    private final ZoneId zona = ZoneId.systemDefault();
+
+    private final Map<String, Resumen> resumenes = new HashMap<>();
+    private final TreeSet<Resumen> porProximo = new TreeSet<>(POR_PROXIMO);
+    // Copia de porProximo para las consultas de la ventana: no esperan a que acabe una revisión
+    private volatile List<Resumen> publicados = List.of();
+    private final Map<String, PerfilCargado> cargados = new HashMap<>();
+    private volatile String activo;
+    // Versión del registro activo con la que se calculó su resumen (solo se recalcula si cambia)
+    private long versionResumidaActivo = -1;
+    private long usos; // Contador para saber qué perfil se usó hace más tiempo
+    // Algún resumen o el activo cambiaron desde que se escribió indice.dat
+    private boolean indiceCambiado;
+
+    private ScheduledExecutorService hilo;
+
+    /**
+     * @param registroActivo el registro de la ventana, donde está el perfil activo
+     * @param presupuestoBytes lo que pueden ocupar las alarmas cargadas (la del activo incluida),
+     *                         medido por el tamaño de sus archivos al cargarlos o guardarlos:
+     *                         las mismas alarmas serializadas, con sus reglas y etiquetas
+     */
+    public GestorPerfiles(Path archivoPrincipal, Path carpeta, RegistroAlarmas registroActivo,
+                          PlanificadorAlarmas planificador, long presupuestoBytes) {
+        this.archivoPrincipal = archivoPrincipal.toAbsolutePath();
+        this.carpeta = carpeta.toAbsolutePath();
+        this.registroActivo = registroActivo;
+        this.planificador = planificador;
+        this.presupuestoBytes = presupuestoBytes;
+
+        Indice indice = leerIndice();
+        for (Resumen r : indice.resumenes) ponerResumen(r);
+        activo = Files.exists(rutaDe(indice.activo)) ? indice.activo : PRINCIPAL;
+        indiceCambiado = !activo.equals(indice.activo);
+    }
+
+    // =========================================================================
+    //                        CONSULTAS
+    // =========================================================================
+    public String getActivo() { return activo; }
+
+    public Path rutaDe(String nombre) {
+        return nombre.equals(PRINCIPAL) ? archivoPrincipal : carpeta.resolve(nombre + EXTENSION);
+    }
+
+    /**
+     * Todos los perfiles conocidos: primero el principal y luego por nombre.
+     */
+    public List<Resumen> getPerfiles() {
+        List<Resumen> lista = new ArrayList<>(publicados);
+        if (lista.stream().noneMatch(r -> r.nombre().equals(PRINCIPAL))) lista.add(new Resumen(PRINCIPAL, 0, null, 0));
+        lista.sort(Comparator.comparing((Resumen r) -> !r.nombre().equals(PRINCIPAL))
+                .thenComparing(r -> r.nombre().toLowerCase(Locale.ROOT)));
+        return lista;
+    }
+
+    /**
+     * El próximo disparo de los perfiles inactivos según sus resúmenes
+     * (el del activo lo sabe el planificador). Los que ya pasaron y aún no se
+     * recalcularon van primero en el orden: se saltan.
+     */
+    public Instant getProximoDisparo() {
+        Instant ahora = Instant.now();
+        for (Resumen r : publicados) {
+            if (r.proximo() == null) return null;
+            if (!r.nombre().equals(activo) && r.proximo().isAfter(ahora)) return r.proximo();
+        }
+        return null;
+    }
+
+    /**
+     * ¿Cuántos perfiles inactivos hay en memoria? Para diagnóstico.
+     */
+    public synchronized int getCargados() { return cargados.size(); }
+
+    // =========================================================================
+    //                        CREAR Y CAMBIAR DE PERFIL
+    // =========================================================================
+
+    /**
+     * Crea un perfil vacío.
+     * @throws IllegalArgumentException si el nombre no es válido o ya existe
+     */
+    public synchronized void crear(String nombre) throws IOException {
+        String limpio = nombre == null ? "" : nombre.trim();
+        if (!NOMBRE_VALIDO.matcher(limpio).matches() || limpio.equalsIgnoreCase("indice")) {
+            throw new IllegalArgumentException("Nombre de perfil no válido: usa letras, números, espacios, - o _ (hasta 40)");
+        }
+        for (String existente : resumenes.keySet()) {
+            if (existente.equalsIgnoreCase(limpio)) throw new IllegalArgumentException("Ya existe el perfil " + existente);
+        }
+        if (limpio.equalsIgnoreCase(PRINCIPAL)) throw new IllegalArgumentException("Ya existe el perfil " + PRINCIPAL);
+
+        Files.createDirectories(carpeta);
+        Path ruta = rutaDe(limpio);
+        ArchivoCompartido.crear(ruta, List.of());
+        ponerResumen(new Resumen(limpio, 0, null, modificacion(ruta)));
+        guardarIndice();
+    }
+
+    /**
+     * Cambia el perfil activo. "cambiarArchivo" hace que la ventana abra el archivo del
+     * nuevo ({@link #rutaDe(String)}) y cierre el del actual; las alarmas del actual
+     * deben estar guardadas antes de llamar a esto. Hace E/S: no llamar desde el hilo FX.
+     *
+     * Ninguna alarma deja de estar programada durante el cambio (ni sus posposiciones):
+     * el perfil que se deja pasa al planificador como copia en memoria antes de que la
+     * ventana lo suelte, y solo abre su archivo cuando la ventana ya lo cerró. Al revés,
+     * el nuevo cierra su archivo antes de que la ventana lo abra, pero su registro sigue
+     * programado hasta que la ventana tiene sus alarmas.
+     */
+    public synchronized void activar(String nuevo, Runnable cambiarArchivo) throws IOException {
+        if (nuevo.equals(activo)) return;
+        if (!nuevo.equals(PRINCIPAL) && !Files.exists(rutaDe(nuevo))) {
+            throw new IllegalArgumentException("No existe el perfil " + nuevo);
+        }
+        PerfilCargado siguiente = cargados.get(nuevo);
+        if (siguiente != null) {
+            // Lo que tenga sin guardar debe estar en el disco antes de que la ventana lo lea
+            guardarSiCambio(siguiente);
+            cerrarArchivo(siguiente);
+        }
+        PerfilCargado anterior = new PerfilCargado(activo);
+        anterior.registro.reemplazarTodas(registroActivo.instantanea().getAlarmas());
+        planificador.agregarFuente(anterior.registro);
+
+        try {
+            cambiarArchivo.run();
+        } catch (RuntimeException e) {
+            planificador.quitarFuente(anterior.registro); // Sigue siendo el activo: no debe estar dos veces
+            if (siguiente != null) descargar(siguiente); // Sin archivo: la próxima revisión lo vuelve a cargar
+            throw e;
+        }
+        if (siguiente != null) descargar(siguiente);
+        String dejado = activo;
+        activo = nuevo;
+        indiceCambiado = true;
+        versionResumidaActivo = -1; // Otro registro: sus versiones no se comparan con las del anterior
+
+        try {
+            anterior.abrir();
+            anterior.ultimoUso = ++usos;
+            anterior.registro.suscribir(anterior.oyente);
+            cargados.put(dejado, anterior);
+        } catch (IOException | RuntimeException e) {
+            // El cambio ya está hecho; si hace falta, la próxima revisión lo vuelve a intentar
+            e.printStackTrace();
+            planificador.quitarFuente(anterior.registro);
+        }
+        revisar();
+    }
+
+    // =========================================================================
+    //                        REVISIÓN PERIÓDICA
+    // =========================================================================
+    public synchronized void iniciar() {
+        if (hilo != null) return;
+        hilo = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "gestor-perfiles");
+            t.setDaemon(true);
+            return t;
+        });
+        hilo.scheduleWithFixedDelay(this::revisarSinFallar, 0, REVISION_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void detener() {
+        if (hilo != null) hilo.shutdownNow();
+        hilo = null;
+        for (PerfilCargado p : cargados.values()) guardarSinFallar(p);
+        guardarIndice();
+    }
+
+    private void revisarSinFallar() {
+        try {
+            revisar();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Pone al día los resúmenes y decide qué perfiles deben estar en memoria:
+     * 1. Los archivos nuevos o cambiados por otro proceso se resumen: los cargados
+     *    recargando, los demás leyéndolos en una lista que no se guarda.
+     * 2. Lo que suena dentro de la ventana se carga; lo que ya no, se descarga.
+     * 3. Si se pasa del presupuesto, se descarga lo que acaba de sonar, lo más viejo primero.
+     * Hace E/S: corre en el hilo del gestor (o en el de quien cambia de perfil).
+     */
+    synchronized void revisar() {
+        Instant ahora = Instant.now();
+        Set<String> nombres = descubrir();
+
+        resumirActivo(ahora);
+
+        for (String nombre : nombres) {
+            if (nombre.equals(activo)) continue;
+            long modificado = modificacion(rutaDe(nombre));
+            Resumen r = resumenes.get(nombre);
+            PerfilCargado p = cargados.get(nombre);
+            boolean cambiadoFuera = r == null || r.modificado() != modificado;
+            try {
+                if (p == null) {
+                    if (cambiadoFuera) {
+                        r = resumir(nombre, ArchivoCompartido.leerAlarmas(rutaDe(nombre)), modificado, ahora);
+                        ponerResumen(r);
+                    }
+                    if (!suenaPronto(r, ahora)) continue;
+                    p = cargar(nombre);
+                } else if (cambiadoFuera) {
+                    p.archivo.recargar();
+                    p.versionGuardada = p.registro.instantanea().getVersion();
+                    p.bytes = tamano(rutaDe(nombre));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+
+            // Acaba de sonar (o tiene algo pospuesto): se queda cargado por si se pospone otra vez
+            boolean paso = r != null && r.proximo() != null && !r.proximo().isAfter(ahora);
+            if (paso || planificador.tienePospuestas(p.registro)) p.retenerHasta = ahora.plus(VENTANA);
+            long version = p.registro.instantanea().getVersion();
+            if (paso || cambiadoFuera || version != p.versionResumida) {
+                ponerResumen(resumir(nombre, p.registro.instantanea().getAlarmas(), modificado, ahora));
+                p.versionResumida = version;
+            }
+        }
+        desalojar(ahora, tamano(rutaDe(activo)));
+        guardarIndice();
+    }
+
+    // Los perfiles que hay en disco (el principal siempre cuenta); olvida los borrados
+    private Set<String> descubrir() {
+        Set<String> nombres = new HashSet<>();
+        nombres.add(PRINCIPAL);
+        if (Files.isDirectory(carpeta)) {
+            try (DirectoryStream<Path> archivos = Files.newDirectoryStream(carpeta, "*" + EXTENSION)) {
+                for (Path archivo : archivos) {
+                    String nombre = archivo.getFileName().toString();
+                    nombre = nombre.substring(0, nombre.length() - EXTENSION.length());
+                    if (!archivo.getFileName().toString().equals(ARCHIVO_INDICE) && NOMBRE_VALIDO.matcher(nombre).matches()) {
+                        nombres.add(nombre);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                nombres.addAll(resumenes.keySet()); // Mejor no olvidar nada por un error de lectura
+            }
+        }
+        nombres.add(activo);
+        for (String conocido : new ArrayList<>(resumenes.keySet())) {
+            if (nombres.contains(conocido)) continue;
+            quitarResumen(conocido);
+            PerfilCargado p = cargados.get(conocido);
+            if (p != null) descargar(p);
+        }
+        return nombres;
+    }
+
+    private boolean suenaPronto(Resumen r, Instant ahora) {
+        return r.proximo() != null && !r.proximo().isAfter(ahora.plus(VENTANA));
+    }
+
+    // Suena pronto por sus alarmas o por una posposición pendiente (descargarlo la cancelaría)
+    private boolean suenaPronto(PerfilCargado p, Instant ahora) {
+        Resumen r = resumenes.get(p.nombre);
+        return r == null || suenaPronto(r, ahora) || planificador.tienePospuestas(p.registro);
+    }
+
+    private boolean necesario(PerfilCargado p, Instant ahora) {
+        return suenaPronto(p, ahora) || ahora.isBefore(p.retenerHasta);
+    }
+
+    // Descarga lo que no hace falta y, mientras se pase del presupuesto, lo que acaba de
+    // sonar, empezando por lo más viejo. Lo que suena pronto (o tiene algo pospuesto) no se toca
+    private void desalojar(Instant ahora, long bytesActivo) {
+        for (PerfilCargado p : new ArrayList<>(cargados.values())) {
+            if (!necesario(p, ahora)) descargar(p);
+        }
+        long usados = bytesActivo;
+        for (PerfilCargado p : cargados.values()) usados += p.bytes;
+        if (usados <= presupuestoBytes) return;
+
+        List<PerfilCargado> candidatos = new ArrayList<>(cargados.values());
+        candidatos.sort(Comparator.comparingLong(p -> p.ultimoUso));
+        for (PerfilCargado p : candidatos) {
+            if (usados <= presupuestoBytes) break;
+            if (suenaPronto(p, ahora)) continue;
+            usados -= p.bytes;
+            descargar(p);
+        }
+    }
+
+    // =========================================================================
+    //                        CARGAR Y DESCARGAR
+    // =========================================================================
+    private PerfilCargado cargar(String nombre) throws IOException {
+        PerfilCargado p = cargados.get(nombre);
+        if (p != null) return p;
+        p = new PerfilCargado(nombre);
+        p.abrir();
+        p.ultimoUso = ++usos;
+        p.registro.suscribir(p.oyente);
+        cargados.put(nombre, p);
+        planificador.agregarFuente(p.registro);
+        return p;
+    }
+
+    private void descargar(PerfilCargado p) {
+        guardarSinFallar(p);
+        cerrarArchivo(p);
+        planificador.quitarFuente(p.registro);
+        p.registro.desuscribir(p.oyente);
+        cargados.remove(p.nombre);
+    }
+
+    private void cerrarArchivo(PerfilCargado p) {
+        if (p.archivo != null) p.archivo.cerrar();
+        p.archivo = null;
+    }
+
+    // =========================================================================
+    //                        GUARDAR
+    // =========================================================================
+
+    // El planificador apagó una alarma de una sola vez de un perfil inactivo
+    private void programarGuardado(PerfilCargado p) {
+        ScheduledExecutorService h = hilo;
+        if (h == null || !p.guardadoPendiente.compareAndSet(false, true)) return;
+        h.schedule(() -> {
+            synchronized (this) {
+                if (cargados.get(p.nombre) == p) guardarSinFallar(p);
+            }
+        }, ESPERA_GUARDAR_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void guardarSinFallar(PerfilCargado p) {
+        try {
+            guardarSiCambio(p);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void guardarSiCambio(PerfilCargado p) throws IOException {
+        p.guardadoPendiente.set(false);
+        if (p.archivo == null || p.registro.instantanea().getVersion() == p.versionGuardada) return;
+        p.archivo.guardarAlarmas();
+        p.versionGuardada = p.registro.instantanea().getVersion();
+        p.bytes = tamano(rutaDe(p.nombre));
+    }
+
+    // =========================================================================
+    //                        RESÚMENES E ÍNDICE
+    // =========================================================================
+    /**
+     * El resumen del perfil activo. Recorrer sus alarmas solo hace falta si cambiaron:
+     * su próximo disparo lo sabe el planificador, y el resumen solo se usa para contar
+     * sus alarmas y, cuando deja de ser el activo, se vuelve a calcular.
+     */
+    private void resumirActivo(Instant ahora) {
+        RegistroAlarmas.Instantanea inst = registroActivo.instantanea();
+        long modificado = modificacion(rutaDe(activo));
+        Resumen r = resumenes.get(activo);
+        if (r == null || inst.getVersion() != versionResumidaActivo) {
+            ponerResumen(resumir(activo, inst.getAlarmas(), modificado, ahora));
+            versionResumidaActivo = inst.getVersion();
+        } else if (r.modificado() != modificado) {
+            ponerResumen(new Resumen(activo, r.alarmas(), r.proximo(), modificado));
+        }
+    }
+
+    private Resumen resumir(String nombre, List<Alarma> alarmas, long modificado, Instant ahora) {
+        LocalDateTime desde = LocalDateTime.ofInstant(ahora, zona);
+        LocalDateTime proxima = null;
+        for (Alarma a : alarmas) {
+            LocalDateTime cuando = a.proximaOcurrencia(desde);
+            if (cuando != null && (proxima == null || cuando.isBefore(proxima))) proxima = cuando;
+        }
+        Instant proximo = proxima == null ? null : proxima.atZone(zona).toInstant();
+        return new Resumen(nombre, alarmas.size(), proximo, modificado);
+    }
+
+    private void ponerResumen(Resumen r) {
+        if (r.equals(resumenes.get(r.nombre()))) return;
+        quitarResumen(r.nombre());
+        resumenes.put(r.nombre(), r);
+        porProximo.add(r);
+        indiceCambiado = true;
+        publicados = List.copyOf(porProximo);
+    }
+
+    private void quitarResumen(String nombre) {
+        Resumen anterior = resumenes.remove(nombre);
+        if (anterior == null) return;
+        porProximo.remove(anterior);
+        indiceCambiado = true;
+        publicados = List.copyOf(porProximo);
+    }
+
+    private Indice leerIndice() {
+        Path ruta = carpeta.resolve(ARCHIVO_INDICE);
+        if (!Files.exists(ruta)) return new Indice();
+        try (InputStream entrada = Files.newInputStream(ruta);
+             ObjectInputStream in = new ObjectInputStream(entrada)) {
+            return (Indice) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            // Solo es un resumen: se reconstruye leyendo los perfiles
+            e.printStackTrace();
+            return new Indice();
+        }
+    }
+
+    // Solo si algo cambió; se escribe aparte y se reemplaza de una vez: nunca queda un índice a medias.
+    // Quien solo usa el principal no necesita índice: no se crea la carpeta por él
+    private void guardarIndice() {
+        if (!indiceCambiado) return;
+        if (!Files.isDirectory(carpeta) && activo.equals(PRINCIPAL)
+                && resumenes.keySet().stream().allMatch(PRINCIPAL::equals)) {
+            indiceCambiado = false;
+            return;
+        }
+        Indice indice = new Indice();
+        indice.activo = activo;
+        indice.resumenes = new ArrayList<>(resumenes.values());
+        try {
+            Files.createDirectories(carpeta);
+            Path temporal = carpeta.resolve(ARCHIVO_INDICE + ".tmp");
+            try (OutputStream salida = Files.newOutputStream(temporal);
+                 ObjectOutputStream out = new ObjectOutputStream(salida)) {
+                out.writeObject(indice);
+            }
+            Files.move(temporal, carpeta.resolve(ARCHIVO_INDICE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            indiceCambiado = false;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static long tamano(Path ruta) {
+        try {
+            return Files.exists(ruta) ? Files.size(ruta) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long modificacion(Path ruta) {
+        try {
+            return Files.exists(ruta) ? Files.getLastModifiedTime(ruta).toMillis() : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
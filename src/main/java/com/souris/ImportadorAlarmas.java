@@ -0,0 +1,477 @@
+package com.souris;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * IMPORTADOR DE ALARMAS
+ * Lee archivos CSV o iCalendar línea a línea (en streaming), así que la memoria
+ * usada no depende del tamaño del archivo. Las alarmas se insertan en el registro
+ * por lotes y cada línea inválida se reporta con su número, sin detener la importación.
+ * Las alarmas iguales a otra ya existente (o a otra del mismo archivo) se descartan
+ * como "duplicada", comparando por hash su {@link Alarma.Clave} con el índice de
+ * claves de la instantánea actual, que ya incluye los lotes anteriores.
+ */
+public class ImportadorAlarmas {
+
+    // Alarmas por cada actualización del registro
+    private static final int TAMANO_LOTE = 10_000;
+    // Errores que se guardan con detalle (el resto solo se cuentan)
+    private static final int MAX_ERRORES_DETALLADOS = 100;
+
+    private static final DateTimeFormatter FORMATO_ICAL = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+    // Duration.parse no entiende las semanas de iCalendar (P2W)
+    private static final Pattern SEMANAS_ICAL = Pattern.compile("([+-]?)P(\\d+)W");
+
+    /**
+     * Resumen de una importación.
+     */
+    public static class Resultado {
+        private long importadas;
+        private long errores;
+        private long duplicadas;
+        private final List<String> detalleErrores = new ArrayList<>();
+
+        public long getImportadas() { return importadas; }
+        public long getErrores() { return errores; }
+        public long getDuplicadas() { return duplicadas; }
+        public List<String> getDetalleErrores() { return Collections.unmodifiableList(detalleErrores); }
+    }
+
+    private final RegistroAlarmas registro;
+
+    // Estado de la importación en curso
+    private final List<Alarma> lote = new ArrayList<>(TAMANO_LOTE);
+    private final Set<Alarma.Clave> clavesLote = new HashSet<>(); // Las del lote aún sin añadir
+    private Resultado resultado;
+
+    public ImportadorAlarmas(RegistroAlarmas registro) {
+        this.registro = registro;
+    }
+
+    public Resultado importar(File archivo) throws IOException {
+        return importar(archivo, FormatoAlarmas.deArchivo(archivo));
+    }
+
+    public synchronized Resultado importar(File archivo, FormatoAlarmas formato) throws IOException {
+        resultado = new Resultado();
+        lote.clear();
+        clavesLote.clear();
+        try (BufferedReader in = Files.newBufferedReader(archivo.toPath(), StandardCharsets.UTF_8)) {
+            if (formato == FormatoAlarmas.ICALENDAR) leerICalendar(in);
+            else leerCsv(in);
+        } finally {
+            vaciarLote(); // Lo leído hasta un fallo de E/S también se conserva
+        }
+        return resultado;
+    }
+
+    // =========================================================================
+    //                        LOTES Y ERRORES
+    // =========================================================================
+    private void aceptar(Alarma alarma, long numeroLinea) {
+        if (registro.instantanea().contieneDuplicado(alarma) || !clavesLote.add(alarma.getClave())) {
+            resultado.duplicadas++;
+            detalle(numeroLinea, "duplicada");
+            return;
+        }
+        lote.add(alarma);
+        if (lote.size() >= TAMANO_LOTE) vaciarLote();
+    }
+
+    private void vaciarLote() {
+        if (lote.isEmpty()) return;
+        registro.agregarTodas(lote); // Se añade al final sin copiar lo que ya había
+        resultado.importadas += lote.size();
+        lote.clear();
+        clavesLote.clear();
+    }
+
+    private void error(long numeroLinea, String mensaje) {
+        resultado.errores++;
+        detalle(numeroLinea, mensaje);
+    }
+
+    private void detalle(long numeroLinea, String mensaje) {
+        if (resultado.detalleErrores.size() < MAX_ERRORES_DETALLADOS) {
+            resultado.detalleErrores.add("Línea " + numeroLinea + ": " + mensaje);
+        }
+    }
+
+    // =========================================================================
+    //                        CSV
+    // =========================================================================
+
+    /**
+     * Formato: hora,dias,activa,regla,grupo,etiquetas  (las líneas con # se ignoran)
+     *   07:30,0111110,true     dias = máscara Domingo..Sábado, "-" = una vez
+     *   21:00                  solo la hora: una vez y encendida
+     *   08:00,-,true,"FREQ=MONTHLY;BYDAY=-1FR"   regla avanzada (ver ReglaRecurrencia)
+     *   06:00,0111110,true,,Turno mañana,"noche,equipo 2"   grupo y etiquetas
+     * Si hay cabecera, las columnas se leen por su nombre y en cualquier orden.
+     * Sin cabecera, una regla sin comillas se queda con el resto de la línea (puede
+     * llevar comas, como en el formato antiguo); para poner después grupo y etiquetas
+     * la regla va entre comillas o vacía, como en los ejemplos.
+     */
+    private void leerCsv(BufferedReader in) throws IOException {
+        Map<String, Integer> columnas = null;
+        boolean primera = true;
+        String linea;
+        long numero = 0;
+        while ((linea = in.readLine()) != null) {
+            numero++;
+            if (numero == 1) linea = sinBom(linea);
+            linea = linea.trim();
+            if (linea.isEmpty() || linea.startsWith("#")) continue;
+            // La cabecera, si la hay, es la primera línea con contenido
+            if (primera) {
+                primera = false;
+                if (linea.toLowerCase(Locale.ROOT).startsWith("hora")) {
+                    columnas = new HashMap<>();
+                    String[] nombres = dividirCsv(linea, Integer.MAX_VALUE);
+                    for (int i = 0; i < nombres.length; i++) columnas.put(nombres[i].trim().toLowerCase(Locale.ROOT), i);
+                    continue;
+                }
+            }
+
+            try {
+                String[] campos = columnas == null ? camposSinCabecera(linea) : dividirCsv(linea, columnas.size());
+                String textoHora = campoCsv(campos, columnas, "hora", 0);
+                LocalTime hora = LocalTime.parse(textoHora);
+                String mascara = campoCsv(campos, columnas, "dias", 1);
+                boolean[] dias = Alarma.parsearMascaraDias(mascara.isEmpty() ? "-" : mascara);
+                boolean activa = parsearBooleano(campoCsv(campos, columnas, "activa", 2));
+                String regla = campoCsv(campos, columnas, "regla", 3);
+                String grupo = campoCsv(campos, columnas, "grupo", 4);
+                String etiquetas = campoCsv(campos, columnas, "etiquetas", 5);
+
+                Alarma alarma = regla.isEmpty()
+                        ? new Alarma(hora, dias)
+                        : new Alarma(hora, ReglaRecurrencia.parsear(regla, LocalDate.now()));
+                if (!grupo.isEmpty() || !etiquetas.isEmpty()) {
+                    alarma = alarma.conGrupoYEtiquetas(grupo, Arrays.asList(etiquetas.split(",")));
+                }
+                aceptar(alarma.conActiva(activa), numero);
+            } catch (RuntimeException e) {
+                error(numero, e.getMessage());
+            }
+        }
+    }
+
+    // Quita la marca de orden de bytes que algunos editores ponen al principio de un UTF-8
+    private static String sinBom(String linea) {
+        return !linea.isEmpty() && linea.charAt(0) == '\uFEFF' ? linea.substring(1) : linea;
+    }
+
+    // Sin cabecera: el orden clásico; una regla sin comillas se queda con el resto de la línea
+    private static String[] camposSinCabecera(String linea) {
+        String[] campos = dividirCsv(linea, 6);
+        if (campos.length <= 4) return campos;
+        int inicioRegla = 0;
+        for (int comas = 0; comas < 3 && inicioRegla < linea.length(); inicioRegla++) {
+            if (linea.charAt(inicioRegla) == ',') comas++;
+        }
+        while (inicioRegla < linea.length() && linea.charAt(inicioRegla) == ' ') inicioRegla++;
+        if (inicioRegla >= linea.length()) return campos;
+        char c = linea.charAt(inicioRegla);
+        if (c == '"' || c == ',') return campos;
+        return Arrays.stream(linea.split(",", 4)).map(v -> v.replace("\"", "")).toArray(String[]::new);
+    }
+
+    // Valor de una columna, por nombre si hubo cabecera o por posición si no ("" si no está)
+    private static String campoCsv(String[] campos, Map<String, Integer> columnas, String nombre, int posicion) {
+        Integer i = columnas != null ? columnas.get(nombre) : (posicion >= 0 ? Integer.valueOf(posicion) : null);
+        return i == null || i >= campos.length ? "" : campos[i].trim();
+    }
+
+    /**
+     * Separa una línea CSV respetando comillas ("a,b" es un campo; "" es una comilla).
+     * Si sobran campos, se unen al último, como la regla en el formato clásico.
+     */
+    static String[] dividirCsv(String linea, int maxCampos) {
+        List<String> campos = new ArrayList<>();
+        StringBuilder actual = new StringBuilder();
+        boolean entreComillas = false;
+        for (int i = 0; i < linea.length(); i++) {
+            char c = linea.charAt(i);
+            if (c == '"') {
+                if (entreComillas && i + 1 < linea.length() && linea.charAt(i + 1) == '"') {
+                    actual.append('"');
+                    i++;
+                } else {
+                    entreComillas = !entreComillas;
+                }
+            } else if (c == ',' && !entreComillas && campos.size() < maxCampos - 1) {
+                campos.add(actual.toString());
+                actual.setLength(0);
+            } else {
+                actual.append(c);
+            }
+        }
+        campos.add(actual.toString());
+        return campos.toArray(new String[0]);
+    }
+
+    private static boolean parsearBooleano(String valor) {
+        if (valor.isEmpty() || valor.equalsIgnoreCase("true") || valor.equals("1")) return true;
+        if (valor.equalsIgnoreCase("false") || valor.equals("0")) return false;
+        throw new IllegalArgumentException("valor de 'activa' inválido: " + valor);
+    }
+
+    // =========================================================================
+    //                        iCALENDAR
+    // =========================================================================
+
+    // Datos del VEVENT que se está leyendo
+    private static class Evento {
+        long lineaInicio;
+        LocalDateTime inicio;  // Tal como viene en DTSTART
+        ZoneId zona;           // La de DTSTART (TZID o Z); null = hora local
+        Duration aviso;        // TRIGGER de su VALARM; null = a la hora del evento
+        boolean enAviso;       // Dentro de BEGIN:VALARM ... END:VALARM
+        String rrule;
+        final List<String> rdate = new ArrayList<>();
+        final List<String> exdate = new ArrayList<>();
+        boolean activa = true;
+        String grupo;
+        final List<String> categorias = new ArrayList<>();
+        String error;
+
+        Alarma crear() {
+            // La alarma suena cuando avisa el VALARM, en la hora de este equipo
+            LocalDateTime suena = zona == null ? inicio
+                    : inicio.atZone(zona).withZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+            if (aviso != null) suena = suena.plus(aviso);
+            suena = suena.truncatedTo(ChronoUnit.MINUTES);
+
+            StringBuilder regla = new StringBuilder();
+            if (rrule != null) {
+                // La regla empieza en DTSTART, y RDATE le añade fechas
+                regla.append(rrule).append(";DTSTART=").append(inicio.toLocalDate().format(DateTimeFormatter.BASIC_ISO_DATE));
+                if (!rdate.isEmpty()) regla.append(";RDATE=").append(String.join(",", rdate));
+            } else if (!rdate.isEmpty()) {
+                regla.append("RDATE=").append(String.join(",", rdate));
+            }
+            Alarma alarma;
+            if (regla.length() == 0) {
+                alarma = new Alarma(suena.toLocalTime(), new boolean[7]); // Una vez
+            } else {
+                // Los días de la regla son los del evento: si el aviso o la zona los mueven, no valen
+                if (!suena.toLocalDate().equals(inicio.toLocalDate())) {
+                    throw new IllegalArgumentException("el aviso cae en otro día que el evento ("
+                            + suena.toLocalDate() + "): no soportado en eventos que se repiten");
+                }
+                if (!exdate.isEmpty()) regla.append(";EXDATE=").append(String.join(",", exdate));
+                alarma = new Alarma(suena.toLocalTime(), ReglaRecurrencia.parsear(regla.toString(), inicio.toLocalDate()));
+            }
+            return grupo == null && categorias.isEmpty() ? alarma : alarma.conGrupoYEtiquetas(grupo, categorias);
+        }
+    }
+
+    /**
+     * Lee cada VEVENT como una alarma: la hora sale de DTSTART y los días de
+     * RRULE, RDATE y EXDATE (ver {@link ReglaRecurrencia}); una regla no suena antes de
+     * DTSTART, y RDATE le añade fechas. Sin ellos es de una sola vez.
+     * Un DTSTART con TZID (o en UTC) se pasa a la hora de este equipo, y un VALARM con
+     * TRIGGER relativo al inicio (p. ej. -PT15M) adelanta o atrasa la alarma. Lo que no se
+     * puede representar (TRIGGER absoluto o relativo al final, varios VALARM distintos, un
+     * evento que se repite y cuyo aviso cae en otro día) es un error de ese evento.
+     */
+    private void leerICalendar(BufferedReader in) throws IOException {
+        Evento evento = null;
+        long numero = 0;
+        String siguiente = in.readLine();
+        if (siguiente != null) siguiente = sinBom(siguiente);
+        while (siguiente != null) {
+            // Desplegar líneas continuadas (RFC 5545: empiezan con espacio o tabulador)
+            String linea = siguiente;
+            long numeroLinea = ++numero;
+            while ((siguiente = in.readLine()) != null && !siguiente.isEmpty()
+                    && (siguiente.charAt(0) == ' ' || siguiente.charAt(0) == '\t')) {
+                linea += siguiente.substring(1);
+                numero++;
+            }
+
+            int dosPuntos = linea.indexOf(':');
+            if (dosPuntos < 0) continue;
+            String cabecera = linea.substring(0, dosPuntos);
+            String nombre = cabecera.toUpperCase(Locale.ROOT);
+            String valor = linea.substring(dosPuntos + 1).trim();
+            int puntoYComa = nombre.indexOf(';');
+            String propiedad = puntoYComa < 0 ? nombre : nombre.substring(0, puntoYComa);
+
+            if (propiedad.equals("BEGIN") && valor.equalsIgnoreCase("VEVENT")) {
+                evento = new Evento();
+                evento.lineaInicio = numeroLinea;
+                continue;
+            }
+            if (evento == null) continue;
+
+            if (propiedad.equals("END") && valor.equalsIgnoreCase("VEVENT")) {
+                if (evento.error == null && evento.inicio == null) evento.error = "VEVENT sin DTSTART";
+                if (evento.error == null) {
+                    try {
+                        aceptar(evento.crear().conActiva(evento.activa), evento.lineaInicio);
+                    } catch (RuntimeException e) {
+                        evento.error = e.getMessage();
+                    }
+                }
+                if (evento.error != null) error(evento.lineaInicio, evento.error);
+                evento = null;
+                continue;
+            }
+            if (evento.error != null) continue;
+
+            try {
+                if (evento.enAviso) {
+                    // Del VALARM solo importa cuándo avisa
+                    if (propiedad.equals("END") && valor.equalsIgnoreCase("VALARM")) {
+                        evento.enAviso = false;
+                    } else if (propiedad.equals("TRIGGER")) {
+                        Duration aviso = parsearAviso(cabecera, valor);
+                        if (evento.aviso != null && !evento.aviso.equals(aviso)) {
+                            throw new IllegalArgumentException("varios VALARM con distinto TRIGGER no soportado");
+                        }
+                        evento.aviso = aviso;
+                    }
+                    continue;
+                }
+                switch (propiedad) {
+                    case "BEGIN":
+                        if (valor.equalsIgnoreCase("VALARM")) evento.enAviso = true;
+                        break;
+                    case "DTSTART": {
+                        String tzid = parametro(cabecera, "TZID");
+                        if (valor.toUpperCase(Locale.ROOT).endsWith("Z")) {
+                            evento.zona = ZoneOffset.UTC;
+                            valor = valor.substring(0, valor.length() - 1);
+                        } else if (tzid != null) {
+                            evento.zona = zonaICal(tzid);
+                        }
+                        evento.inicio = parsearFechaHoraICal(valor);
+                        break;
+                    }
+                    case "RRULE":
+                        evento.rrule = valor;
+                        break;
+                    case "RDATE":
+                        evento.rdate.add(valor);
+                        break;
+                    case "EXDATE":
+                        evento.exdate.add(valor);
+                        break;
+                    case "X-SOURIS-ACTIVA":
+                        evento.activa = parsearBooleano(valor.toLowerCase(Locale.ROOT));
+                        break;
+                    case "X-SOURIS-GRUPO":
+                        evento.grupo = textoICal(valor);
+                        break;
+                    case "CATEGORIES":
+                        // Lista separada por comas; "\," es una coma dentro de una categoría
+                        for (String c : valor.split("(?<!\\\\),")) evento.categorias.add(textoICal(c));
+                        break;
+                    default:
+                        break; // Propiedades que no nos afectan (SUMMARY, UID...)
+                }
+            } catch (RuntimeException e) {
+                evento.error = "línea " + numeroLinea + ": " + e.getMessage();
+            }
+        }
+        if (evento != null) error(evento.lineaInicio, "VEVENT sin END:VEVENT");
+    }
+
+    // Quita los escapes de un valor de texto (RFC 5545: \\ \; \, \n)
+    private static String textoICal(String valor) {
+        StringBuilder sb = new StringBuilder(valor.length());
+        for (int i = 0; i < valor.length(); i++) {
+            char c = valor.charAt(i);
+            if (c == '\\' && i + 1 < valor.length()) {
+                char siguiente = valor.charAt(++i);
+                sb.append(siguiente == 'n' || siguiente == 'N' ? ' ' : siguiente);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // Valor de un parámetro de la propiedad ("DTSTART;TZID=Europe/Madrid"), o null si no está
+    private static String parametro(String cabecera, String nombre) {
+        String[] partes = cabecera.split(";");
+        for (int i = 1; i < partes.length; i++) {
+            int igual = partes[i].indexOf('=');
+            if (igual > 0 && partes[i].substring(0, igual).trim().equalsIgnoreCase(nombre)) {
+                return partes[i].substring(igual + 1).replace("\"", "").trim();
+            }
+        }
+        return null;
+    }
+
+    private static ZoneId zonaICal(String tzid) {
+        try {
+            return ZoneId.of(tzid.startsWith("/") ? tzid.substring(1) : tzid);
+        } catch (DateTimeException e) {
+            throw new IllegalArgumentException("zona desconocida en TZID: " + tzid, e);
+        }
+    }
+
+    /**
+     * TRIGGER de un VALARM: una duración relativa al inicio del evento (-PT15M = 15
+     * minutos antes). Sin DTEND no hay "final", y una hora absoluta no se repite.
+     */
+    private static Duration parsearAviso(String cabecera, String valor) {
+        String tipo = parametro(cabecera, "VALUE");
+        if (tipo != null && tipo.equalsIgnoreCase("DATE-TIME")) {
+            throw new IllegalArgumentException("TRIGGER con fecha y hora fija no soportado: " + valor);
+        }
+        String relativo = parametro(cabecera, "RELATED");
+        if (relativo != null && !relativo.equalsIgnoreCase("START")) {
+            throw new IllegalArgumentException("TRIGGER relativo al final del evento no soportado");
+        }
+        String texto = valor.toUpperCase(Locale.ROOT);
+        Matcher semanas = SEMANAS_ICAL.matcher(texto);
+        try {
+            if (semanas.matches()) {
+                Duration d = Duration.ofDays(7L * Integer.parseInt(semanas.group(2)));
+                return semanas.group(1).equals("-") ? d.negated() : d;
+            }
+            return Duration.parse(texto);
+        } catch (DateTimeParseException | ArithmeticException | NumberFormatException e) {
+            throw new IllegalArgumentException("TRIGGER inválido: " + valor, e);
+        }
+    }
+
+    private static LocalDateTime parsearFechaHoraICal(String valor) {
+        // 20261019T073000 (la zona ya se quitó) o 20261019 (día completo)
+        int t = valor.indexOf('T');
+        if (t < 0) throw new IllegalArgumentException("DTSTART sin hora: " + valor);
+        String hhmm = valor.substring(t + 1);
+        if (hhmm.length() < 4) throw new IllegalArgumentException("hora inválida: " + valor);
+        LocalDate fecha = LocalDate.parse(valor.substring(0, t), DateTimeFormatter.BASIC_ISO_DATE);
+        return fecha.atTime(Integer.parseInt(hhmm.substring(0, 2)), Integer.parseInt(hhmm.substring(2, 4)));
+    }
+}
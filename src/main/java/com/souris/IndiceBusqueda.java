@@ -0,0 +1,190 @@
+package com.souris;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * ÍNDICE DE BÚSQUEDA
+ * Para una instantánea del {@link RegistroAlarmas}, agrupa las alarmas por minuto
+ * del día (1440 cubetas) y por día de la semana, sobre las posiciones de la lista.
+ *
+ * Cada minuto es un arreglo con las posiciones que suenan a esa hora, así que un
+ * rango de horas solo toca las alarmas que entran. Los días son un bitset por día,
+ * y se combinan con los de {@link IndiceEtiquetas}.
+ *
+ * Es inmutable; los métodos públicos devuelven bitsets nuevos. Para una versión
+ * nueva del registro se deriva del índice anterior ({@link #conCambios}): solo se
+ * copian los minutos y días que cambiaron, el resto se comparte.
+ */
+public class IndiceBusqueda {
+
+    public static final int MINUTOS_DIA = 24 * 60;
+
+    private static final int[] SIN_POSICIONES = new int[0];
+
+    private final int tamano;
+    private final int[][] porMinuto;   // porMinuto[m] = posiciones con hora en el minuto m
+    private final BitSet[] porDia;     // 0 = Domingo ... 6 = Sábado (días en que puede sonar)
+    private final BitSet unaVez;
+
+    private IndiceBusqueda(int tamano, int[][] porMinuto, BitSet[] porDia, BitSet unaVez) {
+        this.tamano = tamano;
+        this.porMinuto = porMinuto;
+        this.porDia = porDia;
+        this.unaVez = unaVez;
+    }
+
+    public static IndiceBusqueda construir(List<Alarma> alarmas) {
+        int n = alarmas.size();
+        int[] minutos = new int[n];
+        int[] cuantas = new int[MINUTOS_DIA];
+        BitSet[] dias = new BitSet[8]; // Los 7 días y, al final, las de una vez
+        for (int d = 0; d < 8; d++) dias[d] = new BitSet(d < 7 ? n : 0);
+
+        for (int i = 0; i < n; i++) {
+            Alarma a = alarmas.get(i);
+            minutos[i] = minutoDe(a);
+            cuantas[minutos[i]]++;
+            marcarDias(mascaraDias(a), i, dias, null, true);
+        }
+
+        // Reparto por conteo: cada cubeta se reserva una vez con su tamaño exacto
+        int[][] porMinuto = new int[MINUTOS_DIA][];
+        for (int m = 0; m < MINUTOS_DIA; m++) porMinuto[m] = cuantas[m] == 0 ? SIN_POSICIONES : new int[cuantas[m]];
+        int[] llenas = new int[MINUTOS_DIA];
+        for (int i = 0; i < n; i++) porMinuto[minutos[i]][llenas[minutos[i]]++] = i;
+
+        return new IndiceBusqueda(n, porMinuto, Arrays.copyOf(dias, 7), dias[7]);
+    }
+
+    /**
+     * El índice de la versión "despues", sabiendo que respecto a "antes" solo cambiaron
+     * las posiciones indicadas y las añadidas al final (sin borrados). Cuesta lo que
+     * cambió: los minutos y días que no se tocan se comparten con este índice.
+     */
+    IndiceBusqueda conCambios(List<Alarma> antes, List<Alarma> despues, int[] cambiadas) {
+        int n = despues.size();
+        // Qué sale y qué entra en cada minuto
+        int[] salen = new int[MINUTOS_DIA];
+        int[] entran = new int[MINUTOS_DIA];
+        BitSet quitadas = new BitSet();
+        BitSet[] dias = Arrays.copyOf(porDia, 8);
+        dias[7] = unaVez;
+        boolean[] copiado = new boolean[8]; // Bitsets ya copiados (los demás se comparten)
+
+        int totalCambios = cambiadas.length + (n - tamano);
+        int[] posicion = new int[totalCambios];
+        int[] minutoNuevo = new int[totalCambios];
+        int k = 0;
+        for (int i : cambiadas) {
+            Alarma a = antes.get(i), b = despues.get(i);
+            int ma = minutoDe(a), mb = minutoDe(b);
+            if (ma != mb) {
+                salen[ma]++;
+                quitadas.set(i);
+                entran[mb]++;
+                posicion[k] = i;
+                minutoNuevo[k++] = mb;
+            }
+            int da = mascaraDias(a), db = mascaraDias(b);
+            if (da != db) {
+                marcarDias(da, i, dias, copiado, false);
+                marcarDias(db, i, dias, copiado, true);
+            }
+        }
+        for (int i = tamano; i < n; i++) {
+            Alarma b = despues.get(i);
+            int mb = minutoDe(b);
+            entran[mb]++;
+            posicion[k] = i;
+            minutoNuevo[k++] = mb;
+            marcarDias(mascaraDias(b), i, dias, copiado, true);
+        }
+        boolean igual = k == 0 && n == tamano;
+        for (boolean c : copiado) igual &= !c;
+        if (igual) return this; // Ni horas ni días cambiaron (p. ej. solo se encendió o apagó)
+
+        // Solo se copian las cubetas de los minutos tocados
+        int[][] minutos = porMinuto.clone();
+        int[] llenas = new int[MINUTOS_DIA];
+        for (int m = 0; m < MINUTOS_DIA; m++) {
+            if (salen[m] == 0 && entran[m] == 0) continue;
+            int[] viejas = porMinuto[m];
+            int[] nuevas = new int[viejas.length - salen[m] + entran[m]];
+            int j = 0;
+            for (int p : viejas) if (salen[m] == 0 || !quitadas.get(p)) nuevas[j++] = p;
+            minutos[m] = nuevas;
+            llenas[m] = j;
+        }
+        for (int c = 0; c < k; c++) minutos[minutoNuevo[c]][llenas[minutoNuevo[c]]++] = posicion[c];
+
+        return new IndiceBusqueda(n, minutos, Arrays.copyOf(dias, 7), dias[7]);
+    }
+
+    private static int minutoDe(Alarma a) {
+        return a.getHora().getHour() * 60 + a.getHora().getMinute();
+    }
+
+    /**
+     * Máscara de días en que puede sonar (bit d = día d), o -1 si es de una sola vez:
+     * esas no tienen día de la semana. {@link FiltroAlarmas} usa la misma.
+     */
+    static int mascaraDias(Alarma a) {
+        ReglaRecurrencia r = a.getReglaEfectiva();
+        return r == null ? -1 : r.diasSemanaPosibles();
+    }
+
+    /**
+     * Pone o quita el bit i en los días de la máscara (o en dias[7] si es de una vez).
+     * Con "copiado", cada bitset se copia la primera vez que se toca y el resto se comparte.
+     */
+    private static void marcarDias(int mascara, int i, BitSet[] dias, boolean[] copiado, boolean valor) {
+        for (int d = 0; d < 8; d++) {
+            boolean toca = mascara < 0 ? d == 7 : d < 7 && (mascara & (1 << d)) != 0;
+            if (!toca) continue;
+            if (copiado != null && !copiado[d]) {
+                dias[d] = (BitSet) dias[d].clone();
+                copiado[d] = true;
+            }
+            dias[d].set(i, valor);
+        }
+    }
+
+    public int tamano() { return tamano; }
+
+    /**
+     * Alarmas con hora entre "desde" y "hasta" (minutos del día, ambos incluidos).
+     * Si desde > hasta el rango cruza la medianoche (22:00-02:00).
+     */
+    public BitSet entreMinutos(int desde, int hasta) {
+        BitSet resultado = new BitSet(tamano);
+        if (desde <= hasta) {
+            marcar(desde, hasta, resultado);
+        } else {
+            marcar(desde, MINUTOS_DIA - 1, resultado);
+            marcar(0, hasta, resultado);
+        }
+        return resultado;
+    }
+
+    private void marcar(int desde, int hasta, BitSet destino) {
+        for (int m = desde; m <= hasta; m++) {
+            for (int p : porMinuto[m]) destino.set(p);
+        }
+    }
+
+    /**
+     * Cuántas alarmas hay en cada minuto del día, sin recorrer las alarmas.
+     */
+    public int contarMinuto(int minuto) {
+        return porMinuto[minuto].length;
+    }
+
+    /**
+     * Alarmas que pueden sonar el día indicado (0 = Domingo ... 6 = Sábado).
+     */
+    public BitSet delDia(int dia) { return (BitSet) porDia[dia].clone(); }
+
+    public BitSet deUnaVez() { return (BitSet) unaVez.clone(); }
+}
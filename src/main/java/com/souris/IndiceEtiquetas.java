@@ -0,0 +1,174 @@
+package com.souris;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * ÍNDICE DE GRUPOS Y ETIQUETAS
+ * Para una instantánea del {@link RegistroAlarmas}, guarda un bitset por grupo y
+ * por etiqueta sobre las posiciones de la lista (bit i = alarma i), más el
+ * bitset de las alarmas encendidas. Así "encender todo el turno" se decide con
+ * operaciones sobre palabras de 64 bits, sin recorrer la lista.
+ *
+ * Es inmutable: los bitsets nunca se modifican después de construirse
+ * y los métodos públicos devuelven copias.
+ */
+public class IndiceEtiquetas {
+
+    private static final BitSet VACIO = new BitSet();
+
+    private final int tamano;
+    private final Map<String, BitSet> porGrupo;    // Por nombre normalizado (ver Alarma.normalizarGrupo), ordenados
+    private final NavigableMap<String, BitSet> porEtiqueta;
+    private final BitSet activas;
+
+    private IndiceEtiquetas(int tamano, Map<String, BitSet> porGrupo, NavigableMap<String, BitSet> porEtiqueta, BitSet activas) {
+        this.tamano = tamano;
+        this.porGrupo = porGrupo;
+        this.porEtiqueta = porEtiqueta;
+        this.activas = activas;
+    }
+
+    /**
+     * Recorre la lista una vez. Las alarmas sin grupo ni etiquetas solo cuestan un bit en "activas".
+     */
+    public static IndiceEtiquetas construir(List<Alarma> alarmas) {
+        Map<String, BitSet> porGrupo = new TreeMap<>();
+        NavigableMap<String, BitSet> porEtiqueta = new TreeMap<>();
+        BitSet activas = new BitSet(alarmas.size());
+        for (int i = 0; i < alarmas.size(); i++) {
+            Alarma a = alarmas.get(i);
+            if (a.isActiva()) activas.set(i);
+            if (a.getGrupo() != null) porGrupo.computeIfAbsent(Alarma.normalizarGrupo(a.getGrupo()), k -> new BitSet()).set(i);
+            for (String e : a.getEtiquetas()) porEtiqueta.computeIfAbsent(e, k -> new BitSet()).set(i);
+        }
+        return new IndiceEtiquetas(alarmas.size(), porGrupo, porEtiqueta, activas);
+    }
+
+    /**
+     * Mismo índice con otro conjunto de encendidas: grupos y etiquetas no cambian
+     * al encender o apagar, así que se comparten con el índice anterior.
+     */
+    IndiceEtiquetas conActivas(BitSet nuevasActivas) {
+        return new IndiceEtiquetas(tamano, porGrupo, porEtiqueta, nuevasActivas);
+    }
+
+    /**
+     * El índice de la versión "despues", sabiendo que respecto a "antes" solo cambiaron
+     * las posiciones indicadas y las añadidas al final (sin borrados). Solo se copian
+     * los bitsets de los grupos y etiquetas que cambian; el resto se comparte.
+     */
+    IndiceEtiquetas conCambios(List<Alarma> antes, List<Alarma> despues, int[] cambiadas) {
+        Derivado d = new Derivado(this);
+        for (int i : cambiadas) {
+            Alarma a = antes.get(i), b = despues.get(i);
+            if (a.isActiva() != b.isActiva()) d.activas().set(i, b.isActiva());
+            String ga = a.getGrupo() == null ? null : Alarma.normalizarGrupo(a.getGrupo());
+            String gb = b.getGrupo() == null ? null : Alarma.normalizarGrupo(b.getGrupo());
+            if (!Objects.equals(ga, gb)) {
+                if (ga != null) d.marcar(d.grupos(), ga, i, false);
+                if (gb != null) d.marcar(d.grupos(), gb, i, true);
+            }
+            if (!a.getEtiquetas().equals(b.getEtiquetas())) {
+                for (String e : a.getEtiquetas()) d.marcar(d.etiquetas(), e, i, false);
+                for (String e : b.getEtiquetas()) d.marcar(d.etiquetas(), e, i, true);
+            }
+        }
+        for (int i = tamano; i < despues.size(); i++) {
+            Alarma b = despues.get(i);
+            if (b.isActiva()) d.activas().set(i);
+            if (b.getGrupo() != null) d.marcar(d.grupos(), Alarma.normalizarGrupo(b.getGrupo()), i, true);
+            for (String e : b.getEtiquetas()) d.marcar(d.etiquetas(), e, i, true);
+        }
+        return new IndiceEtiquetas(despues.size(), d.porGrupo, d.porEtiqueta, d.activas);
+    }
+
+    // Copia perezosa de un índice: cada mapa o bitset se copia la primera vez que se toca
+    private static final class Derivado {
+        private final IndiceEtiquetas base;
+        private Map<String, BitSet> porGrupo;
+        private NavigableMap<String, BitSet> porEtiqueta;
+        private BitSet activas;
+        private final Set<BitSet> copiados = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        private Derivado(IndiceEtiquetas base) {
+            this.base = base;
+            this.porGrupo = base.porGrupo;
+            this.porEtiqueta = base.porEtiqueta;
+            this.activas = base.activas;
+        }
+
+        private BitSet activas() {
+            if (activas == base.activas) activas = (BitSet) activas.clone();
+            return activas;
+        }
+
+        private Map<String, BitSet> grupos() {
+            if (porGrupo == base.porGrupo) porGrupo = new TreeMap<>(porGrupo);
+            return porGrupo;
+        }
+
+        private Map<String, BitSet> etiquetas() {
+            if (porEtiqueta == base.porEtiqueta) porEtiqueta = new TreeMap<>(porEtiqueta);
+            return porEtiqueta;
+        }
+
+        private void marcar(Map<String, BitSet> mapa, String clave, int i, boolean valor) {
+            BitSet b = mapa.get(clave);
+            if (b == null) {
+                if (!valor) return;
+                b = new BitSet();
+                copiados.add(b);
+                mapa.put(clave, b);
+            } else if (!copiados.contains(b)) {
+                b = (BitSet) b.clone();
+                copiados.add(b);
+                mapa.put(clave, b);
+            }
+            b.set(i, valor);
+            if (b.isEmpty()) mapa.remove(clave); // Un grupo sin alarmas deja de existir
+        }
+    }
+
+    public int tamano() { return tamano; }
+
+    /**
+     * Los grupos en minúsculas, como las etiquetas: "Noche" y "noche" son uno solo.
+     */
+    public List<String> getGrupos() { return List.copyOf(porGrupo.keySet()); }
+    public List<String> getEtiquetas() { return List.copyOf(porEtiqueta.keySet()); }
+
+    public BitSet conGrupo(String grupo) {
+        return (BitSet) porGrupo.getOrDefault(Alarma.normalizarGrupo(grupo), VACIO).clone();
+    }
+
+    public BitSet conEtiqueta(String etiqueta) {
+        return (BitSet) porEtiqueta.getOrDefault(Alarma.normalizarEtiqueta(etiqueta), VACIO).clone();
+    }
+
+    /**
+     * Alarmas con alguna etiqueta o grupo que empiece por el texto (para buscar mientras se escribe).
+     * Las etiquetas están ordenadas: las que empiezan igual son un rango contiguo del mapa.
+     */
+    public BitSet conPrefijo(String prefijo) {
+        String p = Alarma.normalizarEtiqueta(prefijo);
+        BitSet resultado = new BitSet(tamano);
+        for (BitSet b : porEtiqueta.subMap(p, true, p + Character.MAX_VALUE, false).values()) resultado.or(b);
+        for (Map.Entry<String, BitSet> g : porGrupo.entrySet()) {
+            if (g.getKey().startsWith(p)) resultado.or(g.getValue());
+        }
+        return resultado;
+    }
+
+    public BitSet getActivas() { return (BitSet) activas.clone(); }
+
+    public int contarGrupo(String grupo) { return porGrupo.getOrDefault(Alarma.normalizarGrupo(grupo), VACIO).cardinality(); }
+    public int contarEtiqueta(String etiqueta) { return porEtiqueta.getOrDefault(Alarma.normalizarEtiqueta(etiqueta), VACIO).cardinality(); }
+}
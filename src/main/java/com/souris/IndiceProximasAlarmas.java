@@ -0,0 +1,279 @@
+package com.souris;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * ÍNDICE DE PRÓXIMAS ALARMAS
+ * Guarda, ordenado, el próximo disparo de cada alarma encendida como un instante
+ * real (con zona horaria y reglas de cambio de hora explícitas).
+ *
+ * Las entradas se ordenan por su hora local "efectiva" (la hora de la alarma,
+ * o la desplazada si cae en el hueco del cambio de hora), y ese orden coincide con
+ * el de los instantes. Ese orden casi no depende de la zona, así que ni un cambio
+ * de políticas ni uno de zona recalculan todo: solo las entradas cercanas a un
+ * cambio de hora y, al cambiar de zona, las que la hora local nueva deja atrás o
+ * por delante (ver {@link #cambiarZona}).
+ *
+ * No es seguro entre hilos: lo usa solo el hilo del {@link PlanificadorAlarmas}.
+ * La excepción es {@link #getProximoDisparo()}, que se puede leer desde cualquier hilo.
+ */
+public class IndiceProximasAlarmas {
+
+    /** Qué hacer con una alarma que cae en la hora que no existe (se adelanta el reloj). */
+    public enum Hueco {
+        DESPLAZAR, // Suena tras el salto (02:30 pasa a 03:30)
+        OMITIR     // Ese día no suena
+    }
+
+    /** Qué hacer con una alarma que cae en la hora que se repite (se atrasa el reloj). */
+    public enum Solapamiento {
+        PRIMERA,   // Suena la primera vez que el reloj pasa por esa hora
+        SEGUNDA    // Suena la segunda vez
+    }
+
+    /**
+     * Próximo disparo de una alarma dentro del índice.
+     */
+    public static final class Entrada {
+        private final String id;
+        private final Alarma alarma;
+        private final LocalDateTime desde;   // Desde dónde se calculó (para poder recalcular)
+        private final LocalDateTime nominal; // Según la regla de la alarma (sin zona)
+        private final LocalDateTime clave;   // Hora local efectiva en la zona actual
+        private final boolean conOmision;    // Se saltó algún día por caer en un hueco
+
+        private Entrada(String id, Alarma alarma, LocalDateTime desde, LocalDateTime nominal,
+                        LocalDateTime clave, boolean conOmision) {
+            this.id = id;
+            this.alarma = alarma;
+            this.desde = desde;
+            this.nominal = nominal;
+            this.clave = clave;
+            this.conOmision = conOmision;
+        }
+
+        public Alarma getAlarma() { return alarma; }
+        public LocalDateTime getNominal() { return nominal; }
+    }
+
+    private static final Comparator<Entrada> ORDEN =
+            Comparator.comparing((Entrada e) -> e.clave).thenComparing(e -> e.id);
+    private static final Comparator<Entrada> POR_DESDE =
+            Comparator.comparing((Entrada e) -> e.desde).thenComparing(e -> e.id);
+
+    private final NavigableSet<Entrada> ordenadas = new TreeSet<>(ORDEN);
+    private final NavigableSet<Entrada> porDesde = new TreeSet<>(POR_DESDE); // Para cambiarZona
+    private final Map<String, Entrada> porId = new HashMap<>();
+    private final Set<String> conOmision = new HashSet<>(); // Ids a revisar si cambia la zona
+
+    private ZoneId zona;
+    private Hueco hueco;
+    private Solapamiento solapamiento;
+
+    // Último "primer disparo" publicado: lectura O(1) desde la UI
+    private volatile Instant proximoDisparo;
+
+    public IndiceProximasAlarmas(ZoneId zona, Hueco hueco, Solapamiento solapamiento) {
+        this.zona = zona;
+        this.hueco = hueco;
+        this.solapamiento = solapamiento;
+    }
+
+    public ZoneId getZona() { return zona; }
+    public Instant getProximoDisparo() { return proximoDisparo; }
+    public int tamano() { return ordenadas.size(); }
+
+    // =========================================================================
+    //                        ALTAS, BAJAS Y CONSULTAS
+    // =========================================================================
+
+    /**
+     * Calcula (o recalcula) el próximo disparo de la alarma posterior a "desde".
+     * Las alarmas apagadas o sin más fechas salen del índice.
+     */
+    public void actualizar(Alarma alarma, LocalDateTime desde) {
+        quitar(alarma.getId());
+        Entrada e = calcular(alarma, desde);
+        if (e != null) poner(e);
+        publicar();
+    }
+
+    public void eliminar(String id) {
+        quitar(id);
+        publicar();
+    }
+
+    public Entrada primera() {
+        return ordenadas.isEmpty() ? null : ordenadas.first();
+    }
+
+    public Entrada buscar(String id) { return porId.get(id); }
+
+    /**
+     * Instante real de una entrada, aplicando la política de solapamiento.
+     */
+    public Instant instante(Entrada e) {
+        List<ZoneOffset> offsets = zona.getRules().getValidOffsets(e.clave);
+        ZoneOffset offset;
+        if (offsets.isEmpty()) {
+            offset = zona.getRules().getOffset(e.clave); // No debería pasar: la clave ya está desplazada
+        } else if (offsets.size() == 1 || solapamiento == Solapamiento.PRIMERA) {
+            offset = offsets.get(0);
+        } else {
+            offset = offsets.get(1);
+        }
+        return e.clave.toInstant(offset);
+    }
+
+    /**
+     * Los N próximos disparos, en orden.
+     */
+    public List<Entrada> proximas(int n) {
+        List<Entrada> resultado = new ArrayList<>(Math.min(n, ordenadas.size()));
+        for (Entrada e : ordenadas) {
+            if (resultado.size() >= n) break;
+            resultado.add(e);
+        }
+        return resultado;
+    }
+
+    // =========================================================================
+    //                        ZONA HORARIA Y POLÍTICAS
+    // =========================================================================
+
+    /**
+     * Cambia la zona horaria. "ahora" es la hora local en la zona nueva, y solo se
+     * recalculan desde ella las entradas a las que el cambio afecta:
+     * - las que ya quedaron atrás (clave hasta "ahora"): al viajar al este, las horas
+     *   que el reloj se saltó no suenan con retraso;
+     * - las calculadas desde un punto posterior a "ahora": al viajar al oeste, lo que
+     *   ya sonó hoy vuelve a quedar por delante y suena a su hora local;
+     * - las que se saltaron un día por un hueco y las cercanas a un cambio de hora de
+     *   la zona vieja o de la nueva.
+     * Las demás siguen valiendo: su próximo disparo es el primero después de "ahora".
+     */
+    public void cambiarZona(ZoneId nueva, LocalDateTime ahora) {
+        if (nueva.equals(zona)) return;
+        ZoneId anterior = zona;
+        zona = nueva;
+        if (ordenadas.isEmpty()) return;
+
+        Set<Entrada> afectadas = new HashSet<>(ordenadas.headSet(limite(ahora), true));
+        afectadas.addAll(porDesde.tailSet(new Entrada("\uffff", null, ahora, null, null, false), false));
+        for (String id : conOmision) afectadas.add(porId.get(id));
+        LocalDateTime min = ordenadas.first().clave.minusDays(1);
+        LocalDateTime max = ordenadas.last().clave.plusDays(1);
+        recogerCercanas(anterior.getRules(), min, max, afectadas);
+        recogerCercanas(nueva.getRules(), min, max, afectadas);
+
+        for (Entrada e : afectadas) {
+            if (e == null) continue;
+            quitar(e.id);
+            Entrada recalculada = calcular(e.alarma, ahora);
+            if (recalculada != null) poner(recalculada);
+        }
+        publicar();
+    }
+
+    /**
+     * Cambia las políticas de cambio de hora. Solo afecta a las entradas cerca de
+     * un cambio de hora de la zona actual.
+     */
+    public void cambiarPoliticas(Hueco nuevoHueco, Solapamiento nuevoSolapamiento) {
+        hueco = nuevoHueco;
+        solapamiento = nuevoSolapamiento;
+        if (ordenadas.isEmpty()) return;
+
+        Set<Entrada> afectadas = new HashSet<>();
+        for (String id : conOmision) afectadas.add(porId.get(id));
+        recogerCercanas(zona.getRules(), ordenadas.first().clave.minusDays(1), ordenadas.last().clave.plusDays(1), afectadas);
+        recalcular(afectadas);
+    }
+
+    // Añade las entradas que están a menos de un salto de un cambio de hora
+    private void recogerCercanas(ZoneRules reglas, LocalDateTime min, LocalDateTime max, Set<Entrada> destino) {
+        Instant cursor = min.toInstant(ZoneOffset.UTC).minusSeconds(86_400);
+        Instant fin = max.toInstant(ZoneOffset.UTC).plusSeconds(86_400);
+        ZoneOffsetTransition t;
+        while ((t = reglas.nextTransition(cursor)) != null && t.getInstant().isBefore(fin)) {
+            // Ventana en hora local que cubre el hueco o la hora repetida
+            LocalDateTime desde = t.getDateTimeBefore().isBefore(t.getDateTimeAfter()) ? t.getDateTimeBefore() : t.getDateTimeAfter();
+            // (el doble del salto: una hora desplazada puede quedar justo después del hueco)
+            LocalDateTime hasta = desde.plus(t.getDuration().abs().multipliedBy(2)).plusSeconds(1);
+            destino.addAll(ordenadas.subSet(new Entrada("", null, null, null, desde, false), true, limite(hasta), true));
+            cursor = t.getInstant();
+        }
+    }
+
+    // Una entrada ficticia que va detrás de todas las de esa clave
+    private static Entrada limite(LocalDateTime clave) {
+        return new Entrada("\uffff", null, null, null, clave, false);
+    }
+
+    private void recalcular(Set<Entrada> afectadas) {
+        for (Entrada e : afectadas) {
+            if (e == null) continue;
+            // Desde el mismo punto que la primera vez: un día omitido puede dejar de estarlo
+            actualizar(e.alarma, e.desde);
+        }
+        publicar();
+    }
+
+    // =========================================================================
+    //                        CÁLCULO DE UNA ENTRADA
+    // =========================================================================
+    private Entrada calcular(Alarma alarma, LocalDateTime desde) {
+        if (!alarma.isActiva()) return null;
+        ZoneRules reglas = zona.getRules();
+        boolean omitida = false;
+
+        LocalDateTime nominal = alarma.proximaOcurrencia(desde);
+        while (nominal != null) {
+            if (!reglas.getValidOffsets(nominal).isEmpty()) return new Entrada(alarma.getId(), alarma, desde, nominal, nominal, omitida);
+
+            // Cae en el hueco del cambio de hora
+            if (hueco == Hueco.DESPLAZAR) {
+                LocalDateTime desplazada = ZonedDateTime.ofLocal(nominal, zona, null).toLocalDateTime();
+                return new Entrada(alarma.getId(), alarma, desde, nominal, desplazada, omitida);
+            }
+            omitida = true;
+            nominal = alarma.proximaOcurrencia(nominal);
+        }
+        return null;
+    }
+
+    private void poner(Entrada e) {
+        ordenadas.add(e);
+        porDesde.add(e);
+        porId.put(e.id, e);
+        if (e.conOmision) conOmision.add(e.id);
+    }
+
+    private void quitar(String id) {
+        Entrada e = porId.remove(id);
+        if (e == null) return;
+        ordenadas.remove(e);
+        porDesde.remove(e);
+        conOmision.remove(id);
+    }
+
+    private void publicar() {
+        Entrada primera = primera();
+        proximoDisparo = primera == null ? null : instante(primera);
+    }
+}
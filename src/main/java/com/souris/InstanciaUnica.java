@@ -0,0 +1,110 @@
+package com.souris;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * INSTANCIA ÚNICA
+ * Un archivo de bloqueo por usuario decide qué proceso es "la" instancia: el
+ * primero que lo bloquea lo conserva mientras vive (el sistema lo libera aunque
+ * el proceso muera, así que nunca queda un bloqueo huérfano). Los siguientes
+ * procesos le reenvían sus órdenes por el {@link ServidorControl} y terminan.
+ *
+ * La instancia principal abre su servidor en cuanto se queda con el bloqueo
+ * ({@link #abrirServidor(Path)}), antes de arrancar JavaFX y de cargar nada: un
+ * segundo arranque nunca tiene que esperar a que termine la carga para entregar
+ * sus órdenes; quedan en cola hasta que la ventana puede ejecutarlas.
+ *
+ * Esta clase no toca JavaFX: el segundo arranque cuesta lo que una JVM mínima.
+ */
+public final class InstanciaUnica {
+
+    // Entre que la primera instancia toma el bloqueo y abre su servidor pasan milisegundos;
+    // se reintenta unos segundos por si ese arranque va lento
+    private static final int INTENTOS_REENVIO = 50;
+    private static final long ESPERA_REENVIO_MS = 100;
+
+    // Se guardan para que el bloqueo dure toda la vida del proceso
+    private static FileChannel canal;
+    private static FileLock bloqueo;
+    private static ServidorControl servidor;
+
+    private InstanciaUnica() { }
+
+    /**
+     * Junto al socket de control: un bloqueo por usuario en la carpeta temporal.
+     */
+    public static Path rutaBloqueoPorDefecto() {
+        Path socket = ServidorControl.rutaSocketPorDefecto();
+        return socket.resolveSibling(socket.getFileName().toString().replaceFirst("\\.sock$", "") + ".lock");
+    }
+
+    /**
+     * Intenta ser la instancia principal.
+     * @return true si este proceso se quedó con el bloqueo (o ya lo tenía)
+     */
+    public static synchronized boolean adquirir(Path rutaBloqueo) throws IOException {
+        if (bloqueo != null) return true;
+        FileChannel c = FileChannel.open(rutaBloqueo, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock b;
+        try {
+            b = c.tryLock();
+        } catch (OverlappingFileLockException e) {
+            b = null;
+        }
+        if (b == null) {
+            c.close();
+            return false;
+        }
+        canal = c;
+        bloqueo = b;
+        return true;
+    }
+
+    /**
+     * Abre el servidor de control de la instancia principal. Sus lotes esperan hasta que
+     * alguien lo recoja con {@link #tomarServidor()} y le dé los comandos.
+     */
+    public static synchronized void abrirServidor(Path rutaSocket) throws IOException {
+        if (servidor != null) return;
+        ServidorControl s = new ServidorControl(rutaSocket);
+        s.iniciar();
+        servidor = s;
+    }
+
+    /**
+     * El servidor abierto por {@link #abrirServidor(Path)}, o null si no se abrió
+     * (p. ej. la app se lanzó sin el {@link Launcher}).
+     */
+    public static synchronized ServidorControl tomarServidor() {
+        return servidor;
+    }
+
+    /**
+     * Envía las órdenes a la instancia principal y devuelve su respuesta.
+     * Si su servidor aún no escucha (acaba de tomar el bloqueo), reintenta durante unos segundos;
+     * si ya escucha pero aún está cargando, la respuesta llega cuando termina.
+     */
+    public static List<String> reenviar(Path rutaSocket, List<String> ordenes) throws IOException {
+        IOException ultimoError = null;
+        for (int i = 0; i < INTENTOS_REENVIO; i++) {
+            try {
+                return ClienteControl.enviar(rutaSocket, ordenes);
+            } catch (IOException e) {
+                ultimoError = e;
+            }
+            try {
+                Thread.sleep(ESPERA_REENVIO_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        throw new IOException("La instancia en marcha no responde en " + rutaSocket, ultimoError);
+    }
+}
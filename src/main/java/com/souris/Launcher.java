@@ -1,7 +1,93 @@
 package com.souris;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LANZADOR
+ * Punto de entrada del jar. Solo puede haber una instancia por usuario:
+ * - Si no hay otra en marcha, se queda con el bloqueo, abre el servidor de control
+ *   (las órdenes que lleguen esperan a que cargue) y arranca JavaFX.
+ * - Si ya hay una, le reenvía lo pedido en la línea de comandos y termina
+ *   sin cargar JavaFX (ver {@link InstanciaUnica}).
+ *
+ * Uso:
+ *   java -jar sourisalarm.jar                            abre o muestra la ventana
+ *   java -jar sourisalarm.jar alarmas.csv                importa el archivo (CSV o .ics)
+ *   java -jar sourisalarm.jar --agregar "07:30 0111110"  agrega una alarma (mismo formato que AGREGAR)
+ */
 public class Launcher {
+
     public static void main(String[] args) {
-        App.main(args);
+        List<String> ordenes;
+        try {
+            ordenes = ordenesDesdeArgumentos(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        boolean principal;
+        try {
+            principal = InstanciaUnica.adquirir(InstanciaUnica.rutaBloqueoPorDefecto());
+        } catch (IOException e) {
+            // Sin archivo de bloqueo no se puede saber: mejor arrancar que no hacerlo
+            e.printStackTrace();
+            principal = true;
+        }
+
+        if (principal) {
+            // El servidor escucha desde ya: un arranque posterior no espera a que cargue JavaFX
+            try {
+                InstanciaUnica.abrirServidor(ServidorControl.rutaSocketPorDefecto());
+            } catch (IOException e) {
+                // Sin API la app sigue funcionando; la ventana lo vuelve a intentar
+                e.printStackTrace();
+            }
+            App.main(args);
+        } else {
+            System.exit(reenviar(ordenes));
+        }
+    }
+
+    private static int reenviar(List<String> ordenes) {
+        try {
+            List<String> respuesta = InstanciaUnica.reenviar(ServidorControl.rutaSocketPorDefecto(), ordenes);
+            respuesta.forEach(System.out::println);
+            return respuesta.stream().anyMatch(r -> r.startsWith("ERR")) ? 1 : 0;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Traduce los argumentos a órdenes de {@link ComandosControl}.
+     * Siempre termina con MOSTRAR para traer la ventana al frente.
+     */
+    static List<String> ordenesDesdeArgumentos(String[] args) {
+        List<String> ordenes = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--agregar")) {
+                if (i + 1 >= args.length || args[i + 1].isBlank()) {
+                    throw new IllegalArgumentException("Uso: --agregar \"HH:mm [dias] [grupo=G] [etiquetas=a,b]\"");
+                }
+                ordenes.add("AGREGAR " + args[++i].trim());
+            } else if (arg.equals("--importar")) {
+                if (i + 1 >= args.length) throw new IllegalArgumentException("Uso: --importar archivo");
+                ordenes.add("IMPORTAR " + Paths.get(args[++i]).toAbsolutePath());
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Opción desconocida: " + arg);
+            } else {
+                // Un archivo suelto (p. ej. "Abrir con..."): importarlo
+                ordenes.add("IMPORTAR " + Paths.get(arg).toAbsolutePath());
+            }
+        }
+        ordenes.add("MOSTRAR");
+        return ordenes;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,445 @@
+package com.souris;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * PLANIFICADOR DE ALARMAS
+ * En lugar de revisar todas las alarmas cada segundo, mantiene un
+ * {@link IndiceProximasAlarmas} y duerme hasta el próximo disparo.
+ * Todo el trabajo ocurre en su propio hilo, así no compite con el hilo de JavaFX.
+ *
+ * Las alarmas pospuestas son temporizadores de un solo disparo: no cuestan nada
+ * hasta que suenan y se cancelan por id sin recorrer nada.
+ *
+ * El reloj se puede inyectar junto con su velocidad (ms de reloj por ms real),
+ * para simular semanas en segundos (ver la prueba de resistencia, en src/test).
+ *
+ * Además del registro principal puede vigilar otros (los perfiles cargados por
+ * {@link GestorPerfiles}): todas sus alarmas comparten el mismo índice y el mismo hilo.
+ */
+public class PlanificadorAlarmas {
+
+    // Se despierta al menos cada minuto para notar cambios de zona horaria o del reloj
+    private static final long REVISION_MAXIMA_MS = 60_000;
+    // Si el equipo estuvo suspendido, las alarmas con más retraso que esto no suenan
+    private static final Duration TOLERANCIA_RETRASO = Duration.ofMinutes(5);
+
+    /**
+     * Un disparo entregado a la interfaz. "posposicion" es 0 si suena a su hora,
+     * o cuántas veces se lleva pospuesta si es un disparo pospuesto.
+     */
+    public record Disparo(Alarma alarma, int posposicion) {}
+
+    /** Resultado de {@link #posponer}: "veces" es cuántas lleva si se pudo posponer. */
+    public record Posposicion(Estado estado, int veces) {
+        public enum Estado {
+            POSPUESTA,
+            MAXIMO_ALCANZADO, // Ya se pospuso las veces permitidas
+            DETENIDO          // El planificador no está en marcha
+        }
+    }
+
+    // Una alarma pospuesta pendiente de sonar
+    private record Pospuesta(ScheduledFuture<?> temporizador, Instant cuando, int veces) {}
+
+    private final RegistroAlarmas registro;
+    private final List<RegistroAlarmas> fuentes = new CopyOnWriteArrayList<>(); // El principal y los perfiles cargados
+    private final Consumer<Disparo> alDisparar; // Se invoca desde el hilo del planificador
+    private final Clock reloj;
+    private final double velocidad; // 1 = tiempo real
+    private final Consumer<RegistroAlarmas.Instantanea> oyente = inst -> programarSincronizacion();
+
+    private final IndiceProximasAlarmas indice = new IndiceProximasAlarmas(
+            ZoneId.systemDefault(), IndiceProximasAlarmas.Hueco.DESPLAZAR, IndiceProximasAlarmas.Solapamiento.PRIMERA);
+    // Las mismas políticas que el índice, legibles desde otros hilos (ver proximosDisparos)
+    private volatile IndiceProximasAlarmas.Hueco hueco = IndiceProximasAlarmas.Hueco.DESPLAZAR;
+    private volatile IndiceProximasAlarmas.Solapamiento solapamiento = IndiceProximasAlarmas.Solapamiento.PRIMERA;
+
+    // Última versión vista de cada alarma, y de qué registro viene si no es el principal
+    // (solo desde el hilo del planificador)
+    private Map<String, Alarma> conocidas = new HashMap<>();
+    private Map<String, RegistroAlarmas> origen = new HashMap<>();
+    // Versión de cada fuente que ya está en el índice (solo desde el hilo del planificador)
+    private Map<RegistroAlarmas, Long> vistas = new HashMap<>();
+    private final AtomicBoolean sincronizacionPendiente = new AtomicBoolean(false);
+
+    private ScheduledExecutorService hilo;
+    private ScheduledFuture<?> despertador;
+
+    // Posposiciones pendientes por id de alarma, y cuántas lleva cada alarma desde que sonó
+    private final Map<String, Pospuesta> pospuestas = new ConcurrentHashMap<>();
+    private final Map<String, Integer> vecesPospuesta = new ConcurrentHashMap<>();
+    // Alarmas de una sola vez que el planificador apagó al sonar: apagarlas así no
+    // cancela su posposición (solo desde el hilo del planificador)
+    private final Set<String> apagadasAlSonar = new HashSet<>();
+
+    public PlanificadorAlarmas(RegistroAlarmas registro, Consumer<Disparo> alDisparar) {
+        this(registro, alDisparar, Clock.systemUTC(), 1);
+    }
+
+    /**
+     * @param velocidad cuántos ms avanza "reloj" por cada ms real (1 si es el reloj del sistema)
+     */
+    public PlanificadorAlarmas(RegistroAlarmas registro, Consumer<Disparo> alDisparar, Clock reloj, double velocidad) {
+        if (velocidad <= 0) throw new IllegalArgumentException("La velocidad del reloj debe ser positiva");
+        this.registro = registro;
+        this.fuentes.add(registro);
+        this.alDisparar = alDisparar;
+        this.reloj = reloj;
+        this.velocidad = velocidad;
+    }
+
+    public synchronized void iniciar() {
+        if (hilo != null) return;
+        hilo = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "planificador-alarmas");
+            t.setDaemon(true);
+            return t;
+        });
+        for (RegistroAlarmas fuente : fuentes) fuente.suscribir(oyente);
+        // Una fuente añadida antes de iniciar dejó la marca sin hilo que la atendiera
+        sincronizacionPendiente.set(false);
+        programarSincronizacion();
+    }
+
+    public synchronized void detener() {
+        for (RegistroAlarmas fuente : fuentes) fuente.desuscribir(oyente);
+        if (hilo != null) hilo.shutdownNow();
+        hilo = null;
+        despertador = null;
+        pospuestas.clear();
+        vecesPospuesta.clear();
+        apagadasAlSonar.clear();
+        conocidas = new HashMap<>();
+        origen = new HashMap<>();
+        vistas = new HashMap<>();
+        sincronizacionPendiente.set(false);
+    }
+
+    /**
+     * Programa también las alarmas de otro registro (p. ej. un perfil que no es el activo).
+     */
+    public synchronized void agregarFuente(RegistroAlarmas fuente) {
+        if (fuentes.contains(fuente)) return;
+        fuentes.add(fuente);
+        if (hilo != null) fuente.suscribir(oyente);
+        programarSincronizacion();
+    }
+
+    /**
+     * Deja de programar las alarmas de ese registro (sus posposiciones se cancelan).
+     */
+    public synchronized void quitarFuente(RegistroAlarmas fuente) {
+        if (fuente == registro || !fuentes.remove(fuente)) return;
+        fuente.desuscribir(oyente);
+        programarSincronizacion();
+    }
+
+    /**
+     * Próximo disparo de cualquier alarma (pospuestas incluidas), o null si no hay.
+     * Se puede leer desde cualquier hilo.
+     */
+    public Instant getProximoDisparo() {
+        Instant proximo = indice.getProximoDisparo();
+        for (Pospuesta p : pospuestas.values()) {
+            if (proximo == null || p.cuando().isBefore(proximo)) proximo = p.cuando();
+        }
+        return proximo;
+    }
+
+    // =========================================================================
+    //                        POSPONER
+    // =========================================================================
+
+    /**
+     * Vuelve a hacer sonar la alarma dentro de "espera". Si mientras tanto se apaga
+     * o se borra, la posposición se cancela; si se edita, suena la versión actual.
+     */
+    public synchronized Posposicion posponer(Alarma alarma, Duration espera, int maximo) {
+        if (hilo == null) return new Posposicion(Posposicion.Estado.DETENIDO, 0);
+        String id = alarma.getId();
+        int veces = vecesPospuesta.getOrDefault(id, 0) + 1;
+        if (veces > maximo) return new Posposicion(Posposicion.Estado.MAXIMO_ALCANZADO, veces - 1);
+
+        cancelarPosposicion(id);
+        vecesPospuesta.put(id, veces);
+        ScheduledFuture<?> temporizador = programar(() -> {
+            // Solo suena si nadie la canceló ni la volvió a posponer mientras tanto
+            Pospuesta p = pospuestas.get(id);
+            if (p == null || p.veces() != veces) return;
+            pospuestas.remove(id);
+            // El registro puede ir por delante de la última sincronización: se mira la versión actual
+            Alarma actual = origen.getOrDefault(id, registro).instantanea().buscar(id);
+            if (actual == null || !(actual.isActiva() || apagadasAlSonar.contains(id))) return;
+            alDisparar.accept(new Disparo(actual, veces));
+        }, espera.toMillis());
+        pospuestas.put(id, new Pospuesta(temporizador, reloj.instant().plus(espera), veces));
+        return new Posposicion(Posposicion.Estado.POSPUESTA, veces);
+    }
+
+    /**
+     * Cancela la posposición pendiente de una alarma. O(1): el temporizador queda
+     * marcado y la cola lo descarta al llegar su hora.
+     * @return true si había una posposición pendiente
+     */
+    public boolean cancelarPosposicion(String id) {
+        Pospuesta p = pospuestas.remove(id);
+        if (p == null) return false;
+        p.temporizador().cancel(false);
+        return true;
+    }
+
+    /**
+     * Cancela todas las posposiciones pendientes.
+     * @return cuántas había
+     */
+    public int cancelarPosposiciones() {
+        int canceladas = 0;
+        for (String id : pospuestas.keySet()) {
+            if (cancelarPosposicion(id)) canceladas++;
+        }
+        return canceladas;
+    }
+
+    public int getPospuestasPendientes() { return pospuestas.size(); }
+
+    /**
+     * ¿Alguna alarma de ese registro está pospuesta y aún no volvió a sonar? Quien
+     * quite la fuente debe mirarlo antes: {@link #quitarFuente} las cancela.
+     * Se puede llamar desde cualquier hilo.
+     */
+    public boolean tienePospuestas(RegistroAlarmas fuente) {
+        if (pospuestas.isEmpty()) return false;
+        RegistroAlarmas.Instantanea inst = fuente.instantanea();
+        for (String id : pospuestas.keySet()) {
+            if (inst.buscar(id) != null) return true;
+        }
+        return false;
+    }
+
+    public int getVecesPospuesta(String id) { return vecesPospuesta.getOrDefault(id, 0); }
+
+    public void cambiarPoliticasDst(IndiceProximasAlarmas.Hueco hueco, IndiceProximasAlarmas.Solapamiento solapamiento) {
+        this.hueco = hueco;
+        this.solapamiento = solapamiento;
+        ejecutar(() -> {
+            indice.cambiarPoliticas(hueco, solapamiento);
+            reprogramar();
+        });
+    }
+
+    /**
+     * Los N próximos disparos de esas alarmas, calculados como los calcula el planificador
+     * (misma zona, mismas políticas de cambio de hora, mismo reloj). Se puede llamar
+     * desde cualquier hilo: usa un índice propio.
+     */
+    public List<ConsultaOcurrencias.Ocurrencia> proximosDisparos(List<Alarma> alarmas, int n) {
+        return proximosDisparos(alarmas, n, new IndiceProximasAlarmas(ZoneId.systemDefault(), hueco, solapamiento), reloj.instant());
+    }
+
+    /**
+     * Los N próximos disparos desde "ahora" según un índice vacío. "cuando" es la hora
+     * local a la que suena de verdad (p. ej. la desplazada tras el hueco del cambio de hora).
+     */
+    public static List<ConsultaOcurrencias.Ocurrencia> proximosDisparos(List<Alarma> alarmas, int n,
+                                                                        IndiceProximasAlarmas vacio, Instant ahora) {
+        ZoneId zona = vacio.getZona();
+        LocalDateTime desde = LocalDateTime.ofInstant(ahora, zona);
+        for (Alarma a : alarmas) vacio.actualizar(a, desde);
+        List<ConsultaOcurrencias.Ocurrencia> resultado = new ArrayList<>();
+        for (IndiceProximasAlarmas.Entrada e : vacio.proximas(n)) {
+            resultado.add(new ConsultaOcurrencias.Ocurrencia(LocalDateTime.ofInstant(vacio.instante(e), zona), e.getAlarma()));
+        }
+        return resultado;
+    }
+
+    // =========================================================================
+    //                        TRABAJO EN EL HILO DEL PLANIFICADOR
+    // =========================================================================
+    private synchronized void ejecutar(Runnable tarea) {
+        if (hilo == null) return;
+        hilo.execute(() -> {
+            try {
+                tarea.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    // Varios cambios seguidos del registro se sincronizan en una sola pasada
+    private void programarSincronizacion() {
+        if (!sincronizacionPendiente.compareAndSet(false, true)) return;
+        ejecutar(() -> {
+            sincronizacionPendiente.set(false);
+            sincronizar();
+            reprogramar();
+        });
+    }
+
+    /**
+     * Lleva al índice solo las alarmas que cambiaron desde la última vez. Cada fuente
+     * dice qué cambió desde la versión que ya se vio ({@link RegistroAlarmas.Instantanea#cambiosDesde}),
+     * así que un cambio cuesta lo que toca y no lo que hay. Solo se recorre todo si
+     * alguna no lo sabe (se reemplazó entera, p. ej. al cambiar de perfil, o se quedó
+     * muy atrás) o si se añadió o quitó una fuente.
+     */
+    private void sincronizar() {
+        LocalDateTime ahora = LocalDateTime.ofInstant(reloj.instant(), indice.getZona());
+        List<RegistroAlarmas> lista = List.copyOf(fuentes);
+        List<RegistroAlarmas.Instantanea> actuales = new ArrayList<>(lista.size());
+        List<RegistroAlarmas.Cambios> cambios = new ArrayList<>(lista.size());
+        boolean completa = vistas.size() != lista.size();
+        for (RegistroAlarmas fuente : lista) {
+            RegistroAlarmas.Instantanea inst = fuente.instantanea();
+            Long vista = vistas.get(fuente);
+            RegistroAlarmas.Cambios c = vista == null ? null : inst.cambiosDesde(vista);
+            if (c == null) completa = true;
+            actuales.add(inst);
+            cambios.add(c);
+        }
+
+        Map<RegistroAlarmas, Long> nuevasVistas = new HashMap<>();
+        for (int i = 0; i < lista.size(); i++) nuevasVistas.put(lista.get(i), actuales.get(i).getVersion());
+        vistas = nuevasVistas;
+        if (completa) {
+            sincronizarTodo(lista, actuales, ahora);
+            return;
+        }
+
+        // Primero lo que cambió en todas: una alarma que pasa de un perfil a otro no se borra
+        for (int i = 0; i < lista.size(); i++) {
+            RegistroAlarmas fuente = lista.get(i);
+            for (Alarma a : cambios.get(i).cambiadas()) {
+                if (fuente != registro) origen.put(a.getId(), fuente);
+                else origen.remove(a.getId());
+                conocer(a, conocidas.put(a.getId(), a), ahora);
+            }
+        }
+        for (int i = 0; i < lista.size(); i++) {
+            RegistroAlarmas fuente = lista.get(i);
+            for (String id : cambios.get(i).borradas()) {
+                if (!conocidas.containsKey(id) || origen.getOrDefault(id, registro) != fuente) continue;
+                conocidas.remove(id);
+                origen.remove(id);
+                olvidar(id);
+            }
+        }
+    }
+
+    // Recorre todas las alarmas de todas las fuentes
+    private void sincronizarTodo(List<RegistroAlarmas> lista, List<RegistroAlarmas.Instantanea> actuales, LocalDateTime ahora) {
+        Map<String, Alarma> nuevas = new HashMap<>(conocidas.size() * 2 + 16);
+        Map<String, RegistroAlarmas> nuevoOrigen = new HashMap<>();
+        for (int i = 0; i < actuales.size(); i++) {
+            RegistroAlarmas fuente = lista.get(i);
+            for (Alarma a : actuales.get(i).getAlarmas()) {
+                nuevas.put(a.getId(), a);
+                if (fuente != registro) nuevoOrigen.put(a.getId(), fuente);
+                conocer(a, conocidas.get(a.getId()), ahora);
+            }
+        }
+        for (String id : conocidas.keySet()) {
+            if (!nuevas.containsKey(id)) olvidar(id);
+        }
+        conocidas = nuevas;
+        origen = nuevoOrigen;
+    }
+
+    // Una alarma nueva o que cambió ("anterior" es la versión ya vista, o null)
+    private void conocer(Alarma a, Alarma anterior, LocalDateTime ahora) {
+        if (anterior == a) return;
+        indice.actualizar(a, ahora);
+        if (a.isActiva()) {
+            apagadasAlSonar.remove(a.getId());
+        } else if ((anterior == null || anterior.isActiva()) && !apagadasAlSonar.contains(a.getId())) {
+            // Apagada a mano: tampoco debe sonar por estar pospuesta
+            cancelarPosposicion(a.getId());
+            vecesPospuesta.remove(a.getId());
+        }
+    }
+
+    // Una alarma borrada
+    private void olvidar(String id) {
+        indice.eliminar(id);
+        // Una alarma borrada no debe volver a sonar por estar pospuesta
+        cancelarPosposicion(id);
+        vecesPospuesta.remove(id);
+        apagadasAlSonar.remove(id);
+    }
+
+    /**
+     * Dispara lo que ya venció, avanza esas alarmas a su siguiente ocurrencia
+     * y vuelve a dormir hasta el próximo disparo.
+     */
+    private void despertar() {
+        ZoneId zonaActual = ZoneId.systemDefault();
+        Instant ahora = reloj.instant();
+        if (!zonaActual.equals(indice.getZona())) indice.cambiarZona(zonaActual, LocalDateTime.ofInstant(ahora, zonaActual));
+
+        IndiceProximasAlarmas.Entrada e;
+        while ((e = indice.primera()) != null && !indice.instante(e).isAfter(ahora)) {
+            Alarma alarma = e.getAlarma();
+            boolean aTiempo = Duration.between(indice.instante(e), ahora).compareTo(TOLERANCIA_RETRASO) <= 0;
+
+            // Pasar a la siguiente ocurrencia: una hora repetida no vuelve a sonar
+            indice.actualizar(alarma, e.getNominal());
+
+            if (aTiempo) {
+                // Sonar a su hora reinicia la cuenta de posposiciones
+                vecesPospuesta.remove(alarma.getId());
+                alDisparar.accept(new Disparo(alarma, 0));
+                // Si era de "una sola vez", la apagamos después de sonar
+                if (alarma.esUnaSolaVez()) {
+                    apagadasAlSonar.add(alarma.getId());
+                    origen.getOrDefault(alarma.getId(), registro).cambiarEstado(alarma.getId(), false);
+                }
+            }
+        }
+        reprogramar();
+    }
+
+    private void reprogramar() {
+        if (despertador != null) despertador.cancel(false);
+        Instant proximo = indice.getProximoDisparo();
+        long espera = REVISION_MAXIMA_MS;
+        if (proximo != null) {
+            espera = Math.max(0, Math.min(espera, proximo.toEpochMilli() - reloj.millis()));
+        }
+        synchronized (this) {
+            if (hilo == null) return;
+            despertador = programar(() -> {
+                try {
+                    despertar();
+                } catch (RuntimeException ex) {
+                    // Una excepción no debe dejar al planificador dormido para siempre
+                    ex.printStackTrace();
+                    reprogramar();
+                }
+            }, espera);
+        }
+    }
+
+    // Las esperas se calculan en ms del reloj; el ejecutor duerme en ms reales
+    private ScheduledFuture<?> programar(Runnable tarea, long milisReloj) {
+        return hilo.schedule(tarea, (long) Math.ceil(milisReloj / velocidad), TimeUnit.MILLISECONDS);
+    }
+}
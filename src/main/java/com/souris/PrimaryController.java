@@ -1,12 +1,28 @@
 package com.souris;
 
 import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
 import javafx.application.Platform;
@@ -23,7 +39,6 @@ import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.*;
 import javafx.stage.Stage;
 import javafx.stage.StageStyle;
-import javafx.util.Duration;
 import javafx.util.StringConverter;
 import java.awt.Desktop;
 import java.net.URI;
@@ -52,30 +67,65 @@ public class PrimaryController {
     @FXML private HBox dayContainer;            // Contenedor de botones de días (L, M, M...)
     @FXML private ListView<Alarma> listViewAlarmas; // Lista visual de alarmas
     @FXML private Slider sliderVolumen;         // Control de volumen
+    @FXML private Label lblProximaAlarma;       // "Próxima alarma en X"
+    @FXML private TextField campoGrupo;         // Grupo de la alarma nueva (p. ej. el turno)
+    @FXML private TextField campoEtiquetas;     // Etiquetas de la alarma nueva, separadas por comas
+    @FXML private ComboBox<String> comboEtiquetas; // Grupo o etiqueta para encender/apagar en bloque
+    @FXML private TextField campoBusqueda;      // Barra de búsqueda sobre la lista
+    @FXML private Label lblResultados;          // "N de M" mientras hay una búsqueda
 
     // =========================================================================
     //                            VARIABLES DE ESTADO
     // =========================================================================
-    // Lista observable: Si la modificamos, la UI se actualiza sola
+    // Registro seguro entre hilos: aquí viven las alarmas de verdad
+    private final RegistroAlarmas registro = new RegistroAlarmas();
+
+    // Espejo para la UI: se actualiza por lotes desde el registro (solo en el hilo FX)
     private ObservableList<Alarma> listaAlarmas = FXCollections.observableArrayList();
+    private final AtomicBoolean espejoPendiente = new AtomicBoolean(false);
+    private static final int MAX_CELDAS_SUELTAS = 64; // Más cambios que esto: se reemplaza la lista entera
+
+    // Lo que hay escrito en la barra de búsqueda (vacía = mostrar todas)
+    private BusquedaAlarmas busquedaActual = BusquedaAlarmas.parsear("");
     
     // Historial de eventos (para saber cuándo sonaron las alarmas)
     private LinkedList<String> historialLog = new LinkedList<>();
+
+    // Cómo se muestran grupos y etiquetas en el selector de cambios en bloque
+    private static final String PREFIJO_GRUPO = "Grupo: ";
+    private static final String PREFIJO_ETIQUETA = "#";
     
     // Servicio de audio (maneja la reproducción de sonido)
     private AudioService audioService = new AudioService();
     
-    // El "corazón" del reloj (se ejecuta cada segundo)
-    private Timeline timeline;
+    // El "corazón" del reloj (duerme en su propio hilo hasta el próximo disparo)
+    private PlanificadorAlarmas planificador;
+
+    // Refresca el texto "Próxima alarma en X" (solo lee un valor ya calculado)
+    private Timeline timelineProxima;
+
+    // Pantalla de alerta: una sola, reutilizada en cada disparo, con todas las que suenan
+    private Stage pantallaAlarma;
+    private Label lblPantallaHora;
+    private Label lblPantallaFecha;
+    private Label lblPantallaAlarmas;
+    private Button btnPantallaPosponer;
+    private final Map<String, Alarma> alarmasEnPantalla = new LinkedHashMap<>(); // Por id, en orden de disparo
+
+    // Ventana de la línea de tiempo (se crea al abrirla por primera vez)
+    private Stage ventanaLineaTiempo;
+    private VistaLineaTiempo vistaLineaTiempo;
+
+    // API local para scripts (socket de dominio Unix)
+    private ServidorControl servidorControl;
+    private ComandosControl comandos;
+    // La pone App: mostrar y traer al frente la ventana principal (en el hilo FX)
+    private Runnable mostrarVentana = () -> { };
     
     // Array para controlar los 7 botones de los días
     private ToggleButton[] dayToggles = new ToggleButton[7];
     private final String[] dayLabels = {"D", "L", "M", "M", "J", "V", "S"};
     
-    // Variables para evitar que la alarma suene repetidamente en el mismo segundo
-    private Alarma ultimaAlarmaSonada = null;
-    private LocalDate diaUltimoSonido = null;
-    
     // Variables para mover la ventana sin bordes
     private double xOffset = 0;
     private double yOffset = 0;
@@ -86,9 +136,38 @@ public class PrimaryController {
     private boolean esOscuro = false;
     private String rutaFondoActual = null;
     private String rutaSonidoActual = null;
+    private IndiceProximasAlarmas.Hueco politicaHueco = IndiceProximasAlarmas.Hueco.DESPLAZAR;
+    private IndiceProximasAlarmas.Solapamiento politicaSolapamiento = IndiceProximasAlarmas.Solapamiento.PRIMERA;
+    private int minutosPosponer = AppState.MINUTOS_POSPONER;
+    private int maximoPosposiciones = AppState.MAXIMO_POSPOSICIONES;
+    // Mientras se restauran las preferencias no se guarda nada (se guardarían a medias)
+    private boolean cargandoConfiguracion = false;
+    // Mientras se cambia de perfil (en segundo plano) lo que haya que guardar espera a que termine
+    private boolean cambiandoPerfil = false;
+    private boolean guardadoAplazado = false;
 
-    // Archivo donde guardamos los datos
+    // Archivo donde guardamos los datos (el del perfil principal, con las preferencias)
     private static final String ARCHIVO_DATOS = "alarma_config.dat";
+    // Los demás perfiles, uno por archivo
+    private static final String CARPETA_PERFILES = "perfiles";
+    private GestorPerfiles gestorPerfiles;
+    // El archivo del perfil activo. Varios procesos pueden compartirlo: bloqueos, fusión y recarga al cambiar
+    private volatile ArchivoCompartido archivo;
+
+    // Un solo hilo para el archivo: cargar, guardar y cambiar de perfil van en orden y
+    // nunca en el hilo FX (un guardado espera al bloqueo de otros procesos y reescribe todo)
+    private final ExecutorService hiloArchivo = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "archivo-alarmas");
+        t.setDaemon(true);
+        return t;
+    });
+    // Lo que falta por guardar: varios guardados seguidos se escriben una sola vez
+    private final AtomicReference<AppState> guardadoPendiente = new AtomicReference<>();
+    // Marca "solo las alarmas" (importar, la API): las preferencias del archivo no cambian
+    private static final AppState SOLO_ALARMAS = new AppState();
+    // Se completa cuando el archivo terminó de cargarse: antes nada debe tocar el registro
+    private final CompletableFuture<Void> cargado = new CompletableFuture<>();
+    private static final long ESPERA_GUARDAR_AL_SALIR_S = 10;
 
     // =========================================================================
     //                            INICIALIZACIÓN
@@ -107,6 +186,9 @@ public class PrimaryController {
         setupList();          // Configurar la lista de alarmas
         
         iniciarReloj();       // ¡Arrancar el segundero!
+        gestorPerfiles = new GestorPerfiles(Paths.get(ARCHIVO_DATOS), Paths.get(CARPETA_PERFILES), registro,
+                planificador, GestorPerfiles.PRESUPUESTO_POR_DEFECTO);
+        archivo = ArchivoCompartido.abrir(gestorPerfiles.rutaDe(gestorPerfiles.getActivo()), registro);
         
         // Hacer que la imagen de fondo se estire con la ventana
         fondoImageView.fitWidthProperty().bind(rootStack.widthProperty());
@@ -115,8 +197,17 @@ public class PrimaryController {
         // Conectar el slider de volumen
         sliderVolumen.valueProperty().addListener((o, ov, nv) -> audioService.setVolumen(nv.doubleValue()));
         
-        // Cargar los datos guardados anteriormente
-        cargarConfiguracion();
+        // Cargar los datos guardados anteriormente, en segundo plano: mientras tanto
+        // la ventana no admite cambios (la carga los reemplazaría) y no se guarda nada
+        setupHoraActualEnSpinners();
+        cargandoConfiguracion = true;
+        rootStack.setDisable(true);
+        comandos = crearComandos();
+        iniciarServidorControl();
+        hiloArchivo.execute(this::cargarConfiguracion);
+
+        // Lo que quede en cola se escribe antes de salir (System.exit desde la bandeja o el menú)
+        Runtime.getRuntime().addShutdownHook(new Thread(this::terminarGuardados, "guardar-al-salir"));
     }
 
     private void setupIconoVentana() {
@@ -201,8 +292,12 @@ public class PrimaryController {
         }
         
         // Crear y añadir la alarma
-        Alarma nuevaAlarma = new Alarma(LocalTime.of(hora24, minutoSeleccionado), diasActivos);
-        listaAlarmas.add(nuevaAlarma);
+        Alarma nuevaAlarma = new Alarma(LocalTime.of(hora24, minutoSeleccionado), diasActivos)
+                .conGrupoYEtiquetas(campoGrupo.getText(), Arrays.asList(campoEtiquetas.getText().split(",")));
+        if (registro.agregarSiNoExiste(nuevaAlarma) == null) {
+            mostrarMensaje("Alarma duplicada", "Ya existe una alarma igual a las " + nuevaAlarma.getHora() + ".");
+            return;
+        }
         
         guardarConfiguracion(); // Guardar cambios en disco
     }
@@ -213,6 +308,13 @@ public class PrimaryController {
      */
     private void setupList() {
         listViewAlarmas.setItems(listaAlarmas);
+        registro.suscribir(inst -> programarEspejo());
+
+        // Los resultados se actualizan con cada tecla, usando los índices de la instantánea
+        campoBusqueda.textProperty().addListener((o, ov, nv) -> {
+            busquedaActual = BusquedaAlarmas.parsear(nv);
+            mostrarAlarmas(registro.instantanea());
+        });
         
         listViewAlarmas.setCellFactory(param -> new ListCell<Alarma>() {
             @Override protected void updateItem(Alarma item, boolean empty) {
@@ -241,6 +343,12 @@ public class PrimaryController {
                     lblDias.setStyle("-fx-font-family: '" + fuenteActual + "';");
                     
                     info.getChildren().addAll(lblHora, lblDias);
+                    String etiquetasStr = construirTextoEtiquetas(item);
+                    if (!etiquetasStr.isEmpty()) {
+                        Label lblEtiquetas = new Label(etiquetasStr);
+                        lblEtiquetas.getStyleClass().add("alarm-tags-text");
+                        info.getChildren().add(lblEtiquetas);
+                    }
                     
                     // Espaciador flexible
                     Region spacer = new Region();
@@ -250,8 +358,7 @@ public class PrimaryController {
                     Button btnToggle = new Button(item.isActiva() ? "ON" : "OFF");
                     btnToggle.getStyleClass().addAll("status-button", item.isActiva() ? "status-on" : "status-off"); 
                     btnToggle.setOnAction(e -> {
-                        item.setActiva(!item.isActiva());
-                        listViewAlarmas.refresh();
+                        registro.cambiarEstado(item.getId(), !item.isActiva());
                         guardarConfiguracion();
                     });
                     
@@ -259,7 +366,7 @@ public class PrimaryController {
                     Button btnDelete = new Button("✕");
                     btnDelete.getStyleClass().add("btn-delete"); 
                     btnDelete.setOnAction(e -> {
-                        listaAlarmas.remove(item);
+                        registro.eliminar(item.getId());
                         guardarConfiguracion();
                     });
                     
@@ -270,69 +377,258 @@ public class PrimaryController {
         });
     }
 
+    /**
+     * Copia la última instantánea del registro a la lista visual.
+     * Si llegan muchos cambios seguidos, se agrupan en una sola actualización.
+     */
+    private void programarEspejo() {
+        if (!espejoPendiente.compareAndSet(false, true)) return;
+        Platform.runLater(() -> {
+            espejoPendiente.set(false);
+            RegistroAlarmas.Instantanea inst = registro.instantanea();
+            mostrarAlarmas(inst);
+            actualizarSelectorEtiquetas(inst.getEtiquetas());
+            actualizarProximaAlarma();
+        });
+    }
+
+    // Aplica la búsqueda actual a la instantánea y la muestra en la lista
+    private void mostrarAlarmas(RegistroAlarmas.Instantanea inst) {
+        List<Alarma> visibles = busquedaActual.buscar(inst);
+        actualizarEspejo(visibles);
+        lblResultados.setText(busquedaActual.esVacia() ? "" : visibles.size() + " de " + inst.tamano());
+    }
+
+    /**
+     * Si solo cambiaron unas pocas alarmas en su sitio (encender, apagar, cambios
+     * de otro proceso), se reemplazan esas celdas; si no, la lista entera.
+     */
+    private void actualizarEspejo(List<Alarma> visibles) {
+        if (visibles.size() == listaAlarmas.size()) {
+            int distintas = 0;
+            for (int i = 0; i < visibles.size() && distintas <= MAX_CELDAS_SUELTAS; i++) {
+                if (visibles.get(i) != listaAlarmas.get(i)) distintas++;
+            }
+            if (distintas <= MAX_CELDAS_SUELTAS) {
+                for (int i = 0; i < visibles.size(); i++) {
+                    if (visibles.get(i) != listaAlarmas.get(i)) listaAlarmas.set(i, visibles.get(i));
+                }
+                return;
+            }
+        }
+        listaAlarmas.setAll(visibles);
+    }
+
+    // =========================================================================
+    //                        GRUPOS Y ETIQUETAS
+    // =========================================================================
+    private String construirTextoEtiquetas(Alarma a) {
+        StringBuilder sb = new StringBuilder();
+        if (a.getGrupo() != null) sb.append(a.getGrupo());
+        for (String e : a.getEtiquetas()) {
+            if (sb.length() > 0) sb.append("  ");
+            sb.append(PREFIJO_ETIQUETA).append(e);
+        }
+        return sb.toString();
+    }
+
+    // Solo se reemplazan las opciones si cambiaron, para no perder la selección
+    private void actualizarSelectorEtiquetas(IndiceEtiquetas indice) {
+        List<String> opciones = new ArrayList<>();
+        for (String g : indice.getGrupos()) opciones.add(PREFIJO_GRUPO + g);
+        for (String e : indice.getEtiquetas()) opciones.add(PREFIJO_ETIQUETA + e);
+        if (!opciones.equals(comboEtiquetas.getItems())) {
+            String seleccion = comboEtiquetas.getValue();
+            comboEtiquetas.getItems().setAll(opciones);
+            if (opciones.contains(seleccion)) comboEtiquetas.setValue(seleccion);
+        }
+    }
+
+    @FXML private void handleEncenderSeleccion() { cambiarEstadoSeleccion(true); }
+    @FXML private void handleApagarSeleccion() { cambiarEstadoSeleccion(false); }
+
+    /**
+     * Enciende o apaga de una vez todas las alarmas del grupo o etiqueta elegidos:
+     * una sola actualización del registro, de la lista y del archivo.
+     */
+    private void cambiarEstadoSeleccion(boolean activa) {
+        String seleccion = comboEtiquetas.getValue();
+        if (seleccion == null) return;
+        long antes = registro.instantanea().getVersion();
+        RegistroAlarmas.Instantanea despues = seleccion.startsWith(PREFIJO_GRUPO)
+                ? registro.cambiarEstadoGrupo(seleccion.substring(PREFIJO_GRUPO.length()), activa)
+                : registro.cambiarEstadoEtiqueta(seleccion.substring(PREFIJO_ETIQUETA.length()), activa);
+        if (despues.getVersion() != antes) guardarConfiguracion();
+    }
+
     // =========================================================================
     //                        EL CORAZÓN DEL RELOJ
     // =========================================================================
 
     /**
-     * Inicia el temporizador que revisa cada segundo si debe sonar una alarma.
+     * Inicia el planificador, que despierta justo a la hora del próximo disparo.
+     * El aviso visual y el sonido se lanzan siempre en el hilo de JavaFX.
      */
     private void iniciarReloj() {
-        timeline = new Timeline(new KeyFrame(Duration.seconds(1), e -> verificarAlarmas()));
-        timeline.setCycleCount(Timeline.INDEFINITE);
-        timeline.play();
+        planificador = new PlanificadorAlarmas(registro, disparo -> Platform.runLater(() -> dispararAlarma(disparo)));
+        planificador.iniciar();
+
+        timelineProxima = new Timeline(new KeyFrame(javafx.util.Duration.seconds(15), e -> actualizarProximaAlarma()));
+        timelineProxima.setCycleCount(Timeline.INDEFINITE);
+        timelineProxima.play();
     }
 
     /**
-     * Lógica crítica: Compara la hora actual con todas las alarmas activas.
+     * Muestra cuánto falta para la próxima alarma. Es O(1): el planificador
+     * ya tiene el dato calculado y ordenado, y los perfiles sin cargar tienen su resumen.
      */
-    private void verificarAlarmas() {
-        LocalTime ahora = LocalTime.now().truncatedTo(ChronoUnit.SECONDS);
-        LocalDate hoy = LocalDate.now();
-        int diaSemanaHoy = hoy.getDayOfWeek().getValue(); // 1=Lunes, 7=Domingo
-        
-        for (Alarma alarma : listaAlarmas) {
-            if (!alarma.isActiva()) continue; // Si está apagada, saltar
-            
-            // Si coincide la hora y el minuto
-            if (alarma.getHora().equals(ahora)) {
-                
-                // Verificar si toca sonar hoy (o si es de una sola vez)
-                boolean tocaSonar = alarma.esUnaSolaVez() || alarma.debeSonarHoy(diaSemanaHoy);
-                
-                if (tocaSonar) {
-                    // Evitar que suene muchas veces en el mismo segundo
-                    if (alarma != ultimaAlarmaSonada || !hoy.equals(diaUltimoSonido)) {
-                        dispararAlarma();
-                        
-                        ultimaAlarmaSonada = alarma;
-                        diaUltimoSonido = hoy;
-                        
-                        // Si era de "una sola vez", la apagamos después de sonar
-                        if (alarma.esUnaSolaVez()) {
-                            alarma.setActiva(false);
-                            listViewAlarmas.refresh();
-                        }
-                    }
-                }
-            }
+    private void actualizarProximaAlarma() {
+        Instant proximo = planificador.getProximoDisparo();
+        Instant deOtroPerfil = gestorPerfiles.getProximoDisparo();
+        if (proximo == null || (deOtroPerfil != null && deOtroPerfil.isBefore(proximo))) proximo = deOtroPerfil;
+        if (proximo == null) {
+            lblProximaAlarma.setText("Sin alarmas programadas");
+            return;
         }
+        long minutos = (long) Math.ceil(Duration.between(Instant.now(), proximo).toSeconds() / 60.0);
+        if (minutos < 1) lblProximaAlarma.setText("Próxima alarma en menos de un minuto");
+        else if (minutos < 60) lblProximaAlarma.setText("Próxima alarma en " + minutos + " min");
+        else if (minutos < 24 * 60) lblProximaAlarma.setText("Próxima alarma en " + (minutos / 60) + " h " + (minutos % 60) + " min");
+        else lblProximaAlarma.setText("Próxima alarma en " + (minutos / (24 * 60)) + " d " + (minutos % (24 * 60) / 60) + " h");
     }
 
-    private void dispararAlarma() {
+    private void dispararAlarma(PlanificadorAlarmas.Disparo disparo) {
         // Guardar en historial
-        historialLog.addFirst(LocalDate.now() + " " + LocalTime.now());
-        if (historialLog.size() > 10) historialLog.removeLast();
+        Alarma alarma = disparo.alarma();
+        if (disparo.posposicion() == 0) registrarEvento("Sonó la alarma de las " + alarma.getHora());
+        else registrarEvento("Volvió a sonar la alarma de las " + alarma.getHora() + " (pospuesta " + disparo.posposicion() + ")");
+        actualizarProximaAlarma();
         
         // Reproducir sonido y mostrar ventana
         audioService.reproducir();
-        mostrarPantallaAlarma();
+        mostrarPantallaAlarma(alarma);
+    }
+
+    private void registrarEvento(String texto) {
+        historialLog.addFirst(LocalDate.now() + " " + LocalTime.now().withNano(0) + "  " + texto);
+        if (historialLog.size() > 20) historialLog.removeLast();
+    }
+
+    /**
+     * Vuelve a hacer sonar la alarma dentro de "minutosPosponer" minutos.
+     */
+    private void posponerAlarma(Alarma alarma) {
+        PlanificadorAlarmas.Posposicion p = planificador.posponer(alarma, Duration.ofMinutes(minutosPosponer), maximoPosposiciones);
+        switch (p.estado()) {
+            case POSPUESTA:
+                registrarEvento("Pospuesta la alarma de las " + alarma.getHora() + " " + minutosPosponer + " min (" + p.veces() + "/" + maximoPosposiciones + ")");
+                break;
+            case MAXIMO_ALCANZADO:
+                registrarEvento("La alarma de las " + alarma.getHora() + " ya se pospuso " + p.veces() + " veces (máximo)");
+                break;
+            default:
+                return; // Cerrando la aplicación
+        }
+        actualizarProximaAlarma();
+    }
+
+    /**
+     * Cancela todas las alarmas pospuestas que aún no volvieron a sonar.
+     */
+    public void cancelarPosposiciones() {
+        int canceladas = planificador.cancelarPosposiciones();
+        if (canceladas > 0) registrarEvento("Canceladas " + canceladas + " alarmas pospuestas");
+        actualizarProximaAlarma();
+        mostrarMensaje("Posponer", canceladas > 0 ? "Alarmas pospuestas canceladas: " + canceladas : "No hay alarmas pospuestas.");
+    }
+
+    /**
+     * Las órdenes de la API local. Cada lote con cambios termina en un único guardado de
+     * las alarmas, que hace el hilo del archivo (ni el servidor ni el hilo FX esperan).
+     */
+    private ComandosControl crearComandos() {
+        return new ComandosControl(registro, this::guardarAlarmas, new ComandosControl.Interfaz() {
+            @Override
+            public void mostrar() { Platform.runLater(() -> mostrarVentana.run()); }
+
+            @Override
+            public void importar(File archivo) { importarAlarmas(archivo); }
+        }, planificador);
+    }
+
+    /**
+     * La API local. Normalmente ya la abrió el {@link Launcher} al quedarse con el bloqueo;
+     * si no, se abre aquí. Por ella llegan también las órdenes de un segundo arranque.
+     * Acepta lotes desde ya, pero no los ejecuta hasta que el archivo está cargado
+     * (ver {@link #cargarConfiguracion()}).
+     */
+    private void iniciarServidorControl() {
+        servidorControl = InstanciaUnica.tomarServidor();
+        if (servidorControl != null) return;
+        servidorControl = new ServidorControl(ServidorControl.rutaSocketPorDefecto());
+        try {
+            servidorControl.iniciar();
+        } catch (IOException e) {
+            // Sin API la app sigue funcionando desde la interfaz
+            e.printStackTrace();
+        }
+    }
+
+    public void setMostrarVentana(Runnable mostrarVentana) {
+        this.mostrarVentana = mostrarVentana;
+    }
+
+    /**
+     * Ejecuta órdenes de la línea de comandos del primer arranque, fuera del hilo FX
+     * y después de cargar el archivo.
+     */
+    public void ejecutarOrdenes(List<String> ordenes) {
+        Thread hilo = new Thread(() -> {
+            cargado.join();
+            for (String linea : comandos.ejecutar(ordenes)) {
+                if (linea.startsWith("ERR")) System.err.println(linea);
+            }
+        }, "ordenes-inicio");
+        hilo.setDaemon(true);
+        hilo.start();
     }
 
     // =========================================================================
     //                        PANTALLA DE ALERTA (FULLSCREEN)
     // =========================================================================
-    private void mostrarPantallaAlarma() {
+    /**
+     * La pantalla de alerta se crea la primera vez y después solo se actualiza:
+     * miles de disparos no dejan miles de ventanas (ni sus escenas) en memoria.
+     * Si otra alarma suena mientras está abierta, se suma a las que ya había:
+     * Detener las para todas y Posponer las pospone todas.
+     */
+    private void mostrarPantallaAlarma(Alarma alarma) {
+        if (pantallaAlarma == null) crearPantallaAlarma();
+        alarmasEnPantalla.put(alarma.getId(), alarma);
+
+        lblPantallaHora.setText(LocalTime.now().format(DateTimeFormatter.ofPattern("h:mm a")).toUpperCase());
+        lblPantallaFecha.setText(LocalDate.now().format(DateTimeFormatter.ofPattern("EEEE, d MMMM")).toUpperCase());
+        StringJoiner horas = new StringJoiner("  ·  ");
+        for (Alarma a : alarmasEnPantalla.values()) horas.add(a.getHora().toString());
+        lblPantallaAlarmas.setText(alarmasEnPantalla.size() + " ALARMAS:  " + horas);
+        lblPantallaAlarmas.setVisible(alarmasEnPantalla.size() > 1);
+        lblPantallaAlarmas.setManaged(alarmasEnPantalla.size() > 1);
+
+        // Posponer se oculta si ninguna se puede posponer más
+        btnPantallaPosponer.setText("POSPONER " + minutosPosponer + " MIN");
+        boolean puedePosponer = false;
+        for (Alarma a : alarmasEnPantalla.values()) {
+            puedePosponer |= planificador.getVecesPospuesta(a.getId()) < maximoPosposiciones;
+        }
+        btnPantallaPosponer.setVisible(puedePosponer);
+        btnPantallaPosponer.setManaged(puedePosponer);
+
+        pantallaAlarma.setFullScreen(true); // Al ocultarse sale de pantalla completa
+        pantallaAlarma.show();
+        pantallaAlarma.toFront();
+    }
+
+    private void crearPantallaAlarma() {
         Stage stage = new Stage();
         if (App.getIcono() != null) stage.getIcons().add(App.getIcono());
         
@@ -344,24 +640,38 @@ public class PrimaryController {
         top.setAlignment(Pos.CENTER);
         top.setPadding(new javafx.geometry.Insets(80,0,0,0));
         
-        Label lblHora = new Label(LocalTime.now().format(DateTimeFormatter.ofPattern("h:mm a")).toUpperCase());
-        lblHora.getStyleClass().add("alarm-screen-time");
+        lblPantallaHora = new Label();
+        lblPantallaHora.getStyleClass().add("alarm-screen-time");
         
-        Label lblFecha = new Label(LocalDate.now().format(DateTimeFormatter.ofPattern("EEEE, d MMMM")).toUpperCase());
-        lblFecha.getStyleClass().add("alarm-screen-date");
+        lblPantallaFecha = new Label();
+        lblPantallaFecha.getStyleClass().add("alarm-screen-date");
+
+        lblPantallaAlarmas = new Label();
+        lblPantallaAlarmas.getStyleClass().add("alarm-screen-date");
         
-        top.getChildren().addAll(lblHora, lblFecha);
+        top.getChildren().addAll(lblPantallaHora, lblPantallaFecha, lblPantallaAlarmas);
         layout.setTop(top);
         
         // Centro: Botón Detener Gigante
         Button btnStop = new Button("DETENER");
         btnStop.getStyleClass().add("stop-alarm-button");
         btnStop.setOnAction(e -> {
-            stage.close();
+            stage.hide();
+            audioService.detener();
+        });
+        
+        // Debajo: Posponer
+        btnPantallaPosponer = new Button();
+        btnPantallaPosponer.getStyleClass().add("snooze-alarm-button");
+        btnPantallaPosponer.setOnAction(e -> {
+            List<Alarma> sonando = new ArrayList<>(alarmasEnPantalla.values());
+            stage.hide();
             audioService.detener();
+            // Las que ya llegaron al máximo solo se registran (ver posponerAlarma)
+            for (Alarma a : sonando) posponerAlarma(a);
         });
         
-        VBox centerZone = new VBox(btnStop);
+        VBox centerZone = new VBox(30, btnStop, btnPantallaPosponer);
         centerZone.setAlignment(Pos.CENTER);
         layout.setCenter(centerZone);
         
@@ -370,45 +680,149 @@ public class PrimaryController {
         scene.getStylesheets().add(getClass().getResource("styles.css").toExternalForm());
         
         stage.initStyle(StageStyle.UNDECORATED);
-        stage.setFullScreen(true);
         stage.setScene(scene);
         stage.setAlwaysOnTop(true);
-        stage.show();
+        stage.setOnHidden(e -> alarmasEnPantalla.clear()); // La próxima vez empieza vacía
+        pantallaAlarma = stage;
     }
 
     // =========================================================================
     //                        PERSISTENCIA (GUARDAR/CARGAR)
     // =========================================================================
+    /**
+     * Guarda las preferencias de la ventana y las alarmas. Se toma el estado aquí (hilo FX)
+     * y lo escribe el hilo del archivo.
+     */
     public void guardarConfiguracion() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(ARCHIVO_DATOS))) {
-            AppState estado = new AppState();
-            estado.alarmasGuardadas = new ArrayList<>(listaAlarmas);
-            estado.modoOscuroActivado = esOscuro;
-            estado.nivelVolumen = sliderVolumen.getValue();
-            estado.rutaImagenFondo = rutaFondoActual;
-            estado.nombreFuente = fuenteActual;
-            estado.rutaSonido = rutaSonidoActual;
-            
-            oos.writeObject(estado);
+        if (cargandoConfiguracion) return;
+        if (cambiandoPerfil) {
+            guardadoAplazado = true;
+            return;
+        }
+        programarGuardado(estadoActual());
+    }
+
+    /**
+     * Guarda solo las alarmas. Se puede llamar desde cualquier hilo (importar, la API).
+     */
+    private void guardarAlarmas() {
+        programarGuardado(SOLO_ALARMAS);
+    }
+
+    /**
+     * Deja el estado para el hilo del archivo. Si ya había un guardado en cola, este lo
+     * reemplaza y se escribe una sola vez: las alarmas se toman del registro al escribir,
+     * así que el último estado lleva todo. Unas preferencias en cola no se pierden por
+     * un "solo alarmas" que llegue después.
+     */
+    private void programarGuardado(AppState estado) {
+        AppState anterior = guardadoPendiente.getAndUpdate(p -> estado == SOLO_ALARMAS && p != null ? p : estado);
+        if (anterior != null) return;
+        try {
+            hiloArchivo.execute(() -> guardarEstado(guardadoPendiente.getAndSet(null)));
+        } catch (RejectedExecutionException e) {
+            // Cerrando la aplicación: terminarGuardados ya escribió lo último
+        }
+    }
+
+    // Las preferencias tal como están en la ventana (hilo FX)
+    private AppState estadoActual() {
+        AppState estado = new AppState();
+        estado.modoOscuroActivado = esOscuro;
+        estado.nivelVolumen = sliderVolumen.getValue();
+        estado.rutaImagenFondo = rutaFondoActual;
+        estado.nombreFuente = fuenteActual;
+        estado.rutaSonido = rutaSonidoActual;
+        estado.politicaHueco = politicaHueco.name();
+        estado.politicaSolapamiento = politicaSolapamiento.name();
+        estado.minutosPosponer = minutosPosponer;
+        estado.maximoPosposiciones = maximoPosposiciones;
+        return estado;
+    }
+
+    // Hilo del archivo
+    private void guardarEstado(AppState estado) {
+        if (estado == null) return;
+        try {
+            // Las alarmas las toma del registro; lo que otros procesos cambiaron mientras tanto se incorpora aquí
+            if (estado == SOLO_ALARMAS) {
+                archivo.guardarAlarmas();
+            } else if (esPerfilPrincipal()) {
+                archivo.guardar(estado);
+            } else {
+                // Las preferencias son de la aplicación, no del perfil: siempre van al archivo principal
+                archivo.guardarAlarmas();
+                ArchivoCompartido.guardarPreferencias(gestorPerfiles.rutaDe(GestorPerfiles.PRINCIPAL), estado);
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Al salir: deja de aceptar trabajo y espera (un tiempo) a que se escriba lo que hay en cola.
+     */
+    private void terminarGuardados() {
+        hiloArchivo.shutdown();
+        try {
+            if (!hiloArchivo.awaitTermination(ESPERA_GUARDAR_AL_SALIR_S, TimeUnit.SECONDS)) {
+                System.err.println("No se terminó de guardar antes de salir");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Otro proceso escribió el archivo: se aplican solo las alarmas que cambiaron.
+     * Se llama desde el hilo que vigila el archivo.
+     */
+    private void recargarDesdeArchivo() {
+        try {
+            archivo.recargar();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Lee el archivo (hilo del archivo) y, ya con las alarmas en el registro, empieza a
+     * vigilarlo, pone en marcha los demás perfiles y atiende la API. Las preferencias se
+     * aplican después en el hilo FX.
+     */
     private void cargarConfiguracion() {
-        File f = new File(ARCHIVO_DATOS);
-        
-        // Si no hay archivo, ponemos la hora actual y salimos
-        if (!f.exists()) {
-            setupHoraActualEnSpinners();
-            return;
+        AppState estado = null;
+        try {
+            estado = archivo.cargar();
+            if (!esPerfilPrincipal()) estado = ArchivoCompartido.leerPreferencias(gestorPerfiles.rutaDe(GestorPerfiles.PRINCIPAL));
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
         }
-        
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(f))) {
-            AppState estado = (AppState) ois.readObject();
-            
-            // Restaurar datos
-            if (estado.alarmasGuardadas != null) listaAlarmas.setAll(estado.alarmasGuardadas);
+        archivo.vigilar(this::recargarDesdeArchivo);
+        gestorPerfiles.iniciar(); // Los demás perfiles: solo se cargan los que suenan pronto
+        cargado.complete(null);
+        servidorControl.atender(comandos); // Los lotes que esperaban se ejecutan ahora
+
+        AppState leido = estado;
+        Platform.runLater(() -> aplicarPreferencias(leido));
+    }
+
+    private void aplicarPreferencias(AppState estado) {
+        try {
+            // Si no hay archivo, se queda todo como está
+            if (estado == null) return;
+
+            // Restaurar datos (las alarmas ya están en el registro). Varios de estos
+            // métodos guardan al cambiar: siguen silenciados hasta tener todo restaurado
+            if (estado.politicaHueco != null && estado.politicaSolapamiento != null) {
+                politicaHueco = IndiceProximasAlarmas.Hueco.valueOf(estado.politicaHueco);
+                politicaSolapamiento = IndiceProximasAlarmas.Solapamiento.valueOf(estado.politicaSolapamiento);
+                planificador.cambiarPoliticasDst(politicaHueco, politicaSolapamiento);
+            }
+            // Archivos anteriores no traen estos campos (quedan en 0)
+            if (estado.minutosPosponer > 0) minutosPosponer = estado.minutosPosponer;
+            if (estado.maximoPosposiciones > 0) maximoPosposiciones = estado.maximoPosposiciones;
+
             if (estado.modoOscuroActivado) cambiarTema("Oscuro"); else cambiarTema("Claro");
             
             sliderVolumen.setValue(estado.nivelVolumen);
@@ -422,15 +836,120 @@ public class PrimaryController {
                 File sonidoFile = new File(estado.rutaSonido);
                 if (sonidoFile.exists()) setArchivoSonido(sonidoFile);
             }
-            
-            setupHoraActualEnSpinners();
-            
-        } catch (Exception e) {
+        } catch (RuntimeException e) {
             e.printStackTrace();
-            setupHoraActualEnSpinners();
+        } finally {
+            cargandoConfiguracion = false;
+            rootStack.setDisable(false);
         }
     }
 
+    private boolean esPerfilPrincipal() {
+        return gestorPerfiles.getActivo().equals(GestorPerfiles.PRINCIPAL);
+    }
+
+    // =========================================================================
+    //                        PERFILES
+    // =========================================================================
+    public List<GestorPerfiles.Resumen> getPerfiles() { return gestorPerfiles.getPerfiles(); }
+    public String getPerfilActivo() { return gestorPerfiles.getActivo(); }
+
+    /**
+     * Pasa a ver y editar otro perfil. El que se deja sigue sonando: si tiene
+     * alarmas pronto, el gestor lo mantiene cargado para el planificador.
+     */
+    public void cambiarPerfil(String nombre) {
+        cambiarPerfil(nombre, false);
+    }
+
+    /**
+     * Pide un nombre, crea el perfil vacío y pasa a él.
+     */
+    public void crearPerfil() {
+        TextInputDialog d = new TextInputDialog();
+        d.setTitle("Nuevo perfil");
+        d.setHeaderText("Un perfil es un juego de alarmas aparte (p. ej. otra sede u otra temporada)");
+        d.setContentText("Nombre:");
+        Stage stage = (Stage) d.getDialogPane().getScene().getWindow();
+        if (App.getIcono() != null) stage.getIcons().add(App.getIcono());
+        d.getDialogPane().getStylesheets().add(getClass().getResource("styles.css").toExternalForm());
+        if (esOscuro) d.getDialogPane().getStyleClass().add("dark-mode");
+
+        Optional<String> nombre = d.showAndWait();
+        if (nombre.isEmpty()) return;
+        cambiarPerfil(nombre.get().trim(), true);
+    }
+
+    /**
+     * Guarda, (crea) y cambia de perfil en el hilo del archivo: es E/S y el hilo FX no
+     * espera. Mientras tanto la ventana no admite cambios (se perderían al reemplazar el
+     * registro) y lo que haya que guardar espera a que termine.
+     */
+    private void cambiarPerfil(String nombre, boolean crear) {
+        if (cambiandoPerfil || nombre.equals(gestorPerfiles.getActivo())) return;
+        AppState estado = estadoActual();
+        cambiandoPerfil = true;
+        rootStack.setDisable(true);
+
+        hiloArchivo.execute(() -> {
+            String error = null;
+            try {
+                if (crear) gestorPerfiles.crear(nombre);
+            } catch (IOException | RuntimeException e) {
+                error = e.getMessage();
+            }
+            if (error == null) {
+                guardarEstado(estado);
+                try {
+                    gestorPerfiles.activar(nombre, () -> abrirArchivo(nombre));
+                } catch (IOException | RuntimeException e) {
+                    error = "No se pudo abrir el perfil " + nombre + ": " + e.getMessage();
+                }
+            }
+            String fallo = error;
+            Platform.runLater(() -> {
+                cambiandoPerfil = false;
+                rootStack.setDisable(false);
+                if (fallo == null) {
+                    registrarEvento("Perfil activo: " + nombre);
+                    actualizarProximaAlarma();
+                } else {
+                    mostrarMensaje(crear ? "Nuevo perfil" : "Perfiles", fallo);
+                }
+                if (guardadoAplazado) {
+                    guardadoAplazado = false;
+                    guardarConfiguracion();
+                }
+            });
+        });
+    }
+
+    /**
+     * Deja el archivo actual y abre el del nuevo perfil. El actual se cierra antes de
+     * que el registro cambie: nada puede guardar en él las alarmas del nuevo. Si el
+     * nuevo no se puede leer, se vuelve a abrir el actual.
+     */
+    private void abrirArchivo(String nombre) {
+        ArchivoCompartido nuevo = ArchivoCompartido.abrir(gestorPerfiles.rutaDe(nombre), registro);
+        Path rutaActual = archivo.getRuta();
+        archivo.cerrar();
+        try {
+            if (nuevo.cargar() == null) registro.reemplazarTodas(List.of());
+        } catch (IOException | RuntimeException e) {
+            nuevo.cerrar();
+            archivo = ArchivoCompartido.abrir(rutaActual, registro);
+            try {
+                archivo.cargar();
+            } catch (IOException ex) {
+                e.addSuppressed(ex);
+            }
+            archivo.vigilar(this::recargarDesdeArchivo);
+            throw e instanceof IOException io ? new UncheckedIOException(io) : (RuntimeException) e;
+        }
+        archivo = nuevo;
+        archivo.vigilar(this::recargarDesdeArchivo);
+    }
+
     private void setupHoraActualEnSpinners() {
         LocalTime now = LocalTime.now();
         int h24 = now.getHour();
@@ -455,6 +974,26 @@ public class PrimaryController {
     // =========================================================================
     public boolean isModoOscuro() { return esOscuro; }
     public String getFuenteActual() { return fuenteActual; }
+    public int getMinutosPosponer() { return minutosPosponer; }
+    public int getMaximoPosposiciones() { return maximoPosposiciones; }
+    public IndiceProximasAlarmas.Hueco getPoliticaHueco() { return politicaHueco; }
+    public IndiceProximasAlarmas.Solapamiento getPoliticaSolapamiento() { return politicaSolapamiento; }
+
+    public void cambiarPosponer(int minutos, int maximo) {
+        this.minutosPosponer = minutos;
+        this.maximoPosposiciones = maximo;
+        guardarConfiguracion();
+    }
+
+    /**
+     * Cómo tratar las alarmas que caen en el cambio de hora (hora que no existe o que se repite).
+     */
+    public void cambiarPoliticasDst(IndiceProximasAlarmas.Hueco hueco, IndiceProximasAlarmas.Solapamiento solapamiento) {
+        this.politicaHueco = hueco;
+        this.politicaSolapamiento = solapamiento;
+        planificador.cambiarPoliticasDst(hueco, solapamiento);
+        guardarConfiguracion();
+    }
 
     public void cambiarTipografia(String fontName) {
         this.fuenteActual = fontName;
@@ -510,6 +1049,7 @@ public class PrimaryController {
     }
 
     private String construirTextoDias(Alarma a) {
+        if (a.getRegla() != null) return a.getRegla().descripcion();
         StringBuilder sb = new StringBuilder();
         String[] cortos = {"Dom", "Lun", "Mar", "Mié", "Jue", "Vie", "Sáb"};
         for(int i=0; i<7; i++) {
@@ -521,7 +1061,77 @@ public class PrimaryController {
         return sb.length() > 0 ? sb.toString() : "Repetir";
     }
 
+    // =========================================================================
+    //                        IMPORTAR / EXPORTAR
+    // =========================================================================
+
+    /**
+     * Importa en segundo plano: la UI no se congela y el registro recibe las
+     * alarmas por lotes. Al terminar se guarda una sola vez, también fuera del hilo FX.
+     */
+    public void importarAlarmas(File archivo) {
+        Thread hilo = new Thread(() -> {
+            try {
+                ImportadorAlarmas.Resultado r = new ImportadorAlarmas(registro).importar(archivo);
+                if (r.getImportadas() > 0) guardarAlarmas();
+                Platform.runLater(() -> {
+                    StringBuilder sb = new StringBuilder();
+                    sb.append("Alarmas importadas: ").append(r.getImportadas()).append("\n");
+                    sb.append("Líneas con errores: ").append(r.getErrores()).append("\n");
+                    sb.append("Duplicadas descartadas: ").append(r.getDuplicadas()).append("\n");
+                    r.getDetalleErrores().forEach(err -> sb.append("\n⚠ ").append(err));
+                    if (r.getErrores() + r.getDuplicadas() > r.getDetalleErrores().size()) sb.append("\n...");
+                    mostrarMensaje("Importar alarmas", sb.toString());
+                });
+            } catch (IOException e) {
+                Platform.runLater(() -> mostrarMensaje("Importar alarmas", "No se pudo leer el archivo: " + e.getMessage()));
+            }
+        }, "importador-alarmas");
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    public void exportarAlarmas(File archivo) {
+        RegistroAlarmas.Instantanea inst = registro.instantanea();
+        Thread hilo = new Thread(() -> {
+            try {
+                new ExportadorAlarmas().exportar(inst.getAlarmas(), archivo);
+                Platform.runLater(() -> mostrarMensaje("Exportar alarmas", "Alarmas exportadas: " + inst.tamano()));
+            } catch (IOException e) {
+                Platform.runLater(() -> mostrarMensaje("Exportar alarmas", "No se pudo escribir el archivo: " + e.getMessage()));
+            }
+        }, "exportador-alarmas");
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
     // --- Ventanas de información ---
+    private void mostrarMensaje(String titulo, String texto) {
+        Alert a = new Alert(Alert.AlertType.INFORMATION);
+        a.setTitle(titulo);
+        aplicarIconoAlert(a);
+        a.setContentText(texto);
+        estilizarAlerta(a);
+        a.showAndWait();
+    }
+
+    /**
+     * Densidad de alarmas a lo largo del día. Solo sigue los cambios del registro mientras está abierta.
+     */
+    public void mostrarLineaTiempo() {
+        if (ventanaLineaTiempo == null) {
+            vistaLineaTiempo = new VistaLineaTiempo(registro);
+            ventanaLineaTiempo = new Stage();
+            if (App.getIcono() != null) ventanaLineaTiempo.getIcons().add(App.getIcono());
+            ventanaLineaTiempo.setTitle("Línea de tiempo");
+            ventanaLineaTiempo.setScene(new Scene(vistaLineaTiempo, 900, 260));
+            ventanaLineaTiempo.setOnHidden(e -> vistaLineaTiempo.desconectar());
+        }
+        if (!ventanaLineaTiempo.isShowing()) vistaLineaTiempo.conectar();
+        ventanaLineaTiempo.show();
+        ventanaLineaTiempo.toFront();
+    }
+
     public void mostrarHistorial() {
         Alert a = new Alert(Alert.AlertType.INFORMATION);
         a.setTitle("Historial");
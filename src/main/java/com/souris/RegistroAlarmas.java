@@ -0,0 +1,507 @@
+package com.souris;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * REGISTRO DE ALARMAS
+ * Fuente única de verdad de la lista de alarmas, segura entre hilos.
+ * Publica instantáneas inmutables y versionadas (copy-on-write): cualquier hilo
+ * (planificador, persistencia, UI) lee la instantánea actual sin bloqueos, y los
+ * cambios se aplican de forma atómica sobre una copia con compare-and-set.
+ */
+public class RegistroAlarmas {
+
+    /**
+     * Lo que cambió entre dos versiones: las alarmas nuevas o modificadas (como quedan
+     * en la versión final) y los ids de las borradas.
+     */
+    public record Cambios(Collection<Alarma> cambiadas, Collection<String> borradas) {}
+
+    private static final Cambios NINGUNO = new Cambios(List.of(), List.of());
+
+    // Cuántas versiones hacia atrás recuerda cada instantánea lo que cambió
+    private static final int MAXIMO_DELTAS = 64;
+
+    // Lo que cambió respecto a la versión anterior, enlazado con los cambios previos.
+    // La cadena se corta cada MAXIMO_DELTAS versiones para no retener las viejas
+    private record Delta(long version, Cambios cambios, Delta previo, int profundidad) {}
+
+    /**
+     * Foto inmutable de las alarmas en una versión concreta del registro.
+     */
+    public static final class Instantanea {
+        private final long version;
+        private final Delta delta; // Null si no se sabe qué cambió (p. ej. tras reemplazarTodas)
+        private final List<Alarma> alarmas;
+        private volatile Map<String, Alarma> porId; // Se construye solo si alguien busca por id
+        private volatile IndiceEtiquetas etiquetas; // Ídem, al consultar grupos o etiquetas
+        private volatile IndiceBusqueda busqueda;   // Ídem, al buscar por hora o día
+        // Ídem, al comprobar duplicados: posición de la primera alarma con cada clave.
+        // Puede compartirse con versiones posteriores que solo añadieron al final,
+        // por eso una posición fuera de esta versión cuenta como "no está"
+        private volatile Map<Alarma.Clave, Integer> claves;
+        private final Bloque bloque; // Arreglo detrás de la lista, si admite añadir sin copiar
+
+        private Instantanea(long version, List<Alarma> alarmas, Delta delta) {
+            this(version, alarmas, delta, null, null);
+        }
+
+        private Instantanea(long version, List<Alarma> alarmas, Delta delta, IndiceEtiquetas etiquetas, IndiceBusqueda busqueda) {
+            this(version, alarmas, delta, etiquetas, busqueda, null, null);
+        }
+
+        private Instantanea(long version, List<Alarma> alarmas, Delta delta, IndiceEtiquetas etiquetas, IndiceBusqueda busqueda,
+                            Bloque bloque, Map<Alarma.Clave, Integer> claves) {
+            this.version = version;
+            this.delta = delta;
+            this.alarmas = Collections.unmodifiableList(alarmas);
+            this.etiquetas = etiquetas;
+            this.busqueda = busqueda;
+            this.bloque = bloque;
+            this.claves = claves;
+        }
+
+        public long getVersion() { return version; }
+        public List<Alarma> getAlarmas() { return alarmas; }
+
+        public Alarma buscar(String id) {
+            Map<String, Alarma> mapa = porId;
+            if (mapa == null) {
+                mapa = new HashMap<>(alarmas.size() * 2);
+                for (Alarma a : alarmas) mapa.put(a.getId(), a);
+                porId = mapa;
+            }
+            return mapa.get(id);
+        }
+
+        public int tamano() { return alarmas.size(); }
+
+        /**
+         * Lo que cambió desde esa versión hasta esta, o null si ya no se sabe: la versión
+         * es demasiado vieja, no es anterior a esta o entre medias se reemplazó todo.
+         * Cuesta lo que cambió, no lo que hay.
+         */
+        public Cambios cambiosDesde(long versionAnterior) {
+            if (versionAnterior == version) return NINGUNO;
+            List<Delta> pendientes = new ArrayList<>();
+            Delta d = delta;
+            while (d != null && d.version() > versionAnterior) {
+                pendientes.add(d);
+                d = d.previo();
+            }
+            if (pendientes.isEmpty() || pendientes.get(pendientes.size() - 1).version() != versionAnterior + 1) return null;
+
+            Map<String, Alarma> cambiadas = new LinkedHashMap<>();
+            Set<String> borradas = new LinkedHashSet<>();
+            for (int i = pendientes.size() - 1; i >= 0; i--) {
+                Cambios c = pendientes.get(i).cambios();
+                for (Alarma a : c.cambiadas()) {
+                    cambiadas.put(a.getId(), a);
+                    borradas.remove(a.getId());
+                }
+                for (String id : c.borradas()) {
+                    cambiadas.remove(id);
+                    borradas.add(id);
+                }
+            }
+            return new Cambios(cambiadas.values(), borradas);
+        }
+
+        // El delta de la versión siguiente a esta (null si no se sabe qué cambió)
+        private Delta encadenar(Cambios cambios) {
+            if (cambios == null) return null;
+            Delta previo = delta != null && delta.profundidad() < MAXIMO_DELTAS ? delta : null;
+            return new Delta(version + 1, cambios, previo, previo == null ? 1 : previo.profundidad() + 1);
+        }
+
+        /**
+         * Bitsets por grupo y etiqueta de esta versión (posición i = alarma i).
+         */
+        public IndiceEtiquetas getEtiquetas() {
+            IndiceEtiquetas indice = etiquetas;
+            if (indice == null) {
+                indice = IndiceEtiquetas.construir(alarmas);
+                etiquetas = indice;
+            }
+            return indice;
+        }
+
+        /**
+         * Alarmas por minuto del día y por día de la semana (posición i = alarma i).
+         */
+        public IndiceBusqueda getBusqueda() {
+            IndiceBusqueda indice = busqueda;
+            if (indice == null) {
+                indice = IndiceBusqueda.construir(alarmas);
+                busqueda = indice;
+            }
+            return indice;
+        }
+
+        /**
+         * ¿Ya hay una alarma igual (misma hora, días, grupo y etiquetas)?
+         */
+        public boolean contieneDuplicado(Alarma alarma) {
+            Map<Alarma.Clave, Integer> mapa = claves;
+            if (mapa == null) {
+                mapa = new ConcurrentHashMap<>(alarmas.size() * 2);
+                for (int i = 0; i < alarmas.size(); i++) mapa.putIfAbsent(alarmas.get(i).getClave(), i);
+                claves = mapa;
+            }
+            Integer posicion = mapa.get(alarma.getClave());
+            return posicion != null && posicion < alarmas.size();
+        }
+
+        /**
+         * Esta versión con "nuevas" al final. Si nadie ha añadido todavía detrás de
+         * esta versión, se escriben en el mismo arreglo sin copiar las anteriores
+         * (las versiones viejas no ven más allá de su tamaño) y el índice de claves,
+         * si existe, se amplía en lugar de reconstruirse.
+         */
+        private Instantanea conAnadidas(Alarma[] nuevas) {
+            int tamano = alarmas.size();
+            int total = tamano + nuevas.length;
+            Delta siguiente = encadenar(new Cambios(List.of(nuevas), List.of()));
+            Bloque destino = bloque;
+            if (destino != null) {
+                synchronized (destino) {
+                    if (destino.usados == tamano) {
+                        if (destino.datos.length < total) destino.datos = Arrays.copyOf(destino.datos, Bloque.capacidad(total));
+                        System.arraycopy(nuevas, 0, destino.datos, tamano, nuevas.length);
+                        destino.usados = total;
+                        Map<Alarma.Clave, Integer> mapa = claves;
+                        if (mapa != null) {
+                            for (int i = 0; i < nuevas.length; i++) mapa.putIfAbsent(nuevas[i].getClave(), tamano + i);
+                        }
+                        List<Alarma> lista = Arrays.asList(destino.datos).subList(0, total);
+                        return new Instantanea(version + 1, lista, siguiente, derivarEtiquetas(lista, SIN_CAMBIOS),
+                                derivarBusqueda(lista, SIN_CAMBIOS), destino, mapa);
+                    }
+                }
+            }
+            // Otra versión ya añadió sobre este arreglo (o no lo hay): se copia una vez
+            Alarma[] datos = alarmas.toArray(new Alarma[Bloque.capacidad(total)]);
+            System.arraycopy(nuevas, 0, datos, tamano, nuevas.length);
+            List<Alarma> lista = Arrays.asList(datos).subList(0, total);
+            return new Instantanea(version + 1, lista, siguiente, derivarEtiquetas(lista, SIN_CAMBIOS),
+                    derivarBusqueda(lista, SIN_CAMBIOS), new Bloque(datos, total), null);
+        }
+
+        /**
+         * La versión siguiente con esa lista. Los índices de búsqueda y etiquetas que
+         * ya estén construidos se derivan de los de esta versión con lo que cambió, en
+         * lugar de reconstruirse; si hubo borrados (las posiciones se desplazan) o
+         * cambió casi todo, se vuelven a construir cuando alguien los pida.
+         */
+        private Instantanea siguiente(List<Alarma> lista, Cambios cambios) {
+            Delta siguiente = encadenar(cambios);
+            if (etiquetas == null && busqueda == null) return new Instantanea(version + 1, lista, siguiente);
+            int[] cambiadas = posicionesCambiadas(alarmas, lista);
+            if (cambiadas == null) return new Instantanea(version + 1, lista, siguiente);
+            return new Instantanea(version + 1, lista, siguiente, derivarEtiquetas(lista, cambiadas), derivarBusqueda(lista, cambiadas));
+        }
+
+        private IndiceEtiquetas derivarEtiquetas(List<Alarma> lista, int[] cambiadas) {
+            IndiceEtiquetas indice = etiquetas;
+            return indice == null ? null : indice.conCambios(alarmas, lista, cambiadas);
+        }
+
+        private IndiceBusqueda derivarBusqueda(List<Alarma> lista, int[] cambiadas) {
+            IndiceBusqueda indice = busqueda;
+            return indice == null ? null : indice.conCambios(alarmas, lista, cambiadas);
+        }
+    }
+
+    private static final int[] SIN_CAMBIOS = new int[0];
+
+    /**
+     * Posiciones en que "despues" tiene otra alarma que "antes" (las alarmas son
+     * inmutables: basta comparar referencias), sin contar las añadidas al final.
+     * Null si hubo borrados o si cambió más de una cuarta parte.
+     */
+    private static int[] posicionesCambiadas(List<Alarma> antes, List<Alarma> despues) {
+        int n = antes.size();
+        if (despues.size() < n) return null;
+        int limite = n / 4 + 16;
+        int[] cambiadas = new int[Math.min(n, 16)];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            if (antes.get(i) == despues.get(i)) continue;
+            if (k == limite) return null;
+            if (k == cambiadas.length) cambiadas = Arrays.copyOf(cambiadas, Math.min(limite, k * 2 + 1));
+            cambiadas[k++] = i;
+        }
+        return Arrays.copyOf(cambiadas, k);
+    }
+
+    /**
+     * Qué alarmas cambiaron de "antes" a "despues" (las alarmas son inmutables: basta
+     * comparar referencias). Recorre las dos listas a la vez, así que entiende cambios
+     * en su sitio, borrados y añadidas al final; si algo se movió, lo da por borrado y
+     * vuelto a añadir. Null si cambió más de una cuarta parte.
+     */
+    private static Cambios diferencia(List<Alarma> antes, List<Alarma> despues) {
+        int limite = antes.size() / 4 + 16;
+        Map<String, Alarma> cambiadas = new LinkedHashMap<>();
+        List<String> borradas = new ArrayList<>();
+        int j = 0;
+        for (Alarma a : antes) {
+            Alarma d = j < despues.size() ? despues.get(j) : null;
+            if (a == d) {
+                j++;
+                continue;
+            }
+            if (d != null && a.getId().equals(d.getId())) {
+                cambiadas.put(d.getId(), d);
+                j++;
+            } else {
+                borradas.add(a.getId());
+            }
+            if (cambiadas.size() + borradas.size() > limite) return null;
+        }
+        for (; j < despues.size(); j++) {
+            cambiadas.put(despues.get(j).getId(), despues.get(j));
+            if (cambiadas.size() + borradas.size() > limite) return null;
+        }
+        borradas.removeIf(cambiadas::containsKey);
+        return new Cambios(List.copyOf(cambiadas.values()), List.copyOf(borradas));
+    }
+
+    // Arreglo con hueco al final que comparten las versiones creadas añadiendo alarmas.
+    // Las posiciones por debajo de "usados" no se vuelven a escribir nunca
+    private static final class Bloque {
+        private Alarma[] datos;
+        private int usados;
+
+        private Bloque(Alarma[] datos, int usados) {
+            this.datos = datos;
+            this.usados = usados;
+        }
+
+        private static int capacidad(int minimo) {
+            return Math.max(16, minimo + (minimo >> 1));
+        }
+    }
+
+    /**
+     * Cambio a aplicar sobre una copia mutable de la lista.
+     * Puede ejecutarse más de una vez si otro hilo publica antes, así que no debe
+     * tener efectos fuera de la lista que recibe.
+     */
+    @FunctionalInterface
+    public interface Modificacion {
+        void aplicar(List<Alarma> alarmas);
+    }
+
+    private final AtomicReference<Instantanea> actual =
+            new AtomicReference<>(new Instantanea(0, new ArrayList<>(), null));
+
+    // Se avisa a los oyentes con cada nueva versión publicada
+    private final List<Consumer<Instantanea>> oyentes = new CopyOnWriteArrayList<>();
+
+    public Instantanea instantanea() { return actual.get(); }
+
+    public void suscribir(Consumer<Instantanea> oyente) { oyentes.add(oyente); }
+    public void desuscribir(Consumer<Instantanea> oyente) { oyentes.remove(oyente); }
+
+    /**
+     * Aplica el cambio de forma atómica y publica la nueva versión.
+     * Todo lo que haga la modificación se ve como una única actualización.
+     */
+    public Instantanea aplicar(Modificacion modificacion) {
+        return aplicar(modificacion, true);
+    }
+
+    // "conCambios": anotar qué cambió, para quien siga el registro por versiones
+    private Instantanea aplicar(Modificacion modificacion, boolean conCambios) {
+        Instantanea anterior;
+        Instantanea nueva;
+        do {
+            anterior = actual.get();
+            List<Alarma> copia = new ArrayList<>(anterior.alarmas);
+            modificacion.aplicar(copia);
+            nueva = anterior.siguiente(copia, conCambios ? diferencia(anterior.alarmas, copia) : null);
+        } while (!actual.compareAndSet(anterior, nueva));
+
+        avisar(nueva);
+        return nueva;
+    }
+
+    private void avisar(Instantanea nueva) {
+        for (Consumer<Instantanea> oyente : oyentes) oyente.accept(nueva);
+    }
+
+    // =========================================================================
+    //                        OPERACIONES FRECUENTES
+    // =========================================================================
+    public Instantanea agregar(Alarma alarma) {
+        return agregarTodas(List.of(alarma));
+    }
+
+    /**
+     * Añade la alarma salvo que ya exista una igual.
+     * @return la instantánea resultante, o null si era duplicada
+     */
+    public Instantanea agregarSiNoExiste(Alarma alarma) {
+        Instantanea anterior;
+        Instantanea nueva;
+        do {
+            anterior = actual.get();
+            if (anterior.contieneDuplicado(alarma)) return null;
+            nueva = anterior.conAnadidas(new Alarma[]{alarma});
+        } while (!actual.compareAndSet(anterior, nueva));
+
+        avisar(nueva);
+        return nueva;
+    }
+
+    /**
+     * Añade las alarmas al final en una sola versión. Las sucesivas llamadas (p. ej.
+     * los lotes de una importación) comparten el arreglo de la versión anterior, así
+     * que cada una cuesta lo que añade y no lo que ya había.
+     */
+    public Instantanea agregarTodas(Collection<Alarma> nuevas) {
+        if (nuevas.isEmpty()) return instantanea();
+        Alarma[] lista = nuevas.toArray(new Alarma[0]);
+        Instantanea anterior;
+        Instantanea nueva;
+        do {
+            anterior = actual.get();
+            nueva = anterior.conAnadidas(lista);
+        } while (!actual.compareAndSet(anterior, nueva));
+
+        avisar(nueva);
+        return nueva;
+    }
+
+    /**
+     * Cambia todas las alarmas de golpe (al cargar o cambiar de perfil). No se anota
+     * qué cambió: quien siga el registro vuelve a leerlo entero.
+     */
+    public Instantanea reemplazarTodas(Collection<Alarma> nuevas) {
+        return aplicar(lista -> {
+            lista.clear();
+            lista.addAll(nuevas);
+        }, false);
+    }
+
+    /**
+     * Un cambio llegado de fuera: qué alarma se esperaba encontrar con ese id
+     * (null = ninguna) y por cuál reemplazarla (null = borrarla).
+     */
+    public record CambioExterno(String id, Alarma esperada, Alarma nueva) {}
+
+    /**
+     * Aplica cambios llegados de fuera (p. ej. de otro proceso) en una sola versión.
+     * Solo se tocan las alarmas indicadas: el resto conserva la misma instancia, así
+     * el planificador y la lista solo actualizan lo que cambió. Si una alarma ya no es
+     * la esperada (se cambió aquí mientras tanto), ese cambio se omite: gana lo local.
+     */
+    public Instantanea aplicarCambios(List<CambioExterno> cambios) {
+        if (cambios.isEmpty()) return instantanea();
+        Map<String, CambioExterno> porId = new HashMap<>(cambios.size() * 2);
+        for (CambioExterno c : cambios) porId.put(c.id(), c);
+
+        return aplicar(lista -> {
+            Set<String> presentes = new HashSet<>();
+            Set<String> borrar = new HashSet<>();
+            for (int i = 0; i < lista.size(); i++) {
+                Alarma actual = lista.get(i);
+                CambioExterno c = porId.get(actual.getId());
+                if (c == null) continue;
+                presentes.add(c.id());
+                if (actual != c.esperada()) continue;
+                if (c.nueva() == null) borrar.add(c.id());
+                else lista.set(i, c.nueva());
+            }
+            if (!borrar.isEmpty()) lista.removeIf(a -> borrar.contains(a.getId()));
+            for (CambioExterno c : cambios) {
+                if (c.esperada() == null && c.nueva() != null && !presentes.contains(c.id())) lista.add(c.nueva());
+            }
+        });
+    }
+
+    public Instantanea eliminar(String id) {
+        return aplicar(lista -> lista.removeIf(a -> a.getId().equals(id)));
+    }
+
+    public Instantanea cambiarEstado(String id, boolean activa) {
+        return aplicar(lista -> {
+            for (int i = 0; i < lista.size(); i++) {
+                Alarma a = lista.get(i);
+                if (a.getId().equals(id)) {
+                    lista.set(i, a.conActiva(activa));
+                    return;
+                }
+            }
+        });
+    }
+
+    // =========================================================================
+    //                        CAMBIOS EN BLOQUE POR GRUPO O ETIQUETA
+    // =========================================================================
+
+    public Instantanea cambiarEstadoGrupo(String grupo, boolean activa) {
+        return cambiarEstadoSeleccion(indice -> indice.conGrupo(grupo), activa);
+    }
+
+    public Instantanea cambiarEstadoEtiqueta(String etiqueta, boolean activa) {
+        return cambiarEstadoSeleccion(indice -> indice.conEtiqueta(etiqueta), activa);
+    }
+
+    /**
+     * Enciende o apaga las alarmas seleccionadas como una sola versión nueva.
+     * Qué alarmas cambian se decide con operaciones de bitset sobre el índice de la
+     * versión anterior; solo esas se copian, y el índice nuevo reutiliza grupos y
+     * etiquetas. Si no cambia ninguna, no se publica nada.
+     */
+    private Instantanea cambiarEstadoSeleccion(Function<IndiceEtiquetas, BitSet> seleccion, boolean activa) {
+        Instantanea anterior;
+        Instantanea nueva;
+        do {
+            anterior = actual.get();
+            IndiceEtiquetas indice = anterior.getEtiquetas();
+
+            // Las que están en la selección y aún no tienen el estado pedido
+            BitSet cambian = seleccion.apply(indice);
+            BitSet nuevasActivas = indice.getActivas();
+            if (activa) {
+                cambian.andNot(nuevasActivas);
+                nuevasActivas.or(cambian);
+            } else {
+                cambian.and(nuevasActivas);
+                nuevasActivas.andNot(cambian);
+            }
+            if (cambian.isEmpty()) return anterior;
+
+            List<Alarma> copia = new ArrayList<>(anterior.alarmas);
+            List<Alarma> cambiadas = new ArrayList<>(cambian.cardinality());
+            for (int i = cambian.nextSetBit(0); i >= 0; i = cambian.nextSetBit(i + 1)) {
+                copia.set(i, copia.get(i).conActiva(activa));
+                cambiadas.add(copia.get(i));
+            }
+            // Horas y días no cambian: el índice de búsqueda (si existe) sirve tal cual
+            nueva = new Instantanea(anterior.version + 1, copia, anterior.encadenar(new Cambios(cambiadas, List.of())),
+                    indice.conActivas(nuevasActivas), anterior.busqueda);
+        } while (!actual.compareAndSet(anterior, nueva));
+
+        avisar(nueva);
+        return nueva;
+    }
+}
@@ -0,0 +1,470 @@
+package com.souris;
+
+import java.io.Serializable;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * REGLA DE RECURRENCIA
+ * Describe en qué días suena una alarma: semanal, cada N días, el enésimo día de
+ * la semana de cada mes o una lista de fechas, siempre con fechas excluidas opcionales.
+ * Las que se repiten admiten además un día de inicio (antes no suenan) y fechas
+ * sueltas añadidas, como DTSTART y RDATE junto a un RRULE.
+ *
+ * Cada regla se "compila" la primera vez que se consulta un año: se evalúa una vez
+ * por día y el resultado queda en un bitset de 366 bits. A partir de ahí, saber si
+ * toca sonar es un simple test de bit, y buscar la siguiente fecha salta palabras
+ * completas de 64 días con {@link BitSet#nextSetBit(int)}. Solo se guardan unos
+ * pocos años a la vez (los vecinos del último pedido): una consulta que recorre
+ * décadas no deja un bitset por año en cada alarma para siempre.
+ *
+ * Forma de texto (compatible con RRULE de iCalendar):
+ *   FREQ=WEEKLY;BYDAY=MO,WE,FR
+ *   FREQ=DAILY;INTERVAL=3;DTSTART=20261019
+ *   FREQ=MONTHLY;BYDAY=2MO          (segundo lunes; -1FR = último viernes)
+ *   RDATE=20261224,20261231         (fechas sueltas)
+ * Cualquiera admite ";EXDATE=20261225,..." para excluir fechas, y las que tienen FREQ
+ * también ";RDATE=..." para añadirlas y ";DTSTART=20261101" para no sonar antes.
+ */
+public final class ReglaRecurrencia implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final DateTimeFormatter FORMATO_FECHA = DateTimeFormatter.BASIC_ISO_DATE;
+    private static final String[] DIAS_ICAL = {"SU", "MO", "TU", "WE", "TH", "FR", "SA"};
+
+    public enum Tipo { SEMANAL, CADA_N_DIAS, MENSUAL, FECHAS }
+
+    private final Tipo tipo;
+    private final int diasSemana;            // SEMANAL: bit 0 = Domingo ... bit 6 = Sábado
+    private final LocalDate inicio;          // CADA_N_DIAS: primer día; SEMANAL y MENSUAL: null o no antes de este
+    private final int intervalo;             // CADA_N_DIAS: cada cuántos días
+    private final int ordinal;               // MENSUAL: 1..5, o -1 = el último del mes
+    private final DayOfWeek diaDelMes;       // MENSUAL: qué día de la semana
+    private final TreeSet<LocalDate> fechas;      // FECHAS; en las demás, días añadidos (RDATE)
+    private final TreeSet<LocalDate> exclusiones; // Todas: días en que NO suena
+
+    // Bitsets ya compilados por año (no se guardan en disco, se recalculan)
+    private transient volatile Map<Integer, BitSet> compiladas;
+    private static final int MAXIMO_ANIOS_COMPILADOS = 3;
+
+    // Solo hay 127 reglas semanales posibles: se comparten para compilar cada una una vez
+    private static final ReglaRecurrencia[] SEMANALES = new ReglaRecurrencia[128];
+
+    private ReglaRecurrencia(Tipo tipo, int diasSemana, LocalDate inicio, int intervalo,
+                             int ordinal, DayOfWeek diaDelMes,
+                             Collection<LocalDate> fechas, Collection<LocalDate> exclusiones) {
+        this.tipo = tipo;
+        this.diasSemana = diasSemana;
+        this.inicio = inicio;
+        this.intervalo = intervalo;
+        this.ordinal = ordinal;
+        this.diaDelMes = diaDelMes;
+        this.fechas = new TreeSet<>(fechas);
+        this.exclusiones = new TreeSet<>(exclusiones);
+    }
+
+    // =========================================================================
+    //                        CONSTRUCCIÓN
+    // =========================================================================
+    public static ReglaRecurrencia semanal(boolean[] dias) {
+        int bits = 0;
+        for (int i = 0; i < 7; i++) if (dias[i]) bits |= 1 << i;
+        if (bits == 0) throw new IllegalArgumentException("La regla semanal necesita al menos un día");
+        synchronized (SEMANALES) {
+            if (SEMANALES[bits] == null) {
+                SEMANALES[bits] = new ReglaRecurrencia(Tipo.SEMANAL, bits, null, 0, 0, null, List.of(), List.of());
+            }
+            return SEMANALES[bits];
+        }
+    }
+
+    public static ReglaRecurrencia cadaNDias(LocalDate inicio, int intervalo) {
+        if (intervalo < 1) throw new IllegalArgumentException("El intervalo debe ser al menos 1: " + intervalo);
+        return new ReglaRecurrencia(Tipo.CADA_N_DIAS, 0, inicio, intervalo, 0, null, List.of(), List.of());
+    }
+
+    /**
+     * @param ordinal 1 = primero ... 5 = quinto, -1 = último
+     */
+    public static ReglaRecurrencia mensual(int ordinal, DayOfWeek dia) {
+        if (ordinal == 0 || ordinal < -1 || ordinal > 5) throw new IllegalArgumentException("Ordinal inválido: " + ordinal);
+        return new ReglaRecurrencia(Tipo.MENSUAL, 0, null, 0, ordinal, dia, List.of(), List.of());
+    }
+
+    public static ReglaRecurrencia fechas(Collection<LocalDate> fechas) {
+        if (fechas.isEmpty()) throw new IllegalArgumentException("La lista de fechas está vacía");
+        return new ReglaRecurrencia(Tipo.FECHAS, 0, null, 0, 0, null, fechas, List.of());
+    }
+
+    /**
+     * Copia de la regla que además no suena en las fechas indicadas.
+     */
+    public ReglaRecurrencia excluyendo(Collection<LocalDate> fechasExcluidas) {
+        TreeSet<LocalDate> todas = new TreeSet<>(exclusiones);
+        todas.addAll(fechasExcluidas);
+        return new ReglaRecurrencia(tipo, diasSemana, inicio, intervalo, ordinal, diaDelMes, fechas, todas);
+    }
+
+    /**
+     * Copia de la regla que además suena en las fechas indicadas (RDATE junto a un RRULE).
+     */
+    public ReglaRecurrencia anadiendo(Collection<LocalDate> fechasAnadidas) {
+        TreeSet<LocalDate> todas = new TreeSet<>(fechas);
+        todas.addAll(fechasAnadidas);
+        return new ReglaRecurrencia(tipo, diasSemana, inicio, intervalo, ordinal, diaDelMes, todas, exclusiones);
+    }
+
+    /**
+     * Copia de una regla semanal o mensual que no suena antes de la fecha indicada
+     * (las fechas añadidas suenan igual). El inicio se guarda como el primer día desde
+     * ahí en que suena la regla: dos inicios que no cambian nada dan reglas iguales.
+     * En "cada N días" el inicio es el ancla: ver {@link #cadaNDias(LocalDate, int)}.
+     */
+    public ReglaRecurrencia desde(LocalDate primerDia) {
+        if (tipo != Tipo.SEMANAL && tipo != Tipo.MENSUAL) {
+            throw new IllegalArgumentException("Solo las reglas semanales y mensuales cambian de inicio");
+        }
+        LocalDate dia = primerDia;
+        // En un año siempre hay un quinto lunes, un último viernes...
+        for (int i = 0; i < 366 && (exclusiones.contains(dia) || !evaluarRegla(dia)); i++) dia = dia.plusDays(1);
+        if (exclusiones.contains(dia) || !evaluarRegla(dia)) dia = primerDia;
+        return new ReglaRecurrencia(tipo, diasSemana, dia, intervalo, ordinal, diaDelMes, fechas, exclusiones);
+    }
+
+    public Tipo getTipo() { return tipo; }
+    public boolean isDiaSemana(int indice) { return tipo == Tipo.SEMANAL && (diasSemana & (1 << indice)) != 0; }
+
+    /**
+     * Días de la semana en que la regla puede llegar a sonar (bit 0 = Domingo ... bit 6 = Sábado).
+     * Sirve para filtrar por día sin recorrer fechas.
+     */
+    public int diasSemanaPosibles() {
+        int mascara = 0;
+        for (LocalDate f : fechas) {
+            if (!exclusiones.contains(f)) mascara |= 1 << (f.getDayOfWeek().getValue() % 7);
+        }
+        switch (tipo) {
+            case SEMANAL:
+                return mascara | diasSemana;
+            case CADA_N_DIAS:
+                // Cada 7, 14... días cae siempre en el mismo día; si no, pasa por todos
+                return mascara | (intervalo % 7 == 0 ? 1 << (inicio.getDayOfWeek().getValue() % 7) : 0x7F);
+            case MENSUAL:
+                return mascara | 1 << (diaDelMes.getValue() % 7);
+            default:
+                return mascara;
+        }
+    }
+    public LocalDate getInicio() { return inicio; }
+    public Collection<LocalDate> getFechas() { return Collections.unmodifiableSet(fechas); }
+    public Collection<LocalDate> getExclusiones() { return Collections.unmodifiableSet(exclusiones); }
+
+    // =========================================================================
+    //                        CONSULTAS (SOBRE EL BITSET COMPILADO)
+    // =========================================================================
+
+    /**
+     * ¿Suena en esta fecha? Un test de bit sobre el año ya compilado.
+     */
+    public boolean coincide(LocalDate fecha) {
+        return anio(fecha.getYear()).get(fecha.getDayOfYear() - 1);
+    }
+
+    /**
+     * Primera fecha en [desde, hasta] en la que suena, o null si no hay ninguna.
+     */
+    public LocalDate siguiente(LocalDate desde, LocalDate hasta) {
+        LocalDate cursor = desde;
+        while (!cursor.isAfter(hasta)) {
+            int anio = cursor.getYear();
+            int bit = anio(anio).nextSetBit(cursor.getDayOfYear() - 1);
+            if (bit >= 0) {
+                LocalDate encontrada = LocalDate.ofYearDay(anio, bit + 1);
+                return encontrada.isAfter(hasta) ? null : encontrada;
+            }
+            cursor = LocalDate.of(anio + 1, 1, 1);
+        }
+        return null;
+    }
+
+    /**
+     * Todas las fechas en [desde, hasta] en las que suena, en orden.
+     */
+    public List<LocalDate> fechasEntre(LocalDate desde, LocalDate hasta) {
+        List<LocalDate> resultado = new ArrayList<>();
+        LocalDate f = siguiente(desde, hasta);
+        while (f != null) {
+            resultado.add(f);
+            f = siguiente(f.plusDays(1), hasta);
+        }
+        return resultado;
+    }
+
+    // El bitset del año, compilado la primera vez que se pide (visible para las pruebas).
+    // Al compilar uno nuevo con el cupo lleno se olvidan los que no son vecinos suyos
+    BitSet anio(int anio) {
+        Map<Integer, BitSet> cache = compiladas;
+        if (cache == null) {
+            cache = new ConcurrentHashMap<>();
+            compiladas = cache;
+        }
+        BitSet bits = cache.get(anio);
+        if (bits != null) return bits;
+        if (cache.size() >= MAXIMO_ANIOS_COMPILADOS) cache.keySet().removeIf(a -> Math.abs(a - anio) > 1);
+        return cache.computeIfAbsent(anio, this::compilar);
+    }
+
+    // Cuántos años hay compilados ahora (para las pruebas)
+    int aniosCompilados() {
+        Map<Integer, BitSet> cache = compiladas;
+        return cache == null ? 0 : cache.size();
+    }
+
+    // Evalúa la regla día a día una sola vez por año
+    private BitSet compilar(int anio) {
+        LocalDate dia = LocalDate.of(anio, 1, 1);
+        int diasDelAnio = dia.lengthOfYear();
+        BitSet bits = new BitSet(diasDelAnio);
+        for (int i = 0; i < diasDelAnio; i++, dia = dia.plusDays(1)) {
+            if (evaluar(dia)) bits.set(i);
+        }
+        return bits;
+    }
+
+    private boolean evaluar(LocalDate dia) {
+        if (exclusiones.contains(dia)) return false;
+        if (fechas.contains(dia)) return true;
+        if (inicio != null && dia.isBefore(inicio)) return false;
+        return evaluarRegla(dia);
+    }
+
+    // Solo la frecuencia: sin inicio, fechas añadidas ni exclusiones
+    private boolean evaluarRegla(LocalDate dia) {
+        switch (tipo) {
+            case SEMANAL:
+                return (diasSemana & (1 << (dia.getDayOfWeek().getValue() % 7))) != 0;
+            case CADA_N_DIAS:
+                return ChronoUnit.DAYS.between(inicio, dia) % intervalo == 0;
+            case MENSUAL:
+                if (dia.getDayOfWeek() != diaDelMes) return false;
+                if (ordinal == -1) return dia.plusWeeks(1).getMonth() != dia.getMonth();
+                return (dia.getDayOfMonth() - 1) / 7 + 1 == ordinal;
+            default:
+                return false; // FECHAS: solo sus fechas
+        }
+    }
+
+    // =========================================================================
+    //                        TEXTO (RRULE)
+    // =========================================================================
+    public String texto() {
+        StringBuilder sb = new StringBuilder();
+        if (tipo == Tipo.FECHAS) {
+            sb.append("RDATE=").append(listaFechas(fechas));
+        } else {
+            sb.append(rrule());
+            if (inicio != null) sb.append(";DTSTART=").append(inicio.format(FORMATO_FECHA));
+            if (!fechas.isEmpty()) sb.append(";RDATE=").append(listaFechas(fechas));
+        }
+        if (!exclusiones.isEmpty()) sb.append(";EXDATE=").append(listaFechas(exclusiones));
+        return sb.toString();
+    }
+
+    /**
+     * Solo la parte RRULE de iCalendar (sin DTSTART, RDATE ni EXDATE), o null para FECHAS.
+     */
+    public String rrule() {
+        switch (tipo) {
+            case SEMANAL: {
+                StringBuilder sb = new StringBuilder("FREQ=WEEKLY;BYDAY=");
+                boolean primero = true;
+                for (int i = 0; i < 7; i++) {
+                    if (!isDiaSemana(i)) continue;
+                    if (!primero) sb.append(',');
+                    sb.append(DIAS_ICAL[i]);
+                    primero = false;
+                }
+                return sb.toString();
+            }
+            case CADA_N_DIAS:
+                return "FREQ=DAILY;INTERVAL=" + intervalo;
+            case MENSUAL:
+                return "FREQ=MONTHLY;BYDAY=" + ordinal + DIAS_ICAL[diaDelMes.getValue() % 7];
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Texto corto para mostrar en la lista de alarmas.
+     */
+    public String descripcion() {
+        String[] nombres = {"domingo", "lunes", "martes", "miércoles", "jueves", "viernes", "sábado"};
+        String texto;
+        switch (tipo) {
+            case CADA_N_DIAS:
+                texto = intervalo == 1 ? "Todos los días" : "Cada " + intervalo + " días";
+                break;
+            case MENSUAL: {
+                String cual = ordinal == -1 ? "Último" : ordinal + "º";
+                texto = cual + " " + nombres[diaDelMes.getValue() % 7] + " del mes";
+                break;
+            }
+            case FECHAS:
+                texto = fechas.size() == 1 ? "El " + fechas.first() : fechas.size() + " fechas";
+                break;
+            default:
+                texto = "Semanal";
+        }
+        if (tipo != Tipo.FECHAS && !fechas.isEmpty()) texto += " y " + (fechas.size() == 1 ? "1 fecha" : fechas.size() + " fechas");
+        if (inicio != null && tipo != Tipo.CADA_N_DIAS) texto += " desde el " + inicio;
+        if (!exclusiones.isEmpty()) texto += " (excepto " + exclusiones.size() + ")";
+        return texto;
+    }
+
+    private static String listaFechas(Collection<LocalDate> fechas) {
+        StringBuilder sb = new StringBuilder();
+        for (LocalDate f : fechas) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(f.format(FORMATO_FECHA));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Lee el formato de {@link #texto()}.
+     *
+     * Con FREQ, RDATE añade sus fechas a las de la regla y DTSTART es el primer día en
+     * que puede sonar. Si la regla no sonaría desde hoy hasta ese día (el inicio ya pasó,
+     * o es la próxima fecha de la regla, como en lo exportado) no cambia nada y no se
+     * guarda: la regla es la misma que sin él.
+     * @param inicioPorDefecto ancla de FREQ=DAILY cuando no trae DTSTART
+     * @throws IllegalArgumentException si la regla no se entiende
+     */
+    public static ReglaRecurrencia parsear(String texto, LocalDate inicioPorDefecto) {
+        String frecuencia = null, porDia = null, rdate = null, exdate = null;
+        LocalDate dtstart = null;
+        int intervalo = 1;
+
+        for (String parte : texto.trim().toUpperCase(Locale.ROOT).split(";")) {
+            int igual = parte.indexOf('=');
+            if (igual < 0) throw new IllegalArgumentException("Parte de regla inválida: " + parte);
+            String clave = parte.substring(0, igual);
+            String valor = parte.substring(igual + 1);
+            switch (clave) {
+                case "FREQ": frecuencia = valor; break;
+                case "BYDAY": porDia = valor; break;
+                case "INTERVAL": intervalo = parsearEntero(valor, "INTERVAL"); break;
+                case "DTSTART": dtstart = parsearFecha(valor); break;
+                case "RDATE": rdate = valor; break;
+                case "EXDATE": exdate = valor; break;
+                case "WKST": break; // Sin efecto para reglas por día
+                default: throw new IllegalArgumentException("Parte de regla no soportada: " + clave);
+            }
+        }
+
+        ReglaRecurrencia regla;
+        if (frecuencia == null) {
+            if (rdate == null) throw new IllegalArgumentException("Regla sin FREQ ni RDATE");
+            regla = fechas(parsearFechas(rdate));
+        } else if ("WEEKLY".equals(frecuencia) || ("DAILY".equals(frecuencia) && porDia != null)) {
+            if (intervalo != 1) throw new IllegalArgumentException("INTERVAL semanal no soportado");
+            if (porDia == null) throw new IllegalArgumentException("Regla semanal sin BYDAY");
+            boolean[] dias = new boolean[7];
+            for (String d : porDia.split(",")) dias[indiceDia(d.trim())] = true;
+            regla = semanal(dias);
+        } else if ("DAILY".equals(frecuencia) && intervalo == 1) {
+            boolean[] todos = new boolean[7];
+            Arrays.fill(todos, true);
+            regla = semanal(todos);
+        } else if ("DAILY".equals(frecuencia)) {
+            LocalDate ancla = dtstart != null ? dtstart : inicioPorDefecto;
+            if (ancla == null) throw new IllegalArgumentException("Regla diaria sin DTSTART");
+            regla = cadaNDias(ancla, intervalo);
+        } else if ("MONTHLY".equals(frecuencia)) {
+            if (porDia == null || porDia.length() < 3 || porDia.contains(",")) {
+                throw new IllegalArgumentException("Regla mensual necesita un BYDAY como 2MO o -1FR");
+            }
+            String dia = porDia.substring(porDia.length() - 2);
+            int ordinal = parsearEntero(porDia.substring(0, porDia.length() - 2).replace("+", ""), "BYDAY");
+            regla = mensual(ordinal, DayOfWeek.of(((indiceDia(dia) + 6) % 7) + 1));
+        } else {
+            throw new IllegalArgumentException("Frecuencia no soportada: " + frecuencia);
+        }
+
+        if (exdate != null) regla = regla.excluyendo(parsearFechas(exdate));
+        if (frecuencia != null && rdate != null) regla = regla.anadiendo(parsearFechas(rdate));
+        if (frecuencia != null && dtstart != null && regla.getTipo() != Tipo.CADA_N_DIAS
+                && regla.siguiente(LocalDate.now(), dtstart.minusDays(1)) != null) {
+            regla = regla.desde(dtstart);
+        }
+        return regla;
+    }
+
+    private static int indiceDia(String dia) {
+        for (int i = 0; i < 7; i++) if (DIAS_ICAL[i].equals(dia)) return i;
+        throw new IllegalArgumentException("Día inválido: " + dia);
+    }
+
+    private static List<LocalDate> parsearFechas(String lista) {
+        List<LocalDate> resultado = new ArrayList<>();
+        for (String f : lista.split(",")) resultado.add(parsearFecha(f.trim()));
+        return resultado;
+    }
+
+    // AAAAMMDD, opcionalmente seguida de la hora (20261019 o 20261019T073000)
+    private static LocalDate parsearFecha(String valor) {
+        if (valor.length() < 8 || (valor.length() > 8 && valor.charAt(8) != 'T')) {
+            throw new IllegalArgumentException("Fecha inválida: " + valor);
+        }
+        try {
+            return LocalDate.parse(valor.substring(0, 8), FORMATO_FECHA);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Fecha inválida: " + valor, e);
+        }
+    }
+
+    private static int parsearEntero(String valor, String parte) {
+        try {
+            return Integer.parseInt(valor);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Número inválido en " + parte + ": " + valor, e);
+        }
+    }
+
+    // =========================================================================
+    //                        IGUALDAD
+    // =========================================================================
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ReglaRecurrencia)) return false;
+        ReglaRecurrencia r = (ReglaRecurrencia) o;
+        return tipo == r.tipo && diasSemana == r.diasSemana && intervalo == r.intervalo
+                && ordinal == r.ordinal && Objects.equals(inicio, r.inicio)
+                && diaDelMes == r.diaDelMes && fechas.equals(r.fechas) && exclusiones.equals(r.exclusiones);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(tipo, diasSemana, inicio, intervalo, ordinal, diaDelMes, fechas, exclusiones);
+    }
+
+    @Override
+    public String toString() { return texto(); }
+}
@@ -0,0 +1,239 @@
+package com.souris;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * SERVIDOR DE CONTROL LOCAL
+ * Escucha en un socket de dominio Unix (solo accesible desde esta máquina) con
+ * NIO no bloqueante: un único hilo atiende a todos los clientes con un Selector.
+ * Los lotes se ejecutan en dos hilos aparte: uno grande no frena a los demás clientes
+ * (el registro aplica cada lote de forma atómica, así que pueden ir a la vez).
+ * La respuesta vuelve al selector para escribirse.
+ *
+ * Protocolo: el cliente envía órdenes de texto UTF-8, una por línea, y termina el
+ * lote con una línea vacía o cerrando su lado de escritura. El servidor ejecuta el
+ * lote con {@link ComandosControl}, responde y cierra la conexión. Una conexión que
+ * se cierra sin enviar nada no ejecuta ningún lote: es la forma de comprobar si hay
+ * un servidor escuchando sin que la instancia en marcha haga nada.
+ *
+ * Puede abrirse antes de que haya con qué ejecutar las órdenes (el {@link Launcher}
+ * lo abre en cuanto es la instancia principal, antes de arrancar JavaFX y de cargar
+ * el archivo): los lotes que lleguen esperan en cola, y el cliente con ellos, hasta
+ * que {@link #atender(ComandosControl)} dice quién los ejecuta.
+ */
+public class ServidorControl {
+
+    // Tope por lote para que un cliente no pueda agotar la memoria
+    private static final int TAMANO_MAXIMO_LOTE = 64 * 1024 * 1024;
+    private static final int HILOS_TRABAJO = 2;
+
+    private final Path rutaSocket;
+    private final CompletableFuture<ComandosControl> comandos = new CompletableFuture<>();
+
+    private Selector selector;
+    private ServerSocketChannel servidor;
+    private Thread hilo;
+    private ExecutorService trabajador;
+    // Conexiones cuyo lote ya tiene respuesta: el selector pasa a escribirla
+    private final Queue<SelectionKey> respuestasListas = new ConcurrentLinkedQueue<>();
+
+    public ServidorControl(Path rutaSocket, ComandosControl comandos) {
+        this(rutaSocket);
+        atender(comandos);
+    }
+
+    /**
+     * Un servidor que acepta lotes pero no los ejecuta hasta {@link #atender(ComandosControl)}.
+     */
+    public ServidorControl(Path rutaSocket) {
+        this.rutaSocket = rutaSocket;
+    }
+
+    /**
+     * Empieza a ejecutar los lotes, también los que ya esperaban. Solo cuenta la primera vez.
+     */
+    public void atender(ComandosControl comandos) {
+        this.comandos.complete(comandos);
+    }
+
+    /**
+     * Ruta por defecto: un socket por usuario en la carpeta temporal del sistema.
+     */
+    public static Path rutaSocketPorDefecto() {
+        String usuario = System.getProperty("user.name", "usuario").replaceAll("[^A-Za-z0-9_-]", "_");
+        return Paths.get(System.getProperty("java.io.tmpdir"), "sourisalarm-" + usuario + ".sock");
+    }
+
+    public synchronized void iniciar() throws IOException {
+        if (hilo != null) return;
+
+        // Un archivo de socket que sobró de una ejecución anterior impide el bind
+        if (Files.exists(rutaSocket)) {
+            if (ClienteControl.hayServidor(rutaSocket)) {
+                throw new IOException("Ya hay un servidor de control escuchando en " + rutaSocket);
+            }
+            Files.delete(rutaSocket);
+        }
+
+        selector = Selector.open();
+        servidor = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        servidor.bind(UnixDomainSocketAddress.of(rutaSocket));
+        servidor.configureBlocking(false);
+        servidor.register(selector, SelectionKey.OP_ACCEPT);
+
+        trabajador = Executors.newFixedThreadPool(HILOS_TRABAJO, r -> {
+            Thread t = new Thread(r, "comandos-control");
+            t.setDaemon(true);
+            return t;
+        });
+        hilo = new Thread(this::bucle, "servidor-control");
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    public synchronized void detener() {
+        if (hilo == null) return;
+        hilo.interrupt();
+        selector.wakeup();
+        trabajador.shutdownNow();
+        hilo = null;
+    }
+
+    // =========================================================================
+    //                        BUCLE DEL SELECTOR
+    // =========================================================================
+    private void bucle() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                pasarAEscritura();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) aceptar();
+                        else if (key.isReadable()) leer(key);
+                        else if (key.isWritable()) escribir(key);
+                    } catch (IOException e) {
+                        cerrar(key); // Un cliente con problemas no tumba el servidor
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                for (SelectionKey key : selector.keys()) key.channel().close();
+                selector.close();
+                Files.deleteIfExists(rutaSocket);
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+
+    // Estado de cada cliente conectado
+    private static class Conexion {
+        final ByteArrayOutputStream entrada = new ByteArrayOutputStream();
+        boolean saltoAnterior = true; // Para detectar la línea vacía que cierra el lote
+        volatile ByteBuffer salida; // La pone el trabajador
+    }
+
+    private void aceptar() throws IOException {
+        SocketChannel cliente = servidor.accept();
+        if (cliente == null) return;
+        cliente.configureBlocking(false);
+        cliente.register(selector, SelectionKey.OP_READ, new Conexion());
+    }
+
+    private void leer(SelectionKey key) throws IOException {
+        SocketChannel canal = (SocketChannel) key.channel();
+        Conexion con = (Conexion) key.attachment();
+        ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+
+        int leidos = 0;
+        boolean completo = false;
+        while (!completo && (leidos = canal.read(buffer)) > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\r') continue;
+                if (b == '\n' && con.saltoAnterior) {
+                    completo = true;
+                    break;
+                }
+                con.saltoAnterior = b == '\n';
+                con.entrada.write(b);
+            }
+            buffer.clear();
+            if (con.entrada.size() > TAMANO_MAXIMO_LOTE) throw new IOException("Lote demasiado grande");
+        }
+        if (leidos < 0) {
+            // Cerró sin enviar nada: solo comprobaba si hay servidor (ClienteControl.hayServidor)
+            if (!completo && con.entrada.size() == 0 && con.saltoAnterior) {
+                cerrar(key);
+                return;
+            }
+            completo = true; // El cliente cerró su lado de escritura
+        }
+        if (!completo) return;
+
+        // Lote recibido: se ejecuta en el trabajador (o espera allí a que haya comandos);
+        // mientras tanto no se escucha a este cliente
+        key.interestOps(0);
+        String texto = con.entrada.toString(StandardCharsets.UTF_8);
+        List<String> lineas = Arrays.asList(texto.split("\n"));
+        trabajador.execute(() -> {
+            List<String> respuesta;
+            try {
+                respuesta = comandos.join().ejecutar(lineas);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                respuesta = List.of("ERR 0: " + e.getMessage());
+            }
+            con.salida = ByteBuffer.wrap((String.join("\n", respuesta) + "\n").getBytes(StandardCharsets.UTF_8));
+            respuestasListas.add(key);
+            selector.wakeup();
+        });
+    }
+
+    // Solo el hilo del selector cambia el interés de las claves
+    private void pasarAEscritura() {
+        SelectionKey key;
+        while ((key = respuestasListas.poll()) != null) {
+            if (key.isValid()) key.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void escribir(SelectionKey key) throws IOException {
+        SocketChannel canal = (SocketChannel) key.channel();
+        Conexion con = (Conexion) key.attachment();
+        canal.write(con.salida);
+        if (!con.salida.hasRemaining()) cerrar(key);
+    }
+
+    private void cerrar(SelectionKey key) {
+        key.cancel();
+        try { key.channel().close(); } catch (IOException ignorada) { }
+    }
+}
@@ -0,0 +1,286 @@
+package com.souris;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import javafx.application.Platform;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+
+/**
+ * LÍNEA DE TIEMPO
+ * Densidad de alarmas a lo largo de las 24 horas, dibujada en un único Canvas.
+ *
+ * - Los datos son 1440 contadores (uno por minuto) sacados de {@link IndiceBusqueda}
+ *   y su suma acumulada: cuántas alarmas caen en cualquier tramo es una resta.
+ *   Dibujar cuesta lo que el ancho en píxeles, no lo que el número de alarmas.
+ * - Rueda: zoom alrededor del cursor. Arrastrar: desplazarse. Pasar el ratón: ver el tramo.
+ * - Si cambian las alarmas solo se repintan las columnas cuyo valor cambió (todas
+ *   si cambia la escala); al mover el ratón, solo la columna anterior y la nueva.
+ */
+public class VistaLineaTiempo extends Pane {
+
+    private static final int MINUTOS_DIA = IndiceBusqueda.MINUTOS_DIA;
+    private static final double TRAMO_MINIMO = 30; // Zoom máximo: media hora a lo ancho
+    private static final double ALTO_CABECERA = 22;
+    private static final double ALTO_EJE = 18;
+
+    private static final Color FONDO = Color.web("#2d3436");
+    private static final Color BARRA = Color.web("#00cec9");
+    private static final Color BARRA_CURSOR = Color.web("#ff7675");
+    private static final Color MARCA = Color.web("#636e72");
+    private static final Color TEXTO = Color.web("#dfe6e9");
+
+    private final RegistroAlarmas registro;
+    private final Canvas lienzo = new Canvas();
+    private final AtomicBoolean actualizacionPendiente = new AtomicBoolean(false);
+    private final Consumer<RegistroAlarmas.Instantanea> oyente = inst -> programarActualizacion();
+
+    // acumulado[m] = alarmas con hora anterior al minuto m
+    private final int[] acumulado = new int[MINUTOS_DIA + 1];
+
+    // Minutos visibles: [inicio, inicio + tramo)
+    private double inicio = 0;
+    private double tramo = MINUTOS_DIA;
+
+    private int[] columnas = new int[0]; // Lo dibujado en cada columna de píxeles
+    private int escala = 1;              // Valor de la columna más alta (altura completa)
+    private int columnaCursor = -1;
+    private double arrastreX;
+
+    public VistaLineaTiempo(RegistroAlarmas registro) {
+        this.registro = registro;
+        getChildren().add(lienzo);
+        lienzo.widthProperty().bind(widthProperty());
+        lienzo.heightProperty().bind(heightProperty());
+        lienzo.widthProperty().addListener((obs, antes, ahora) -> redibujarTodo());
+        lienzo.heightProperty().addListener((obs, antes, ahora) -> redibujarTodo());
+
+        lienzo.setOnScroll(this::zoom);
+        lienzo.setOnMousePressed(e -> arrastreX = e.getX());
+        lienzo.setOnMouseDragged(this::arrastrar);
+        lienzo.setOnMouseMoved(e -> moverCursor(columnaEn(e.getX())));
+        lienzo.setOnMouseExited(e -> moverCursor(-1));
+
+        cargar(registro.instantanea());
+    }
+
+    /**
+     * Empieza a seguir los cambios del registro (al abrir la ventana).
+     */
+    public void conectar() {
+        registro.suscribir(oyente);
+        programarActualizacion();
+    }
+
+    /**
+     * Deja de seguirlos (al cerrarla): oculta no cuesta nada.
+     */
+    public void desconectar() {
+        registro.desuscribir(oyente);
+    }
+
+    // =========================================================================
+    //                        DATOS
+    // =========================================================================
+
+    // Varios cambios seguidos del registro se dibujan en una sola pasada (en el hilo FX)
+    private void programarActualizacion() {
+        if (!actualizacionPendiente.compareAndSet(false, true)) return;
+        Platform.runLater(() -> {
+            actualizacionPendiente.set(false);
+            cargar(registro.instantanea());
+            redibujarCambios();
+        });
+    }
+
+    private void cargar(RegistroAlarmas.Instantanea inst) {
+        IndiceBusqueda indice = inst.getBusqueda();
+        for (int m = 0; m < MINUTOS_DIA; m++) acumulado[m + 1] = acumulado[m] + indice.contarMinuto(m);
+    }
+
+    // Primer minuto de la columna x (el último es el primero de la siguiente, sin incluir)
+    private int minutoColumna(int x) {
+        double porPixel = tramo / columnas.length;
+        return Math.min(MINUTOS_DIA - 1, (int) Math.floor(inicio + x * porPixel));
+    }
+
+    private int finColumna(int x) {
+        int desde = minutoColumna(x);
+        int hasta = x + 1 < columnas.length ? minutoColumna(x + 1) : (int) Math.ceil(inicio + tramo);
+        return Math.min(MINUTOS_DIA, Math.max(desde + 1, hasta));
+    }
+
+    // Alarmas en la columna: una resta sobre la suma acumulada
+    private int valorColumna(int x) {
+        return acumulado[finColumna(x)] - acumulado[minutoColumna(x)];
+    }
+
+    // =========================================================================
+    //                        DIBUJO
+    // =========================================================================
+    private double altoGrafico() {
+        return Math.max(0, lienzo.getHeight() - ALTO_CABECERA - ALTO_EJE);
+    }
+
+    private void redibujarTodo() {
+        int ancho = (int) lienzo.getWidth();
+        if (ancho <= 0 || lienzo.getHeight() <= 0) return;
+        columnas = new int[ancho];
+        escala = 1;
+        for (int x = 0; x < ancho; x++) {
+            columnas[x] = valorColumna(x);
+            escala = Math.max(escala, columnas[x]);
+        }
+        if (columnaCursor >= ancho) columnaCursor = -1;
+
+        GraphicsContext g = lienzo.getGraphicsContext2D();
+        g.setFill(FONDO);
+        g.fillRect(0, 0, lienzo.getWidth(), lienzo.getHeight());
+        for (int x = 0; x < ancho; x++) dibujarColumna(g, x);
+        dibujarEje(g);
+        dibujarCabecera(g);
+    }
+
+    /**
+     * Tras un cambio de datos: solo las columnas cuyo valor cambió.
+     */
+    private void redibujarCambios() {
+        int ancho = columnas.length;
+        if (ancho == 0 || ancho != (int) lienzo.getWidth()) {
+            redibujarTodo();
+            return;
+        }
+        int[] nuevas = new int[ancho];
+        int maximo = 1;
+        for (int x = 0; x < ancho; x++) {
+            nuevas[x] = valorColumna(x);
+            maximo = Math.max(maximo, nuevas[x]);
+        }
+        if (maximo != escala) {
+            redibujarTodo(); // Cambió la escala: todas las alturas cambian
+            return;
+        }
+        GraphicsContext g = lienzo.getGraphicsContext2D();
+        for (int x = 0; x < ancho; x++) {
+            if (nuevas[x] == columnas[x]) continue;
+            columnas[x] = nuevas[x];
+            dibujarColumna(g, x);
+        }
+        dibujarCabecera(g);
+    }
+
+    private void dibujarColumna(GraphicsContext g, int x) {
+        double alto = altoGrafico();
+        g.setFill(FONDO);
+        g.fillRect(x, ALTO_CABECERA, 1, alto);
+        if (esMarca(x)) {
+            g.setFill(MARCA);
+            g.fillRect(x, ALTO_CABECERA, 1, alto);
+        }
+        if (columnas[x] == 0) return;
+        double barra = Math.max(1, alto * columnas[x] / escala);
+        g.setFill(x == columnaCursor ? BARRA_CURSOR : BARRA);
+        g.fillRect(x, ALTO_CABECERA + alto - barra, 1, barra);
+    }
+
+    // Cada cuánto se marca la hora, según el zoom
+    private int intervaloMarcas() {
+        if (tramo <= 60) return 5;
+        if (tramo <= 180) return 15;
+        if (tramo <= 480) return 30;
+        return 60;
+    }
+
+    // ¿Empieza en la columna x un nuevo intervalo de marcas?
+    private boolean esMarca(int x) {
+        if (x == 0) return false;
+        int intervalo = intervaloMarcas();
+        return minutoColumna(x) / intervalo != minutoColumna(x - 1) / intervalo;
+    }
+
+    private void dibujarEje(GraphicsContext g) {
+        double y = ALTO_CABECERA + altoGrafico();
+        g.setFill(FONDO);
+        g.fillRect(0, y, lienzo.getWidth(), ALTO_EJE);
+        g.setFill(TEXTO);
+        g.setFont(Font.font(10));
+        // Una etiqueta cada dos marcas si no caben
+        int intervalo = intervaloMarcas();
+        int paso = intervalo / (tramo / columnas.length) < 40 ? 2 : 1;
+        for (int x = 1; x < columnas.length; x++) {
+            if (!esMarca(x)) continue;
+            int minuto = minutoColumna(x) / intervalo * intervalo;
+            if ((minuto / intervalo) % paso == 0) g.fillText(formatoMinuto(minuto), x + 2, y + 13);
+        }
+    }
+
+    private void dibujarCabecera(GraphicsContext g) {
+        g.setFill(FONDO);
+        g.fillRect(0, 0, lienzo.getWidth(), ALTO_CABECERA);
+        g.setFill(TEXTO);
+        g.setFont(Font.font(12));
+        String texto;
+        if (columnaCursor >= 0) {
+            int desde = minutoColumna(columnaCursor);
+            int hasta = finColumna(columnaCursor);
+            String tramoTexto = hasta - desde == 1 ? formatoMinuto(desde) : formatoMinuto(desde) + "–" + formatoMinuto(hasta);
+            texto = tramoTexto + "   " + columnas[columnaCursor] + (columnas[columnaCursor] == 1 ? " alarma" : " alarmas");
+        } else {
+            texto = acumulado[MINUTOS_DIA] + " alarmas   " + formatoMinuto((int) inicio) + "–" + formatoMinuto((int) Math.ceil(inicio + tramo))
+                    + "   (rueda: zoom, arrastrar: mover)";
+        }
+        g.fillText(texto, 6, 15);
+    }
+
+    private static String formatoMinuto(int minuto) {
+        return String.format("%02d:%02d", minuto / 60, minuto % 60);
+    }
+
+    // =========================================================================
+    //                        RATÓN
+    // =========================================================================
+    private int columnaEn(double x) {
+        int columna = (int) x;
+        return columna >= 0 && columna < columnas.length ? columna : -1;
+    }
+
+    private void moverCursor(int columna) {
+        if (columna == columnaCursor) return;
+        int anterior = columnaCursor;
+        columnaCursor = columna;
+        GraphicsContext g = lienzo.getGraphicsContext2D();
+        if (anterior >= 0 && anterior < columnas.length) dibujarColumna(g, anterior);
+        if (columna >= 0) dibujarColumna(g, columna);
+        dibujarCabecera(g);
+    }
+
+    // Acerca o aleja dejando quieto el minuto bajo el cursor
+    private void zoom(ScrollEvent e) {
+        if (columnas.length == 0 || e.getDeltaY() == 0) return;
+        double fraccion = e.getX() / columnas.length;
+        double minuto = inicio + fraccion * tramo;
+        double nuevoTramo = Math.max(TRAMO_MINIMO, Math.min(MINUTOS_DIA, tramo * (e.getDeltaY() > 0 ? 0.8 : 1.25)));
+        if (nuevoTramo == tramo) return;
+        tramo = nuevoTramo;
+        mover(minuto - fraccion * tramo);
+        e.consume();
+    }
+
+    private void arrastrar(MouseEvent e) {
+        if (columnas.length == 0) return;
+        double desplazamiento = (e.getX() - arrastreX) / columnas.length * tramo;
+        arrastreX = e.getX();
+        mover(inicio - desplazamiento);
+        moverCursor(columnaEn(e.getX()));
+    }
+
+    private void mover(double nuevoInicio) {
+        inicio = Math.max(0, Math.min(MINUTOS_DIA - tramo, nuevoInicio));
+        redibujarTodo();
+    }
+}
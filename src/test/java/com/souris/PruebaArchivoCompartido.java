@@ -0,0 +1,392 @@
+package com.souris;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * PRUEBA DEL ARCHIVO COMPARTIDO
+ * Los "otros procesos" son JVM de verdad ({@link OtroProceso}) sobre el mismo
+ * archivo temporal: en un mismo proceso cada ruta solo se abre una vez, y los
+ * bloqueos del sistema son de todo el proceso. Se comprueba que lo que añaden y
+ * borran a la vez se fusiona sin perder nada, la fusión a tres bandas caso por
+ * caso, que el bloqueo exclusivo hace esperar, que un archivo dañado no se
+ * sobrescribe y que recargar (a mano o al vigilar) trae solo lo de los demás.
+ */
+class PruebaArchivoCompartido {
+
+    private static final boolean[] TODOS = {true, true, true, true, true, true, true};
+    private static final long ESPERA_PROCESO_S = 60;
+
+    @TempDir
+    Path carpeta;
+
+    private Path ruta;
+    private final RegistroAlarmas registro = new RegistroAlarmas();
+    private ArchivoCompartido archivo;
+    private final List<Alarma> iniciales = new ArrayList<>();
+
+    @BeforeEach
+    void crear() throws IOException {
+        ruta = carpeta.resolve("alarmas.dat");
+        for (int i = 0; i < 20; i++) iniciales.add(new Alarma(LocalTime.of(5, i), TODOS));
+        ArchivoCompartido.crear(ruta, iniciales);
+        archivo = ArchivoCompartido.abrir(ruta, registro);
+        archivo.cargar();
+    }
+
+    @AfterEach
+    void cerrar() {
+        archivo.cerrar();
+    }
+
+    private String id(int i) { return iniciales.get(i).getId(); }
+
+    private static Map<String, Alarma> porId(List<Alarma> alarmas) {
+        Map<String, Alarma> mapa = new HashMap<>();
+        for (Alarma a : alarmas) mapa.put(a.getId(), a);
+        return mapa;
+    }
+
+    private static long delGrupo(List<Alarma> alarmas, String grupo) {
+        return alarmas.stream().filter(a -> grupo.equals(a.getGrupo())).count();
+    }
+
+    // =========================================================================
+    //                        OTRO PROCESO
+    // =========================================================================
+
+    /**
+     * Lo que hace otra instancia de la app sobre el mismo archivo. Órdenes, en orden:
+     * agregar:GRUPO:N (N alarmas, guardando tras cada una), apagar:ID, borrar:ID
+     * y bloquear:MS (toma el bloqueo exclusivo y avisa con "BLOQUEADO").
+     */
+    static class OtroProceso {
+        public static void main(String[] args) throws Exception {
+            RegistroAlarmas registro = new RegistroAlarmas();
+            ArchivoCompartido archivo = ArchivoCompartido.abrir(Path.of(args[0]), registro);
+            archivo.cargar();
+            for (int i = 1; i < args.length; i++) {
+                String[] orden = args[i].split(":");
+                switch (orden[0]) {
+                    case "agregar":
+                        for (int n = 0; n < Integer.parseInt(orden[2]); n++) {
+                            registro.agregar(new Alarma(LocalTime.ofSecondOfDay(n * 60L), TODOS).conGrupoYEtiquetas(orden[1], null));
+                            archivo.guardarAlarmas();
+                        }
+                        break;
+                    case "apagar":
+                        registro.cambiarEstado(orden[1], false);
+                        archivo.guardarAlarmas();
+                        break;
+                    case "borrar":
+                        registro.eliminar(orden[1]);
+                        archivo.guardarAlarmas();
+                        break;
+                    case "bloquear": {
+                        Path bloqueo = Path.of(args[0] + ".lock");
+                        try (FileChannel canal = FileChannel.open(bloqueo, StandardOpenOption.READ,
+                                StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+                            canal.lock();
+                            System.out.println("BLOQUEADO");
+                            System.out.flush();
+                            Thread.sleep(Long.parseLong(orden[1]));
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IllegalArgumentException("Orden desconocida: " + args[i]);
+                }
+            }
+            archivo.cerrar();
+            System.out.println("OK");
+        }
+    }
+
+    private Process lanzar(String... ordenes) throws IOException {
+        List<String> comando = new ArrayList<>(List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                OtroProceso.class.getName(), ruta.toString()));
+        comando.addAll(Arrays.asList(ordenes));
+        return new ProcessBuilder(comando).redirectErrorStream(true).start();
+    }
+
+    // Espera a que termine bien y devuelve lo que escribió
+    private static String esperar(Process proceso) throws Exception {
+        String salida = new String(proceso.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertTrue(proceso.waitFor(ESPERA_PROCESO_S, TimeUnit.SECONDS), "El otro proceso no terminó");
+        assertEquals(0, proceso.exitValue(), salida);
+        return salida;
+    }
+
+    private void enOtroProceso(String... ordenes) throws Exception {
+        esperar(lanzar(ordenes));
+    }
+
+    // =========================================================================
+    //                        VARIOS PROCESOS A LA VEZ
+    // =========================================================================
+
+    @Test
+    void procesosALaVezNoPierdenNada() throws Exception {
+        List<String> uno = new ArrayList<>(List.of("agregar:p1:25"));
+        for (int i = 0; i < 5; i++) uno.add("borrar:" + id(i));
+        List<String> dos = new ArrayList<>(List.of("agregar:p2:25"));
+        for (int i = 5; i < 10; i++) dos.add("apagar:" + id(i));
+        for (int i = 10; i < 13; i++) dos.add("borrar:" + id(i));
+        Process p1 = lanzar(uno.toArray(new String[0]));
+        Process p2 = lanzar(dos.toArray(new String[0]));
+
+        // Este proceso también escribe mientras tanto
+        for (int n = 0; n < 25; n++) {
+            registro.agregar(new Alarma(LocalTime.ofSecondOfDay(n * 60L), TODOS).conGrupoYEtiquetas("p0", null));
+            archivo.guardarAlarmas();
+        }
+        registro.eliminar(id(13));
+        registro.eliminar(id(14));
+        archivo.guardarAlarmas();
+        esperar(p1);
+        esperar(p2);
+        archivo.recargar();
+
+        List<Alarma> enDisco = ArchivoCompartido.leerAlarmas(ruta);
+        assertEquals(20 - 5 - 3 - 2 + 3 * 25, enDisco.size());
+        for (String grupo : List.of("p0", "p1", "p2")) assertEquals(25, delGrupo(enDisco, grupo), grupo);
+        Map<String, Alarma> disco = porId(enDisco);
+        for (int i = 0; i < 20; i++) {
+            Alarma a = disco.get(id(i));
+            if (i < 5 || (i >= 10 && i < 15)) assertNull(a, "Borrada: " + i);
+            else assertEquals(i >= 10, a.isActiva(), "Apagada solo si " + i + " < 10");
+        }
+        // Y el registro de este proceso quedó igual que el disco
+        Map<String, Alarma> nuestras = porId(registro.instantanea().getAlarmas());
+        assertEquals(disco.keySet(), nuestras.keySet());
+        for (Alarma a : enDisco) assertTrue(a.mismoContenido(nuestras.get(a.getId())), a.getId());
+    }
+
+    @Test
+    void hilosDelMismoProcesoSeTurnan() throws Exception {
+        // Dos bloqueos del sistema solapados en la misma JVM lanzarían OverlappingFileLockException
+        ExecutorService hilos = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> tareas = new ArrayList<>();
+            for (int h = 0; h < 4; h++) {
+                int hilo = h;
+                tareas.add(hilos.submit(() -> {
+                    for (int i = 0; i < 30; i++) {
+                        switch (hilo) {
+                            case 0:
+                                registro.agregar(new Alarma(LocalTime.of(9, i), TODOS));
+                                archivo.guardarAlarmas();
+                                break;
+                            case 1:
+                                archivo.recargar();
+                                break;
+                            case 2:
+                                assertNotNull(ArchivoCompartido.leerAlarmas(ruta));
+                                break;
+                            default: {
+                                AppState preferencias = ArchivoCompartido.leerPreferencias(ruta);
+                                preferencias.nivelVolumen = i / 30.0;
+                                ArchivoCompartido.guardarPreferencias(ruta, preferencias);
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> t : tareas) t.get(60, TimeUnit.SECONDS);
+        } finally {
+            hilos.shutdownNow();
+        }
+        assertEquals(50, ArchivoCompartido.leerAlarmas(ruta).size());
+        assertEquals(29 / 30.0, ArchivoCompartido.leerPreferencias(ruta).nivelVolumen);
+    }
+
+    @Test
+    void unaRutaSeAbreUnaVezPorProceso() {
+        assertThrows(IllegalStateException.class, () -> ArchivoCompartido.abrir(ruta, new RegistroAlarmas()));
+        assertThrows(IllegalStateException.class, () -> ArchivoCompartido.abrir(carpeta.resolve(".").resolve("alarmas.dat"), new RegistroAlarmas()));
+        archivo.cerrar();
+        assertThrows(IllegalStateException.class, () -> archivo.guardarAlarmas());
+        archivo = ArchivoCompartido.abrir(ruta, new RegistroAlarmas());
+    }
+
+    // =========================================================================
+    //                        FUSIÓN A TRES BANDAS
+    // =========================================================================
+
+    @Test
+    void fusionCasoPorCaso() throws Exception {
+        // Aquí, sin guardar: se apaga la 0, se borra la 1 y se añade una
+        registro.cambiarEstado(id(0), false);
+        registro.eliminar(id(1));
+        Alarma nueva = new Alarma(LocalTime.of(12, 0), TODOS);
+        registro.agregar(nueva);
+        // Allí: se borra la 0 (la editamos: gana lo nuestro), se apaga la 1 (la borramos:
+        // gana lo nuestro), se apaga la 2, se borra la 3 y se añade una
+        enOtroProceso("borrar:" + id(0), "apagar:" + id(1), "apagar:" + id(2), "borrar:" + id(3), "agregar:otro:1");
+
+        assertEquals(3, archivo.guardarAlarmas(), "Llegan la 2 apagada, la 3 borrada y la nueva de allí");
+        Map<String, Alarma> disco = porId(ArchivoCompartido.leerAlarmas(ruta));
+        Map<String, Alarma> nuestras = porId(registro.instantanea().getAlarmas());
+        for (Map<String, Alarma> alarmas : List.of(disco, nuestras)) {
+            assertEquals(20 - 2 + 2, alarmas.size());
+            assertFalse(alarmas.get(id(0)).isActiva());
+            assertNull(alarmas.get(id(1)));
+            assertFalse(alarmas.get(id(2)).isActiva());
+            assertNull(alarmas.get(id(3)));
+            assertTrue(alarmas.containsKey(nueva.getId()));
+            assertEquals(1, delGrupo(new ArrayList<>(alarmas.values()), "otro"));
+        }
+    }
+
+    @Test
+    void lasPreferenciasNoTocanLasAlarmas() throws Exception {
+        enOtroProceso("apagar:" + id(0));
+        AppState preferencias = new AppState();
+        preferencias.nombreFuente = "Otra";
+        archivo.guardar(preferencias);
+        assertEquals("Otra", ArchivoCompartido.leerPreferencias(ruta).nombreFuente);
+        assertFalse(porId(registro.instantanea().getAlarmas()).get(id(0)).isActiva());
+
+        // guardarPreferencias copia las alarmas tal cual y no cambia la revisión
+        byte[] antes = Files.readAllBytes(ruta);
+        preferencias.nombreFuente = "Tercera";
+        ArchivoCompartido.guardarPreferencias(ruta, preferencias);
+        assertEquals(0, archivo.recargar());
+        assertEquals(ArchivoCompartido.leerAlarmas(ruta).size(), 20);
+        assertFalse(Arrays.equals(antes, Files.readAllBytes(ruta)));
+    }
+
+    // =========================================================================
+    //                        BLOQUEO
+    // =========================================================================
+
+    @Test
+    void guardarEsperaAlBloqueoDeOtro() throws Exception {
+        Process otro = lanzar("bloquear:1500");
+        BufferedReader salida = new BufferedReader(new InputStreamReader(otro.getInputStream(), StandardCharsets.UTF_8));
+        assertEquals("BLOQUEADO", salida.readLine());
+
+        long antes = System.nanoTime();
+        registro.agregar(new Alarma(LocalTime.of(12, 0), TODOS));
+        archivo.guardarAlarmas();
+        long ms = (System.nanoTime() - antes) / 1_000_000;
+        assertTrue(ms >= 1000, "Guardó sin esperar al bloqueo (" + ms + " ms)");
+        assertEquals("OK", salida.readLine());
+        assertTrue(otro.waitFor(ESPERA_PROCESO_S, TimeUnit.SECONDS));
+        assertEquals(21, ArchivoCompartido.leerAlarmas(ruta).size());
+    }
+
+    // =========================================================================
+    //                        ARCHIVO DAÑADO
+    // =========================================================================
+
+    @Test
+    void unArchivoDanadoNoSeSobrescribe() throws Exception {
+        byte[] datos = Files.readAllBytes(ruta);
+        datos[datos.length - 10] ^= 0x5A;
+        Files.write(ruta, datos);
+
+        registro.agregar(new Alarma(LocalTime.of(12, 0), TODOS));
+        IOException e = assertThrows(IOException.class, () -> archivo.guardarAlarmas());
+        assertTrue(e.getMessage().contains("dañado"), e.getMessage());
+        assertArrayEquals(datos, Files.readAllBytes(ruta), "No se escribió nada encima");
+        assertThrows(IOException.class, () -> ArchivoCompartido.leerAlarmas(ruta));
+        assertThrows(IOException.class, () -> ArchivoCompartido.guardarPreferencias(ruta, new AppState()));
+        assertArrayEquals(datos, Files.readAllBytes(ruta));
+
+        // Ni truncado ni con otra cosa dentro
+        Files.write(ruta, Arrays.copyOf(datos, datos.length / 2));
+        assertThrows(IOException.class, () -> ArchivoCompartido.leerAlarmas(ruta));
+        Files.writeString(ruta, "no son alarmas");
+        assertThrows(IOException.class, () -> ArchivoCompartido.leerAlarmas(ruta));
+
+        archivo.cerrar();
+        archivo = ArchivoCompartido.abrir(ruta, new RegistroAlarmas());
+        assertThrows(IOException.class, () -> archivo.cargar());
+    }
+
+    // =========================================================================
+    //                        RECARGAR
+    // =========================================================================
+
+    @Test
+    void recargarTraeSoloLoDeOtros() throws Exception {
+        assertEquals(0, archivo.recargar(), "Nada cambió");
+        registro.agregar(new Alarma(LocalTime.of(12, 0), TODOS));
+        archivo.guardarAlarmas();
+        assertEquals(0, archivo.recargar(), "Lo escribimos nosotros");
+
+        Alarma intacta = porId(registro.instantanea().getAlarmas()).get(id(5));
+        enOtroProceso("apagar:" + id(0), "borrar:" + id(1));
+        assertEquals(2, archivo.recargar());
+        Map<String, Alarma> nuestras = porId(registro.instantanea().getAlarmas());
+        assertFalse(nuestras.get(id(0)).isActiva());
+        assertNull(nuestras.get(id(1)));
+        assertTrue(intacta == nuestras.get(id(5)), "Las que no cambiaron conservan su instancia");
+        assertEquals(0, archivo.recargar());
+    }
+
+    @Test
+    void vigilarAvisaDeLosCambiosDeOtros() throws Exception {
+        CountDownLatch cambio = new CountDownLatch(1);
+        archivo.vigilar(() -> {
+            try {
+                if (archivo.recargar() > 0) cambio.countDown();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        enOtroProceso("apagar:" + id(0));
+        assertTrue(cambio.await(30, TimeUnit.SECONDS), "No llegó el aviso");
+        assertFalse(porId(registro.instantanea().getAlarmas()).get(id(0)).isActiva());
+    }
+
+    @Test
+    void sinArchivoNoHayNada() throws IOException {
+        Path otra = carpeta.resolve("nueva" + File.separator + "..").resolve("vacia.dat");
+        ArchivoCompartido vacio = ArchivoCompartido.abrir(otra, new RegistroAlarmas());
+        try {
+            assertNull(vacio.cargar());
+            assertNull(ArchivoCompartido.leerPreferencias(otra));
+            assertTrue(ArchivoCompartido.leerAlarmas(otra).isEmpty());
+            ArchivoCompartido.crear(otra, List.of());
+            assertThrows(IOException.class, () -> ArchivoCompartido.crear(otra, List.of()));
+        } finally {
+            vacio.cerrar();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.souris;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * PRUEBA DE LA CONSULTA DE OCURRENCIAS
+ * Lo que devuelve, ya ordenado y cortado en el límite, debe ser lo mismo que
+ * generar todas las ocurrencias día a día, ordenarlas y quedarse con las primeras.
+ */
+class PruebaConsultaOcurrencias {
+
+    private static final LocalDate HOY = LocalDate.of(2026, 10, 19);
+    private static final boolean[] LABORABLES = {false, true, true, true, true, true, false};
+
+    // La cuenta directa: todos los días, todas las alarmas
+    private static List<ConsultaOcurrencias.Ocurrencia> todas(List<Alarma> alarmas, LocalDateTime desde,
+                                                             LocalDateTime hasta, int limite) {
+        List<ConsultaOcurrencias.Ocurrencia> resultado = new ArrayList<>();
+        for (Alarma a : alarmas) {
+            if (!a.isActiva()) continue;
+            if (a.getReglaEfectiva() == null) {
+                LocalDateTime cuando = a.proximaOcurrencia(desde.minusNanos(1));
+                if (cuando != null && cuando.isBefore(hasta)) resultado.add(new ConsultaOcurrencias.Ocurrencia(cuando, a));
+                continue;
+            }
+            for (LocalDate d = desde.toLocalDate(); !d.isAfter(hasta.toLocalDate()); d = d.plusDays(1)) {
+                LocalDateTime cuando = d.atTime(a.getHora());
+                if (a.debeSonarEl(d) && !cuando.isBefore(desde) && cuando.isBefore(hasta)) {
+                    resultado.add(new ConsultaOcurrencias.Ocurrencia(cuando, a));
+                }
+            }
+        }
+        resultado.sort(Comparator.comparing(ConsultaOcurrencias.Ocurrencia::cuando).thenComparing(o -> o.alarma().getId()));
+        return resultado.size() > limite ? resultado.subList(0, limite) : resultado;
+    }
+
+    @Test
+    void igualQueLaCuentaDirecta() {
+        Random azar = new Random(29);
+        List<ReglaRecurrencia> reglas = List.of(
+                ReglaRecurrencia.semanal(LABORABLES),
+                ReglaRecurrencia.cadaNDias(HOY.minusDays(5), 3),
+                ReglaRecurrencia.mensual(-1, DayOfWeek.FRIDAY),
+                ReglaRecurrencia.fechas(List.of(HOY.plusDays(2), HOY.plusDays(40))),
+                ReglaRecurrencia.cadaNDias(HOY, 2).excluyendo(List.of(HOY.plusDays(4))));
+        List<Alarma> alarmas = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            LocalTime hora = LocalTime.of(azar.nextInt(24), azar.nextInt(4) * 15);
+            Alarma a = i % 7 == 0
+                    ? new Alarma(hora, new boolean[7]) // Una sola vez
+                    : new Alarma(hora, reglas.get(azar.nextInt(reglas.size())));
+            alarmas.add(i % 11 == 0 ? a.conActiva(false) : a);
+        }
+
+        for (int caso = 0; caso < 200; caso++) {
+            LocalDateTime desde = HOY.atStartOfDay().plusMinutes(azar.nextInt(60 * 24 * 10));
+            LocalDateTime hasta = desde.plusMinutes(1 + azar.nextInt(60 * 24 * 60));
+            int limite = 1 + azar.nextInt(150);
+            assertEquals(todas(alarmas, desde, hasta, limite), ConsultaOcurrencias.entre(alarmas, desde, hasta, limite),
+                    desde + " .. " + hasta + " límite " + limite);
+        }
+    }
+
+    @Test
+    void unRangoEnormeNoSeRecorreEntero() {
+        List<Alarma> alarmas = new ArrayList<>();
+        for (int i = 0; i < 500; i++) alarmas.add(new Alarma(LocalTime.of(i % 24, i % 60), LABORABLES));
+        LocalDateTime desde = HOY.atTime(12, 0);
+        // Cien años con 500 alarmas serían millones de ocurrencias; con el límite sale al momento
+        long antes = System.nanoTime();
+        List<ConsultaOcurrencias.Ocurrencia> primeras = ConsultaOcurrencias.entre(alarmas, desde, desde.plusYears(100), 10);
+        long ms = (System.nanoTime() - antes) / 1_000_000;
+        assertEquals(10, primeras.size());
+        assertEquals(todas(alarmas, desde, desde.plusDays(2), 10), primeras);
+        assertTrue(ms < 2_000, "Tardó " + ms + " ms");
+    }
+
+    @Test
+    void casosVacios() {
+        List<Alarma> alarmas = List.of(new Alarma(LocalTime.of(7, 0), LABORABLES));
+        LocalDateTime desde = HOY.atTime(6, 0);
+        assertTrue(ConsultaOcurrencias.entre(alarmas, desde, desde, 10).isEmpty());
+        assertTrue(ConsultaOcurrencias.entre(alarmas, desde, desde.plusDays(1), 0).isEmpty());
+        assertEquals(1, ConsultaOcurrencias.delDia(alarmas, HOY, 10).size());
+        assertTrue(ConsultaOcurrencias.delDia(alarmas, HOY.plusDays(5), 10).isEmpty(), "Sábado");
+    }
+}
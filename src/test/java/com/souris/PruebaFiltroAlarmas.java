@@ -0,0 +1,107 @@
+package com.souris;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * PRUEBA DEL FILTRO DE ALARMAS
+ * El filtro de la API ({@link FiltroAlarmas}) recorre las alarmas una a una y la
+ * barra de búsqueda ({@link BusquedaAlarmas}) usa los índices de la instantánea:
+ * el mismo criterio debe seleccionar las mismas alarmas, también tras cambios.
+ */
+class PruebaFiltroAlarmas {
+
+    private static final String[] DIAS = {"dom", "lun", "mar", "mié", "jue", "vie", "sáb"};
+
+    private static List<Alarma> variadas(Random azar) {
+        List<ReglaRecurrencia> reglas = List.of(
+                ReglaRecurrencia.semanal(new boolean[]{false, true, true, true, true, true, false}),
+                ReglaRecurrencia.semanal(new boolean[]{true, false, false, false, false, false, true}),
+                ReglaRecurrencia.cadaNDias(LocalDate.of(2026, 10, 19), 7),
+                ReglaRecurrencia.cadaNDias(LocalDate.of(2026, 10, 19), 3),
+                ReglaRecurrencia.mensual(-1, DayOfWeek.FRIDAY),
+                ReglaRecurrencia.fechas(List.of(LocalDate.of(2026, 12, 24))));
+        List<Alarma> alarmas = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            LocalTime hora = LocalTime.of(azar.nextInt(24), azar.nextInt(60));
+            Alarma a = i % 5 == 0 ? new Alarma(hora, new boolean[7]) : new Alarma(hora, reglas.get(azar.nextInt(reglas.size())));
+            alarmas.add(a.conActiva(azar.nextBoolean()));
+        }
+        return alarmas;
+    }
+
+    private static List<Alarma> filtrar(String filtro, List<Alarma> alarmas) {
+        FiltroAlarmas f = FiltroAlarmas.parsear(filtro);
+        List<Alarma> resultado = new ArrayList<>();
+        for (Alarma a : alarmas) if (f.test(a)) resultado.add(a);
+        return resultado;
+    }
+
+    private static void igualQueLaBusqueda(RegistroAlarmas.Instantanea inst) {
+        List<Alarma> alarmas = inst.getAlarmas();
+        for (int d = 0; d < 7; d++) {
+            assertEquals(BusquedaAlarmas.parsear(DIAS[d]).buscar(inst), filtrar("dia=" + d, alarmas), "dia=" + d);
+            assertEquals(BusquedaAlarmas.parsear(DIAS[d] + " on 06:00-11:59").buscar(inst),
+                    filtrar("dia=" + d + " estado=on hora=06:00-11:59", alarmas), "dia=" + d + " con hora");
+        }
+        assertEquals(BusquedaAlarmas.parsear("una-vez").buscar(inst), filtrar("una-vez", alarmas));
+    }
+
+    @Test
+    void mismosDiasQueLaBusqueda() {
+        RegistroAlarmas registro = new RegistroAlarmas();
+        registro.agregarTodas(variadas(new Random(33)));
+        igualQueLaBusqueda(registro.instantanea());
+
+        // Tras cambios (el índice se deriva del anterior), incluida una que pasa a ser de una vez
+        Alarma primera = registro.instantanea().getAlarmas().get(1);
+        registro.eliminar(primera.getId());
+        registro.agregar(new Alarma(LocalTime.of(7, 0), new boolean[7]));
+        registro.agregar(new Alarma(LocalTime.of(7, 0), ReglaRecurrencia.mensual(1, DayOfWeek.MONDAY)));
+        igualQueLaBusqueda(registro.instantanea());
+    }
+
+    @Test
+    void lasDeUnaVezNoTienenDia() {
+        List<Alarma> alarmas = List.of(new Alarma(LocalTime.of(7, 0), new boolean[7]));
+        for (int d = 0; d < 7; d++) assertTrue(filtrar("dia=" + d, alarmas).isEmpty(), "dia=" + d);
+        assertEquals(alarmas, filtrar("una-vez", alarmas));
+    }
+
+    @Test
+    void losGruposNoDistinguenMayusculas() {
+        RegistroAlarmas registro = new RegistroAlarmas();
+        registro.agregarTodas(List.of(
+                new Alarma(LocalTime.of(22, 0), new boolean[7]).conGrupoYEtiquetas("noche", List.of()),
+                new Alarma(LocalTime.of(23, 0), new boolean[7]).conGrupoYEtiquetas("Noche", List.of()),
+                new Alarma(LocalTime.of(7, 0), new boolean[7]).conGrupoYEtiquetas("Mañana", List.of())));
+        assertEquals(List.of("mañana", "noche"), registro.instantanea().getEtiquetas().getGrupos());
+
+        // Un cambio derivado del índice anterior que sólo toca mayúsculas no crea otro grupo
+        registro.aplicar(lista -> lista.set(2, lista.get(2).conGrupoYEtiquetas("NOCHE", List.of())));
+        RegistroAlarmas.Instantanea inst = registro.instantanea();
+        assertEquals(List.of("noche"), inst.getEtiquetas().getGrupos());
+        assertEquals(3, inst.getEtiquetas().contarGrupo(" Noche "));
+        assertEquals(3, filtrar("grupo=NOCHE", inst.getAlarmas()).size());
+
+        registro.cambiarEstadoGrupo("Noche", false);
+        for (Alarma a : registro.instantanea().getAlarmas()) assertTrue(!a.isActiva(), a.getGrupo());
+    }
+
+    @Test
+    void terminosQueNoSeEntienden() {
+        for (String filtro : List.of("", "dia=7", "estado=quizás", "hora=25:00", "color=rojo", "lunes")) {
+            assertThrows(RuntimeException.class, () -> FiltroAlarmas.parsear(filtro), filtro);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.souris;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * PRUEBA DEL GESTOR DE PERFILES
+ * La revisión de cada minuto no debe tocar el disco si nada cambió: el índice
+ * solo se escribe cuando cambia algún resumen o el perfil activo, y quien solo
+ * usa el principal no tiene carpeta de perfiles.
+ */
+class PruebaGestorPerfiles {
+
+    private static final boolean[] TODOS = {true, true, true, true, true, true, true};
+
+    @TempDir
+    Path carpeta;
+
+    private Path perfiles;
+    private Path indice;
+    private final RegistroAlarmas registro = new RegistroAlarmas();
+    private PlanificadorAlarmas planificador;
+    private GestorPerfiles gestor;
+
+    @BeforeEach
+    void crear() throws IOException {
+        Path principal = carpeta.resolve("alarma_config.dat");
+        ArchivoCompartido.crear(principal, List.of());
+        perfiles = carpeta.resolve("perfiles");
+        indice = perfiles.resolve("indice.dat");
+        planificador = new PlanificadorAlarmas(registro, d -> {});
+        gestor = new GestorPerfiles(principal, perfiles, registro, planificador, GestorPerfiles.PRESUPUESTO_POR_DEFECTO);
+    }
+
+    @AfterEach
+    void cerrar() {
+        gestor.detener();
+        planificador.detener();
+    }
+
+    @Test
+    void soloConElPrincipalNoHayCarpeta() {
+        gestor.revisar();
+        registro.agregar(new Alarma(LocalTime.of(7, 0), TODOS));
+        gestor.revisar();
+        gestor.detener();
+        assertFalse(Files.exists(perfiles));
+    }
+
+    @Test
+    void elIndiceSoloSeEscribeSiCambia() throws IOException {
+        gestor.crear("Sede");
+        gestor.revisar();
+        assertTrue(Files.exists(indice));
+
+        // Nada cambió: la siguiente revisión no lo vuelve a escribir
+        Files.delete(indice);
+        gestor.revisar();
+        assertFalse(Files.exists(indice));
+
+        // Una alarma nueva en el activo cambia su resumen
+        registro.agregar(new Alarma(LocalTime.of(7, 0), TODOS));
+        gestor.revisar();
+        assertTrue(Files.exists(indice));
+
+        // Cambiar de perfil también
+        Files.delete(indice);
+        gestor.activar("Sede", () -> registro.reemplazarTodas(List.of()));
+        assertTrue(Files.exists(indice));
+        assertEquals("Sede", gestor.getActivo());
+    }
+}
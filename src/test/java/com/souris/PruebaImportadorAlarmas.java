@@ -0,0 +1,326 @@
+package com.souris;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * PRUEBA DE IMPORTAR Y EXPORTAR
+ * Lo exportado en CSV o iCalendar se vuelve a importar igual; los ejemplos del
+ * formato CSV se leen también sin cabecera; y de iCalendar, el TRIGGER del VALARM
+ * y el TZID de DTSTART mueven la hora (o, si no se puede, el evento es un error).
+ */
+class PruebaImportadorAlarmas {
+
+    private static final boolean[] LABORABLES = {false, true, true, true, true, true, false};
+
+    @TempDir
+    Path carpeta;
+
+    private final RegistroAlarmas registro = new RegistroAlarmas();
+
+    private ImportadorAlarmas.Resultado importar(String nombre, String... lineas) throws IOException {
+        Path archivo = carpeta.resolve(nombre);
+        Files.write(archivo, List.of(lineas), StandardCharsets.UTF_8);
+        return new ImportadorAlarmas(registro).importar(archivo.toFile());
+    }
+
+    private Alarma unica() {
+        assertEquals(1, registro.instantanea().tamano());
+        return registro.instantanea().getAlarmas().get(0);
+    }
+
+    // Un VEVENT con lo que se le pase en medio
+    private static String[] evento(String... propiedades) {
+        String[] lineas = new String[propiedades.length + 4];
+        lineas[0] = "BEGIN:VCALENDAR";
+        lineas[1] = "BEGIN:VEVENT";
+        System.arraycopy(propiedades, 0, lineas, 2, propiedades.length);
+        lineas[lineas.length - 2] = "END:VEVENT";
+        lineas[lineas.length - 1] = "END:VCALENDAR";
+        return lineas;
+    }
+
+    // =========================================================================
+    //                        IDA Y VUELTA
+    // =========================================================================
+
+    private static List<Alarma> variadas() {
+        LocalDate dentroDeUnAnio = LocalDate.now().plusYears(1);
+        return List.of(
+                new Alarma(LocalTime.of(7, 30), LABORABLES),
+                new Alarma(LocalTime.of(21, 0), new boolean[7]).conActiva(false),
+                new Alarma(LocalTime.of(8, 0), ReglaRecurrencia.mensual(-1, DayOfWeek.FRIDAY)),
+                new Alarma(LocalTime.of(6, 15), ReglaRecurrencia.cadaNDias(LocalDate.of(2026, 10, 19), 3)
+                        .excluyendo(List.of(LocalDate.of(2026, 10, 22)))),
+                new Alarma(LocalTime.of(9, 45), ReglaRecurrencia.fechas(List.of(dentroDeUnAnio, dentroDeUnAnio.plusDays(7)))),
+                new Alarma(LocalTime.of(6, 0), LABORABLES)
+                        .conGrupoYEtiquetas("Turno mañana", List.of("noche", "equipo 2")),
+                new Alarma(LocalTime.of(22, 0), LABORABLES)
+                        .conGrupoYEtiquetas("Con \"comillas\", comas; y \\", List.of("c;d", "e \"f\"")),
+                new Alarma(LocalTime.of(5, 0), ReglaRecurrencia.semanal(LABORABLES)
+                        .desde(LocalDate.now().plusMonths(2)).anadiendo(List.of(LocalDate.now().plusDays(3)))));
+    }
+
+    private void idaYVuelta(String nombre) throws IOException {
+        List<Alarma> originales = variadas();
+        File archivo = carpeta.resolve(nombre).toFile();
+        new ExportadorAlarmas().exportar(originales, archivo);
+
+        ImportadorAlarmas.Resultado r = new ImportadorAlarmas(registro).importar(archivo);
+        assertEquals(0, r.getErrores(), r.getDetalleErrores().toString());
+        assertEquals(originales.size(), r.getImportadas());
+        Map<Alarma.Clave, Boolean> leidas = new HashMap<>();
+        for (Alarma a : registro.instantanea().getAlarmas()) leidas.put(a.getClave(), a.isActiva());
+        for (Alarma a : originales) {
+            assertEquals(a.isActiva(), leidas.get(a.getClave()), "No vuelve igual: " + a.getClave());
+        }
+        for (Alarma a : registro.instantanea().getAlarmas()) {
+            if (a.getGrupo() != null && a.getGrupo().startsWith("Con")) assertEquals("Con \"comillas\", comas; y \\", a.getGrupo());
+        }
+
+        // Importarlo otra vez solo da duplicadas
+        ImportadorAlarmas.Resultado otra = new ImportadorAlarmas(registro).importar(archivo);
+        assertEquals(0, otra.getImportadas());
+        assertEquals(originales.size(), otra.getDuplicadas());
+    }
+
+    @Test
+    void csvDeIdaYVuelta() throws IOException {
+        idaYVuelta("alarmas.csv");
+    }
+
+    @Test
+    void iCalendarDeIdaYVuelta() throws IOException {
+        idaYVuelta("alarmas.ics");
+    }
+
+    @Test
+    void lasLineasLargasSePliegan() throws IOException {
+        LocalDate hoy = LocalDate.now();
+        List<LocalDate> fechas = new ArrayList<>();
+        List<LocalDate> excluidas = new ArrayList<>();
+        for (int i = 1; i <= 60; i++) {
+            fechas.add(hoy.plusDays(i));
+            excluidas.add(hoy.plusWeeks(i));
+        }
+        Alarma larga = new Alarma(LocalTime.of(6, 45), ReglaRecurrencia.semanal(LABORABLES).anadiendo(fechas).excluyendo(excluidas))
+                .conGrupoYEtiquetas("Señales de año nuevo: ñandú, pingüino y €".repeat(3), List.of());
+        File archivo = carpeta.resolve("larga.ics").toFile();
+        new ExportadorAlarmas().exportar(List.of(larga), archivo);
+
+        String texto = Files.readString(archivo.toPath(), StandardCharsets.UTF_8);
+        for (String l : texto.split("\r\n")) {
+            assertTrue(l.getBytes(StandardCharsets.UTF_8).length <= 75, "Línea de más de 75 octetos: " + l);
+        }
+        assertTrue(texto.contains("\r\n "), "Nada se plegó");
+
+        ImportadorAlarmas.Resultado r = new ImportadorAlarmas(registro).importar(archivo);
+        assertEquals(0, r.getErrores(), r.getDetalleErrores().toString());
+        Alarma leida = unica();
+        assertEquals(larga.getClave(), leida.getClave());
+        assertEquals(larga.getGrupo(), leida.getGrupo());
+        assertEquals(larga.getRegla().getFechas(), leida.getRegla().getFechas());
+        assertEquals(larga.getRegla().getExclusiones(), leida.getRegla().getExclusiones());
+    }
+
+    // =========================================================================
+    //                        CSV
+    // =========================================================================
+
+    @Test
+    void losEjemplosSeLeenSinCabecera() throws IOException {
+        ImportadorAlarmas.Resultado r = importar("ejemplos.csv",
+                "# Los ejemplos del formato",
+                "07:30,0111110,true",
+                "21:00",
+                "08:00,-,true,\"FREQ=MONTHLY;BYDAY=-1FR\"",
+                "06:00,0111110,true,,Turno mañana,\"noche,equipo 2\"",
+                "05:00,0000001,false,\"FREQ=WEEKLY;BYDAY=SA,SU\",Fin de semana,guardia");
+        assertEquals(0, r.getErrores(), r.getDetalleErrores().toString());
+        assertEquals(5, r.getImportadas());
+
+        Map<LocalTime, Alarma> porHora = new HashMap<>();
+        for (Alarma a : registro.instantanea().getAlarmas()) porHora.put(a.getHora(), a);
+        assertEquals("0111110", porHora.get(LocalTime.of(7, 30)).getMascaraDias());
+        assertTrue(porHora.get(LocalTime.of(21, 0)).esUnaSolaVez());
+        assertEquals(ReglaRecurrencia.mensual(-1, DayOfWeek.FRIDAY), porHora.get(LocalTime.of(8, 0)).getRegla());
+        Alarma turno = porHora.get(LocalTime.of(6, 0));
+        assertEquals("Turno mañana", turno.getGrupo());
+        assertEquals(List.of("equipo 2", "noche"), turno.getEtiquetas());
+        Alarma finDeSemana = porHora.get(LocalTime.of(5, 0));
+        assertEquals("Fin de semana", finDeSemana.getGrupo());
+        assertEquals(List.of("guardia"), finDeSemana.getEtiquetas());
+        assertFalse(finDeSemana.isActiva());
+    }
+
+    @Test
+    void unaReglaSinComillasSeQuedaConElRestoDeLaLinea() throws IOException {
+        // El formato antiguo: la regla lleva comas sin comillas
+        ImportadorAlarmas.Resultado r = importar("antiguo.csv", "08:00,-,true,FREQ=WEEKLY;BYDAY=MO,WE,FR");
+        assertEquals(0, r.getErrores(), r.getDetalleErrores().toString());
+        Alarma a = unica();
+        assertEquals("0101010", a.getMascaraDias());
+        assertNull(a.getGrupo());
+    }
+
+    @Test
+    void cadaLineaMalaEsUnError() throws IOException {
+        ImportadorAlarmas.Resultado r = importar("errores.csv",
+                "hora,dias,activa",
+                "25:00,0111110,true",
+                "07:00,01111,true",
+                "07:00,0111110,quizás",
+                "07:00,0111110,true");
+        assertEquals(1, r.getImportadas());
+        assertEquals(3, r.getErrores());
+        assertTrue(r.getDetalleErrores().get(0).startsWith("Línea 2:"), r.getDetalleErrores().toString());
+        assertTrue(r.getDetalleErrores().get(2).startsWith("Línea 4:"), r.getDetalleErrores().toString());
+    }
+
+    // =========================================================================
+    //                        iCALENDAR: VALARM
+    // =========================================================================
+
+    @Test
+    void elTriggerAdelantaLaAlarma() throws IOException {
+        ImportadorAlarmas.Resultado r = importar("aviso.ics", evento(
+                "DTSTART:20261019T073000",
+                "RRULE:FREQ=WEEKLY;BYDAY=MO",
+                "BEGIN:VALARM",
+                "ACTION:DISPLAY",
+                "DESCRIPTION:Quince minutos antes",
+                "TRIGGER:-PT15M",
+                "END:VALARM",
+                "SUMMARY:Reunión"));
+        assertEquals(0, r.getErrores(), r.getDetalleErrores().toString());
+        Alarma a = unica();
+        assertEquals(LocalTime.of(7, 15), a.getHora());
+        assertEquals("0100000", a.getMascaraDias());
+    }
+
+    @Test
+    void formasDelTrigger() throws IOException {
+        importar("aviso.ics", evento("DTSTART:20261019T073000", "BEGIN:VALARM",
+                "TRIGGER;RELATED=START:+PT1H30M", "END:VALARM"));
+        assertEquals(LocalTime.of(9, 0), unica().getHora());
+
+        // Dos VALARM iguales son el mismo aviso
+        RegistroAlarmas otro = new RegistroAlarmas();
+        Path archivo = carpeta.resolve("dos.ics");
+        Files.write(archivo, List.of(evento("DTSTART:20261019T073000",
+                "BEGIN:VALARM", "TRIGGER:PT0S", "END:VALARM",
+                "BEGIN:VALARM", "TRIGGER:PT0S", "END:VALARM")), StandardCharsets.UTF_8);
+        assertEquals(1, new ImportadorAlarmas(otro).importar(archivo.toFile()).getImportadas());
+        assertEquals(LocalTime.of(7, 30), otro.instantanea().getAlarmas().get(0).getHora());
+    }
+
+    @Test
+    void unAvisoDeOtroDiaSoloValeSiNoSeRepite() throws IOException {
+        // Una sola vez: suena la víspera
+        importar("una.ics", evento("DTSTART:20261019T001000", "BEGIN:VALARM", "TRIGGER:-PT15M", "END:VALARM"));
+        assertEquals(LocalTime.of(23, 55), unica().getHora());
+
+        // Cada lunes: sus días serían los domingos, y la regla no se mueve sola
+        ImportadorAlarmas.Resultado r = importar("semanal.ics", evento("DTSTART:20261019T001000",
+                "RRULE:FREQ=WEEKLY;BYDAY=MO", "BEGIN:VALARM", "TRIGGER:-P1W", "END:VALARM"));
+        assertEquals(0, r.getImportadas());
+        assertEquals(1, r.getErrores());
+        assertTrue(r.getDetalleErrores().get(0).contains("otro día"), r.getDetalleErrores().toString());
+    }
+
+    @Test
+    void triggersQueNoSeSoportan() throws IOException {
+        List<String> triggers = List.of(
+                "TRIGGER;RELATED=END:-PT5M",
+                "TRIGGER;VALUE=DATE-TIME:20261019T070000Z",
+                "TRIGGER:quince minutos");
+        for (String trigger : triggers) {
+            ImportadorAlarmas.Resultado r = importar("mal.ics", evento("DTSTART:20261019T073000",
+                    "BEGIN:VALARM", trigger, "END:VALARM"));
+            assertEquals(0, r.getImportadas(), trigger);
+            assertEquals(1, r.getErrores(), trigger);
+            // El error lleva la línea del evento y la del TRIGGER
+            assertTrue(r.getDetalleErrores().get(0).startsWith("Línea 2: línea 5:"), r.getDetalleErrores().toString());
+        }
+        ImportadorAlarmas.Resultado r = importar("distintos.ics", evento("DTSTART:20261019T073000",
+                "BEGIN:VALARM", "TRIGGER:-PT15M", "END:VALARM",
+                "BEGIN:VALARM", "TRIGGER:-PT5M", "END:VALARM"));
+        assertEquals(1, r.getErrores());
+        assertEquals(0, registro.instantanea().tamano());
+    }
+
+    // =========================================================================
+    //                        iCALENDAR: RRULE, RDATE Y DTSTART
+    // =========================================================================
+
+    @Test
+    void rruleConRdateYUnInicioFuturo() throws IOException {
+        LocalDate inicio = LocalDate.now().plusMonths(2).with(DayOfWeek.MONDAY);
+        LocalDate suelta = LocalDate.now().plusDays(3);
+        ImportadorAlarmas.Resultado r = importar("futuro.ics", evento(
+                "DTSTART:" + inicio.format(DateTimeFormatter.BASIC_ISO_DATE) + "T073000",
+                "RRULE:FREQ=WEEKLY;BYDAY=MO",
+                "RDATE;VALUE=DATE:" + suelta.format(DateTimeFormatter.BASIC_ISO_DATE)));
+        assertEquals(0, r.getErrores(), r.getDetalleErrores().toString());
+        ReglaRecurrencia regla = unica().getRegla();
+        assertEquals(suelta, regla.siguiente(LocalDate.now(), inicio), "Antes del inicio solo la fecha suelta");
+        assertEquals(inicio, regla.siguiente(suelta.plusDays(1), inicio.plusDays(7)));
+    }
+
+    // =========================================================================
+    //                        iCALENDAR: ZONAS
+    // =========================================================================
+
+    @Test
+    void dtstartConZonaSePasaALaHoraLocal() throws IOException {
+        LocalTime esperada = LocalDateTime.of(2026, 10, 19, 7, 30).atZone(ZoneId.of("Asia/Tokyo"))
+                .withZoneSameInstant(ZoneId.systemDefault()).toLocalTime();
+        importar("tokio.ics", evento("DTSTART;TZID=Asia/Tokyo:20261019T073000"));
+        assertEquals(esperada, unica().getHora());
+
+        RegistroAlarmas otro = new RegistroAlarmas();
+        Path archivo = carpeta.resolve("utc.ics");
+        Files.write(archivo, List.of(evento("DTSTART:20261019T120000Z")), StandardCharsets.UTF_8);
+        new ImportadorAlarmas(otro).importar(archivo.toFile());
+        assertEquals(LocalDateTime.of(2026, 10, 19, 12, 0).atZone(ZoneId.of("UTC"))
+                .withZoneSameInstant(ZoneId.systemDefault()).toLocalTime(), otro.instantanea().getAlarmas().get(0).getHora());
+    }
+
+    @Test
+    void laZonaLocalNoCambiaNada() throws IOException {
+        String local = ZoneId.systemDefault().getId();
+        ImportadorAlarmas.Resultado r = importar("local.ics", evento("DTSTART;TZID=\"" + local + "\":20261019T073000",
+                "RRULE:FREQ=WEEKLY;BYDAY=MO,TU"));
+        assertEquals(0, r.getErrores(), r.getDetalleErrores().toString());
+        assertEquals(LocalTime.of(7, 30), unica().getHora());
+        assertEquals("0110000", unica().getMascaraDias());
+    }
+
+    @Test
+    void unaZonaDesconocidaEsUnError() throws IOException {
+        ImportadorAlarmas.Resultado r = importar("marte.ics", evento("DTSTART;TZID=Marte/Olimpo:20261019T073000"));
+        assertEquals(1, r.getErrores());
+        assertTrue(r.getDetalleErrores().get(0).contains("Marte/Olimpo"), r.getDetalleErrores().toString());
+    }
+}
@@ -0,0 +1,276 @@
+package com.souris;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * PRUEBA DEL ÍNDICE DE PRÓXIMAS ALARMAS
+ * Zonas fijas con cambios de hora conocidos (Madrid en 2026: el 29 de marzo de
+ * 02:00 a 03:00 y el 25 de octubre de 03:00 a 02:00), las dos políticas de cada
+ * caso y los cambios de zona, que deben dar lo mismo que un índice calculado de
+ * cero pero sin tocar las entradas que no cambian.
+ */
+class PruebaIndiceProximasAlarmas {
+
+    private static final ZoneId MADRID = ZoneId.of("Europe/Madrid");
+    private static final ZoneId UTC = ZoneId.of("UTC");
+    private static final ZoneId TOKIO = ZoneId.of("Asia/Tokyo");
+    private static final ZoneId NUEVA_YORK = ZoneId.of("America/New_York");
+    private static final boolean[] TODOS = {true, true, true, true, true, true, true};
+
+    private static IndiceProximasAlarmas indice(ZoneId zona, IndiceProximasAlarmas.Hueco hueco,
+                                                IndiceProximasAlarmas.Solapamiento solapamiento) {
+        return new IndiceProximasAlarmas(zona, hueco, solapamiento);
+    }
+
+    private static Alarma diaria(int hora, int minuto) {
+        return new Alarma(LocalTime.of(hora, minuto), TODOS);
+    }
+
+    private static Instant instante(IndiceProximasAlarmas indice, Alarma a) {
+        IndiceProximasAlarmas.Entrada e = indice.buscar(a.getId());
+        return e == null ? null : indice.instante(e);
+    }
+
+    // =========================================================================
+    //                        HUECO Y HORA REPETIDA
+    // =========================================================================
+
+    @Test
+    void huecoDesplazarSuenaTrasElSalto() {
+        IndiceProximasAlarmas indice = indice(MADRID, IndiceProximasAlarmas.Hueco.DESPLAZAR, IndiceProximasAlarmas.Solapamiento.PRIMERA);
+        Alarma a = diaria(2, 30);
+        indice.actualizar(a, LocalDateTime.parse("2026-03-28T12:00"));
+        // 02:30 no existe: suena a las 03:30 de verano (01:30 UTC)
+        assertEquals(Instant.parse("2026-03-29T01:30:00Z"), instante(indice, a));
+        assertEquals(LocalDateTime.parse("2026-03-29T02:30"), indice.buscar(a.getId()).getNominal());
+        assertEquals(indice.getProximoDisparo(), instante(indice, a));
+    }
+
+    @Test
+    void huecoOmitirPasaAlDiaSiguiente() {
+        IndiceProximasAlarmas indice = indice(MADRID, IndiceProximasAlarmas.Hueco.OMITIR, IndiceProximasAlarmas.Solapamiento.PRIMERA);
+        Alarma a = diaria(2, 30);
+        indice.actualizar(a, LocalDateTime.parse("2026-03-28T12:00"));
+        assertEquals(Instant.parse("2026-03-30T00:30:00Z"), instante(indice, a));
+    }
+
+    @Test
+    void huecoOmitirSinMasFechasSaleDelIndice() {
+        IndiceProximasAlarmas indice = indice(MADRID, IndiceProximasAlarmas.Hueco.OMITIR, IndiceProximasAlarmas.Solapamiento.PRIMERA);
+        Alarma soloEseDia = new Alarma(LocalTime.of(2, 30), ReglaRecurrencia.fechas(List.of(LocalDate.of(2026, 3, 29))));
+        indice.actualizar(soloEseDia, LocalDateTime.parse("2026-03-28T12:00"));
+        assertNull(indice.buscar(soloEseDia.getId()));
+        assertNull(indice.getProximoDisparo());
+    }
+
+    @Test
+    void horaRepetidaPrimeraOSegunda() {
+        Alarma a = diaria(2, 30);
+        LocalDateTime desde = LocalDateTime.parse("2026-10-24T12:00");
+
+        IndiceProximasAlarmas primera = indice(MADRID, IndiceProximasAlarmas.Hueco.DESPLAZAR, IndiceProximasAlarmas.Solapamiento.PRIMERA);
+        primera.actualizar(a, desde);
+        assertEquals(Instant.parse("2026-10-25T00:30:00Z"), instante(primera, a)); // Aún en verano (+02:00)
+
+        IndiceProximasAlarmas segunda = indice(MADRID, IndiceProximasAlarmas.Hueco.DESPLAZAR, IndiceProximasAlarmas.Solapamiento.SEGUNDA);
+        segunda.actualizar(a, desde);
+        assertEquals(Instant.parse("2026-10-25T01:30:00Z"), instante(segunda, a)); // Ya en invierno (+01:00)
+    }
+
+    @Test
+    void horaRepetidaNoSuenaDosVeces() {
+        IndiceProximasAlarmas indice = indice(MADRID, IndiceProximasAlarmas.Hueco.DESPLAZAR, IndiceProximasAlarmas.Solapamiento.PRIMERA);
+        Alarma a = diaria(2, 30);
+        indice.actualizar(a, LocalDateTime.parse("2026-10-24T12:00"));
+        // Tras sonar, el planificador la avanza desde su hora nominal: la siguiente es al día siguiente
+        indice.actualizar(a, indice.buscar(a.getId()).getNominal());
+        assertEquals(LocalDateTime.parse("2026-10-26T02:30"), indice.buscar(a.getId()).getNominal());
+    }
+
+    @Test
+    void cambiarPoliticasRecalculaSoloLasCercanas() {
+        IndiceProximasAlarmas indice = indice(MADRID, IndiceProximasAlarmas.Hueco.DESPLAZAR, IndiceProximasAlarmas.Solapamiento.PRIMERA);
+        Alarma enHueco = diaria(2, 30);
+        Alarma lejana = diaria(9, 0);
+        indice.actualizar(enHueco, LocalDateTime.parse("2026-03-28T12:00"));
+        indice.actualizar(lejana, LocalDateTime.parse("2026-03-28T12:00"));
+        IndiceProximasAlarmas.Entrada entradaLejana = indice.buscar(lejana.getId());
+
+        indice.cambiarPoliticas(IndiceProximasAlarmas.Hueco.OMITIR, IndiceProximasAlarmas.Solapamiento.PRIMERA);
+        assertEquals(Instant.parse("2026-03-30T00:30:00Z"), instante(indice, enHueco));
+        assertSame(entradaLejana, indice.buscar(lejana.getId()));
+
+        // Y de vuelta: el día omitido deja de estarlo (se recalcula desde el mismo punto)
+        indice.cambiarPoliticas(IndiceProximasAlarmas.Hueco.DESPLAZAR, IndiceProximasAlarmas.Solapamiento.PRIMERA);
+        assertEquals(Instant.parse("2026-03-29T01:30:00Z"), instante(indice, enHueco));
+        assertSame(entradaLejana, indice.buscar(lejana.getId()));
+    }
+
+    // =========================================================================
+    //                        CAMBIOS DE ZONA
+    // =========================================================================
+
+    @Test
+    void alEsteLoQueElRelojSeSaltoPasaAManana() {
+        IndiceProximasAlarmas indice = indice(UTC, IndiceProximasAlarmas.Hueco.DESPLAZAR, IndiceProximasAlarmas.Solapamiento.PRIMERA);
+        Alarma diez = diaria(10, 0);
+        Alarma veinte = diaria(20, 0);
+        LocalDateTime ahora = LocalDateTime.parse("2026-06-01T08:00"); // UTC
+        indice.actualizar(diez, ahora);
+        indice.actualizar(veinte, ahora);
+        IndiceProximasAlarmas.Entrada entradaVeinte = indice.buscar(veinte.getId());
+
+        // En Tokio son las 17:00: las 10:00 de hoy ya pasaron
+        indice.cambiarZona(TOKIO, LocalDateTime.parse("2026-06-01T17:00"));
+        assertEquals(LocalDateTime.parse("2026-06-02T10:00"), indice.buscar(diez.getId()).getNominal());
+        assertEquals(Instant.parse("2026-06-01T11:00:00Z"), instante(indice, veinte));
+        assertSame(entradaVeinte, indice.buscar(veinte.getId()), "Una entrada que sigue valiendo no se recalcula");
+        assertEquals(Instant.parse("2026-06-01T11:00:00Z"), indice.getProximoDisparo());
+    }
+
+    @Test
+    void alOesteLoQueYaSonoHoyVuelveASonar() {
+        IndiceProximasAlarmas indice = indice(UTC, IndiceProximasAlarmas.Hueco.DESPLAZAR, IndiceProximasAlarmas.Solapamiento.PRIMERA);
+        Alarma siete = diaria(7, 0);
+        Alarma mediodia = diaria(12, 0);
+        // Las 07:00 acaban de sonar (el planificador avanza desde la hora nominal) y son las 08:00 UTC
+        indice.actualizar(siete, LocalDateTime.parse("2026-06-01T07:00"));
+        indice.actualizar(mediodia, LocalDateTime.parse("2026-06-01T03:00"));
+        IndiceProximasAlarmas.Entrada entradaMediodia = indice.buscar(mediodia.getId());
+
+        // En Nueva York son las 04:00: las 07:00 de hoy aún no llegaron
+        indice.cambiarZona(NUEVA_YORK, LocalDateTime.parse("2026-06-01T04:00"));
+        assertEquals(LocalDateTime.parse("2026-06-01T07:00"), indice.buscar(siete.getId()).getNominal());
+        assertEquals(Instant.parse("2026-06-01T11:00:00Z"), instante(indice, siete));
+        assertSame(entradaMediodia, indice.buscar(mediodia.getId()));
+        assertEquals(Instant.parse("2026-06-01T16:00:00Z"), instante(indice, mediodia));
+    }
+
+    @Test
+    void laZonaNuevaTieneUnCambioDeHora() {
+        IndiceProximasAlarmas indice = indice(UTC, IndiceProximasAlarmas.Hueco.DESPLAZAR, IndiceProximasAlarmas.Solapamiento.PRIMERA);
+        Alarma enHueco = diaria(2, 30);
+        indice.actualizar(enHueco, LocalDateTime.parse("2026-03-28T10:00"));
+        assertEquals(LocalDateTime.parse("2026-03-29T02:30"), indice.buscar(enHueco.getId()).getNominal());
+
+        // En UTC las 02:30 existen; en Madrid, no
+        indice.cambiarZona(MADRID, LocalDateTime.parse("2026-03-28T11:00"));
+        assertEquals(Instant.parse("2026-03-29T01:30:00Z"), instante(indice, enHueco));
+    }
+
+    @Test
+    void laZonaViejaTeniaUnHuecoOmitido() {
+        IndiceProximasAlarmas indice = indice(MADRID, IndiceProximasAlarmas.Hueco.OMITIR, IndiceProximasAlarmas.Solapamiento.PRIMERA);
+        Alarma enHueco = diaria(2, 30);
+        indice.actualizar(enHueco, LocalDateTime.parse("2026-03-28T11:00"));
+        assertEquals(LocalDateTime.parse("2026-03-30T02:30"), indice.buscar(enHueco.getId()).getNominal());
+
+        // En UTC ese día ya no tiene hueco: vuelve a sonar el 29
+        indice.cambiarZona(UTC, LocalDateTime.parse("2026-03-28T10:00"));
+        assertEquals(Instant.parse("2026-03-29T02:30:00Z"), instante(indice, enHueco));
+    }
+
+    @Test
+    void mismaZonaNoTocaNada() {
+        IndiceProximasAlarmas indice = indice(MADRID, IndiceProximasAlarmas.Hueco.DESPLAZAR, IndiceProximasAlarmas.Solapamiento.PRIMERA);
+        Alarma a = diaria(9, 0);
+        indice.actualizar(a, LocalDateTime.parse("2026-06-01T08:00"));
+        IndiceProximasAlarmas.Entrada antes = indice.buscar(a.getId());
+        indice.cambiarZona(MADRID, LocalDateTime.parse("2026-06-01T20:00"));
+        assertSame(antes, indice.buscar(a.getId()));
+    }
+
+    /**
+     * Muchas alarmas calculadas desde distintos momentos pasados, cambios de zona a
+     * uno y otro lado cerca de cambios de hora: cada entrada debe quedar igual que en
+     * un índice nuevo calculado desde la hora local nueva.
+     */
+    @Test
+    void cambioDeZonaIgualQueRecalcularTodo() {
+        ZoneId[] zonas = {UTC, MADRID, NUEVA_YORK, TOKIO, ZoneId.of("Australia/Lord_Howe"),
+                ZoneId.of("America/Santiago"), ZoneId.of("Pacific/Kiritimati"), ZoneId.of("Pacific/Pago_Pago")};
+        Instant[] momentos = {Instant.parse("2026-03-28T22:00:00Z"), Instant.parse("2026-03-29T00:45:00Z"),
+                Instant.parse("2026-10-24T23:30:00Z"), Instant.parse("2026-10-25T01:10:00Z"),
+                Instant.parse("2026-03-07T14:00:00Z"), Instant.parse("2026-04-04T15:20:00Z"),
+                Instant.parse("2026-06-15T12:00:00Z"), Instant.parse("2026-11-01T06:30:00Z")};
+        Random aleatorio = new Random(7);
+
+        for (int caso = 0; caso < 200; caso++) {
+            ZoneId vieja = zonas[aleatorio.nextInt(zonas.length)];
+            ZoneId nueva = zonas[aleatorio.nextInt(zonas.length)];
+            Instant ahora = momentos[aleatorio.nextInt(momentos.length)];
+            IndiceProximasAlarmas.Hueco hueco = IndiceProximasAlarmas.Hueco.values()[aleatorio.nextInt(2)];
+            IndiceProximasAlarmas.Solapamiento solapamiento = IndiceProximasAlarmas.Solapamiento.values()[aleatorio.nextInt(2)];
+
+            IndiceProximasAlarmas indice = indice(vieja, hueco, solapamiento);
+            LocalDateTime ahoraVieja = LocalDateTime.ofInstant(ahora, vieja);
+            List<Alarma> alarmas = new ArrayList<>();
+            for (int i = 0; i < 60; i++) {
+                boolean[] dias = new boolean[7];
+                for (int d = 0; d < 7; d++) dias[d] = aleatorio.nextInt(3) > 0;
+                Alarma a = new Alarma(LocalTime.of(aleatorio.nextInt(24), aleatorio.nextInt(4) * 15), dias);
+                alarmas.add(a);
+                // Calculada hace entre 0 y 30 horas, como tras sonar o al sincronizar
+                indice.actualizar(a, ahoraVieja.minusMinutes(aleatorio.nextInt(30 * 60)));
+                // Si ya venció, el planificador la habría hecho sonar y avanzado
+                IndiceProximasAlarmas.Entrada e;
+                while ((e = indice.buscar(a.getId())) != null && !indice.instante(e).isAfter(ahora)) {
+                    indice.actualizar(a, e.getNominal());
+                }
+            }
+
+            LocalDateTime ahoraNueva = LocalDateTime.ofInstant(ahora, nueva);
+            // Sin cambio no hay nada que comparar; y dentro de la hora repetida un índice
+            // nuevo puede dar la primera pasada, que ya es pasado
+            if (vieja.equals(nueva) || nueva.getRules().getValidOffsets(ahoraNueva).size() > 1) continue;
+            indice.cambiarZona(nueva, ahoraNueva);
+
+            IndiceProximasAlarmas deCero = indice(nueva, hueco, solapamiento);
+            for (Alarma a : alarmas) deCero.actualizar(a, ahoraNueva);
+            for (Alarma a : alarmas) {
+                assertEquals(instante(deCero, a), instante(indice, a),
+                        "caso " + caso + ": " + vieja + " -> " + nueva + " a las " + ahora + ", alarma " + a.getHora()
+                                + " " + a.getMascaraDias() + " (" + hueco + ", " + solapamiento + ")");
+            }
+            assertEquals(deCero.getProximoDisparo(), indice.getProximoDisparo());
+        }
+    }
+
+    @Test
+    void cambioDeZonaNoRecalculaLoQueSigueValiendo() {
+        IndiceProximasAlarmas indice = indice(UTC, IndiceProximasAlarmas.Hueco.DESPLAZAR, IndiceProximasAlarmas.Solapamiento.PRIMERA);
+        LocalDateTime calculadas = LocalDateTime.parse("2026-06-01T00:00");
+        List<Alarma> alarmas = new ArrayList<>();
+        for (int i = 0; i < 24 * 4; i++) {
+            Alarma a = diaria(i / 4, (i % 4) * 15);
+            alarmas.add(a);
+            indice.actualizar(a, calculadas);
+        }
+        List<IndiceProximasAlarmas.Entrada> antes = new ArrayList<>();
+        for (Alarma a : alarmas) antes.add(indice.buscar(a.getId()));
+
+        // A las 06:00 UTC se pasa a Tokio (15:00): solo cambian las de hoy hasta las 15:00
+        // (las de las 00:00 ya estaban calculadas para mañana)
+        indice.cambiarZona(TOKIO, LocalDateTime.parse("2026-06-01T15:00"));
+        for (int i = 0; i < alarmas.size(); i++) {
+            LocalTime hora = alarmas.get(i).getHora();
+            boolean yaPaso = hora.isAfter(LocalTime.MIDNIGHT) && !hora.isAfter(LocalTime.of(15, 0));
+            if (yaPaso) assertNotSame(antes.get(i), indice.buscar(alarmas.get(i).getId()), hora.toString());
+            else assertSame(antes.get(i), indice.buscar(alarmas.get(i).getId()), hora.toString());
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.souris;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * PRUEBA DEL REGISTRO DE ALARMAS
+ * Lo que cada instantánea dice que cambió desde una versión anterior, aplicado a
+ * esa versión, debe dar exactamente la actual; y el planificador, que se guía
+ * por esos cambios, debe acabar con el mismo próximo disparo que si lo calculara
+ * de cero.
+ */
+class PruebaRegistroAlarmas {
+
+    private static final boolean[] TODOS = {true, true, true, true, true, true, true};
+
+    private static Map<String, Alarma> porId(RegistroAlarmas.Instantanea inst) {
+        Map<String, Alarma> mapa = new HashMap<>();
+        for (Alarma a : inst.getAlarmas()) mapa.put(a.getId(), a);
+        return mapa;
+    }
+
+    @Test
+    void losCambiosLlevanDeUnaVersionALaOtra() {
+        Random azar = new Random(7);
+        RegistroAlarmas registro = new RegistroAlarmas();
+        List<RegistroAlarmas.Instantanea> versiones = new ArrayList<>();
+        versiones.add(registro.instantanea());
+        for (int i = 0; i < 200; i++) {
+            List<Alarma> actuales = registro.instantanea().getAlarmas();
+            Alarma alguna = actuales.isEmpty() ? null : actuales.get(azar.nextInt(actuales.size()));
+            switch (alguna == null ? 0 : azar.nextInt(6)) {
+                case 0 -> registro.agregar(new Alarma(LocalTime.of(azar.nextInt(24), azar.nextInt(60)), TODOS));
+                case 1 -> registro.eliminar(alguna.getId());
+                case 2 -> registro.cambiarEstado(alguna.getId(), !alguna.isActiva());
+                case 3 -> registro.aplicarCambios(List.of(
+                        new RegistroAlarmas.CambioExterno(alguna.getId(), alguna, alguna.conGrupoYEtiquetas("Casa", List.of())),
+                        new RegistroAlarmas.CambioExterno("nueva-" + i, null, new Alarma(LocalTime.of(6, i % 60), TODOS))));
+                case 4 -> registro.cambiarEstadoGrupo("Casa", azar.nextBoolean());
+                default -> registro.aplicar(lista -> lista.add(0, lista.remove(lista.size() - 1)));
+            }
+            versiones.add(registro.instantanea());
+        }
+
+        // Cada versión desde la anterior, y la última desde todas las que aún recuerda
+        int conCambios = 0;
+        for (int i = 1; i < versiones.size(); i++) {
+            if (comprobar(versiones.get(i - 1), versiones.get(i))) conCambios++;
+        }
+        assertTrue(conCambios > versiones.size() / 2, "Casi ninguna versión sabía sus cambios");
+        RegistroAlarmas.Instantanea ultima = registro.instantanea();
+        for (RegistroAlarmas.Instantanea vieja : versiones) comprobar(vieja, ultima);
+        assertTrue(ultima.cambiosDesde(ultima.getVersion()).cambiadas().isEmpty());
+        assertNull(ultima.cambiosDesde(0), "Tan atrás ya no se recuerda");
+    }
+
+    // Si "nueva" sabe qué cambió desde "vieja", aplicarlo a "vieja" da "nueva"
+    private static boolean comprobar(RegistroAlarmas.Instantanea vieja, RegistroAlarmas.Instantanea nueva) {
+        RegistroAlarmas.Cambios c = nueva.cambiosDesde(vieja.getVersion());
+        if (c == null) return false;
+        Map<String, Alarma> mapa = porId(vieja);
+        for (Alarma a : c.cambiadas()) mapa.put(a.getId(), a);
+        for (String id : c.borradas()) assertNotNull(mapa.remove(id), "Borrada sin estar: " + id);
+        assertEquals(porId(nueva), mapa, "De la versión " + vieja.getVersion() + " a la " + nueva.getVersion());
+        return true;
+    }
+
+    @Test
+    void reemplazarTodasNoDiceQueCambio() {
+        RegistroAlarmas registro = new RegistroAlarmas();
+        registro.agregar(new Alarma(LocalTime.of(7, 0), TODOS));
+        long antes = registro.instantanea().getVersion();
+        registro.reemplazarTodas(List.of(new Alarma(LocalTime.of(8, 0), TODOS)));
+        assertNull(registro.instantanea().cambiosDesde(antes));
+
+        // Después vuelve a saberse
+        long despues = registro.instantanea().getVersion();
+        Alarma nueva = new Alarma(LocalTime.of(9, 0), TODOS);
+        registro.agregar(nueva);
+        assertEquals(List.of(nueva), List.copyOf(registro.instantanea().cambiosDesde(despues).cambiadas()));
+    }
+
+    @Test
+    void elPlanificadorSigueLosCambiosDeCadaFuente() throws InterruptedException {
+        Clock reloj = Clock.fixed(Instant.parse("2026-10-19T10:00:00Z"), ZoneOffset.UTC);
+        RegistroAlarmas principal = new RegistroAlarmas();
+        RegistroAlarmas perfil = new RegistroAlarmas();
+        List<Alarma> iniciales = new ArrayList<>();
+        for (int i = 0; i < 100; i++) iniciales.add(new Alarma(LocalTime.of(i % 24, i % 60), TODOS));
+        principal.reemplazarTodas(iniciales);
+        PlanificadorAlarmas planificador = new PlanificadorAlarmas(principal, d -> {}, reloj, 1);
+        planificador.agregarFuente(perfil);
+        planificador.iniciar();
+        try {
+            esperarIgual(planificador, reloj, principal, perfil);
+
+            // La primera en sonar se apaga, se mueve al perfil y se borra
+            Alarma primera = primeraEnSonar(reloj, principal, perfil);
+            principal.cambiarEstado(primera.getId(), false);
+            esperarIgual(planificador, reloj, principal, perfil);
+            principal.cambiarEstado(primera.getId(), true);
+            perfil.agregar(primera);
+            principal.eliminar(primera.getId());
+            esperarIgual(planificador, reloj, principal, perfil);
+            perfil.eliminar(primera.getId());
+            esperarIgual(planificador, reloj, principal, perfil);
+
+            // Una más temprana que todas en el perfil, y luego se cambia el perfil entero
+            perfil.agregar(new Alarma(LocalDateTime.ofInstant(reloj.instant(), ZoneId.systemDefault()).toLocalTime().plusSeconds(30), TODOS));
+            esperarIgual(planificador, reloj, principal, perfil);
+            perfil.reemplazarTodas(List.of());
+            esperarIgual(planificador, reloj, principal, perfil);
+        } finally {
+            planificador.detener();
+        }
+    }
+
+    private static Alarma primeraEnSonar(Clock reloj, RegistroAlarmas... fuentes) {
+        IndiceProximasAlarmas indice = indiceDeCero(reloj, fuentes);
+        return indice.primera().getAlarma();
+    }
+
+    private static IndiceProximasAlarmas indiceDeCero(Clock reloj, RegistroAlarmas... fuentes) {
+        IndiceProximasAlarmas indice = new IndiceProximasAlarmas(ZoneId.systemDefault(),
+                IndiceProximasAlarmas.Hueco.DESPLAZAR, IndiceProximasAlarmas.Solapamiento.PRIMERA);
+        LocalDateTime desde = LocalDateTime.ofInstant(reloj.instant(), ZoneId.systemDefault());
+        List<Alarma> todas = new ArrayList<>();
+        for (RegistroAlarmas f : fuentes) todas.addAll(f.instantanea().getAlarmas());
+        Collections.shuffle(todas, new Random(1));
+        for (Alarma a : todas) indice.actualizar(a, desde);
+        return indice;
+    }
+
+    // El planificador sincroniza en su hilo: se espera a que llegue a lo mismo
+    private static void esperarIgual(PlanificadorAlarmas planificador, Clock reloj, RegistroAlarmas... fuentes)
+            throws InterruptedException {
+        Instant esperado = indiceDeCero(reloj, fuentes).getProximoDisparo();
+        long limite = System.currentTimeMillis() + 5000;
+        while (!esperado.equals(planificador.getProximoDisparo()) && System.currentTimeMillis() < limite) Thread.sleep(10);
+        assertEquals(esperado, planificador.getProximoDisparo());
+    }
+}
@@ -0,0 +1,275 @@
+package com.souris;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * PRUEBA DE LAS REGLAS DE RECURRENCIA
+ * El texto RRULE de ida y vuelta, cada tipo de regla contra el calendario de 2026
+ * (y 2028, bisiesto), las exclusiones, RDATE y DTSTART junto a una frecuencia, y el
+ * bitset compilado una vez por año (y solo unos pocos años a la vez).
+ */
+class PruebaReglaRecurrencia {
+
+    private static final LocalDate HOY = LocalDate.of(2026, 10, 19); // Lunes
+
+    private static List<LocalDate> fechas(String... texto) {
+        List<LocalDate> resultado = new ArrayList<>();
+        for (String t : texto) resultado.add(LocalDate.parse(t));
+        return resultado;
+    }
+
+    // =========================================================================
+    //                        TEXTO (RRULE)
+    // =========================================================================
+
+    @Test
+    void elTextoSeLeeIgual() {
+        List<ReglaRecurrencia> reglas = List.of(
+                ReglaRecurrencia.semanal(new boolean[]{false, true, false, true, false, true, false}),
+                ReglaRecurrencia.cadaNDias(HOY, 3),
+                ReglaRecurrencia.mensual(2, DayOfWeek.MONDAY),
+                ReglaRecurrencia.mensual(-1, DayOfWeek.FRIDAY),
+                ReglaRecurrencia.fechas(fechas("2026-12-24", "2026-12-31")),
+                ReglaRecurrencia.cadaNDias(HOY, 2).excluyendo(fechas("2026-10-21", "2026-12-25")));
+        for (ReglaRecurrencia r : reglas) {
+            ReglaRecurrencia leida = ReglaRecurrencia.parsear(r.texto(), null);
+            assertEquals(r, leida, r.texto());
+            assertEquals(r.texto(), leida.texto());
+        }
+    }
+
+    @Test
+    void formasDelTexto() {
+        assertEquals("FREQ=WEEKLY;BYDAY=MO,WE,FR",
+                ReglaRecurrencia.semanal(new boolean[]{false, true, false, true, false, true, false}).texto());
+        assertEquals("FREQ=DAILY;INTERVAL=3;DTSTART=20261019", ReglaRecurrencia.cadaNDias(HOY, 3).texto());
+        assertEquals("FREQ=MONTHLY;BYDAY=-1FR", ReglaRecurrencia.mensual(-1, DayOfWeek.FRIDAY).texto());
+        assertEquals("RDATE=20261224;EXDATE=20261224",
+                ReglaRecurrencia.fechas(fechas("2026-12-24")).excluyendo(fechas("2026-12-24")).texto());
+        assertNull(ReglaRecurrencia.fechas(fechas("2026-12-24")).rrule());
+    }
+
+    @Test
+    void variantesDeRrule() {
+        // Minúsculas, WKST, DTSTART con hora y "+" en el ordinal
+        assertEquals(ReglaRecurrencia.cadaNDias(HOY, 2),
+                ReglaRecurrencia.parsear("freq=daily;interval=2;dtstart=20261019T073000;wkst=MO", null));
+        assertEquals(ReglaRecurrencia.mensual(2, DayOfWeek.TUESDAY), ReglaRecurrencia.parsear("FREQ=MONTHLY;BYDAY=+2TU", null));
+        // DAILY con BYDAY es semanal; DAILY sin intervalo, todos los días
+        assertEquals(ReglaRecurrencia.semanal(new boolean[]{true, false, false, false, false, false, true}),
+                ReglaRecurrencia.parsear("FREQ=DAILY;BYDAY=SA,SU", null));
+        assertSame(ReglaRecurrencia.semanal(new boolean[]{true, true, true, true, true, true, true}),
+                ReglaRecurrencia.parsear("FREQ=DAILY", null));
+        // Sin DTSTART, el ancla por defecto
+        assertEquals(ReglaRecurrencia.cadaNDias(HOY, 5), ReglaRecurrencia.parsear("FREQ=DAILY;INTERVAL=5", HOY));
+    }
+
+    @Test
+    void reglasQueNoSeEntienden() {
+        for (String texto : List.of("FREQ=YEARLY", "FREQ=WEEKLY", "FREQ=WEEKLY;BYDAY=MO;INTERVAL=2",
+                "FREQ=WEEKLY;BYDAY=XX", "FREQ=DAILY;INTERVAL=3", "FREQ=DAILY;INTERVAL=0;DTSTART=20261019",
+                "FREQ=MONTHLY;BYDAY=MO", "FREQ=MONTHLY;BYDAY=6MO", "FREQ=MONTHLY;BYDAY=1MO,2MO",
+                "RDATE=20261332", "RDATE=2026101", "FREQ=DAILY;COUNT=3", "FREQ")) {
+            assertThrows(IllegalArgumentException.class, () -> ReglaRecurrencia.parsear(texto, null), texto);
+        }
+    }
+
+    // =========================================================================
+    //                        TIPOS DE REGLA
+    // =========================================================================
+
+    @Test
+    void semanalDeLunesAViernes() {
+        ReglaRecurrencia r = ReglaRecurrencia.semanal(new boolean[]{false, true, true, true, true, true, false});
+        assertEquals(fechas("2026-10-23", "2026-10-26"), r.fechasEntre(LocalDate.of(2026, 10, 23), LocalDate.of(2026, 10, 26)));
+        assertEquals(0b0111110, r.diasSemanaPosibles());
+        // Las 127 semanales se comparten
+        assertSame(r, ReglaRecurrencia.semanal(new boolean[]{false, true, true, true, true, true, false}));
+        assertThrows(IllegalArgumentException.class, () -> ReglaRecurrencia.semanal(new boolean[7]));
+    }
+
+    @Test
+    void cadaNDiasCruzaElAnio() {
+        ReglaRecurrencia r = ReglaRecurrencia.cadaNDias(HOY, 3);
+        assertFalse(r.coincide(HOY.minusDays(3)), "Antes del inicio no suena");
+        // Contra la cuenta directa, pasando a 2027 y por el 29 de febrero de 2028
+        LocalDate desde = LocalDate.of(2026, 10, 1), hasta = LocalDate.of(2028, 12, 31);
+        List<LocalDate> esperadas = new ArrayList<>();
+        for (LocalDate d = desde; !d.isAfter(hasta); d = d.plusDays(1)) {
+            if (!d.isBefore(HOY) && ChronoUnit.DAYS.between(HOY, d) % 3 == 0) esperadas.add(d);
+        }
+        assertEquals(esperadas, r.fechasEntre(desde, hasta));
+        assertEquals(LocalDate.of(2027, 1, 2), r.siguiente(LocalDate.of(2026, 12, 31), hasta));
+        assertNull(r.siguiente(LocalDate.of(2026, 12, 31), LocalDate.of(2027, 1, 1)));
+
+        assertEquals(0x7F, r.diasSemanaPosibles());
+        assertEquals(1 << 1, ReglaRecurrencia.cadaNDias(HOY, 14).diasSemanaPosibles(), "Cada 14 días cae siempre en lunes");
+    }
+
+    @Test
+    void mensualElUltimoYElQuinto() {
+        LocalDate enero = LocalDate.of(2026, 1, 1), diciembre = LocalDate.of(2026, 12, 31);
+        // Último sábado: el 31 cuando el mes acaba en sábado, si no, el de antes
+        assertEquals(fechas("2026-01-31", "2026-02-28", "2026-03-28", "2026-04-25", "2026-05-30", "2026-06-27",
+                        "2026-07-25", "2026-08-29", "2026-09-26", "2026-10-31", "2026-11-28", "2026-12-26"),
+                ReglaRecurrencia.mensual(-1, DayOfWeek.SATURDAY).fechasEntre(enero, diciembre));
+        // Quinto sábado: solo en los meses que lo tienen
+        assertEquals(fechas("2026-01-31", "2026-05-30", "2026-08-29", "2026-10-31"),
+                ReglaRecurrencia.mensual(5, DayOfWeek.SATURDAY).fechasEntre(enero, diciembre));
+        // Segundo lunes
+        assertEquals(fechas("2026-10-12", "2026-11-09"),
+                ReglaRecurrencia.mensual(2, DayOfWeek.MONDAY).fechasEntre(LocalDate.of(2026, 10, 1), LocalDate.of(2026, 11, 30)));
+        assertEquals(1 << 6, ReglaRecurrencia.mensual(-1, DayOfWeek.SATURDAY).diasSemanaPosibles());
+        assertThrows(IllegalArgumentException.class, () -> ReglaRecurrencia.mensual(0, DayOfWeek.MONDAY));
+    }
+
+    @Test
+    void fechasSueltasYBisiesto() {
+        ReglaRecurrencia r = ReglaRecurrencia.fechas(fechas("2028-12-31", "2028-02-29", "2026-12-24"));
+        assertEquals(fechas("2026-12-24", "2028-02-29", "2028-12-31"), r.fechasEntre(LocalDate.of(2026, 1, 1), LocalDate.of(2030, 1, 1)));
+        assertTrue(r.coincide(LocalDate.of(2028, 12, 31)), "El día 366 de un año bisiesto");
+        assertNull(r.siguiente(LocalDate.of(2029, 1, 1), LocalDate.of(2040, 1, 1)));
+        assertThrows(IllegalArgumentException.class, () -> ReglaRecurrencia.fechas(List.of()));
+    }
+
+    // =========================================================================
+    //                        EXCLUSIONES
+    // =========================================================================
+
+    @Test
+    void lasExclusionesNoSuenan() {
+        ReglaRecurrencia base = ReglaRecurrencia.mensual(-1, DayOfWeek.SATURDAY);
+        ReglaRecurrencia r = base.excluyendo(fechas("2026-10-31")).excluyendo(fechas("2026-11-28"));
+        assertTrue(base.coincide(LocalDate.of(2026, 10, 31)));
+        assertFalse(r.coincide(LocalDate.of(2026, 10, 31)));
+        assertEquals(LocalDate.of(2026, 12, 26), r.siguiente(LocalDate.of(2026, 10, 1), LocalDate.of(2026, 12, 31)));
+        assertEquals(fechas("2026-10-31", "2026-11-28"), new ArrayList<>(r.getExclusiones()));
+        assertTrue(r.descripcion().endsWith("(excepto 2)"), r.descripcion());
+
+        // Fechas sueltas todas excluidas: ningún día de la semana posible
+        ReglaRecurrencia vacia = ReglaRecurrencia.fechas(fechas("2026-10-19")).excluyendo(fechas("2026-10-19"));
+        assertEquals(0, vacia.diasSemanaPosibles());
+        assertNull(vacia.siguiente(HOY.minusDays(1), HOY.plusDays(1)));
+    }
+
+    // =========================================================================
+    //                        RDATE Y DTSTART CON FRECUENCIA
+    // =========================================================================
+
+    @Test
+    void rdateSeSumaALaFrecuencia() {
+        ReglaRecurrencia r = ReglaRecurrencia.parsear("FREQ=WEEKLY;BYDAY=MO;RDATE=20261224,20261231;EXDATE=20261231", null);
+        assertTrue(r.coincide(LocalDate.of(2026, 10, 26)));
+        assertTrue(r.coincide(LocalDate.of(2026, 12, 24)), "Jueves añadido");
+        assertFalse(r.coincide(LocalDate.of(2026, 12, 31)), "Añadido pero excluido");
+        assertEquals(1 << 1 | 1 << 4, r.diasSemanaPosibles());
+        assertEquals(fechas("2026-12-24", "2026-12-31"), new ArrayList<>(r.getFechas()));
+        assertEquals(r, ReglaRecurrencia.parsear(r.texto(), null), r.texto());
+        assertTrue(r.descripcion().contains("y 2 fechas"), r.descripcion());
+
+        ReglaRecurrencia mensual = ReglaRecurrencia.parsear("FREQ=MONTHLY;BYDAY=-1FR;RDATE=20261102", null);
+        assertEquals(fechas("2026-10-30", "2026-11-02", "2026-11-27"),
+                mensual.fechasEntre(LocalDate.of(2026, 10, 1), LocalDate.of(2026, 11, 30)));
+        ReglaRecurrencia cada3 = ReglaRecurrencia.parsear("FREQ=DAILY;INTERVAL=3;DTSTART=20261019;RDATE=20261020", null);
+        assertEquals(fechas("2026-10-19", "2026-10-20", "2026-10-22"), cada3.fechasEntre(HOY, HOY.plusDays(3)));
+    }
+
+    @Test
+    void dtstartFuturoEnCadaFrecuencia() {
+        LocalDate hoy = LocalDate.now();
+        LocalDate inicio = hoy.plusMonths(1);
+        String dtstart = ";DTSTART=" + inicio.format(DateTimeFormatter.BASIC_ISO_DATE);
+        for (String rrule : List.of("FREQ=DAILY", "FREQ=DAILY;BYDAY=SA", "FREQ=WEEKLY;BYDAY=MO,TH",
+                "FREQ=MONTHLY;BYDAY=-1FR", "FREQ=DAILY;INTERVAL=3")) {
+            ReglaRecurrencia sin = ReglaRecurrencia.parsear(rrule, inicio);
+            ReglaRecurrencia con = ReglaRecurrencia.parsear(rrule + dtstart, hoy);
+            assertNull(con.siguiente(hoy, inicio.minusDays(1)), "Antes del inicio no suena: " + rrule);
+            assertEquals(sin.siguiente(inicio, hoy.plusYears(1)), con.siguiente(hoy, hoy.plusYears(1)), rrule);
+            assertEquals(con, ReglaRecurrencia.parsear(con.texto(), hoy), con.texto());
+        }
+
+        // Un inicio que desde hoy no cambia nada no se guarda: la regla es la de siempre
+        ReglaRecurrencia todosLosDias = ReglaRecurrencia.parsear("FREQ=DAILY", null);
+        assertSame(todosLosDias, ReglaRecurrencia.parsear("FREQ=DAILY;DTSTART=20200101", null));
+        ReglaRecurrencia ultimoViernes = ReglaRecurrencia.mensual(-1, DayOfWeek.FRIDAY);
+        LocalDate proximo = ultimoViernes.siguiente(hoy, hoy.plusYears(1));
+        assertEquals(ultimoViernes, ReglaRecurrencia.parsear("FREQ=MONTHLY;BYDAY=-1FR;DTSTART="
+                + proximo.format(DateTimeFormatter.BASIC_ISO_DATE), null));
+
+        // El inicio se guarda como el primer día en que suena: dos que no cambian nada son iguales
+        ReglaRecurrencia lunes = ReglaRecurrencia.semanal(new boolean[]{false, true, false, false, false, false, false});
+        assertEquals(lunes.desde(LocalDate.of(2026, 10, 20)), lunes.desde(LocalDate.of(2026, 10, 26)));
+        assertEquals(LocalDate.of(2026, 10, 26), lunes.desde(LocalDate.of(2026, 10, 20)).getInicio());
+
+        // Una semanal con inicio ya no es una alarma de solo días de la semana
+        Alarma a = new Alarma(LocalTime.of(7, 0), lunes.desde(inicio));
+        assertEquals("0000000", a.getMascaraDias());
+        assertNotNull(a.getRegla());
+    }
+
+    // =========================================================================
+    //                        BITSET POR AÑO
+    // =========================================================================
+
+    @Test
+    void cadaAnioSeCompilaUnaVez() {
+        ReglaRecurrencia r = ReglaRecurrencia.cadaNDias(HOY, 2);
+        assertSame(r.anio(2026), r.anio(2026));
+        assertNotSame(r.anio(2026), r.anio(2027));
+        // Lo compilado es lo mismo que evaluar día a día
+        for (LocalDate d = LocalDate.of(2026, 1, 1); d.getYear() == 2026; d = d.plusDays(1)) {
+            boolean esperado = !d.isBefore(HOY) && ChronoUnit.DAYS.between(HOY, d) % 2 == 0;
+            assertEquals(esperado, r.anio(2026).get(d.getDayOfYear() - 1), d.toString());
+        }
+    }
+
+    @Test
+    void soloSeGuardanUnosPocosAnios() {
+        ReglaRecurrencia r = ReglaRecurrencia.cadaNDias(HOY, 3);
+        List<LocalDate> siglo = r.fechasEntre(HOY, LocalDate.of(2126, 12, 31));
+        assertEquals(ChronoUnit.DAYS.between(HOY, LocalDate.of(2126, 12, 31)) / 3 + 1, siglo.size());
+        assertTrue(r.aniosCompilados() <= 3, "Compilados: " + r.aniosCompilados());
+        // Lo olvidado se vuelve a compilar igual
+        assertTrue(r.coincide(HOY));
+        assertFalse(r.coincide(HOY.plusDays(1)));
+        assertTrue(r.aniosCompilados() <= 3);
+    }
+
+    @Test
+    void trasDeserializarSeVuelveACompilar() throws Exception {
+        ReglaRecurrencia r = ReglaRecurrencia.mensual(-1, DayOfWeek.SATURDAY).excluyendo(fechas("2026-10-31"));
+        r.coincide(HOY); // Compilada antes de guardar: el bitset no viaja
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(r);
+        }
+        ReglaRecurrencia leida;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            leida = (ReglaRecurrencia) in.readObject();
+        }
+        assertEquals(r, leida);
+        assertFalse(leida.coincide(LocalDate.of(2026, 10, 31)));
+        assertTrue(leida.coincide(LocalDate.of(2026, 11, 28)));
+    }
+}
@@ -0,0 +1,263 @@
+package com.souris;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.SourceDataLine;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * PRUEBA DE RESISTENCIA
+ * La app pasa semanas en la bandeja: esta prueba simula días enteros en segundos
+ * con un reloj acelerado y comprueba que nada crece sin límite.
+ *
+ * - Miles de alarmas suenan a través del {@link PlanificadorAlarmas} real, con
+ *   posposiciones y cambios en el registro mientras tanto.
+ * - Cada segundo mide la memoria (tras un GC), los hilos vivos y las líneas de
+ *   audio abiertas, y al final compara con lo medido tras el calentamiento.
+ * - También comprueba que ninguna alarma suena dos veces en el mismo minuto y
+ *   que no se pierden disparos.
+ * - Con -Dresistencia.audio=true (se oye), cada disparo hace sonar el pitido de
+ *   verdad durante un timbre simulado y lo para desde otro hilo, como el botón
+ *   "Detener"; al final el sonido debe quedar parado y sin líneas abiertas.
+ *
+ * No necesita JavaFX. Tarda medio minuto, así que no corre con las demás pruebas:
+ * mvn verify -Presistencia simula un día, y con -Dresistencia.dias=7 una semana.
+ */
+@Tag("resistencia")
+class PruebaResistencia {
+
+    // Límites tolerados respecto a lo medido tras el calentamiento
+    private static final long CRECIMIENTO_MAXIMO_HEAP = 16L * 1024 * 1024;
+    private static final int HILOS_EXTRA_MAXIMOS = 2;
+    private static final int LINEAS_AUDIO_MAXIMAS = 1;
+    // Fracción del recorrido que se considera calentamiento (JIT, cachés, primeros hilos)
+    private static final double CALENTAMIENTO = 0.15;
+    // Disparos que se toleran de más o de menos por los bordes de la simulación
+    private static final double TOLERANCIA_DISPAROS = 0.01;
+
+    /**
+     * Reloj que avanza "velocidad" veces más rápido que el real, desde "inicio".
+     */
+    static final class RelojAcelerado extends Clock {
+        private final Instant inicio;
+        private final long inicioReal = System.nanoTime();
+        private final double velocidad;
+        private final ZoneId zona;
+
+        RelojAcelerado(Instant inicio, double velocidad, ZoneId zona) {
+            this.inicio = inicio;
+            this.velocidad = velocidad;
+            this.zona = zona;
+        }
+
+        @Override public ZoneId getZone() { return zona; }
+        @Override public Clock withZone(ZoneId z) { return new RelojAcelerado(inicio, velocidad, z); }
+
+        @Override
+        public Instant instant() {
+            long transcurrido = (long) ((System.nanoTime() - inicioReal) * velocidad);
+            return inicio.plusNanos(transcurrido);
+        }
+    }
+
+    // Un timbre simulado: lo que suena cada alarma antes de que alguien la pare
+    private static final Duration TIMBRE = Duration.ofSeconds(20);
+
+    private final int dias = Integer.getInteger("resistencia.dias", 1);
+    private final int numeroAlarmas = Integer.getInteger("resistencia.alarmas", 2880);
+    private final double velocidad = Double.parseDouble(System.getProperty("resistencia.velocidad", "3000"));
+
+    private final RegistroAlarmas registro = new RegistroAlarmas();
+    private final Random aleatorio = new Random(42);
+    private final List<String> fallos = new ArrayList<>();
+
+    // Lo que van contando los disparos (desde el hilo del planificador)
+    private final AtomicLong disparosATiempo = new AtomicLong();
+    private final AtomicLong disparosPospuestos = new AtomicLong();
+    private final AtomicLong disparosFijas = new AtomicLong();
+    private final AtomicInteger repetidos = new AtomicInteger();
+    private final Map<String, Long> ultimoMinuto = new ConcurrentHashMap<>();
+
+    // Máximos medidos después del calentamiento
+    private long heapBase = -1;
+    private int hilosBase = -1;
+    private long heapMaximo;
+    private int hilosMaximo;
+    private int lineasMaximo;
+    private int pospuestasMaximo;
+
+    @Test
+    void sinFugasNiDisparosPerdidos() throws InterruptedException {
+        ZoneId zona = ZoneId.systemDefault();
+        RelojAcelerado reloj = new RelojAcelerado(Instant.now(), velocidad, zona);
+        // Sin sonido por defecto: el pitido generado no necesita JavaFX
+        AudioService audio = hayAudio() ? new AudioService(null) : null;
+
+        // Alarmas repartidas por todo el día; las del grupo "cambiante" se tocan durante la prueba
+        List<Alarma> alarmas = new ArrayList<>(numeroAlarmas);
+        boolean[] todosLosDias = {true, true, true, true, true, true, true};
+        for (int i = 0; i < numeroAlarmas; i++) {
+            LocalTime hora = LocalTime.ofSecondOfDay((long) i * 86_400 / numeroAlarmas).withSecond(0);
+            String grupo = i % 20 == 0 ? "cambiante" : "fija";
+            alarmas.add(new Alarma(hora, todosLosDias).conGrupoYEtiquetas(grupo, List.of()));
+        }
+        registro.reemplazarTodas(alarmas);
+
+        ScheduledExecutorService tareas = Executors.newScheduledThreadPool(1, r -> {
+            Thread t = new Thread(r, "prueba-resistencia");
+            t.setDaemon(true);
+            return t;
+        });
+        long timbreMs = Math.max(1, (long) (TIMBRE.toMillis() / velocidad));
+
+        PlanificadorAlarmas[] planificador = new PlanificadorAlarmas[1];
+        planificador[0] = new PlanificadorAlarmas(registro, disparo -> {
+            Alarma a = disparo.alarma();
+            long minuto = reloj.millis() / 60_000;
+            if (disparo.posposicion() == 0) {
+                disparosATiempo.incrementAndGet();
+                if ("fija".equals(a.getGrupo())) disparosFijas.incrementAndGet();
+                Long anterior = ultimoMinuto.put(a.getId(), minuto);
+                if (anterior != null && anterior == minuto) repetidos.incrementAndGet();
+                // Una de cada cuatro se pospone, como haría alguien medio dormido
+                if ((a.getId().hashCode() & 3) == 0) planificador[0].posponer(a, Duration.ofMinutes(9), 3);
+            } else {
+                disparosPospuestos.incrementAndGet();
+                if (disparo.posposicion() < 3) planificador[0].posponer(a, Duration.ofMinutes(9), 3);
+            }
+            if (audio != null) {
+                audio.reproducir();
+                tareas.schedule(audio::detener, timbreMs, TimeUnit.MILLISECONDS);
+            }
+        }, reloj, velocidad);
+
+        Instant inicio = reloj.instant();
+        Duration simulado = Duration.ofDays(dias);
+        long duracionRealMs = (long) (simulado.toMillis() / velocidad);
+
+        planificador[0].iniciar();
+
+        // Cambios en el registro cada 15 minutos simulados: encender/apagar, borrar y crear
+        long cadaCambioMs = Math.max(1, (long) (Duration.ofMinutes(15).toMillis() / velocidad));
+        tareas.scheduleAtFixedRate(this::cambiarRegistro, cadaCambioMs, cadaCambioMs, TimeUnit.MILLISECONDS);
+
+        // Mediciones cada segundo real
+        long inicioReal = System.currentTimeMillis();
+        while (System.currentTimeMillis() - inicioReal < duracionRealMs) {
+            Thread.sleep(1000);
+            double avance = (System.currentTimeMillis() - inicioReal) / (double) duracionRealMs;
+            medir(avance, audio, planificador[0]);
+        }
+        tareas.shutdownNow();
+        Instant fin = reloj.instant();
+        planificador[0].detener();
+
+        comprobarDisparos(inicio, fin);
+        if (audio != null) comprobarAudioParado(audio);
+        comprobarLimites();
+        assertTrue(fallos.isEmpty(), String.join("\n", fallos));
+    }
+
+    // Solo si se pidió (-Dresistencia.audio=true: se oye) y el equipo puede abrir una línea
+    private static boolean hayAudio() {
+        if (!Boolean.getBoolean("resistencia.audio")) return false;
+        AudioFormat formato = new AudioFormat(8000f, 8, 1, true, false);
+        try (SourceDataLine linea = AudioSystem.getSourceDataLine(formato)) {
+            linea.open(formato);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // Tras el último "Detener" el pitido termina su vuelta y suelta la línea
+    private void comprobarAudioParado(AudioService audio) throws InterruptedException {
+        audio.detener();
+        long limite = System.currentTimeMillis() + 3000;
+        while (audio.getLineasAbiertas() > 0 && System.currentTimeMillis() < limite) Thread.sleep(50);
+        if (audio.isSonando()) fallos.add("El audio sigue sonando tras detenerlo");
+        if (audio.getLineasAbiertas() > 0) fallos.add("Quedó una línea de audio abierta tras detener");
+    }
+
+    // Solo toca el grupo "cambiante": el resto de alarmas sirve para contar disparos exactos
+    private void cambiarRegistro() {
+        registro.cambiarEstadoGrupo("cambiante", aleatorio.nextBoolean());
+        List<Alarma> actuales = registro.instantanea().getAlarmas();
+        Alarma borrar = actuales.get(aleatorio.nextInt(actuales.size()));
+        if (!"cambiante".equals(borrar.getGrupo())) return;
+        registro.eliminar(borrar.getId());
+        registro.agregar(new Alarma(borrar.getHora(), Alarma.parsearMascaraDias(borrar.getMascaraDias())).conGrupoYEtiquetas("cambiante", List.of()));
+    }
+
+    private void medir(double avance, AudioService audio, PlanificadorAlarmas planificador) {
+        MemoryMXBean memoria = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean hilos = ManagementFactory.getThreadMXBean();
+        System.gc();
+        long heap = memoria.getHeapMemoryUsage().getUsed();
+        int vivos = hilos.getThreadCount();
+        int lineas = audio != null ? audio.getLineasAbiertas() : 0;
+
+        lineasMaximo = Math.max(lineasMaximo, lineas);
+        if (avance < CALENTAMIENTO) return;
+        if (heapBase < 0) {
+            heapBase = heap;
+            hilosBase = vivos;
+        }
+        heapMaximo = Math.max(heapMaximo, heap);
+        hilosMaximo = Math.max(hilosMaximo, vivos);
+        pospuestasMaximo = Math.max(pospuestasMaximo, planificador.getPospuestasPendientes());
+    }
+
+    /**
+     * Las alarmas "fijas" no se tocan: deben sonar exactamente lo que dice ConsultaOcurrencias
+     * entre el inicio y el fin (con un pequeño margen por los bordes).
+     */
+    private void comprobarDisparos(Instant inicio, Instant fin) {
+        ZoneId zona = ZoneId.systemDefault();
+        List<Alarma> fijas = new ArrayList<>();
+        for (Alarma a : registro.instantanea().getAlarmas()) {
+            if ("fija".equals(a.getGrupo())) fijas.add(a);
+        }
+        long esperados = ConsultaOcurrencias.entre(fijas, LocalDateTime.ofInstant(inicio, zona),
+                LocalDateTime.ofInstant(fin, zona), Integer.MAX_VALUE).size();
+        long margen = Math.max(5, (long) (esperados * TOLERANCIA_DISPAROS));
+        long sonaron = disparosFijas.get();
+        if (sonaron + margen < esperados) fallos.add("Se perdieron disparos: " + sonaron + " de unos " + esperados);
+        if (repetidos.get() > 0) fallos.add(repetidos.get() + " alarmas sonaron dos veces en el mismo minuto");
+    }
+
+    private void comprobarLimites() {
+        if (heapBase < 0) fallos.add("La prueba fue demasiado corta para medir tras el calentamiento");
+        if (heapMaximo - heapBase > CRECIMIENTO_MAXIMO_HEAP) {
+            fallos.add("El heap creció " + (heapMaximo - heapBase) / 1024 + " KB (máximo " + CRECIMIENTO_MAXIMO_HEAP / 1024 + " KB)");
+        }
+        if (hilosMaximo > hilosBase + HILOS_EXTRA_MAXIMOS) {
+            fallos.add("Los hilos pasaron de " + hilosBase + " a " + hilosMaximo);
+        }
+        if (lineasMaximo > LINEAS_AUDIO_MAXIMAS) fallos.add("Hubo " + lineasMaximo + " líneas de audio abiertas a la vez");
+        if (pospuestasMaximo > numeroAlarmas) fallos.add("Posposiciones pendientes: " + pospuestasMaximo);
+    }
+}
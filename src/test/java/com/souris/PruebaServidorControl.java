@@ -0,0 +1,160 @@
+package com.souris;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * PRUEBA DE LA API LOCAL
+ * Arranca un {@link ServidorControl} en un socket temporal y le habla con
+ * {@link ClienteControl}, como haría un script: lotes de AGREGAR, LISTAR y ELIMINAR,
+ * sus respuestas y lo que queda en el registro.
+ */
+class PruebaServidorControl {
+
+    @TempDir
+    Path carpeta;
+
+    private final RegistroAlarmas registro = new RegistroAlarmas();
+    private final AtomicInteger guardados = new AtomicInteger();
+    private final AtomicInteger lotes = new AtomicInteger();
+    private Path socket;
+    private ServidorControl servidor;
+
+    @BeforeEach
+    void iniciar() throws IOException {
+        socket = carpeta.resolve("control.sock");
+        servidor = new ServidorControl(socket, new ComandosControl(registro, guardados::incrementAndGet) {
+            @Override
+            public List<String> ejecutar(List<String> lineas) {
+                lotes.incrementAndGet();
+                return super.ejecutar(lineas);
+            }
+        });
+        servidor.iniciar();
+    }
+
+    @AfterEach
+    void detener() {
+        servidor.detener();
+    }
+
+    @Test
+    void agregarListarYEliminar() throws IOException {
+        List<String> respuesta = ClienteControl.enviar(socket, List.of(
+                "AGREGAR 07:30 0111110 grupo=turno_mañana etiquetas=obra",
+                "AGREGAR 08:00 -",
+                "AGREGAR 07:30 0111110 grupo=turno_mañana etiquetas=obra",
+                "LISTAR todas"));
+
+        assertEquals("ERR 3: alarma duplicada", respuesta.get(0));
+        assertEquals("OK 2", respuesta.get(respuesta.size() - 1));
+        List<String> listadas = respuesta.subList(1, respuesta.size() - 1);
+        assertEquals(2, listadas.size());
+        assertTrue(listadas.get(0).endsWith(" 07:30 0111110 ON grupo=turno_mañana etiquetas=obra"), listadas.get(0));
+        assertTrue(listadas.get(1).endsWith(" 08:00 0000000 ON"), listadas.get(1));
+
+        List<Alarma> alarmas = registro.instantanea().getAlarmas();
+        assertEquals(2, alarmas.size());
+        assertEquals(LocalTime.of(7, 30), alarmas.get(0).getHora());
+        assertEquals("turno mañana", alarmas.get(0).getGrupo());
+        assertTrue(alarmas.get(1).esUnaSolaVez());
+        assertEquals(1, guardados.get(), "Un lote con cambios se guarda una sola vez");
+
+        String idDeLas730 = alarmas.get(0).getId();
+        respuesta = ClienteControl.enviar(socket, List.of("ELIMINAR hora=07:00-07:59", "LISTAR todas"));
+        assertEquals(2, respuesta.size(), String.join("\n", respuesta));
+        assertTrue(respuesta.get(0).endsWith(" 08:00 0000000 ON"), respuesta.get(0));
+        assertEquals("OK 1", respuesta.get(1));
+        assertEquals(1, registro.instantanea().tamano());
+        assertFalse(registro.instantanea().getAlarmas().stream().anyMatch(a -> a.getId().equals(idDeLas730)));
+        assertEquals(2, guardados.get());
+    }
+
+    @Test
+    void unLoteConErroresNoGuardaSiNoCambiaNada() throws IOException {
+        List<String> respuesta = ClienteControl.enviar(socket, List.of(
+                "AGREGAR 25:00",
+                "VOLAR alto",
+                "ELIMINAR estado=quizas",
+                "ELIMINAR todas"));
+
+        assertEquals(4, respuesta.size(), String.join("\n", respuesta));
+        assertTrue(respuesta.get(0).startsWith("ERR 1: "), respuesta.get(0));
+        assertEquals("ERR 2: Orden desconocida: VOLAR", respuesta.get(1));
+        assertTrue(respuesta.get(2).startsWith("ERR 3: "), respuesta.get(2));
+        assertEquals("OK 0", respuesta.get(3));
+        assertEquals(0, guardados.get());
+    }
+
+    @Test
+    void comprobarSiHayServidorNoEjecutaNada() throws Exception {
+        for (int i = 0; i < 3; i++) assertTrue(ClienteControl.hayServidor(socket));
+        assertEquals(List.of("OK 0"), ClienteControl.enviar(socket, List.of("LISTAR todas")));
+        Thread.sleep(200); // Por si el selector aún no había visto cerrarse alguna comprobación
+        assertEquals(1, lotes.get(), "Solo el lote de verdad");
+        assertFalse(ClienteControl.hayServidor(carpeta.resolve("otro.sock")));
+    }
+
+    @Test
+    void losLotesEsperanHastaQueHayComandos() throws Exception {
+        // Como en el arranque: el servidor escucha antes de que el archivo esté cargado
+        ServidorControl temprano = new ServidorControl(carpeta.resolve("arranque.sock"));
+        temprano.iniciar();
+        try {
+            List<List<String>> respuesta = new ArrayList<>(List.of(List.<String>of()));
+            Thread cliente = new Thread(() -> {
+                try {
+                    respuesta.set(0, ClienteControl.enviar(carpeta.resolve("arranque.sock"), List.of("AGREGAR 06:00 1111111")));
+                } catch (IOException e) {
+                    respuesta.set(0, List.of("ERR " + e));
+                }
+            });
+            cliente.start();
+            cliente.join(300);
+            assertTrue(cliente.isAlive(), "Espera en cola, no falla");
+            assertEquals(0, registro.instantanea().tamano());
+
+            temprano.atender(new ComandosControl(registro, guardados::incrementAndGet));
+            cliente.join(10_000);
+            assertEquals(List.of("OK 1"), respuesta.get(0));
+            assertEquals(1, registro.instantanea().tamano());
+        } finally {
+            temprano.detener();
+        }
+    }
+
+    @Test
+    void variosClientesALaVez() throws Exception {
+        int clientes = 8;
+        Thread[] hilos = new Thread[clientes];
+        List<List<String>> respuestas = new ArrayList<>(Collections.nCopies(clientes, List.<String>of()));
+        for (int i = 0; i < clientes; i++) {
+            int n = i;
+            hilos[i] = new Thread(() -> {
+                try {
+                    respuestas.set(n, ClienteControl.enviar(socket, List.of(String.format("AGREGAR 06:%02d 1111111", n))));
+                } catch (IOException e) {
+                    respuestas.set(n, List.of("ERR " + e));
+                }
+            });
+            hilos[i].start();
+        }
+        for (Thread h : hilos) h.join(10_000);
+        for (List<String> r : respuestas) assertEquals(List.of("OK 1"), r);
+        assertEquals(clientes, registro.instantanea().tamano());
+    }
+}